@@ -0,0 +1,38 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Allocates real disk blocks with posix_fallocate where available (API 21+), so big zips and samples
+ * are less fragmented and running out of space is noticed before download instead of in the middle.
+ */
+public class AndroidFilePreallocator implements ChannelIo.Preallocator {
+
+    @Override
+    public void preallocate(RandomAccessFile file, long length) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            fallocate(file, length);
+        }
+        // fallocate keeps bigger size if file was longer, and old APIs only have this
+        file.setLength(length);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void fallocate(RandomAccessFile file, long length) throws IOException {
+        try {
+            Os.posix_fallocate(file.getFD(), 0, length);
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC) {
+                throw new IOException("No space left to preallocate " + length + " bytes", e);
+            }
+            // not supported by some file systems (e.g. sdcardfs, vfat), setLength is enough there
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Hard links through android.system.Os, available from API 21. Store is not used below that.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class AndroidLinkSupport implements BlobStore.LinkSupport {
+
+    public static boolean isAvailable() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    @Override
+    public void link(File existing, File link) throws IOException {
+        try {
+            Os.link(existing.getAbsolutePath(), link.getAbsolutePath());
+        } catch (ErrnoException e) {
+            // e.g. EEXIST, EMLINK or EPERM on storages without hard links (vfat, sdcardfs)
+            throw new IOException("Can't link " + link + " to " + existing, e);
+        }
+    }
+
+    @Override
+    public long getLinkCount(File file) throws IOException {
+        try {
+            return Os.stat(file.getAbsolutePath()).st_nlink;
+        } catch (ErrnoException e) {
+            throw new IOException("Can't stat " + file, e);
+        }
+    }
+}
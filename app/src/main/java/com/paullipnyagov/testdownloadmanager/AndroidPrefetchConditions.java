@@ -0,0 +1,50 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+
+/**
+ * Prefetch runs only on unmetered network while device is charging, so it costs user neither
+ * data plan nor battery.
+ */
+public class AndroidPrefetchConditions implements PresetPrefetcher.Conditions {
+
+    private final Context mAppContext;
+
+    public AndroidPrefetchConditions(Context appContext) {
+        mAppContext = appContext;
+    }
+
+    @Override
+    public boolean isPrefetchAllowed() {
+        return isNetworkUnmetered() && isCharging();
+    }
+
+    private boolean isNetworkUnmetered() {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) mAppContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null) {
+            return false;
+        }
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        if (networkInfo == null || !networkInfo.isConnected()) {
+            return false;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return !connectivityManager.isActiveNetworkMetered();
+        }
+        // no metered flag before API 16, wifi is the best guess
+        return networkInfo.getType() == ConnectivityManager.TYPE_WIFI;
+    }
+
+    private boolean isCharging() {
+        // sticky broadcast, registering null receiver just reads the last value
+        Intent batteryStatus = mAppContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return batteryStatus != null && batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+}
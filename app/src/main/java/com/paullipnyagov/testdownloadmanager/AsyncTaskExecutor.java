@@ -0,0 +1,25 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import android.annotation.SuppressLint;
+import android.os.AsyncTask;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs preset transfers as AsyncTasks of the app thread pool, like downloads always ran in the app.
+ */
+public class AsyncTaskExecutor implements Executor {
+
+    @SuppressLint("StaticFieldLeak")
+    @Override
+    public void execute(final Runnable command) {
+        AsyncTask<Void, Void, Void> task = new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                command.run();
+                return null;
+            }
+        };
+        MyThreadPool.executeAsyncTaskParallel(task, MyThreadPool.TASK_TYPE_PRIMARY);
+    }
+}
@@ -0,0 +1,34 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Runs tasks on Android main thread, default executor for progress subscribers and event loop of
+ * the download engine.
+ */
+public class MainThreadExecutor implements PresetDownloadEngine.EventLoop {
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    @Override
+    public void execute(Runnable command) {
+        mHandler.post(command);
+    }
+
+    @Override
+    public void executeDelayed(Runnable runnable, long delayMs) {
+        mHandler.postDelayed(runnable, delayMs);
+    }
+
+    @Override
+    public void cancel(Runnable runnable) {
+        mHandler.removeCallbacks(runnable);
+    }
+
+    @Override
+    public long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
+}
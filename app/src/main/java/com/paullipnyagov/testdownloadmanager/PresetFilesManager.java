@@ -7,11 +7,7 @@ import com.paullipnyagov.myutillibrary.otherUtils.MiscUtils;
 import com.paullipnyagov.ref2_presetmanagers.PresetConfigManagers.PresetsConfigUpdater;
 import com.paullipnyagov.ref2_utils.ExternalStorageUtils;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 
 import settings.Constants;
@@ -22,25 +18,55 @@ import settings.Constants;
 
 public class PresetFilesManager {
 
-    /*
-    * Files are written to ensure preset was downloaded successfully.
-    * EXT versions are used in newer app builds because writing file without
-    * extensions may have called problems with some users downloading presets.
-    */
-    private static final String LDP_INSURANCE_FILE_NAME = "preset_downloaded";
-    private static final String LDP_INSURANCE_FILE_NAME_EXT = "preset_downloaded.dp";
-    private static final String LDP_VERSION_FILE_NAME = "version";
-    private static final String LDP_VERSION_FILE_NAME_EXT = "version.dp";
+    // kept in internal storage, so writing it doesn't change modification time of download directory
+    private static final String INSTALLED_PRESET_INDEX_FILE_NAME = "installed_presets.idx";
+    // not a number, so it is never taken for a preset directory
+    private static final String BLOB_STORE_DIRECTORY_NAME = ".blobs";
+    private static final String PRESET_PREFETCH_STATE_FILE_NAME = "preset_prefetch.dat";
+    private static final String PRESET_CATALOGUE_SNAPSHOT_FILE_NAME = "preset_catalogue.snap";
 
     private static volatile PresetFilesManager mInstance; // singleton
     private static Context mContext;
+    private static volatile InstalledPresetIndex mInstalledPresetIndex;
+    private static volatile BlobStore mBlobStore;
+    private static PresetCatalogueLoader mPresetCatalogueLoader;
+    private static String mPresetCatalogueUrl;
 
     private PresetsDownloadManager mPresetsDownloadManager;
     private PresetsConfigUpdater mPresetConfigUpdater;
+    private PresetPrefetcher mPresetPrefetcher;
 
     // pass Application, not Activity context here
     public static void init(Context appContext) {
         mContext = appContext;
+        DownloadLog.setSink(new DownloadLog.Sink() {
+            @Override
+            public void d(String message) {
+                MyLog.d(message);
+            }
+
+            @Override
+            public void e(String message) {
+                MyLog.e(message);
+            }
+        });
+        ChannelIo.setPreallocator(new AndroidFilePreallocator());
+        UrlConnectionTransport.configureConnectionPool(UrlConnectionTransport.DEFAULT_MAX_IDLE_CONNECTIONS);
+        // load or build index in background, so the first preset list doesn't wait for it
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                InstalledPresetIndex index = getInstalledPresetIndex();
+                if (index != null) {
+                    index.ensureLoaded();
+                    IoExecutor.getDefault().emptyTrash(index.getDownloadDirectory());
+                }
+                File tempDirectory = ExternalStorageUtils.getAppDir(mContext, Constants.LDP_DIR_TEMP_PATH);
+                if (tempDirectory != null) {
+                    IoExecutor.getDefault().emptyTrash(tempDirectory);
+                }
+            }
+        }, "PresetIndexLoad").start();
     }
 
     // Double Checked Locking & volatile initialization
@@ -60,186 +86,257 @@ public class PresetFilesManager {
     private PresetFilesManager() {
         mPresetsDownloadManager = new PresetsDownloadManager(mContext);
         mPresetConfigUpdater = new PresetsConfigUpdater();
+        mPresetPrefetcher = new PresetPrefetcher(mPresetsDownloadManager, new AndroidPrefetchConditions(mContext),
+                new File(mContext.getFilesDir(), PRESET_PREFETCH_STATE_FILE_NAME));
     }
 
     public static PresetsDownloadManager getPresetDownloadQueue() {
         return getInstance().mPresetsDownloadManager;
     }
 
-    public static boolean isPresetDownloaded(int presetId) {
-        if (!ExternalStorageUtils.isExternalStorageMounted()) {
-            return false;
+    /*
+     * Catalogue has to be set on it once preset config is read, then it prefetches on maybePrefetch calls
+     */
+    public static PresetPrefetcher getPresetPrefetcher() {
+        return getInstance().mPresetPrefetcher;
+    }
+
+    /*
+     * Catalogue of presets from config at given url, snapshot of the last one is kept in internal storage
+     */
+    public static synchronized PresetCatalogueLoader getPresetCatalogueLoader(String configUrl) {
+        if (mPresetCatalogueLoader == null || !configUrl.equals(mPresetCatalogueUrl)) {
+            mPresetCatalogueLoader = new PresetCatalogueLoader(UrlConnectionTransport.getDefault(), configUrl,
+                    new File(mContext.getFilesDir(), PRESET_CATALOGUE_SNAPSHOT_FILE_NAME));
+            mPresetCatalogueUrl = configUrl;
         }
+        return mPresetCatalogueLoader;
+    }
 
-        File downloadDirectory = ExternalStorageUtils.getAppDir(
-                mContext, Constants.LDP_DIR_DOWNLOAD_PATH);
+    /*
+     * Refreshes catalogue at given url in background. Prefetcher gets the changes first, then callback is run
+     * on main thread. Diff is null if refresh failed, catalogue from the last snapshot stays then.
+     * Config url is owned by PresetsConfigUpdater, so this is called by the code that updates preset config
+     * once the url is known, not by init
+     */
+    public static void refreshPresetCatalogue(String configUrl,
+                                              final IoExecutor.Callback<PresetCatalogue.Diff> callback) {
+        final PresetCatalogueLoader loader = getPresetCatalogueLoader(configUrl);
+        IoExecutor.getDefault().submit(new IoExecutor.Task<PresetCatalogue.Diff>() {
+            @Override
+            public PresetCatalogue.Diff run() {
+                try {
+                    return loader.refresh();
+                } catch (IOException e) {
+                    MyLog.e("[PresetFilesManager] Can't refresh preset catalogue: " + e.toString());
+                    return null;
+                }
+            }
+        }, new IoExecutor.Callback<PresetCatalogue.Diff>() {
+            @Override
+            public void onComplete(PresetCatalogue.Diff diff) {
+                if (diff != null) {
+                    getPresetPrefetcher().onCatalogueRefreshed(loader.getCatalogue(), diff);
+                }
+                if (callback != null) {
+                    callback.onComplete(diff);
+                }
+            }
+        }, new MainThreadExecutor());
+    }
+
+    /*
+     * Returns index of presets in current download directory or null if it couldn't be accessed
+     */
+    public static InstalledPresetIndex getInstalledPresetIndex() {
+        if (!ExternalStorageUtils.isExternalStorageMounted()) {
+            return null;
+        }
+        File downloadDirectory = ExternalStorageUtils.getAppDir(mContext, Constants.LDP_DIR_DOWNLOAD_PATH);
         if (downloadDirectory == null) {
-            MyLog.e("[FileSystemHelper] Preset download dir for preset id " + presetId +
-                    " couldn't be accessed");
-            return false;
+            MyLog.e("[FileSystemHelper] Preset download dir couldn't be accessed");
+            return null;
+        }
+        synchronized (PresetFilesManager.class) {
+            // download directory may move to other storage, index of the old one is useless then
+            if (mInstalledPresetIndex == null ||
+                    !mInstalledPresetIndex.getDownloadDirectory().equals(downloadDirectory)) {
+                mInstalledPresetIndex = new InstalledPresetIndex(downloadDirectory,
+                        new File(mContext.getFilesDir(), INSTALLED_PRESET_INDEX_FILE_NAME));
+            }
+            return mInstalledPresetIndex;
         }
+    }
 
-        File presetDirectory = new File(downloadDirectory, presetId + "/");
-        if (!presetDirectory.exists()) {
-            // no directory -> preset wasn't downloaded
-            return false;
+    /*
+     * Store of samples shared between presets, kept in download directory because hard links can't
+     * cross file systems. Returns null if hard links are not available (below API 21) or storage isn't
+     */
+    public static BlobStore getBlobStore() {
+        if (!AndroidLinkSupport.isAvailable()) {
+            return null;
         }
+        InstalledPresetIndex index = getInstalledPresetIndex();
+        if (index == null) {
+            return null;
+        }
+        File directory = new File(index.getDownloadDirectory(), BLOB_STORE_DIRECTORY_NAME);
+        synchronized (PresetFilesManager.class) {
+            if (mBlobStore == null || !mBlobStore.getDirectory().equals(directory)) {
+                mBlobStore = new BlobStore(directory, new AndroidLinkSupport(), BlobStore.DEFAULT_MIN_BLOB_SIZE);
+            }
+            return mBlobStore;
+        }
+    }
 
-        return checkInsuranceExists(presetDirectory);
+    /*
+     * Lookups below are made on main thread and never wait for index: they answer "not installed"
+     * while it is loading. Ask again from addOnInstalledPresetsLoadedListener
+     */
+    public static void addOnInstalledPresetsLoadedListener(Runnable listener) {
+        InstalledPresetIndex index = getInstalledPresetIndex();
+        if (index == null) {
+            new MainThreadExecutor().execute(listener);
+            return;
+        }
+        index.addOnLoadedListener(listener, new MainThreadExecutor());
     }
 
+    public static boolean isPresetDownloaded(int presetId) {
+        InstalledPresetIndex index = getInstalledPresetIndex();
+        return index != null && index.peekState(presetId) == InstalledPreset.STATE_INSTALLED;
+    }
 
-    public static boolean writeInsuranceFile(File dir) throws IOException {
-        File insurance = new File(dir, LDP_INSURANCE_FILE_NAME_EXT);
-        return insurance.createNewFile();
+    /*
+     * True if preset is installed from archive with given SHA-256. Hash was checked during download,
+     * so this is a lookup in index and files are not read
+     */
+    public static boolean isPresetIntact(int presetId, String expectedSha256) {
+        InstalledPresetIndex index = getInstalledPresetIndex();
+        InstalledPreset preset = index == null ? null : index.peek(presetId);
+        return preset != null && preset.isInstalled() && HashUtils.hashEquals(expectedSha256,
+                preset.getArchiveSha256());
     }
 
-    public static boolean deleteInsuranceFile(File dir) {
-        boolean hasDeletedOld;
-        boolean hasDeletedExt;
-        File insurance = new File(dir, LDP_INSURANCE_FILE_NAME);
-        if (insurance.exists()) {
-            hasDeletedOld = insurance.delete();
-        } else {
-            hasDeletedOld = true;
-        }
-        File insuranceExt = new File(dir, LDP_INSURANCE_FILE_NAME_EXT);
-        if (insuranceExt.exists()) {
-            hasDeletedExt = insuranceExt.delete();
-        } else {
-            hasDeletedExt = true;
+    /*
+     * InstalledPreset.STATE_* of every given preset, in the same order. Meant for preset lists,
+     * all STATE_UNKNOWN while index is loading
+     */
+    public static int[] getInstalledStates(int[] presetIds) {
+        InstalledPresetIndex index = getInstalledPresetIndex();
+        if (index == null) {
+            return new int[presetIds.length]; // all STATE_NOT_INSTALLED
         }
-        return hasDeletedExt && hasDeletedOld;
+        return index.peekInstalledStates(presetIds);
     }
 
-    public static boolean checkInsuranceExists(File dir) {
-        File insurance = new File(dir, LDP_INSURANCE_FILE_NAME);
-        if (insurance.exists()) {
-            // found old, no-extension version of insurance file
-            return true;
+    /*
+     * Moves files of preset to trash and forgets it in index, files are deleted in background.
+     * Returns false if they couldn't be moved, they are deleted in place then and index is updated after that
+     */
+    public static boolean deletePreset(final int presetId) {
+        final InstalledPresetIndex index = getInstalledPresetIndex();
+        if (index == null) {
+            return false;
         }
-        File insuranceExt = new File(dir, LDP_INSURANCE_FILE_NAME_EXT);
-        if (insuranceExt.exists()) {
-            // found new version of file with extension
-            return true;
+        IoExecutor ioExecutor = IoExecutor.getDefault();
+        File presetDirectory = new File(index.getDownloadDirectory(), Integer.toString(presetId));
+        final boolean moved = ioExecutor.deleteLater(presetDirectory);
+        if (moved) {
+            index.onDeleted(presetId);
         }
-        return false;
+        final BlobStore blobStore = getBlobStore();
+        ioExecutor.runAfterTrashEmptied(new Runnable() {
+            @Override
+            public void run() {
+                if (!moved) {
+                    // something may be left, let the index see what exactly
+                    index.refresh(presetId);
+                }
+                if (blobStore != null) {
+                    // samples which were used only by this preset are not needed anymore
+                    blobStore.collectGarbage();
+                }
+            }
+        });
+        return moved;
     }
 
-    // returns error message to be shown in toast on null if no error
-    public static String writeVersionFile(File dir, String presetVersion) throws IOException {
-        BufferedWriter writer = null;
-        try {
-            File versionFile = new File(dir, LDP_VERSION_FILE_NAME_EXT);
-            if (versionFile.exists()) {
-                return "Error creating version file: file already exists!!!";
-            }
-            if (!versionFile.createNewFile()) {
-                return "Error creating version file: createNewFile returned false! Free space: " +
-                        versionFile.getFreeSpace();
-            }
-            writer = new BufferedWriter(new FileWriter(versionFile));
-            // additional checks for analytics
-            if (!versionFile.exists()) {
-                return "Error while writing version file: file was not created. Free space: " +
-                        versionFile.getFreeSpace();
-            }
-            if (versionFile.isDirectory()) {
-                return "Error while writing version file: directory was created instead of file!";
-            }
-            writer.write(presetVersion);
-        } finally {
-            if (writer != null) {
-                writer.close();
-            }
-        }
-        return null;
+    // marker files of older builds, see LegacyMarkerFiles
+
+    public static boolean writeInsuranceFile(File dir) throws IOException {
+        return LegacyMarkerFiles.writeInsuranceFile(dir);
     }
 
-    public static String readVersionFile(File dir) throws IOException {
-        BufferedReader reader = null;
-        File versionFile = new File(dir, LDP_VERSION_FILE_NAME);
-        File versionFileExt = new File(dir, LDP_VERSION_FILE_NAME_EXT);
+    public static boolean deleteInsuranceFile(File dir) {
+        return LegacyMarkerFiles.deleteInsuranceFile(dir);
+    }
 
-        File workingFile = null;
+    public static boolean checkInsuranceExists(File dir) {
+        return LegacyMarkerFiles.checkInsuranceExists(dir);
+    }
 
-        if (versionFile.exists()) {
-            workingFile = versionFile;
-        }
-        if (versionFileExt.exists()) {
-            // should read newer ext version if it exists
-            workingFile = versionFileExt;
-        }
+    // returns error message to be shown in toast on null if no error
+    public static String writeVersionFile(File dir, String presetVersion) throws IOException {
+        return LegacyMarkerFiles.writeVersionFile(dir, presetVersion);
+    }
 
-        if (workingFile == null) {
-            // version file is absent
-            return null;
-        }
+    public static String readVersionFile(File dir) throws IOException {
+        return LegacyMarkerFiles.readVersionFile(dir);
+    }
 
-        try {
-            reader = new BufferedReader(new FileReader(workingFile));
-            return reader.readLine();
-        } finally {
-            if (reader != null) {
-                reader.close();
-            }
-        }
+    public static boolean deleteVersionFile(File dir) {
+        return LegacyMarkerFiles.deleteVersionFile(dir);
     }
 
     // returns false if preset version doesn't match and should be re-downloaded
     public static boolean comparePresetVersion(File dir, String newestVersion) {
         try {
-            String currentVersion = readVersionFile(dir);
-            if (currentVersion == null &&
-                    !(newestVersion == null || newestVersion.equals("") || newestVersion.equals("0"))) {
-                return false;
-            }
-            if (currentVersion == null) { // and preset version is null, "" or 0 - means not set
-                return true;
-            }
-            return currentVersion.equals(newestVersion);
+            return InstalledPreset.isVersionUpToDate(readVersionFile(dir), newestVersion);
         } catch (IOException e) {
             MyLog.e("[PresetsFileSystemHelper] Error while reading version file: " + e.toString());
             return false;
         }
     }
 
-    public static boolean deleteVersionFile(File dir) {
-        boolean hasDeletedOld;
-        boolean hasDeletedExt;
-        File presetVersionFile = new File(dir, LDP_VERSION_FILE_NAME);
-        File presetVersionFileExt = new File(dir, LDP_VERSION_FILE_NAME_EXT);
-        if (presetVersionFile.exists()) {
-            hasDeletedOld = presetVersionFile.delete();
-        } else {
-            hasDeletedOld = true;
-        }
-        if (presetVersionFileExt.exists()) {
-            hasDeletedExt = presetVersionFileExt.delete();
-        } else {
-            hasDeletedExt = true;
-        }
-
-        return hasDeletedExt && hasDeletedOld;
+    // same as above, but version is taken from index instead of version file. False while index is loading
+    public static boolean comparePresetVersion(int presetId, String newestVersion) {
+        InstalledPresetIndex index = getInstalledPresetIndex();
+        InstalledPreset preset = index == null ? null : index.peek(presetId);
+        return preset != null && preset.isUpToDate(newestVersion);
     }
 
+    /*
+     * Moves all temp files to trash, they are deleted in background. Returns false if some of them
+     * couldn't be moved and are deleted in place
+     */
     public static boolean cleanTempDownloadsDirectory(Context context) {
         File tempDirectory = ExternalStorageUtils.getAppDir(context, Constants.LDP_DIR_TEMP_PATH);
         if (tempDirectory == null) {
             return false;
         }
 
-        String[] tempFiles = tempDirectory.list();
-        for (String tempFile : tempFiles) {
-            File fileToDelete = new File(tempDirectory, tempFile);
-            if (!fileToDelete.delete()) {
-                MiscUtils.log("[FileSystemHelper] Error removing file " + tempFile, true);
-                return false;
+        File[] tempFiles = tempDirectory.listFiles();
+        if (tempFiles == null) {
+            return false;
+        }
+        boolean moved = true;
+        for (File tempFile : tempFiles) {
+            if (tempFile.getName().equals(IoExecutor.TRASH_DIRECTORY_NAME)) {
+                continue;
+            }
+            if (!IoExecutor.getDefault().deleteLater(tempFile)) {
+                MiscUtils.log("[FileSystemHelper] Error moving file " + tempFile.getName() + " to trash", true);
+                moved = false;
             }
         }
-        return true; // no error
+        return moved;
     }
 
+    /*
+     * Directory of installed preset. Presets installed with archive kept have no sample files there,
+     * use getPresetHandleById to read samples of any preset
+     */
     public static String getPresetDirPathById(Context context, int presetId) {
         File downloadDirectory = ExternalStorageUtils.getAppDir(context, Constants.LDP_DIR_DOWNLOAD_PATH);
         if (downloadDirectory == null) {
@@ -257,6 +354,23 @@ public class PresetFilesManager {
         return presetDirectory.getAbsolutePath();
     }
 
+    /*
+     * Samples of installed preset, extracted or kept in archive. Null if preset is not installed.
+     * Opening an archive reads its central directory, so it is called in background. Caller closes handle
+     */
+    public static PresetHandle getPresetHandleById(Context context, int presetId) {
+        String presetDirectoryPath = getPresetDirPathById(context, presetId);
+        if (presetDirectoryPath == null) {
+            return null;
+        }
+        try {
+            return PresetHandle.open(presetId, new File(presetDirectoryPath));
+        } catch (IOException e) {
+            MiscUtils.log("[FileSystemHelper] Can't open preset " + presetId + ": " + e.toString(), true);
+            return null;
+        }
+    }
+
     public static PresetsConfigUpdater getPresetConfigUpdater() {
         return getInstance().mPresetConfigUpdater;
     }
@@ -0,0 +1,433 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import com.paullipnyagov.myutillibrary.MyLog;
+import com.paullipnyagov.presetconfigworker.configData.PresetConfigInfo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Downloads presets user is likely to tap next while device is idle, one at a time and with background
+ * priority, so user downloads always go first. Guess is made by {@link PresetUsageHistory} from catalogue
+ * order, taps history and popularity counts. Prefetched presets are installed as usual, so a tap on
+ * one of them needs no download at all, they only stay counted against disk budget until first tap.
+ * Must be used on main thread, like the download manager.
+ */
+public class PresetPrefetcher implements PresetsDownloadManager.OnPresetDownloadEventListener {
+
+    public static final long DEFAULT_DISK_BUDGET_BYTES = 200L * 1024 * 1024;
+    // prefetched preset which was not tapped for this long was a wrong guess, its space is given back
+    public static final long DEFAULT_UNUSED_MAX_AGE_MS = 14L * 24 * 60 * 60 * 1000;
+
+    private static final int FILE_MAGIC = 0x50505246; // "PPRF"
+    private static final int FILE_VERSION = 1;
+
+    public interface Conditions {
+        // checked before every prefetch, and running prefetch is cancelled when it turns false
+        boolean isPrefetchAllowed();
+    }
+
+    // contents of state file, read on IO thread
+    private static class SavedState {
+        int hitCount;
+        int missCount;
+        long wastedBytes;
+        final LinkedHashMap<Integer, long[]> prefetched = new LinkedHashMap<>();
+        final PresetUsageHistory history = new PresetUsageHistory();
+    }
+
+    private final PresetsDownloadManager mDownloadManager;
+    private final Conditions mConditions;
+    private final File mStateFile;
+
+    private PresetUsageHistory mHistory = new PresetUsageHistory();
+    // nothing is saved or prefetched until state file is read, taps meanwhile are counted after that:
+    // {preset id, 1 if it was installed, 1 if it was queued already}
+    private boolean mStateLoaded = false;
+    private final ArrayList<int[]> mTapsBeforeLoad = new ArrayList<>();
+    // presets removed from catalogue or updated there before state was loaded
+    private final ArrayList<Integer> mOutdatedBeforeLoad = new ArrayList<>();
+    // presets in catalogue order, set by the code which reads preset config
+    private List<PresetConfigInfo> mCatalogue = new ArrayList<>();
+    private Map<Integer, Integer> mPopularity = new HashMap<>();
+
+    // prefetched presets which were not tapped yet: id -> {size in bytes, time of prefetch}
+    private final LinkedHashMap<Integer, long[]> mPrefetched = new LinkedHashMap<>();
+    private int mPrefetchingId = 0;
+
+    private long mDiskBudgetBytes = DEFAULT_DISK_BUDGET_BYTES;
+    private long mUnusedMaxAgeMs = DEFAULT_UNUSED_MAX_AGE_MS;
+
+    // metrics: taps served by prefetch, taps which had to download and bytes prefetched for nothing
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+    private long mWastedBytes = 0;
+
+    public PresetPrefetcher(PresetsDownloadManager downloadManager, Conditions conditions, File stateFile) {
+        mDownloadManager = downloadManager;
+        mConditions = conditions;
+        mStateFile = stateFile;
+        downloadManager.addOnPresetDownloadListener(this);
+        IoExecutor.getDefault().submit(new IoExecutor.Task<SavedState>() {
+            @Override
+            public SavedState run() {
+                // candidates are looked up in index on main thread, which doesn't wait for it to load
+                InstalledPresetIndex index = PresetFilesManager.getInstalledPresetIndex();
+                if (index != null) {
+                    index.ensureLoaded();
+                }
+                return readStateFile(mStateFile);
+            }
+        }, new IoExecutor.Callback<SavedState>() {
+            @Override
+            public void onComplete(SavedState state) {
+                onStateLoaded(state);
+            }
+        }, new MainThreadExecutor());
+    }
+
+    public void setCatalogue(List<PresetConfigInfo> catalogue) {
+        mCatalogue = new ArrayList<>(catalogue);
+    }
+
+    /*
+     * Applies refreshed catalogue, see PresetFilesManager.refreshPresetCatalogue. Removed presets are not
+     * prefetched anymore, and prefetched ones which were removed or got a new version can't serve a tap
+     */
+    public void onCatalogueRefreshed(PresetCatalogue catalogue, PresetCatalogue.Diff diff) {
+        // preset config may be older than refreshed catalogue
+        Iterator<PresetConfigInfo> presets = mCatalogue.iterator();
+        while (presets.hasNext()) {
+            if (!catalogue.contains(presets.next().getId())) {
+                presets.remove();
+            }
+        }
+        ArrayList<Integer> outdatedIds = new ArrayList<>(diff.removedIds);
+        outdatedIds.addAll(diff.versionChangedIds);
+        if (!mStateLoaded) {
+            mOutdatedBeforeLoad.addAll(outdatedIds);
+            return;
+        }
+        deleteOutdatedPrefetches(outdatedIds);
+    }
+
+    /*
+     * Preset id -> popularity count, e.g. downloads of all users. Only relative values matter
+     */
+    public void setPopularity(Map<Integer, Integer> popularity) {
+        mPopularity = new HashMap<>(popularity);
+    }
+
+    /*
+     * Space prefetched and not yet tapped presets may take. No more presets are prefetched above it
+     */
+    public void setDiskBudgetBytes(long diskBudgetBytes) {
+        mDiskBudgetBytes = diskBudgetBytes;
+    }
+
+    public void setUnusedMaxAgeMs(long unusedMaxAgeMs) {
+        mUnusedMaxAgeMs = unusedMaxAgeMs;
+    }
+
+    /*
+     * Use instead of PresetsDownloadManager.download when user taps a preset. Returns true if preset was
+     * prefetched and is ready, otherwise it is queued for download with user priority
+     */
+    public boolean onPresetTapped(PresetConfigInfo info) {
+        int presetId = info.getId();
+        boolean installed = PresetFilesManager.isPresetDownloaded(presetId);
+        boolean prefetching = mPrefetchingId == presetId;
+        boolean queued = !prefetching && mDownloadManager.isInQueue(presetId);
+        if (mStateLoaded) {
+            countTap(presetId, installed, queued);
+        } else {
+            mTapsBeforeLoad.add(new int[]{presetId, installed ? 1 : 0, queued ? 1 : 0});
+        }
+        if (installed) {
+            scheduleSave();
+            return true;
+        }
+        if (prefetching) {
+            mPrefetchingId = 0; // user download now, it keeps bytes fetched so far
+        }
+        mDownloadManager.download(info, DownloadPriorityQueue.PRIORITY_USER);
+        scheduleSave();
+        return false;
+    }
+
+    private void countTap(int presetId, boolean installed, boolean queued) {
+        mHistory.onPresetTapped(presetId);
+        boolean prefetched = mPrefetched.remove(presetId) != null;
+        if (installed) {
+            if (prefetched) {
+                // preset is installed already, forgetting it here is all the promotion it needs
+                mHitCount++;
+            }
+        } else if (!queued) {
+            mMissCount++; // repeated taps on a queued preset are not counted
+        }
+    }
+
+    /*
+     * Call when app has nothing to do, e.g. on start and after user downloads complete.
+     * Prefetches next likely preset if conditions, budget and download queue allow
+     */
+    public void maybePrefetch() {
+        if (!mStateLoaded) {
+            return; // called again when state is loaded
+        }
+        if (!mConditions.isPrefetchAllowed()) {
+            if (mPrefetchingId != 0) {
+                MyLog.d("[PresetPrefetcher] Prefetch conditions are gone, stopping prefetch of " + mPrefetchingId);
+                mDownloadManager.cancelDownload(mPrefetchingId);
+                mPrefetchingId = 0;
+            }
+            return;
+        }
+        if (mPrefetchingId != 0 || mDownloadManager.getCurrentDownloadPresetId() != 0) {
+            return; // one prefetch at a time and never next to user downloads
+        }
+        dropStalePrefetches();
+        if (getPrefetchedBytes() >= mDiskBudgetBytes) {
+            return;
+        }
+        PresetConfigInfo next = findNextCandidate();
+        if (next == null) {
+            return;
+        }
+        MyLog.d("[PresetPrefetcher] Prefetching preset " + next.getId());
+        mPrefetchingId = next.getId();
+        mDownloadManager.download(next, DownloadPriorityQueue.PRIORITY_BACKGROUND);
+    }
+
+    @Override
+    public void onPresetDownloadCompleted(int id) {
+        if (id == mPrefetchingId) {
+            mPrefetchingId = 0;
+            InstalledPresetIndex index = PresetFilesManager.getInstalledPresetIndex();
+            InstalledPreset preset = index == null ? null : index.peek(id);
+            mPrefetched.put(id, new long[]{preset == null ? 0 : preset.getSizeBytes(), System.currentTimeMillis()});
+            scheduleSave();
+        }
+        maybePrefetch();
+    }
+
+    @Override
+    public void onPresetDownloadFailed(int id) {
+        // engine retries failed downloads itself, this comes when a preset is given up or the whole queue is
+        // cleared. Prefetch is over if it was the one or went with the queue, next maybePrefetch tries again
+        if (mPrefetchingId != 0 && (id == mPrefetchingId || !mDownloadManager.isInQueue(mPrefetchingId))) {
+            mPrefetchingId = 0;
+        }
+    }
+
+    public int getHitCount() {
+        return mHitCount;
+    }
+
+    public int getMissCount() {
+        return mMissCount;
+    }
+
+    // share of taps on not installed presets which were served by prefetch, 0 before the first tap
+    public float getHitRate() {
+        int tapCount = mHitCount + mMissCount;
+        return tapCount == 0 ? 0 : (float) mHitCount / tapCount;
+    }
+
+    public long getWastedBytes() {
+        return mWastedBytes;
+    }
+
+    public long getPrefetchedBytes() {
+        long size = 0;
+        for (long[] values : mPrefetched.values()) {
+            size += values[0];
+        }
+        return size;
+    }
+
+    private PresetConfigInfo findNextCandidate() {
+        InstalledPresetIndex index = PresetFilesManager.getInstalledPresetIndex();
+        if (index == null || !index.isLoaded()) {
+            return null;
+        }
+        int[] catalogueIds = new int[mCatalogue.size()];
+        HashMap<Integer, PresetConfigInfo> presets = new HashMap<>();
+        for (int i = 0; i < catalogueIds.length; i++) {
+            catalogueIds[i] = mCatalogue.get(i).getId();
+            presets.put(catalogueIds[i], mCatalogue.get(i));
+        }
+        int[] states = index.peekInstalledStates(catalogueIds);
+        int candidateCount = 0;
+        int[] candidateIds = new int[catalogueIds.length];
+        for (int i = 0; i < catalogueIds.length; i++) {
+            if (states[i] == InstalledPreset.STATE_NOT_INSTALLED && !mDownloadManager.isInQueue(catalogueIds[i])) {
+                candidateIds[candidateCount++] = catalogueIds[i];
+            }
+        }
+        if (candidateCount == 0) {
+            return null;
+        }
+        int[] candidates = new int[candidateCount];
+        System.arraycopy(candidateIds, 0, candidates, 0, candidateCount);
+        return presets.get(mHistory.rankNextPresets(catalogueIds, candidates, mPopularity)[0]);
+    }
+
+    // wrong guesses are deleted, so budget goes to better ones
+    private void dropStalePrefetches() {
+        long now = System.currentTimeMillis();
+        boolean changed = false;
+        Iterator<Map.Entry<Integer, long[]>> iterator = mPrefetched.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, long[]> prefetched = iterator.next();
+            if (now - prefetched.getValue()[1] < mUnusedMaxAgeMs) {
+                continue;
+            }
+            iterator.remove();
+            changed = true;
+            deletePrefetched(prefetched.getKey(), prefetched.getValue()[0]);
+        }
+        if (changed) {
+            scheduleSave();
+        }
+    }
+
+    private void deleteOutdatedPrefetches(List<Integer> presetIds) {
+        boolean changed = false;
+        for (int presetId : presetIds) {
+            long[] prefetched = mPrefetched.remove(presetId);
+            if (prefetched != null) {
+                changed = true;
+                deletePrefetched(presetId, prefetched[0]);
+            }
+        }
+        if (changed) {
+            scheduleSave();
+        }
+    }
+
+    private void deletePrefetched(int presetId, long sizeBytes) {
+        if (PresetFilesManager.deletePreset(presetId)) {
+            mWastedBytes += sizeBytes;
+            MyLog.d("[PresetPrefetcher] Deleted unused prefetched preset " + presetId);
+        }
+    }
+
+    // state is small, it is serialized on caller thread and written in background
+    private void scheduleSave() {
+        if (!mStateLoaded) {
+            return; // would overwrite saved state, onStateLoaded saves
+        }
+        final byte[] state;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(bytes);
+            output.writeInt(FILE_MAGIC);
+            output.writeInt(FILE_VERSION);
+            output.writeInt(mHitCount);
+            output.writeInt(mMissCount);
+            output.writeLong(mWastedBytes);
+            output.writeInt(mPrefetched.size());
+            for (Map.Entry<Integer, long[]> prefetched : mPrefetched.entrySet()) {
+                output.writeInt(prefetched.getKey());
+                output.writeLong(prefetched.getValue()[0]);
+                output.writeLong(prefetched.getValue()[1]);
+            }
+            mHistory.write(output);
+            output.close();
+            state = bytes.toByteArray();
+        } catch (IOException e) {
+            return; // can't happen with byte array
+        }
+        // tasks run in submission order, so the last state is written last
+        IoExecutor.getDefault().execute(new Runnable() {
+            @Override
+            public void run() {
+                File tempFile = new File(mStateFile.getPath() + ".tmp");
+                try {
+                    BufferedOutputStream output = new BufferedOutputStream(new FileOutputStream(tempFile));
+                    try {
+                        output.write(state);
+                    } finally {
+                        output.close();
+                    }
+                    if (!tempFile.renameTo(mStateFile)) {
+                        throw new IOException("Can't rename " + tempFile + " to " + mStateFile);
+                    }
+                } catch (IOException e) {
+                    MyLog.e("[PresetPrefetcher] Can't save prefetch state: " + e.toString());
+                }
+            }
+        });
+    }
+
+    // saved state merged with what happened while it was read
+    private void onStateLoaded(SavedState state) {
+        mStateLoaded = true;
+        if (state != null) {
+            mHitCount += state.hitCount;
+            mMissCount += state.missCount;
+            mWastedBytes += state.wastedBytes;
+            for (Map.Entry<Integer, long[]> prefetched : state.prefetched.entrySet()) {
+                mPrefetched.put(prefetched.getKey(), prefetched.getValue());
+            }
+            mHistory = state.history;
+        }
+        deleteOutdatedPrefetches(mOutdatedBeforeLoad);
+        mOutdatedBeforeLoad.clear();
+        for (int[] tap : mTapsBeforeLoad) {
+            countTap(tap[0], tap[1] != 0, tap[2] != 0);
+        }
+        if (!mTapsBeforeLoad.isEmpty()) {
+            mTapsBeforeLoad.clear();
+            scheduleSave();
+        }
+        maybePrefetch();
+    }
+
+    // null if there is no state or it is corrupt
+    private static SavedState readStateFile(File stateFile) {
+        if (!stateFile.isFile()) {
+            return null;
+        }
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)));
+            if (input.readInt() != FILE_MAGIC || input.readInt() != FILE_VERSION) {
+                return null;
+            }
+            SavedState state = new SavedState();
+            state.hitCount = input.readInt();
+            state.missCount = input.readInt();
+            state.wastedBytes = input.readLong();
+            int prefetchedCount = input.readInt();
+            for (int i = 0; i < prefetchedCount; i++) {
+                state.prefetched.put(input.readInt(), new long[]{input.readLong(), input.readLong()});
+            }
+            state.history.read(input);
+            return state;
+        } catch (IOException | RuntimeException e) {
+            // only guesses and metrics are lost, prefetched presets stay installed
+            MyLog.e("[PresetPrefetcher] Prefetch state is corrupt: " + e.toString());
+            return null;
+        } finally {
+            if (input != null) {
+                FileUtils.tryCloseStream(input);
+            }
+        }
+    }
+}
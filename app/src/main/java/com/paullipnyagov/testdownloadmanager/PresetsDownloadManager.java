@@ -6,21 +6,29 @@ import android.widget.Toast;
 import com.paullipnyagov.googleanalyticslibrary.GoogleAnalyticsUtil;
 import com.paullipnyagov.myutillibrary.MyLog;
 import com.paullipnyagov.myutillibrary.otherUtils.ToastFactory;
-import com.paullipnyagov.myutillibrary.systemUtils.FileSystemUtils;
 import com.paullipnyagov.presetconfigworker.configData.PresetConfigInfo;
 import com.paullipnyagov.ref2_utils.ExternalStorageUtils;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import settings.Constants;
 
+/**
+ * Android side of {@link PresetDownloadEngine}: app storage, main thread and AsyncTask pool for the engine,
+ * toasts and analytics for its events. Queue logic itself is in the engine.
+ */
 public class PresetsDownloadManager {
-    private PresetsFileDownloader mCurrentDownload = null;
-    private final Context mAppContext;
+    public static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = PresetDownloadEngine.DEFAULT_MAX_CONCURRENT_DOWNLOADS;
+    public static final int DEFAULT_MAX_DOWNLOADS_PER_HOST = PresetDownloadEngine.DEFAULT_MAX_DOWNLOADS_PER_HOST;
 
-    private ArrayList<PresetConfigInfo> mDownloadQueue = new ArrayList<>();
-    private int mCurrentDownloadPresetId = 0;
+    private final Context mAppContext;
+    private final PresetDownloadEngine mEngine;
 
     public interface OnPresetDownloadEventListener {
         void onPresetDownloadCompleted(int id);
@@ -28,7 +36,29 @@ public class PresetsDownloadManager {
         void onPresetDownloadFailed(int id);
     }
 
+    /*
+     * Gives expected SHA-256 of preset zip. Preset config has no hash field yet, so it comes from outside
+     */
+    public interface ArchiveHashProvider {
+        // hex hash or null if it is not known
+        String getArchiveSha256(PresetConfigInfo presetConfigInfo);
+    }
+
+    /*
+     * Request which keeps preset config along, for hash provider
+     */
+    private static class PresetConfigRequest extends PresetRequest {
+        final PresetConfigInfo mInfo;
+
+        PresetConfigRequest(PresetConfigInfo info) {
+            super(info.getId(), info.getName(), info.getPath(), info.getVersion());
+            mInfo = info;
+        }
+    }
+
     private ArrayList<OnPresetDownloadEventListener> mListeners = new ArrayList<>();
+    // listener of caller -> listener subscribed to engine which maps its progress states to Constants
+    private final HashMap<ProgressEventBus.Listener, ProgressEventBus.Listener> mProgressListeners = new HashMap<>();
 
     public void addOnPresetDownloadListener(OnPresetDownloadEventListener listener) {
         mListeners.add(listener);
@@ -38,200 +68,310 @@ public class PresetsDownloadManager {
         mListeners.remove(listener);
     }
 
-    public PresetsDownloadManager(Context appContext) {
-        mAppContext = appContext;
+    /*
+     * Listener is called on main thread with the latest progress of each preset, intermediate values may be skipped
+     */
+    public void addOnPresetProgressListener(ProgressEventBus.Listener listener) {
+        addOnPresetProgressListener(listener, new MainThreadExecutor());
     }
 
-    public void onDestroy() {
-        recycleCurrentDownload();
+    public void addOnPresetProgressListener(final ProgressEventBus.Listener listener, Executor executor) {
+        ProgressEventBus.Listener engineListener = new ProgressEventBus.Listener() {
+            @Override
+            public void onPresetProgress(int presetId, int progress) {
+                listener.onPresetProgress(presetId, toAppProgress(progress));
+            }
+        };
+        mProgressListeners.put(listener, engineListener);
+        mEngine.addProgressListener(engineListener, executor);
     }
 
-    public void download(PresetConfigInfo presetConfigInfo) {
-        MyLog.d("[PresetsDownloadManager] Adding preset " + presetConfigInfo.getName() +
-                " id: " + presetConfigInfo.getId() + " to download queue");
-        for (int i = 0; i < mDownloadQueue.size(); i++) {
-            if (mDownloadQueue.get(i).getId() == presetConfigInfo.getId()) {
-                // already in queue
-                MyLog.d("[PresetsDownloadManager] Preset is already in queue.");
-                logCurrentQueue();
-                return;
-            }
-        }
-        mDownloadQueue.add(presetConfigInfo);
-        MyLog.d("[PresetsDownloadManager] Preset added to download queue successfully");
-        logCurrentQueue();
-        if (mCurrentDownload == null) {
-            MyLog.d("[PresetsDownloadManager] Queue is empty, starting download immediately");
-            startNextDownload();
+    public void removeOnPresetProgressListener(ProgressEventBus.Listener listener) {
+        ProgressEventBus.Listener engineListener = mProgressListeners.remove(listener);
+        if (engineListener != null) {
+            mEngine.removeProgressListener(engineListener);
         }
     }
 
-    private void startNextDownload() {
-        logCurrentQueue();
-        recycleCurrentDownload();
-
-        if (mDownloadQueue.size() < 1) {
-            mCurrentDownloadPresetId = 0;
-            MyLog.d("[PresetsDownloadManager] All downloads have completed");
-            return; //done
-        }
-        final PresetConfigInfo info = mDownloadQueue.get(0);
+    public PresetsDownloadManager(Context appContext) {
+        mAppContext = appContext;
+        mEngine = new PresetDownloadEngine(new PresetDownloadEngine.Storage() {
+            @Override
+            public File getTempDirectory() {
+                return ExternalStorageUtils.getAppDir(mAppContext, Constants.LDP_DIR_TEMP_PATH);
+            }
 
-        String outputFile = getTempFileOutputPath();
-        String unzippedDirectoryPath = getPresetUnzippedPath(mAppContext, info.getId());
+            @Override
+            public File getDownloadDirectory() {
+                return ExternalStorageUtils.getAppDir(mAppContext, Constants.LDP_DIR_DOWNLOAD_PATH);
+            }
 
-        if (outputFile == null || unzippedDirectoryPath == null) {
-            MyLog.e("[PresetsDownloadManager] Error while trying to get special directory path");
-            showDownloadErrorAndClearQueue(info.getId());
-            return; //error. interrupt download
-        }
-        // don't care if dir was there or not, ignore result
-        FileSystemUtils.deleteDirectoryRecursive(new File(unzippedDirectoryPath));
+            @Override
+            public InstalledPresetIndex getInstalledPresetIndex() {
+                return PresetFilesManager.getInstalledPresetIndex();
+            }
 
-        mCurrentDownload = new PresetsFileDownloader();
-        mCurrentDownloadPresetId = info.getId();
-        mCurrentDownload.downloadFile(new Runnable() {
             @Override
-            public void run() {
-                if (!mCurrentDownload.isDownloadCompletedSuccessfully()) {
-                    MyLog.e("[PresetsDownloadManager] Error during preset download logged to analytics: "
-                            + mCurrentDownload.getErrorMessage());
-                    GoogleAnalyticsUtil.trackFailedDownloadPreset(mAppContext,
-                            info.getName(), mCurrentDownload.getErrorMessage());
-                    showDownloadErrorAndClearQueue(info.getId());
-                    return;
-                }
+            public BlobStore getBlobStore() {
+                return PresetFilesManager.getBlobStore();
+            }
 
-                GoogleAnalyticsUtil.trackSuccessDownloadPreset(mAppContext, info.getName());
+            @Override
+            public BlobStore.LinkSupport getLinkSupport() {
+                return AndroidLinkSupport.isAvailable() ? new AndroidLinkSupport() : null;
+            }
+        }, new MainThreadExecutor(), new AsyncTaskExecutor());
+        mEngine.addListener(new PresetDownloadEngine.Listener() {
+            @Override
+            public void onDownloadStarted(PresetRequest preset) {
+                GoogleAnalyticsUtil.trackStartDownloadPreset(mAppContext, preset.getName());
+            }
 
-                ToastFactory.makeText(mAppContext, mAppContext.getString(R.string.preset_downloaded, info.getName()),
+            @Override
+            public void onDownloadCompleted(PresetRequest preset) {
+                GoogleAnalyticsUtil.trackSuccessDownloadPreset(mAppContext, preset.getName());
+                ToastFactory.makeText(mAppContext, mAppContext.getString(R.string.preset_downloaded, preset.getName()),
                         Toast.LENGTH_LONG).show();
-                mDownloadQueue.remove(0);
+                for (OnPresetDownloadEventListener listener : mListeners) {
+                    listener.onPresetDownloadCompleted(preset.getId());
+                }
+            }
 
+            @Override
+            public void onDownloadFailed(PresetRequest preset, String errorMessage, boolean willRetry) {
+                MyLog.e("[PresetsDownloadManager] Error during preset download logged to analytics: " + errorMessage);
+                GoogleAnalyticsUtil.trackFailedDownloadPreset(mAppContext, preset.getName(), errorMessage);
+                if (willRetry) {
+                    return;
+                }
+                showDownloadError(Collections.singletonList(preset));
                 for (OnPresetDownloadEventListener listener : mListeners) {
-                    listener.onPresetDownloadCompleted(mCurrentDownloadPresetId);
+                    listener.onPresetDownloadFailed(preset.getId());
                 }
+            }
 
-                MyLog.d("[PresetsDownloadManager] preset downloaded: " + info.getName());
-                startNextDownload();
+            @Override
+            public void onQueueCleared(int failedPresetId, List<PresetRequest> queuedPresets) {
+                showDownloadError(queuedPresets);
+                for (OnPresetDownloadEventListener listener : mListeners) {
+                    listener.onPresetDownloadFailed(failedPresetId);
+                }
             }
-        }, info.getPath(), outputFile, unzippedDirectoryPath, info.getVersion());
-        GoogleAnalyticsUtil.trackStartDownloadPreset(mAppContext, info.getName());
+        });
     }
 
-    private void logCurrentQueue() {
-        String queue = "[PresetsDownloadManager] Presets download queue: ";
-        for (int i = 0; i < mDownloadQueue.size(); i++) {
-            queue = queue + mDownloadQueue.get(i).getId() + ", ";
-        }
-        MyLog.d(queue);
+    public void onDestroy() {
+        mEngine.recycle();
     }
 
-    private String getTempFileOutputPath() {
-        // temp directory must be cleared before new download process can start
-        if (!PresetFilesManager.cleanTempDownloadsDirectory(mAppContext)) {
-            return null;
-        }
-        File tempDirectory = ExternalStorageUtils.getAppDir(mAppContext, Constants.LDP_DIR_TEMP_PATH);
-        if (tempDirectory == null) {
-            return null;
-        }
-        String path = tempDirectory.getAbsolutePath();
-        return path + "/preset.zip";
+    /*
+     * Number of presets which are downloaded and unzipped at the same time. Must be 1 or more
+     */
+    public void setMaxConcurrentDownloads(int maxConcurrentDownloads) {
+        mEngine.setMaxConcurrentDownloads(maxConcurrentDownloads);
     }
 
-    private String getPresetUnzippedPath(Context context, int presetId) {
-        File unzipDirectory = ExternalStorageUtils.getAppDir(context, Constants.LDP_DIR_DOWNLOAD_PATH);
-        if (unzipDirectory == null) {
-            return null;
-        }
-        String path = unzipDirectory.getAbsolutePath();
-        return path + "/" + presetId + "/";
+    /*
+     * Number of simultaneous downloads allowed from the same host. Must be 1 or more
+     */
+    public void setMaxDownloadsPerHost(int maxDownloadsPerHost) {
+        mEngine.setMaxDownloadsPerHost(maxDownloadsPerHost);
     }
 
-    private void showDownloadErrorAndClearQueue(int failedPresetId) {
-        String failedToDownloadNames = mAppContext.getString(R.string.error_downloading_presets) + " ";
-        for (int i = 0; i < mDownloadQueue.size(); i++) {
-            failedToDownloadNames = failedToDownloadNames + mDownloadQueue.get(i).getName();
-            if (i < mDownloadQueue.size() - 1) {
-                failedToDownloadNames = failedToDownloadNames + ", ";
-            }
-        }
-        failedToDownloadNames = failedToDownloadNames + mAppContext.getString(
-                R.string.error_downloading_presets_try_again);
-        ToastFactory.makeText(mAppContext, failedToDownloadNames, Toast.LENGTH_LONG).show();
+    /*
+     * Unzip presets while they are downloading instead of saving zip first. Saves a full write and two
+     * full reads of every archive, but interrupted downloads start over. Applies to downloads started later
+     */
+    public void setStreamingExtractEnabled(boolean streamingExtract) {
+        mEngine.setStreamingExtractEnabled(streamingExtract);
+    }
 
-        mDownloadQueue = new ArrayList<>();
-        for (OnPresetDownloadEventListener listener : mListeners) {
-            listener.onPresetDownloadFailed(failedPresetId);
-        }
-        MyLog.d("[PresetsDownloadManager] Download queue is cleared");
-        recycleCurrentDownload();
-        mCurrentDownloadPresetId = 0;
+    /*
+     * Update installed presets by fetching only changed zip entries. Needs Range support on server,
+     * otherwise full download is made anyway. Applies to downloads started later
+     */
+    public void setDeltaUpdatesEnabled(boolean deltaUpdates) {
+        mEngine.setDeltaUpdatesEnabled(deltaUpdates);
     }
 
-    public int getCurrentDownloadPresetId() {
-        return mCurrentDownloadPresetId;
+    /*
+     * Keep preset zips instead of extracting them, samples are then read through
+     * PresetFilesManager.getPresetHandleById. Applies to downloads started later
+     */
+    public void setKeepArchiveEnabled(boolean keepArchive) {
+        mEngine.setKeepArchiveEnabled(keepArchive);
     }
 
-    // int - 0 to 100 in %
-    public int getCurrentDownloadProgress() {
-        if (mCurrentDownload == null) {
-            return 0;
-        }
-        return mCurrentDownload.getTaskProgress();
+    /*
+     * Transport used by downloads started later. Shared by all of them, so it can reuse connections
+     */
+    public void setHttpTransport(HttpTransport transport) {
+        mEngine.setHttpTransport(transport);
     }
 
     /*
-     * Returns progress in % for current download, or -1 if download is in queue
+     * Caps total rate of all preset downloads, 0 removes the cap. Applies to running downloads too.
+     * Downloads share it by priority, see BandwidthGovernor
      */
-    public int getDownloadProgress(int presetId) {
-        if (mDownloadQueue.size() < 1 /*|| mCurrentDownload == null*/) {
-            // queue is empty - all downloads completed
-            return Constants.LDP_DOWNLOAD_COMPLETED;
-        }
+    public void setBandwidthLimit(long bytesPerSecond) {
+        BandwidthGovernor.getDefault().setBytesPerSecond(bytesPerSecond);
+    }
 
-        for (int i = 1; i < mDownloadQueue.size(); i++) {
-            if (mDownloadQueue.get(i).getId() == presetId) {
-                // download is on non-zero position in queue
-                return Constants.LDP_DOWNLOAD_IS_IN_QUEUE;
-            }
+    /*
+     * Downloads started later are checked against hashes given by provider. Null disables the check,
+     * hash of every full download is still recorded in installed preset index
+     */
+    public void setArchiveHashProvider(final ArchiveHashProvider archiveHashProvider) {
+        if (archiveHashProvider == null) {
+            mEngine.setArchiveHashProvider(null);
+            return;
         }
+        mEngine.setArchiveHashProvider(new PresetDownloadEngine.ArchiveHashProvider() {
+            @Override
+            public String getArchiveSha256(PresetRequest preset) {
+                return archiveHashProvider.getArchiveSha256(((PresetConfigRequest) preset).mInfo);
+            }
+        });
+    }
 
-        if (mDownloadQueue.get(0).getId() == presetId) {
-            // operation is currently ongoing
-            return mCurrentDownload.getTaskProgress();
-        }
+    /*
+     * Stage timings of every finished install go to sink, on download thread. Aggregates of all installs
+     * are in InstallTelemetry.getDefault()
+     */
+    public void addInstallMetricsSink(InstallTelemetry.Sink sink) {
+        InstallTelemetry.getDefault().addSink(sink);
+    }
 
-        // given ID is not in queue, so download has completed earlier
-        return Constants.LDP_DOWNLOAD_COMPLETED;
+    public void removeInstallMetricsSink(InstallTelemetry.Sink sink) {
+        InstallTelemetry.getDefault().removeSink(sink);
     }
 
-    public void cancelDownload(int presetId) {
-        if (mDownloadQueue.size() < 1) {
-            MyLog.d("[PresetsDownloadManager] Can't cancel preset " + presetId + " download: queue empty");
-            return;
+    /*
+     * Lets urgent download pause a running one of lower priority when there is no free slot for it.
+     * Paused download goes back to queue and resumes from its partial file later. Downloads which
+     * can't be resumed (streaming extract, server without Range support) start over, so it is off by default
+     */
+    public void setPreemptionEnabled(boolean preemption) {
+        mEngine.setPreemptionEnabled(preemption);
+    }
+
+    // preset tapped by user, goes before presets queued with lower priority
+    public void download(PresetConfigInfo presetConfigInfo) {
+        download(presetConfigInfo, DownloadPriorityQueue.PRIORITY_USER);
+    }
+
+    /*
+     * priority is one of DownloadPriorityQueue.PRIORITY_*. Preset which is already queued keeps its
+     * place unless the new priority is higher
+     */
+    public void download(PresetConfigInfo presetConfigInfo, int priority) {
+        mEngine.download(new PresetConfigRequest(presetConfigInfo), priority);
+    }
+
+    /*
+     * Queues presets which are not installed or queued yet, after space for all of them is reserved.
+     * Presets which don't fit are left out and reported as failed, so nothing fails halfway for lack of space
+     */
+    public void downloadAll(Collection<PresetConfigInfo> presetConfigInfos) {
+        downloadAll(presetConfigInfos, false);
+    }
+
+    /*
+     * allOrNothing refuses the whole batch if it doesn't fit, instead of leaving some presets out
+     */
+    public void downloadAll(Collection<PresetConfigInfo> presetConfigInfos, boolean allOrNothing) {
+        List<PresetRequest> presets = new ArrayList<>();
+        for (PresetConfigInfo info : presetConfigInfos) {
+            presets.add(new PresetConfigRequest(info));
         }
-        if (mDownloadQueue.get(0).getId() == presetId) {
-            recycleCurrentDownload();
-            mDownloadQueue.remove(0);
-            startNextDownload();
-        } else {
-            for (int i = 0; i < mDownloadQueue.size(); i++) {
-                if (mDownloadQueue.get(i).getId() == presetId) {
-                    mDownloadQueue.remove(i);
-                }
+        mEngine.downloadAll(presets, DownloadPriorityQueue.PRIORITY_USER, allOrNothing,
+                new PresetDownloadEngine.BatchListener() {
+                    @Override
+                    public void onBatchPlanned(PresetBatchPlanner.Plan plan) {
+                        if (plan.rejected.isEmpty()) {
+                            return;
+                        }
+                        MyLog.e("[PresetsDownloadManager] " + plan.rejected.size() + " presets don't fit into " +
+                                plan.availableBytes + " free bytes");
+                        ToastFactory.makeText(mAppContext, mAppContext.getString(
+                                R.string.not_enough_space_for_presets, joinNames(plan.rejected)),
+                                Toast.LENGTH_LONG).show();
+                        for (PresetRequest preset : plan.rejected) {
+                            for (OnPresetDownloadEventListener listener : mListeners) {
+                                listener.onPresetDownloadFailed(preset.getId());
+                            }
+                        }
+                    }
+                });
+    }
+
+    /*
+     * Changes priority of queued preset, e.g. when it scrolls into view. Does nothing if it is not queued
+     */
+    public void setDownloadPriority(int presetId, int priority) {
+        mEngine.setDownloadPriority(presetId, priority);
+    }
+
+    private void showDownloadError(List<PresetRequest> failedPresets) {
+        String failedToDownloadNames = mAppContext.getString(R.string.error_downloading_presets) + " " +
+                joinNames(failedPresets) + mAppContext.getString(R.string.error_downloading_presets_try_again);
+        ToastFactory.makeText(mAppContext, failedToDownloadNames, Toast.LENGTH_LONG).show();
+    }
+
+    private static String joinNames(List<PresetRequest> presets) {
+        String names = "";
+        for (int i = 0; i < presets.size(); i++) {
+            names = names + presets.get(i).getName();
+            if (i < presets.size() - 1) {
+                names = names + ", ";
             }
         }
-        MyLog.d("[PresetsDownloadManager] Download of preset " + presetId + " removed from queue");
-        logCurrentQueue();
+        return names;
     }
 
-    private void recycleCurrentDownload() {
-        if (mCurrentDownload != null) {
-            mCurrentDownload.recycle();
-            mCurrentDownload = null;
-            MyLog.d("[PresetsDownloadManager] Current download is recycled");
+    // engine has its own progress states, UI expects the ones of Constants
+    private static int toAppProgress(int progress) {
+        if (progress == PresetDownloadEngine.PROGRESS_IN_QUEUE) {
+            return Constants.LDP_DOWNLOAD_IS_IN_QUEUE;
         }
+        if (progress == PresetDownloadEngine.PROGRESS_COMPLETED) {
+            return Constants.LDP_DOWNLOAD_COMPLETED;
+        }
+        return progress;
+    }
+
+    /*
+     * Returns id of the first in-flight download in queue order or 0 if nothing is downloading
+     */
+    public int getCurrentDownloadPresetId() {
+        return mEngine.getCurrentDownloadPresetId();
+    }
+
+    /*
+     * Returns ids of all in-flight downloads in queue order
+     */
+    public int[] getActiveDownloadPresetIds() {
+        return mEngine.getActiveDownloadPresetIds();
+    }
+
+    // int - 0 to 100 in %
+    public int getCurrentDownloadProgress() {
+        return mEngine.getCurrentDownloadProgress();
+    }
+
+    // true if preset is waiting or downloading
+    public boolean isInQueue(int presetId) {
+        return mEngine.isInQueue(presetId);
+    }
+
+    /*
+     * Returns progress in % for in-flight download, or -1 if download is in queue
+     */
+    public int getDownloadProgress(int presetId) {
+        return toAppProgress(mEngine.getDownloadProgress(presetId));
+    }
+
+    public void cancelDownload(int presetId) {
+        mEngine.cancelDownload(presetId);
     }
 }
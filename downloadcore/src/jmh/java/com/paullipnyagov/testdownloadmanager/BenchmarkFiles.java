@@ -0,0 +1,58 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Synthetic preset data for benchmarks, created in temp directory.
+ */
+class BenchmarkFiles {
+
+    static File createTempDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdirs()) {
+            throw new IOException("Can't create directory " + directory);
+        }
+        return directory;
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    // noise compresses about as badly as recorded samples, so deflate does real work on both sides
+    static byte[] randomBytes(Random random, int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    /*
+     * Preset-like archive: fileCount WAVs of fileSize bytes spread over a few sample directories
+     */
+    static File writePresetZip(int fileCount, int fileSize) throws IOException {
+        Random random = new Random(fileCount * 31 + fileSize);
+        File zipFile = File.createTempFile("benchmark", ".zip");
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(zipFile));
+        try {
+            for (int i = 0; i < fileCount; i++) {
+                zip.putNextEntry(new ZipEntry("samples" + (i % 8) + "/pad" + i + ".wav"));
+                zip.write(randomBytes(random, fileSize));
+                zip.closeEntry();
+            }
+        } finally {
+            zip.close();
+        }
+        return zipFile;
+    }
+}
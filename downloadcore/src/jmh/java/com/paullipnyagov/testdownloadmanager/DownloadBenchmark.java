@@ -0,0 +1,110 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Both ways PresetsFileDownloader.downloadPresetZip fetches an archive, against local server with
+ * simulated CDN latency: parallel Range requests when server allows them, one hashed stream otherwise.
+ * Throughput in bytes is operations per second times sizeKb.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DownloadBenchmark {
+
+    private static final CancelSignal NOT_CANCELLED = new CancelSignal() {
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    private static final ByteProgressListener NO_PROGRESS = new ByteProgressListener() {
+        @Override
+        public void onBytesProcessed(long count) {
+        }
+    };
+
+    @Param({"256", "4096", "32768"})
+    public int sizeKb;
+
+    @Param({"0", "20", "100"})
+    public int latencyMs;
+
+    private RangeHttpServer mServer;
+    private HttpTransport mTransport;
+    private File mOutputFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mServer = new RangeHttpServer(BenchmarkFiles.randomBytes(new Random(sizeKb), sizeKb * 1024), true);
+        mServer.setResponseDelayMs(latencyMs);
+        mTransport = new UrlConnectionTransport(5000, 30000);
+        mOutputFile = File.createTempFile("benchmark", ".zip");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mServer.stop();
+        PartialDownload.delete(mOutputFile);
+    }
+
+    @Benchmark
+    public long rangedDownload() throws IOException {
+        // fresh download every time, state of the previous one would make it a no-op resume
+        PartialDownload.delete(mOutputFile);
+        SegmentedFileDownloader downloader = new SegmentedFileDownloader(mTransport,
+                SegmentedFileDownloader.DEFAULT_SEGMENT_COUNT, SegmentedFileDownloader.DEFAULT_MIN_SEGMENT_SIZE);
+        SegmentedFileDownloader.RangeSupport rangeSupport = downloader.probe(mServer.getUrl());
+        PartialDownload partialDownload = PartialDownload.create(mServer.getUrl(), rangeSupport.validator,
+                rangeSupport.contentLength, downloader.getSegmentCount(rangeSupport));
+        downloader.download(mServer.getUrl(), mOutputFile, partialDownload, NOT_CANCELLED, NO_PROGRESS);
+        return mOutputFile.length();
+    }
+
+    @Benchmark
+    public String singleStreamDownload() throws IOException {
+        HttpResponse response = mTransport.execute(new HttpRequest(mServer.getUrl()));
+        RandomAccessFile outputFile = new RandomAccessFile(mOutputFile, "rw");
+        try {
+            MessageDigest digest = HashUtils.newSha256();
+            InputStream inputStream = new DigestInputStream(response.getBody(), digest);
+            outputFile.setLength(0);
+            ChannelIo.preallocate(outputFile, response.getContentLength());
+            ChannelIo.copy(inputStream, outputFile.getChannel(), 0, -1, new AdaptiveBufferSize(), NOT_CANCELLED,
+                    new ChannelIo.WriteListener() {
+                        @Override
+                        public void onBytesWritten(int count) {
+                        }
+                    });
+            return HashUtils.toHex(digest.digest());
+        } finally {
+            response.close();
+            outputFile.close();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Completion time of a 30 preset batch from a CDN that fails a share of requests, with 3 downloads
+ * at a time like PresetsDownloadManager. "isolated" retries failed presets with RetryScheduler while
+ * the rest goes on, "clearQueue" is the old behaviour: any failure drops the queue and the user
+ * queues unfinished presets again once running downloads are over.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FaultyBatchBenchmark {
+
+    private static final int PRESET_COUNT = 30;
+    private static final int CONCURRENT_DOWNLOADS = 3;
+
+    private static final CancelSignal NOT_CANCELLED = new CancelSignal() {
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    private static final ByteProgressListener NO_PROGRESS = new ByteProgressListener() {
+        @Override
+        public void onBytesProcessed(long count) {
+        }
+    };
+
+    @Param({"0", "0.1", "0.3"})
+    public double faultRate;
+
+    @Param({"isolated", "clearQueue"})
+    public String failureHandling;
+
+    private RangeHttpServer mServer;
+    private HttpTransport mTransport;
+    private File mDirectory;
+    private ExecutorService mWorkers;
+    private int mIteration = 0;
+    // DownloadFailure.KIND_* of the last failed attempt of every preset
+    private final int[] mLastFailureKinds = new int[PRESET_COUNT];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mServer = new RangeHttpServer(BenchmarkFiles.randomBytes(new Random(1), 512 * 1024), true);
+        mServer.setResponseDelayMs(20);
+        mTransport = new UrlConnectionTransport(5000, 5000);
+        mDirectory = BenchmarkFiles.createTempDirectory("batch");
+        mWorkers = Executors.newFixedThreadPool(CONCURRENT_DOWNLOADS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mWorkers.shutdownNow();
+        mServer.stop();
+        BenchmarkFiles.deleteRecursively(mDirectory);
+    }
+
+    @Setup(Level.Iteration)
+    public void resetFaults() {
+        // same faults for both ways of handling them
+        mServer.setFaultRate(faultRate, mIteration++);
+    }
+
+    // returns number of installed presets, the rest were given up
+    @Benchmark
+    public int batch() throws Exception {
+        return failureHandling.equals("isolated") ? downloadIsolated() : downloadClearingQueue();
+    }
+
+    private int downloadIsolated() throws Exception {
+        RetryScheduler scheduler = new RetryScheduler(new Random(7));
+        scheduler.setDelays(50, 1000); // scaled down from 2 s base delay of the app
+        // preset id and time it may start at, in start order
+        PriorityQueue<long[]> pending = new PriorityQueue<>(PRESET_COUNT, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] left, long[] right) {
+                return left[1] < right[1] ? -1 : left[1] > right[1] ? 1 : 0;
+            }
+        });
+        for (int presetId = 0; presetId < PRESET_COUNT; presetId++) {
+            pending.add(new long[]{presetId, 0});
+        }
+        ExecutorCompletionService<Integer> completion = new ExecutorCompletionService<>(mWorkers);
+        List<Future<Integer>> active = new ArrayList<>();
+        int installed = 0;
+        int finished = 0;
+        while (finished < PRESET_COUNT) {
+            long nowMs = System.currentTimeMillis();
+            while (active.size() < CONCURRENT_DOWNLOADS && !pending.isEmpty() && pending.peek()[1] <= nowMs) {
+                scheduler.onDownloadStarted();
+                active.add(completion.submit(download((int) pending.poll()[0])));
+            }
+            long waitMs = pending.isEmpty() ? 1000 : Math.max(1, pending.peek()[1] - nowMs);
+            Future<Integer> done = completion.poll(waitMs, TimeUnit.MILLISECONDS);
+            if (done == null) {
+                continue; // time for a retry
+            }
+            active.remove(done);
+            int presetId = done.get();
+            if (presetId >= 0) {
+                installed++;
+                finished++;
+                scheduler.forget(presetId);
+                continue;
+            }
+            presetId = -presetId - 1;
+            long retryAtMs = scheduler.onDownloadFailed(presetId, mLastFailureKinds[presetId],
+                    System.currentTimeMillis());
+            if (retryAtMs < 0) {
+                finished++;
+            } else {
+                pending.add(new long[]{presetId, retryAtMs});
+            }
+        }
+        return installed;
+    }
+
+    private int downloadClearingQueue() throws Exception {
+        boolean[] installed = new boolean[PRESET_COUNT];
+        int installedCount = 0;
+        while (installedCount < PRESET_COUNT) {
+            // one pass of user's queue: downloads started before failure finish, the rest is dropped
+            ExecutorCompletionService<Integer> completion = new ExecutorCompletionService<>(mWorkers);
+            int next = 0;
+            int active = 0;
+            boolean cleared = false;
+            while (true) {
+                while (!cleared && active < CONCURRENT_DOWNLOADS && next < PRESET_COUNT) {
+                    if (!installed[next]) {
+                        completion.submit(download(next));
+                        active++;
+                    }
+                    next++;
+                }
+                if (active == 0) {
+                    break;
+                }
+                int presetId = completion.take().get();
+                active--;
+                if (presetId >= 0) {
+                    installed[presetId] = true;
+                    installedCount++;
+                } else {
+                    cleared = true;
+                }
+            }
+        }
+        return installedCount;
+    }
+
+    // callable returns preset id when installed, -id - 1 when failed
+    private Callable<Integer> download(final int presetId) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                File outputFile = new File(mDirectory, presetId + ".zip");
+                PartialDownload.delete(outputFile);
+                String url = mServer.getUrl() + "?id=" + presetId;
+                SegmentedFileDownloader downloader = new SegmentedFileDownloader(mTransport,
+                        SegmentedFileDownloader.DEFAULT_SEGMENT_COUNT, 128 * 1024);
+                try {
+                    SegmentedFileDownloader.RangeSupport rangeSupport = downloader.probe(url);
+                    downloader.download(url, outputFile, PartialDownload.create(url, rangeSupport.validator,
+                            rangeSupport.contentLength, downloader.getSegmentCount(rangeSupport)),
+                            NOT_CANCELLED, NO_PROGRESS);
+                    return presetId;
+                } catch (IOException e) {
+                    mLastFailureKinds[presetId] = DownloadFailure.classify(e);
+                    return -presetId - 1;
+                }
+            }
+        };
+    }
+}
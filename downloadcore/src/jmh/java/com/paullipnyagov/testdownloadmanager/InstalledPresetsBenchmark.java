@@ -0,0 +1,109 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * "Is it downloaded and up to date" for a whole preset list of 1000 installed presets: probing
+ * insurance and version files like PresetFilesManager did per preset, against InstalledPresetIndex
+ * which now backs isPresetDownloaded and comparePresetVersion(int, String).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InstalledPresetsBenchmark {
+
+    private static final int PRESET_COUNT = 1000;
+    private static final String VERSION = "3";
+
+    private File mRoot;
+    private File mDownloadDirectory;
+    private File mIndexFile;
+    private InstalledPresetIndex mIndex;
+    private int[] mPresetIds;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mRoot = BenchmarkFiles.createTempDirectory("presets");
+        mDownloadDirectory = new File(mRoot, "download");
+        mIndexFile = new File(mRoot, "installed_presets.idx");
+        mPresetIds = new int[PRESET_COUNT];
+        for (int i = 0; i < PRESET_COUNT; i++) {
+            mPresetIds[i] = 100 + i;
+            File presetDirectory = new File(mDownloadDirectory, Integer.toString(mPresetIds[i]));
+            if (!presetDirectory.mkdirs()) {
+                throw new IOException("Can't create directory " + presetDirectory);
+            }
+            FileOutputStream output = new FileOutputStream(new File(presetDirectory, "sample.wav"));
+            try {
+                output.write(new byte[1024]);
+            } finally {
+                output.close();
+            }
+            LegacyMarkerFiles.writeVersionFile(presetDirectory, VERSION);
+            LegacyMarkerFiles.writeInsuranceFile(presetDirectory);
+        }
+        mIndex = new InstalledPresetIndex(mDownloadDirectory, mIndexFile);
+        mIndex.ensureLoaded();
+        mIndex.save();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFiles.deleteRecursively(mRoot);
+    }
+
+    @Benchmark
+    public int filesPerPreset() throws IOException {
+        int upToDate = 0;
+        for (int presetId : mPresetIds) {
+            File presetDirectory = new File(mDownloadDirectory, Integer.toString(presetId));
+            if (LegacyMarkerFiles.checkInsuranceExists(presetDirectory) &&
+                    VERSION.equals(LegacyMarkerFiles.readVersionFile(presetDirectory))) {
+                upToDate++;
+            }
+        }
+        return upToDate;
+    }
+
+    @Benchmark
+    public int indexPerPreset() {
+        int upToDate = 0;
+        for (int presetId : mPresetIds) {
+            InstalledPreset preset = mIndex.get(presetId);
+            if (preset != null && preset.isInstalled() && VERSION.equals(preset.getVersion())) {
+                upToDate++;
+            }
+        }
+        return upToDate;
+    }
+
+    @Benchmark
+    public int[] indexWholeList() {
+        return mIndex.getInstalledStates(mPresetIds);
+    }
+
+    // cold start: saved index is read instead of 1000 directories
+    @Benchmark
+    public InstalledPreset loadSavedIndex() {
+        return new InstalledPresetIndex(mDownloadDirectory, mIndexFile).get(mPresetIds[0]);
+    }
+}
@@ -0,0 +1,101 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Steps of PresetsFileDownloader.unzipDownloadedFile on packs of the same total size, one with many
+ * small samples and one with a few long ones, plus the central directory read of ZipUtils.getZipEntryCount.
+ * unzipSequential is the single-threaded ZipInputStream baseline ParallelZipExtractor replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UnzipBenchmark {
+
+    private static final CancelSignal NOT_CANCELLED = new CancelSignal() {
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    private static final ByteProgressListener NO_PROGRESS = new ByteProgressListener() {
+        @Override
+        public void onBytesProcessed(long count) {
+        }
+    };
+
+    // 16 MB either way: 2048 one-shots of 8 KB or 8 loops of 2 MB
+    @Param({"manySmall", "fewLarge"})
+    public String pack;
+
+    private File mZipFile;
+    private File mTargetDirectory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        if (pack.equals("manySmall")) {
+            mZipFile = BenchmarkFiles.writePresetZip(2048, 8 * 1024);
+        } else {
+            mZipFile = BenchmarkFiles.writePresetZip(8, 2 * 1024 * 1024);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mZipFile.delete();
+    }
+
+    @Setup(Level.Invocation)
+    public void createTargetDirectory() throws IOException {
+        mTargetDirectory = BenchmarkFiles.createTempDirectory("unzip");
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteTargetDirectory() {
+        BenchmarkFiles.deleteRecursively(mTargetDirectory);
+    }
+
+    @Benchmark
+    public boolean unzipParallel() throws IOException {
+        ZipArchiveInfo archiveInfo = ZipMetadataReader.read(mZipFile);
+        return new ParallelZipExtractor().extract(mZipFile, archiveInfo, mTargetDirectory, NOT_CANCELLED,
+                NO_PROGRESS);
+    }
+
+    @Benchmark
+    public boolean unzipSequential() throws IOException {
+        InputStream input = new FileInputStream(mZipFile);
+        try {
+            return StreamingZipExtractor.extract(input, mTargetDirectory, NOT_CANCELLED, NO_PROGRESS, null);
+        } finally {
+            input.close();
+        }
+    }
+
+    @Benchmark
+    public int getZipEntryCount() throws IOException {
+        return ZipUtils.getZipEntryCount(mZipFile);
+    }
+}
@@ -0,0 +1,146 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write path of downloads and unzip: ChannelIo.copy against the 8 KB FileOutputStream loop it replaced,
+ * on a source which hands out at most a socket buffer per read. Besides throughput, counters report
+ * read and write calls and megabytes per second; write calls of the baseline are one per 8 KB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBenchmark {
+
+    private static final int BASELINE_BUFFER_SIZE = 8192;
+    // typical amount a socket read returns on a fast connection
+    private static final int MAX_READ_SIZE = 16 * 1024;
+
+    private static final CancelSignal NOT_CANCELLED = new CancelSignal() {
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    private static final ChannelIo.WriteListener NO_LISTENER = new ChannelIo.WriteListener() {
+        @Override
+        public void onBytesWritten(int count) {
+        }
+    };
+
+    /*
+     * Reported by JMH per second of measurement, next to the benchmark score
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Calls {
+        public long readCalls;
+        public long writeCalls;
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            readCalls = 0;
+            writeCalls = 0;
+            megabytes = 0;
+        }
+    }
+
+    @Param({"1024", "32768"})
+    public int sizeKb;
+
+    private byte[] mData;
+    private File mOutputFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mData = BenchmarkFiles.randomBytes(new Random(sizeKb), sizeKb * 1024);
+        mOutputFile = File.createTempFile("benchmark", ".wav");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mOutputFile.delete();
+    }
+
+    @Benchmark
+    public long channelCopy(Calls calls) throws IOException {
+        long readsBefore = ChannelIo.getReadCallCount();
+        long writesBefore = ChannelIo.getWriteCallCount();
+        long bytesBefore = ChannelIo.getBytesWritten();
+        RandomAccessFile output = new RandomAccessFile(mOutputFile, "rw");
+        try {
+            output.setLength(0);
+            ChannelIo.preallocate(output, mData.length);
+            ChannelIo.copy(new SocketLikeInputStream(mData), output.getChannel(), 0, -1, new AdaptiveBufferSize(),
+                    NOT_CANCELLED, NO_LISTENER);
+        } finally {
+            output.close();
+        }
+        calls.readCalls += ChannelIo.getReadCallCount() - readsBefore;
+        calls.writeCalls += ChannelIo.getWriteCallCount() - writesBefore;
+        long written = ChannelIo.getBytesWritten() - bytesBefore;
+        calls.megabytes += written / (1024.0 * 1024);
+        return written;
+    }
+
+    @Benchmark
+    public long streamCopyBaseline(Calls calls) throws IOException {
+        InputStream input = new SocketLikeInputStream(mData);
+        FileOutputStream output = new FileOutputStream(mOutputFile);
+        long written = 0;
+        try {
+            byte[] buffer = new byte[BASELINE_BUFFER_SIZE];
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                calls.readCalls++;
+                output.write(buffer, 0, count);
+                calls.writeCalls++;
+                written += count;
+            }
+            calls.readCalls++;
+        } finally {
+            output.close();
+        }
+        calls.megabytes += written / (1024.0 * 1024);
+        return written;
+    }
+
+    // in-memory source which, like a socket, returns less than asked for
+    private static class SocketLikeInputStream extends ByteArrayInputStream {
+        SocketLikeInputStream(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length) {
+            return super.read(buffer, offset, Math.min(length, MAX_READ_SIZE));
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.paullipnyagov.testdownloadmanager;
+
+/**
+ * Chooses copy buffer size from measured throughput: buffer holds roughly TARGET_CHUNK_NANOS worth of data.
+ * Fast sources get big buffers and few syscalls, slow ones small buffers so cancel and progress stay responsive.
+ * Not thread safe, one instance per copy loop.
+ */
+public class AdaptiveBufferSize {
+
+    public static final int MIN_SIZE = 16 * 1024;
+    public static final int MAX_SIZE = 1024 * 1024;
+    public static final int DEFAULT_SIZE = 64 * 1024;
+
+    private static final long TARGET_CHUNK_NANOS = 100L * 1000 * 1000; // 100 ms
+    // weight of newest measurement in moving average
+    private static final double SMOOTHING = 0.3;
+
+    private int mSize;
+    private double mBytesPerNano = -1;
+
+    public AdaptiveBufferSize() {
+        this(DEFAULT_SIZE);
+    }
+
+    public AdaptiveBufferSize(int initialSize) {
+        mSize = clamp(initialSize);
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    /*
+     * Reports that a chunk of given size took given time to fill
+     */
+    public void onChunk(long bytes, long nanos) {
+        if (nanos <= 0 || bytes <= 0) {
+            return;
+        }
+        double rate = (double) bytes / nanos;
+        mBytesPerNano = mBytesPerNano < 0 ? rate : mBytesPerNano + SMOOTHING * (rate - mBytesPerNano);
+        mSize = clamp((long) (mBytesPerNano * TARGET_CHUNK_NANOS));
+    }
+
+    // power of two between MIN_SIZE and MAX_SIZE, so size doesn't change on every small fluctuation
+    private static int clamp(long size) {
+        int result = MIN_SIZE;
+        while (result < size && result < MAX_SIZE) {
+            result <<= 1;
+        }
+        return result;
+    }
+}
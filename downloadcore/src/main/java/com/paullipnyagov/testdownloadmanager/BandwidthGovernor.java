@@ -0,0 +1,176 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Shares a global download rate between running transfers with token buckets. Every transfer gets
+ * a part of the rate proportional to the weight of its priority, so a preset user waits for gets
+ * more than a prefetch, and the rest of the link stays free for audio streaming and API calls.
+ * Rate 0 means no limit. Limit and weights may be changed at any time, running transfers follow
+ * on their next read. Accounting is done after a read, so buckets may go into debt which is paid
+ * by sleeping. No allocations per read.
+ */
+public class BandwidthGovernor {
+
+    public interface Clock {
+        long nanoTime();
+
+        void sleepNanos(long nanos) throws InterruptedException;
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleepNanos(long nanos) throws InterruptedException {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        }
+    };
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    // bucket holds this much of transfer rate, so a short stall doesn't give a long burst after it
+    private static final long BURST_NANOS = NANOS_PER_SECOND / 4;
+    private static final long MIN_BURST_BYTES = 8 * 1024;
+
+    private static volatile BandwidthGovernor sDefault;
+
+    private final Clock mClock;
+    private long mBytesPerSecond = 0;
+    // weight of DownloadPriorityQueue.PRIORITY_*, indexed by priority
+    private final int[] mPriorityWeights = {1, 2, 4};
+    // number of open transfers, indexed by priority
+    private final int[] mOpenTransfers = new int[mPriorityWeights.length];
+
+    public BandwidthGovernor(Clock clock) {
+        mClock = clock;
+    }
+
+    public static BandwidthGovernor getDefault() {
+        BandwidthGovernor governor = sDefault;
+        if (governor == null) {
+            synchronized (BandwidthGovernor.class) {
+                governor = sDefault;
+                if (governor == null) {
+                    sDefault = governor = new BandwidthGovernor(SYSTEM_CLOCK);
+                }
+            }
+        }
+        return governor;
+    }
+
+    /*
+     * Total rate of all transfers, 0 removes the limit
+     */
+    public synchronized void setBytesPerSecond(long bytesPerSecond) {
+        mBytesPerSecond = Math.max(0, bytesPerSecond);
+    }
+
+    public synchronized long getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    /*
+     * Relative share of transfers with given priority. Must be 1 or more
+     */
+    public synchronized void setPriorityWeight(int priority, int weight) {
+        mPriorityWeights[priority] = Math.max(1, weight);
+    }
+
+    private long getTotalWeight() {
+        long totalWeight = 0;
+        for (int i = 0; i < mPriorityWeights.length; i++) {
+            totalWeight += (long) mPriorityWeights[i] * mOpenTransfers[i];
+        }
+        return totalWeight;
+    }
+
+    /*
+     * Registers a transfer, its share is taken from others until it is closed
+     */
+    public Transfer openTransfer(int priority) {
+        return new Transfer(priority);
+    }
+
+    public class Transfer {
+        private int mPriority;
+        private boolean mClosed = false;
+        private double mTokens;
+        private long mLastRefillNanos;
+
+        private Transfer(int priority) {
+            synchronized (BandwidthGovernor.this) {
+                mPriority = priority;
+                mOpenTransfers[priority]++;
+                mLastRefillNanos = mClock.nanoTime();
+                mTokens = 0;
+            }
+        }
+
+        public void setPriority(int priority) {
+            synchronized (BandwidthGovernor.this) {
+                if (!mClosed) {
+                    mOpenTransfers[mPriority]--;
+                    mOpenTransfers[priority]++;
+                }
+                mPriority = priority;
+            }
+        }
+
+        // current share of this transfer in bytes per second, 0 if there is no limit
+        public long getBytesPerSecond() {
+            synchronized (BandwidthGovernor.this) {
+                return getRate();
+            }
+        }
+
+        /*
+         * Accounts bytes which were just read, sleeps if transfer is over its share
+         */
+        public void onBytesRead(int count) throws InterruptedIOException {
+            long sleepNanos;
+            synchronized (BandwidthGovernor.this) {
+                long rate = getRate();
+                long now = mClock.nanoTime();
+                if (rate == 0) {
+                    mLastRefillNanos = now;
+                    return;
+                }
+                double burst = Math.max(MIN_BURST_BYTES, (double) rate * BURST_NANOS / NANOS_PER_SECOND);
+                mTokens = Math.min(burst, mTokens + (double) rate * (now - mLastRefillNanos) / NANOS_PER_SECOND);
+                mLastRefillNanos = now;
+                mTokens -= count;
+                if (mTokens >= 0) {
+                    return;
+                }
+                sleepNanos = (long) (-mTokens * NANOS_PER_SECOND / rate);
+            }
+            try {
+                mClock.sleepNanos(sleepNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+
+        // may be called more than once, share of a closed transfer goes to others
+        public void close() {
+            synchronized (BandwidthGovernor.this) {
+                if (!mClosed) {
+                    mClosed = true;
+                    mOpenTransfers[mPriority]--;
+                }
+            }
+        }
+
+        private long getRate() {
+            long totalWeight = getTotalWeight();
+            if (mBytesPerSecond == 0 || totalWeight == 0) {
+                return 0;
+            }
+            return Math.max(1, mBytesPerSecond * mPriorityWeights[mPriority] / totalWeight);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content-addressed store of unpacked samples shared by presets. A blob is found by CRC32 and size of
+ * the zip entry and preset files are hard links to it, so a WAV shipped in many packs takes disk
+ * space once and is written once. CRC32 and size may collide, so entry data is compared with the blob
+ * before linking, which costs a read of both instead of a write. Hard link count is the reference count:
+ * a blob whose only link is the one in the store belongs to no preset and is removed by collectGarbage.
+ * Preset files stay ordinary files for code which loads samples. Linked files must never be written
+ * in place, they are replaced by delete or rename instead.
+ */
+public class BlobStore {
+
+    // small files cost a directory entry either way, not worth a lookup
+    public static final long DEFAULT_MIN_BLOB_SIZE = 16 * 1024;
+    private static final int COMPARE_BUFFER_SIZE = 64 * 1024;
+
+    public interface LinkSupport {
+        // creates link as another name of existing file, throws if that's not possible
+        void link(File existing, File link) throws IOException;
+
+        // number of names the file has
+        long getLinkCount(File file) throws IOException;
+    }
+
+    private final File mDirectory;
+    private final LinkSupport mLinkSupport;
+    private final long mMinBlobSize;
+
+    // counters to measure the effect: what was not written thanks to existing blobs
+    private final AtomicLong mDeduplicatedEntries = new AtomicLong();
+    private final AtomicLong mDeduplicatedBytes = new AtomicLong();
+
+    public BlobStore(File directory, LinkSupport linkSupport, long minBlobSize) {
+        mDirectory = directory;
+        mLinkSupport = linkSupport;
+        mMinBlobSize = minBlobSize;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /*
+     * Only file entries with known crc and size big enough to matter are kept in store
+     */
+    public boolean isShareable(ZipEntryInfo entry) {
+        return !entry.isDirectory() && entry.getUncompressedSize() >= mMinBlobSize && entry.getCrc() >= 0;
+    }
+
+    /*
+     * Makes target a link to stored copy of entry if entryData, uncompressed data of entry, has the same
+     * bytes. Returns false if there is no such blob (or it can't be linked), then entry must be extracted
+     * as usual and passed to add. entryData is read but not closed
+     */
+    public boolean linkExisting(ZipEntryInfo entry, InputStream entryData, File target) {
+        File blob = getBlobFile(entry);
+        if (blob.length() != entry.getUncompressedSize()) {
+            return false; // no blob, length() is 0 for missing file
+        }
+        if (!hasSameContent(blob, entryData)) {
+            DownloadLog.e("[BlobStore] Entry " + entry.getName() + " collides with blob " + blob.getName());
+            return false;
+        }
+        try {
+            mLinkSupport.link(blob, target);
+        } catch (IOException e) {
+            return false;
+        }
+        mDeduplicatedEntries.incrementAndGet();
+        mDeduplicatedBytes.addAndGet(entry.getUncompressedSize());
+        return true;
+    }
+
+    /*
+     * Puts freshly extracted and verified file into store. Failure only means the file stays unshared
+     */
+    public void add(ZipEntryInfo entry, File file) {
+        File blob = getBlobFile(entry);
+        File shard = blob.getParentFile();
+        if (!shard.isDirectory() && !shard.mkdirs()) {
+            return;
+        }
+        try {
+            mLinkSupport.link(file, blob);
+        } catch (IOException e) {
+            // other thread stored the same entry first, or links are not supported here
+        }
+    }
+
+    /*
+     * Deletes blobs which are not linked from any preset anymore. Returns number of freed bytes
+     */
+    public long collectGarbage() {
+        File[] shards = mDirectory.listFiles();
+        if (shards == null) {
+            return 0;
+        }
+        long freedBytes = 0;
+        for (File shard : shards) {
+            File[] blobs = shard.listFiles();
+            if (blobs == null) {
+                continue;
+            }
+            for (File blob : blobs) {
+                try {
+                    if (mLinkSupport.getLinkCount(blob) <= 1) {
+                        long length = blob.length();
+                        if (blob.delete()) {
+                            freedBytes += length;
+                        }
+                    }
+                } catch (IOException e) {
+                    DownloadLog.e("[BlobStore] Can't stat blob " + blob + ": " + e.toString());
+                }
+            }
+        }
+        if (freedBytes > 0) {
+            DownloadLog.d("[BlobStore] Freed " + freedBytes + " bytes of unused samples");
+        }
+        return freedBytes;
+    }
+
+    // counted for all presets since the store was created, see InstallMetrics.LINKED_* for one install
+    public long getDeduplicatedEntries() {
+        return mDeduplicatedEntries.get();
+    }
+
+    public long getDeduplicatedBytes() {
+        return mDeduplicatedBytes.get();
+    }
+
+    // false also if either can't be read, entry is extracted then and reports its own error
+    private static boolean hasSameContent(File blob, InputStream entryData) {
+        InputStream blobData = null;
+        try {
+            blobData = new FileInputStream(blob);
+            byte[] blobBuffer = new byte[COMPARE_BUFFER_SIZE];
+            byte[] entryBuffer = new byte[COMPARE_BUFFER_SIZE];
+            int count;
+            while ((count = readFully(blobData, blobBuffer)) > 0) {
+                if (readFully(entryData, entryBuffer) != count) {
+                    return false;
+                }
+                for (int i = 0; i < count; i++) {
+                    if (blobBuffer[i] != entryBuffer[i]) {
+                        return false;
+                    }
+                }
+            }
+            return entryData.read() == -1;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            FileUtils.tryCloseStream(blobData);
+        }
+    }
+
+    // fills buffer unless input ends first, returns number of bytes read
+    private static int readFully(InputStream input, byte[] buffer) throws IOException {
+        int filled = 0;
+        int count;
+        while (filled < buffer.length && (count = input.read(buffer, filled, buffer.length - filled)) != -1) {
+            filled += count;
+        }
+        return filled;
+    }
+
+    // <first 2 crc digits>/<crc>-<size>, sharded so no directory gets too many entries
+    private File getBlobFile(ZipEntryInfo entry) {
+        String crc = String.format(Locale.US, "%08x", entry.getCrc());
+        return new File(new File(mDirectory, crc.substring(0, 2)), crc + "-" + entry.getUncompressedSize());
+    }
+}
@@ -0,0 +1,8 @@
+package com.paullipnyagov.testdownloadmanager;
+
+/**
+ * Receives number of bytes processed by download and unzip loops, may be called from several threads.
+ */
+public interface ByteProgressListener {
+    void onBytesProcessed(long count);
+}
@@ -0,0 +1,8 @@
+package com.paullipnyagov.testdownloadmanager;
+
+/**
+ * Polled by long running download and unzip loops to stop early.
+ */
+public interface CancelSignal {
+    boolean isCancelled();
+}
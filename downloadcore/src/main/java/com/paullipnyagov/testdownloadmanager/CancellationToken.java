@@ -0,0 +1,19 @@
+package com.paullipnyagov.testdownloadmanager;
+
+/**
+ * Lock-free cancel flag shared between the thread that cancels and every loop doing the work.
+ * Checking it costs one volatile read.
+ */
+public class CancellationToken implements CancelSignal {
+
+    private volatile boolean mCancelled = false;
+
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+}
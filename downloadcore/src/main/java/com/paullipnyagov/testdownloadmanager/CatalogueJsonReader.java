@@ -0,0 +1,240 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * Reads filesConfig.json (array of objects with id, name, path and optional version) token by token
+ * straight into {@link PresetCatalogue.Builder}, so no document tree is built and the response body
+ * is parsed while it is downloaded. Unknown fields are skipped whatever their type.
+ */
+public class CatalogueJsonReader {
+
+    private final Reader mReader;
+    private int mPeeked = -2; // -2 means nothing is peeked
+    private final StringBuilder mBuffer = new StringBuilder();
+
+    public CatalogueJsonReader(Reader reader) {
+        mReader = reader;
+    }
+
+    public static PresetCatalogue read(InputStream input, String eTag, String lastModified) throws IOException {
+        CatalogueJsonReader reader = new CatalogueJsonReader(new BufferedReader(new InputStreamReader(input, "UTF-8")));
+        PresetCatalogue.Builder builder = new PresetCatalogue.Builder();
+        reader.readInto(builder);
+        return builder.build(eTag, lastModified);
+    }
+
+    public void readInto(PresetCatalogue.Builder builder) throws IOException {
+        expect('[');
+        if (peekToken() == ']') {
+            next();
+            return;
+        }
+        do {
+            readPreset(builder);
+        } while (readSeparator(']'));
+    }
+
+    private void readPreset(PresetCatalogue.Builder builder) throws IOException {
+        expect('{');
+        String id = null;
+        String name = null;
+        String path = null;
+        String version = null;
+        if (peekToken() == '}') {
+            next();
+        } else {
+            do {
+                String key = readString();
+                expect(':');
+                if (key.equals("id")) {
+                    id = readScalar();
+                } else if (key.equals("name")) {
+                    name = readScalar();
+                } else if (key.equals("path")) {
+                    path = readScalar();
+                } else if (key.equals("version")) {
+                    version = readScalar();
+                } else {
+                    skipValue();
+                }
+            } while (readSeparator('}'));
+        }
+        if (id == null || path == null) {
+            return; // broken entry can't be downloaded, the rest of catalogue is still fine
+        }
+        try {
+            builder.add(Integer.parseInt(id), name, path, version);
+        } catch (NumberFormatException e) {
+            // same as above
+        }
+    }
+
+    // returns true after ',' and false after closing bracket
+    private boolean readSeparator(char closing) throws IOException {
+        int c = next();
+        if (c == ',') {
+            return true;
+        }
+        if (c == closing) {
+            return false;
+        }
+        throw syntaxError("Expected ',' or '" + closing + "'", c);
+    }
+
+    // string, number, true/false as text, null as null
+    private String readScalar() throws IOException {
+        int c = peekToken();
+        if (c == '"') {
+            return readString();
+        }
+        if (c == '{' || c == '[') {
+            skipValue();
+            return null;
+        }
+        String literal = readLiteral();
+        return literal.equals("null") ? null : literal;
+    }
+
+    private void skipValue() throws IOException {
+        int c = peekToken();
+        if (c == '"') {
+            readString();
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+            boolean inString = false;
+            do {
+                c = nextChar();
+                if (c == -1) {
+                    throw syntaxError("Unexpected end", c);
+                }
+                if (inString) {
+                    if (c == '\\') {
+                        nextChar();
+                    } else if (c == '"') {
+                        inString = false;
+                    }
+                } else if (c == '"') {
+                    inString = true;
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+            } while (depth > 0);
+        } else {
+            readLiteral();
+        }
+    }
+
+    private String readString() throws IOException {
+        expect('"');
+        mBuffer.setLength(0);
+        while (true) {
+            int c = nextChar();
+            if (c == -1) {
+                throw syntaxError("Unterminated string", c);
+            }
+            if (c == '"') {
+                return mBuffer.toString();
+            }
+            if (c == '\\') {
+                c = nextChar();
+                switch (c) {
+                    case 'n':
+                        mBuffer.append('\n');
+                        break;
+                    case 't':
+                        mBuffer.append('\t');
+                        break;
+                    case 'r':
+                        mBuffer.append('\r');
+                        break;
+                    case 'b':
+                        mBuffer.append('\b');
+                        break;
+                    case 'f':
+                        mBuffer.append('\f');
+                        break;
+                    case 'u':
+                        char[] hex = new char[4];
+                        for (int i = 0; i < 4; i++) {
+                            hex[i] = (char) nextChar();
+                        }
+                        try {
+                            mBuffer.append((char) Integer.parseInt(new String(hex), 16));
+                        } catch (NumberFormatException e) {
+                            throw syntaxError("Bad unicode escape", c);
+                        }
+                        break;
+                    case -1:
+                        throw syntaxError("Unterminated string", c);
+                    default:
+                        mBuffer.append((char) c); // \" \\ \/
+                }
+            } else {
+                mBuffer.append((char) c);
+            }
+        }
+    }
+
+    private String readLiteral() throws IOException {
+        peekToken();
+        mBuffer.setLength(0);
+        while (true) {
+            int c = peekChar();
+            if (c == -1 || c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+                break;
+            }
+            mBuffer.append((char) nextChar());
+        }
+        if (mBuffer.length() == 0) {
+            throw syntaxError("Expected value", peekChar());
+        }
+        return mBuffer.toString();
+    }
+
+    private void expect(char expected) throws IOException {
+        int c = next();
+        if (c != expected) {
+            throw syntaxError("Expected '" + expected + "'", c);
+        }
+    }
+
+    // next char which is not whitespace, consumed
+    private int next() throws IOException {
+        peekToken();
+        return nextChar();
+    }
+
+    // next char which is not whitespace, not consumed
+    private int peekToken() throws IOException {
+        int c = peekChar();
+        while (c != -1 && Character.isWhitespace(c)) {
+            nextChar();
+            c = peekChar();
+        }
+        return c;
+    }
+
+    private int peekChar() throws IOException {
+        if (mPeeked == -2) {
+            mPeeked = mReader.read();
+        }
+        return mPeeked;
+    }
+
+    private int nextChar() throws IOException {
+        int c = peekChar();
+        mPeeked = -2;
+        return c;
+    }
+
+    private static IOException syntaxError(String message, int c) {
+        return new IOException("Bad preset config: " + message + ", got " + (c == -1 ? "end" : "'" + (char) c + "'"));
+    }
+}
@@ -0,0 +1,170 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FileChannel based write path shared by download and unzip code. Data is collected into one reused
+ * direct buffer until it is full and then written with a single positional write, so there are a few large
+ * syscalls instead of one per 8 KB, and the channel doesn't copy a heap buffer into a temporary direct one
+ * on every write. Sizes of buffers adapt to measured throughput, see AdaptiveBufferSize.
+ */
+public class ChannelIo {
+
+    public interface Preallocator {
+        void preallocate(RandomAccessFile file, long length) throws IOException;
+    }
+
+    public interface WriteListener {
+        // called after every write, count is number of bytes which reached the file
+        void onBytesWritten(int count) throws IOException;
+    }
+
+    // setLength only reserves space in file size, platform specific preallocator can do real allocation
+    private static final Preallocator SET_LENGTH_PREALLOCATOR = new Preallocator() {
+        @Override
+        public void preallocate(RandomAccessFile file, long length) throws IOException {
+            file.setLength(length);
+        }
+    };
+
+    private static volatile Preallocator sPreallocator = SET_LENGTH_PREALLOCATOR;
+
+    // streams read into heap arrays only, reads go through this much of it on the way to direct buffer
+    private static final int STAGING_SIZE = 16 * 1024;
+    // allocating and zeroing direct memory costs more than a small copy, so it is kept per thread between
+    // copies and replaced only by a bigger one. Copy threads are few: downloads and unzip workers
+    private static final ThreadLocal<ByteBuffer> sDirectBuffers = new ThreadLocal<>();
+    private static final ThreadLocal<byte[]> sStagingArrays = new ThreadLocal<>();
+
+    // totals since start, WriteBenchmark reports their growth: syscall count and amount of data
+    private static final AtomicLong sReadCalls = new AtomicLong();
+    private static final AtomicLong sWriteCalls = new AtomicLong();
+    private static final AtomicLong sBytesWritten = new AtomicLong();
+
+    public static void setPreallocator(Preallocator preallocator) {
+        sPreallocator = preallocator != null ? preallocator : SET_LENGTH_PREALLOCATOR;
+    }
+
+    /*
+     * Reserves length bytes for file which is going to be written, reduces fragmentation on most file systems
+     */
+    public static void preallocate(RandomAccessFile file, long length) throws IOException {
+        if (length > 0 && file.length() != length) {
+            sPreallocator.preallocate(file, length);
+        }
+    }
+
+    /*
+     * Copies input to channel starting from position. Stops at end of input, after maxBytes
+     * (-1 for no limit) or when cancelled. Returns number of bytes written
+     */
+    public static long copy(InputStream input, FileChannel channel, long position, long maxBytes,
+                            AdaptiveBufferSize bufferSize, CancelSignal cancelSignal, WriteListener listener)
+            throws IOException {
+        int size = getBufferSize(bufferSize, maxBytes);
+        ByteBuffer buffer = getDirectBuffer(size);
+        byte[] staging = sStagingArrays.get();
+        if (staging == null) {
+            staging = new byte[STAGING_SIZE];
+            sStagingArrays.set(staging);
+        }
+        long written = 0;
+        boolean endOfInput = false;
+        while (!endOfInput && (maxBytes < 0 || written < maxBytes)) {
+            int limit = (int) (maxBytes < 0 ? size : Math.min(size, maxBytes - written));
+            int filled = 0;
+            long fillStart = System.nanoTime();
+            buffer.clear();
+            buffer.limit(limit);
+            while (filled < limit) {
+                int count = input.read(staging, 0, Math.min(staging.length, limit - filled));
+                sReadCalls.incrementAndGet();
+                if (count == -1) {
+                    endOfInput = true;
+                    break;
+                }
+                buffer.put(staging, 0, count);
+                filled += count;
+                if (cancelSignal.isCancelled()) {
+                    return written;
+                }
+            }
+            if (filled == 0) {
+                break;
+            }
+            bufferSize.onChunk(filled, System.nanoTime() - fillStart);
+            buffer.flip();
+            writeFully(channel, buffer, position + written);
+            written += filled;
+            listener.onBytesWritten(filled);
+
+            long remaining = maxBytes < 0 ? -1 : maxBytes - written;
+            if (bufferSize.getSize() != size && (remaining < 0 || remaining > size)) {
+                // sizes are powers of two, so this happens only a few times per copy
+                size = getBufferSize(bufferSize, remaining);
+                buffer = getDirectBuffer(size);
+            }
+        }
+        return written;
+    }
+
+    /*
+     * Copies count bytes between two files inside the kernel where platform supports it.
+     * Network streams are not FileChannels, for them transferFrom would allocate a buffer per call, use copy
+     */
+    public static long transfer(FileChannel source, long sourcePosition, long count, FileChannel target,
+                                long targetPosition) throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            long chunk = target.transferFrom(source.position(sourcePosition + transferred),
+                    targetPosition + transferred, count - transferred);
+            sWriteCalls.incrementAndGet();
+            if (chunk <= 0) {
+                break;
+            }
+            transferred += chunk;
+        }
+        sBytesWritten.addAndGet(transferred);
+        return transferred;
+    }
+
+    public static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int written = channel.write(buffer, position);
+            sWriteCalls.incrementAndGet();
+            sBytesWritten.addAndGet(written);
+            position += written;
+        }
+    }
+
+    public static long getReadCallCount() {
+        return sReadCalls.get();
+    }
+
+    public static long getWriteCallCount() {
+        return sWriteCalls.get();
+    }
+
+    public static long getBytesWritten() {
+        return sBytesWritten.get();
+    }
+
+    private static ByteBuffer getDirectBuffer(int size) {
+        ByteBuffer buffer = sDirectBuffers.get();
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect(size);
+            sDirectBuffers.set(buffer);
+        }
+        return buffer;
+    }
+
+    private static int getBufferSize(AdaptiveBufferSize bufferSize, long remaining) {
+        // no use in allocating more than is left to copy, e.g. for small zip entries
+        return (int) (remaining < 0 ? bufferSize.getSize() : Math.min(bufferSize.getSize(), Math.max(remaining, 1)));
+    }
+}
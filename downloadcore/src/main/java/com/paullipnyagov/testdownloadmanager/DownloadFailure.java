@@ -0,0 +1,75 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.EOFException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.zip.ZipException;
+
+/**
+ * Kinds of failed preset download, which decide whether and when it is retried. See {@link RetryScheduler}.
+ */
+public class DownloadFailure {
+
+    // connection dropped, timed out or DNS failed, likely fine on the next try
+    public static final int KIND_TRANSIENT_NETWORK = 0;
+    // HTTP 5xx, 408 or 429: server or CDN is overloaded, worth retrying a bit later
+    public static final int KIND_SERVER = 1;
+    // ENOSPC, retry helps only after user frees some space
+    public static final int KIND_DISK_FULL = 2;
+    // crc or hash mismatch, archive is downloaded again from scratch
+    public static final int KIND_CORRUPT_ARCHIVE = 3;
+    // HTTP 4xx, missing storage, bugs: retry gives the same result
+    public static final int KIND_PERMANENT = 4;
+    public static final int KIND_COUNT = 5;
+
+    private static final String[] NAMES = {"transient_network", "server", "disk_full", "corrupt_archive",
+            "permanent"};
+
+    public static String getName(int kind) {
+        return NAMES[kind];
+    }
+
+    /*
+     * Kind of failure caused by exception, its causes are looked at too. Null exception is a failed check
+     * of our own and counts as permanent
+     */
+    public static int classify(Throwable exception) {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            int kind = classifySingle(cause);
+            if (kind != KIND_PERMANENT) {
+                return kind;
+            }
+        }
+        return KIND_PERMANENT;
+    }
+
+    private static int classifySingle(Throwable exception) {
+        String message = exception.getMessage();
+        if (message != null && (message.contains("ENOSPC") || message.contains("No space left"))) {
+            return KIND_DISK_FULL;
+        }
+        if (exception instanceof HttpStatusException) {
+            int responseCode = ((HttpStatusException) exception).getResponseCode();
+            if (responseCode >= 500 || responseCode == 408 || responseCode == 429) {
+                return KIND_SERVER;
+            }
+            return KIND_PERMANENT;
+        }
+        if (exception instanceof ZipException) {
+            return KIND_CORRUPT_ARCHIVE;
+        }
+        // SocketTimeoutException is an InterruptedIOException, body cut short is an EOFException
+        if (exception instanceof SocketException || exception instanceof UnknownHostException ||
+                exception instanceof InterruptedIOException || exception instanceof EOFException) {
+            return KIND_TRANSIENT_NETWORK;
+        }
+        if (message != null && (message.contains("unexpected end of stream") || message.contains("Premature EOF"))) {
+            return KIND_TRANSIENT_NETWORK; // how platform HTTP stacks report a body cut by closed connection
+        }
+        if (exception instanceof SegmentedFileDownloader.RemoteFileChangedException) {
+            return KIND_TRANSIENT_NETWORK; // new version was uploaded meanwhile, next try gets it
+        }
+        return KIND_PERMANENT;
+    }
+}
@@ -0,0 +1,43 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Log of download engine. Goes to java.util.logging unless the platform sets its own logger,
+ * the Android app routes it to MyLog.
+ */
+public class DownloadLog {
+
+    public interface Sink {
+        void d(String message);
+
+        void e(String message);
+    }
+
+    private static volatile Sink sSink = new Sink() {
+        private final Logger mLogger = Logger.getLogger("PresetDownloads");
+
+        @Override
+        public void d(String message) {
+            mLogger.log(Level.FINE, message);
+        }
+
+        @Override
+        public void e(String message) {
+            mLogger.log(Level.WARNING, message);
+        }
+    };
+
+    public static void setSink(Sink sink) {
+        sSink = sink;
+    }
+
+    public static void d(String message) {
+        sSink.d(message);
+    }
+
+    public static void e(String message) {
+        sSink.e(message);
+    }
+}
@@ -0,0 +1,133 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Download queue ordered by priority, FIFO within the same priority. Items are indexed by preset id,
+ * so lookup is O(1) and add, remove and priority change are O(log n). Not thread safe, like the
+ * download manager which owns it.
+ */
+public class DownloadPriorityQueue<T> {
+
+    // prefetch of presets user may want later
+    public static final int PRIORITY_BACKGROUND = 0;
+    // preset is shown on screen, e.g. in a list being scrolled
+    public static final int PRIORITY_VISIBLE = 1;
+    // user tapped the preset and waits for it
+    public static final int PRIORITY_USER = 2;
+
+    private static class Entry<T> {
+        final int id;
+        final T item;
+        int priority;
+        long sequence;
+
+        Entry(int id, T item, int priority, long sequence) {
+            this.id = id;
+            this.item = item;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+
+    private final HashMap<Integer, Entry<T>> mEntries = new HashMap<>();
+    // higher priority first, then in the order of adding
+    private final TreeSet<Entry<T>> mOrder = new TreeSet<>(new Comparator<Entry<T>>() {
+        @Override
+        public int compare(Entry<T> left, Entry<T> right) {
+            if (left.priority != right.priority) {
+                return left.priority > right.priority ? -1 : 1;
+            }
+            return left.sequence < right.sequence ? -1 : (left.sequence == right.sequence ? 0 : 1);
+        }
+    });
+    private long mNextSequence = 0;
+
+    /*
+     * Returns false if item with this id is already queued, its priority is raised to the given one then
+     */
+    public boolean add(int id, T item, int priority) {
+        if (mEntries.containsKey(id)) {
+            if (priority > getPriority(id)) {
+                setPriority(id, priority);
+            }
+            return false;
+        }
+        Entry<T> entry = new Entry<>(id, item, priority, mNextSequence++);
+        mEntries.put(id, entry);
+        mOrder.add(entry);
+        return true;
+    }
+
+    public boolean contains(int id) {
+        return mEntries.containsKey(id);
+    }
+
+    // returns null if id is not queued
+    public T get(int id) {
+        Entry<T> entry = mEntries.get(id);
+        return entry == null ? null : entry.item;
+    }
+
+    // returns -1 if id is not queued
+    public int getPriority(int id) {
+        Entry<T> entry = mEntries.get(id);
+        return entry == null ? -1 : entry.priority;
+    }
+
+    /*
+     * Moves item to the end of its new priority level. Returns false if id is not queued
+     */
+    public boolean setPriority(int id, int priority) {
+        Entry<T> entry = mEntries.get(id);
+        if (entry == null) {
+            return false;
+        }
+        if (entry.priority == priority) {
+            return true;
+        }
+        mOrder.remove(entry);
+        entry.priority = priority;
+        entry.sequence = mNextSequence++;
+        mOrder.add(entry);
+        return true;
+    }
+
+    // returns removed item or null if id is not queued
+    public T remove(int id) {
+        Entry<T> entry = mEntries.remove(id);
+        if (entry == null) {
+            return null;
+        }
+        mOrder.remove(entry);
+        return entry.item;
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    public boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    public void clear() {
+        mEntries.clear();
+        mOrder.clear();
+    }
+
+    /*
+     * Snapshot of all items in queue order, safe to iterate while queue is modified
+     */
+    public List<T> toList() {
+        ArrayList<T> items = new ArrayList<>(mOrder.size());
+        for (Entry<T> entry : mOrder) {
+            items.add(entry.item);
+        }
+        return items;
+    }
+}
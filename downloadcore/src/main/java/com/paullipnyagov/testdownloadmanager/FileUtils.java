@@ -32,28 +32,31 @@ public class FileUtils {
         return error != null ? error.toString() : null;
     }
 
+    // returns false if something is left
+    public static boolean deleteRecursive(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursive(child);
+            }
+        }
+        return !file.exists() || file.delete();
+    }
+
     public static long getPartitionFreeSpace(String filePath) {
         return getPartitionFreeSpace(new File(filePath));
     }
 
     public static long getPartitionFreeSpace(File file) {
-        // create temp file to receive getFreeSpace (returns 0 if file doesn't exist) and then delete it
-        if (!file.exists()) {
-            try {
-                if (!file.createNewFile()) {
-                    return -1; // means error
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        // getFreeSpace returns 0 for a file which doesn't exist, nearest existing parent is on the same
+        // partition. Nothing is created, so it is cheap even on slow SD cards
+        File existing = file.getAbsoluteFile();
+        while (existing != null && !existing.exists()) {
+            existing = existing.getParentFile();
         }
-        long partitionFreeSpace = file.getFreeSpace();
-        if (file.exists()) {
-            if (!file.delete()) {
-                return -1;
-            }
+        if (existing == null) {
+            return -1; // means error
         }
-
-        return partitionFreeSpace;
+        return existing.getFreeSpace();
     }
 }
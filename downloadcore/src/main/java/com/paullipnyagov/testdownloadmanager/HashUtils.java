@@ -0,0 +1,57 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class HashUtils {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // every Android and JVM has SHA-256, so missing one is a programming error
+    public static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /*
+     * Hex SHA-256 of the whole file, null if cancelled. For files which were not written sequentially,
+     * otherwise hash is computed while writing
+     */
+    public static String sha256(File file, CancelSignal cancelSignal) throws IOException {
+        MessageDigest digest = newSha256();
+        FileInputStream input = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                if (cancelSignal.isCancelled()) {
+                    return null;
+                }
+                digest.update(buffer, 0, count);
+            }
+        } finally {
+            FileUtils.tryCloseStream(input);
+        }
+        return toHex(digest.digest());
+    }
+
+    // expected hash comes from config, so case and surrounding spaces are not significant
+    public static boolean hashEquals(String expected, String actual) {
+        return expected != null && actual != null && expected.trim().equalsIgnoreCase(actual);
+    }
+}
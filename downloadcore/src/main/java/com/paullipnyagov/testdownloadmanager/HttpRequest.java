@@ -0,0 +1,41 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Request sent through {@link HttpTransport}. GET unless method is set.
+ */
+public class HttpRequest {
+
+    public static final String METHOD_GET = "GET";
+    public static final String METHOD_HEAD = "HEAD";
+
+    private final String mUrl;
+    private String mMethod = METHOD_GET;
+    private final LinkedHashMap<String, String> mHeaders = new LinkedHashMap<>();
+
+    public HttpRequest(String url) {
+        mUrl = url;
+    }
+
+    public void setMethod(String method) {
+        mMethod = method;
+    }
+
+    public void setHeader(String name, String value) {
+        mHeaders.put(name, value);
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public String getMethod() {
+        return mMethod;
+    }
+
+    public Map<String, String> getHeaders() {
+        return mHeaders;
+    }
+}
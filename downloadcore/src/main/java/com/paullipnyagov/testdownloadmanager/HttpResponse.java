@@ -0,0 +1,25 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Response of {@link HttpTransport}. Must be closed: a response whose body was read to the end gives
+ * its connection back to the pool, an abandoned one closes the connection.
+ */
+public interface HttpResponse extends Closeable {
+
+    int getResponseCode();
+
+    // null if header is absent
+    String getHeader(String name);
+
+    // -1 if unknown
+    long getContentLength();
+
+    InputStream getBody() throws IOException;
+
+    @Override
+    void close();
+}
@@ -0,0 +1,22 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.IOException;
+
+/**
+ * Server answered with a status the request can't go on with.
+ */
+public class HttpStatusException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int mResponseCode;
+
+    public HttpStatusException(int responseCode, String message) {
+        super(message + ", response code " + responseCode);
+        mResponseCode = responseCode;
+    }
+
+    public int getResponseCode() {
+        return mResponseCode;
+    }
+}
@@ -0,0 +1,13 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.IOException;
+
+/**
+ * Sends HTTP requests for preset downloads. Implementations own connection reuse and timeouts,
+ * so one instance should be shared by all downloads. Must be thread safe.
+ */
+public interface HttpTransport {
+
+    // response headers are received when this returns, body is read from the response
+    HttpResponse execute(HttpRequest request) throws IOException;
+}
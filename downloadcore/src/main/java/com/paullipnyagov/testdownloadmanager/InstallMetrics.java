@@ -0,0 +1,108 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timings and sizes of one preset install, filled stage by stage from download threads.
+ * A value is -1 if install didn't go through that stage: streaming extract has no separate unzip
+ * stage and delta update reads no whole archive.
+ */
+public class InstallMetrics {
+
+    // waiting in download queue for a free slot
+    public static final int QUEUE_WAIT_MS = 0;
+    // DNS lookup, TCP and TLS handshakes and request until response headers, of the first request.
+    // Close to 0 when pooled connection is reused
+    public static final int CONNECT_MS = 1;
+    // from start of first request to the first byte of body
+    public static final int FIRST_BYTE_MS = 2;
+    public static final int DOWNLOAD_MS = 3;
+    // response body bytes of all requests
+    public static final int DOWNLOADED_BYTES = 4;
+    public static final int DOWNLOAD_BYTES_PER_SECOND = 5;
+    public static final int CENTRAL_DIRECTORY_MS = 6;
+    // unzip, or crc check of an archive installed without extracting
+    public static final int EXTRACT_MS = 7;
+    // uncompressed bytes written to preset directory
+    public static final int EXTRACTED_BYTES = 8;
+    // manifest, version and insurance files
+    public static final int MARKER_FILES_MS = 9;
+    public static final int TOTAL_MS = 10;
+    // preset files linked to blobs of blob store instead of being written, and their uncompressed size
+    public static final int LINKED_FILES = 11;
+    public static final int LINKED_BYTES = 12;
+    public static final int METRIC_COUNT = 13;
+
+    private static final String[] NAMES = {"queue_wait_ms", "connect_ms", "first_byte_ms", "download_ms",
+            "downloaded_bytes", "download_bytes_per_second", "central_directory_ms", "extract_ms",
+            "extracted_bytes", "marker_files_ms", "total_ms", "linked_files", "linked_bytes"};
+
+    private final int mPresetId;
+    private final AtomicLongArray mValues = new AtomicLongArray(METRIC_COUNT);
+    private volatile boolean mSucceeded = false;
+
+    public InstallMetrics(int presetId) {
+        mPresetId = presetId;
+        for (int i = 0; i < METRIC_COUNT; i++) {
+            mValues.set(i, -1);
+        }
+    }
+
+    public static String getName(int metric) {
+        return NAMES[metric];
+    }
+
+    public int getPresetId() {
+        return mPresetId;
+    }
+
+    public long get(int metric) {
+        return mValues.get(metric);
+    }
+
+    public void set(int metric, long value) {
+        mValues.set(metric, value);
+    }
+
+    // returns false if value was already measured, e.g. by an earlier request of the same install
+    public boolean setIfAbsent(int metric, long value) {
+        return mValues.compareAndSet(metric, -1, value);
+    }
+
+    public void add(int metric, long delta) {
+        while (true) {
+            long value = mValues.get(metric);
+            if (mValues.compareAndSet(metric, value, Math.max(0, value) + delta)) {
+                return;
+            }
+        }
+    }
+
+    /*
+     * Sets duration metric to time passed since startNanos of System.nanoTime()
+     */
+    public void setElapsed(int metric, long startNanos) {
+        mValues.set(metric, (System.nanoTime() - startNanos) / 1000000);
+    }
+
+    public boolean isSucceeded() {
+        return mSucceeded;
+    }
+
+    public void setSucceeded(boolean succeeded) {
+        mSucceeded = succeeded;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("preset ").append(mPresetId)
+                .append(mSucceeded ? " installed" : " failed");
+        for (int i = 0; i < METRIC_COUNT; i++) {
+            long value = mValues.get(i);
+            if (value >= 0) {
+                builder.append(", ").append(NAMES[i]).append('=').append(value);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,110 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects {@link InstallMetrics} of finished installs: every metric goes into a histogram which can
+ * be queried in process or exported as text, and the whole record is handed to sinks, e.g. analytics.
+ * Cancelled installs are not recorded, their timings say nothing about the device. Thread safe.
+ */
+public class InstallTelemetry {
+
+    /*
+     * Gets every recorded install on the download thread which finished it, so it must return quickly
+     */
+    public interface Sink {
+        void onInstallMeasured(InstallMetrics metrics);
+    }
+
+    private static volatile InstallTelemetry sDefault;
+
+    private final MetricHistogram[] mHistograms = new MetricHistogram[InstallMetrics.METRIC_COUNT];
+    private final AtomicLong mSucceededCount = new AtomicLong();
+    private final AtomicLong mFailedCount = new AtomicLong();
+    private final CopyOnWriteArrayList<Sink> mSinks = new CopyOnWriteArrayList<>();
+
+    public InstallTelemetry() {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new MetricHistogram();
+        }
+    }
+
+    public static InstallTelemetry getDefault() {
+        InstallTelemetry telemetry = sDefault;
+        if (telemetry == null) {
+            synchronized (InstallTelemetry.class) {
+                telemetry = sDefault;
+                if (telemetry == null) {
+                    sDefault = telemetry = new InstallTelemetry();
+                }
+            }
+        }
+        return telemetry;
+    }
+
+    public void addSink(Sink sink) {
+        mSinks.add(sink);
+    }
+
+    public void removeSink(Sink sink) {
+        mSinks.remove(sink);
+    }
+
+    public void record(InstallMetrics metrics) {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i].record(metrics.get(i));
+        }
+        (metrics.isSucceeded() ? mSucceededCount : mFailedCount).incrementAndGet();
+        DownloadLog.d("[InstallTelemetry] " + metrics);
+        for (Sink sink : mSinks) {
+            try {
+                sink.onInstallMeasured(metrics);
+            } catch (RuntimeException e) {
+                // broken consumer must not break install or other consumers
+                DownloadLog.e("[InstallTelemetry] Sink failed: " + e.toString());
+            }
+        }
+    }
+
+    // histogram of one of InstallMetrics metrics, of all installs recorded so far
+    public MetricHistogram getHistogram(int metric) {
+        return mHistograms[metric];
+    }
+
+    public long getSucceededCount() {
+        return mSucceededCount.get();
+    }
+
+    public long getFailedCount() {
+        return mFailedCount.get();
+    }
+
+    /*
+     * One tab separated line per measured metric: name, count, mean, p50, p90, p99, max
+     */
+    public String export() {
+        StringBuilder builder = new StringBuilder("metric\tcount\tmean\tp50\tp90\tp99\tmax\n");
+        for (int i = 0; i < mHistograms.length; i++) {
+            MetricHistogram histogram = mHistograms[i];
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            builder.append(InstallMetrics.getName(i)).append('\t').append(histogram.getCount())
+                    .append('\t').append(histogram.getMean())
+                    .append('\t').append(histogram.getPercentile(0.5))
+                    .append('\t').append(histogram.getPercentile(0.9))
+                    .append('\t').append(histogram.getPercentile(0.99))
+                    .append('\t').append(histogram.getMax()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    public void reset() {
+        for (MetricHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+        mSucceededCount.set(0);
+        mFailedCount.set(0);
+    }
+}
@@ -0,0 +1,78 @@
+package com.paullipnyagov.testdownloadmanager;
+
+/**
+ * What is known about one preset directory on disk. Immutable, replaced in the index as a whole.
+ */
+public class InstalledPreset {
+
+    public static final int STATE_NOT_INSTALLED = 0;
+    // directory exists but insurance file is missing: install is running or was interrupted
+    public static final int STATE_INCOMPLETE = 1;
+    public static final int STATE_INSTALLED = 2;
+    // index is still loading, answer of non-blocking queries of InstalledPresetIndex
+    public static final int STATE_UNKNOWN = -1;
+
+    private final int mId;
+    private final int mState;
+    private final String mVersion; // null if version file is absent
+    private final long mSizeBytes;
+    private final long mInstallTime;
+    private final String mArchiveSha256; // hash of installed zip, null if not known
+
+    public InstalledPreset(int id, int state, String version, long sizeBytes, long installTime,
+                           String archiveSha256) {
+        mId = id;
+        mState = state;
+        mVersion = version;
+        mSizeBytes = sizeBytes;
+        mInstallTime = installTime;
+        mArchiveSha256 = archiveSha256;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public String getVersion() {
+        return mVersion;
+    }
+
+    public long getSizeBytes() {
+        return mSizeBytes;
+    }
+
+    public long getInstallTime() {
+        return mInstallTime;
+    }
+
+    public String getArchiveSha256() {
+        return mArchiveSha256;
+    }
+
+    public boolean isInstalled() {
+        return mState == STATE_INSTALLED;
+    }
+
+    // installed and doesn't need a download for given version from config
+    public boolean isUpToDate(String newestVersion) {
+        return isInstalled() && isVersionUpToDate(mVersion, newestVersion);
+    }
+
+    /*
+     * Preset without version is up to date only if config has no version for it either: null, "" or "0"
+     */
+    public static boolean isVersionUpToDate(String currentVersion, String newestVersion) {
+        if (currentVersion == null &&
+                !(newestVersion == null || newestVersion.equals("") || newestVersion.equals("0"))) {
+            return false;
+        }
+        if (currentVersion == null) { // and preset version is null, "" or 0 - means not set
+            return true;
+        }
+        return currentVersion.equals(newestVersion);
+    }
+}
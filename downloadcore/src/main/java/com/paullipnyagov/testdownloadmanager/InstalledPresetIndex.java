@@ -0,0 +1,403 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Installed presets by id, so list UI doesn't stat and read files of every preset it shows.
+ * Built once by scanning preset directories in parallel and kept in a small binary file outside
+ * of download directory. The saved index is trusted only while download directory has the same
+ * modification time, i.e. no preset directory was added or removed behind our back.
+ * Queries wait until index is loaded, which may take a scan of storage on first start, so they are
+ * called in background. Main thread uses peek queries, which answer "unknown" while index is loading,
+ * and refreshes its answers from a listener added with {@link #addOnLoadedListener}.
+ */
+public class InstalledPresetIndex {
+
+    private static final int FILE_MAGIC = 0x50494458; // "PIDX"
+    private static final int FILE_VERSION = 2;
+
+    // scan is bound by storage latency rather than CPU, a few requests in flight is enough
+    private static final int SCAN_THREAD_COUNT = 4;
+
+    // writes index file, one save at a time and never on caller thread
+    private static final ExecutorService SAVE_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "PresetIndexSave");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final File mDownloadDirectory;
+    private final File mIndexFile;
+
+    private final ConcurrentHashMap<Integer, InstalledPreset> mPresets = new ConcurrentHashMap<>();
+    private volatile boolean mLoaded = false;
+    private final AtomicBoolean mSaveScheduled = new AtomicBoolean(false);
+    // run once index is loaded, guarded by this
+    private final ArrayList<Runnable> mOnLoadedListeners = new ArrayList<>();
+
+    public InstalledPresetIndex(File downloadDirectory, File indexFile) {
+        mDownloadDirectory = downloadDirectory;
+        mIndexFile = indexFile;
+    }
+
+    public File getDownloadDirectory() {
+        return mDownloadDirectory;
+    }
+
+    /*
+     * Repairs installs interrupted by process death, then loads saved index or scans download
+     * directory if saved one is missing or outdated.
+     * Called by every query, so it is enough to call it once in background to warm up
+     */
+    public void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        synchronized (this) {
+            if (mLoaded) {
+                return;
+            }
+            long startTime = System.currentTimeMillis();
+            // installs wait for the index, so nothing is staged while interrupted ones are repaired
+            StagedInstall.recover(mDownloadDirectory);
+            if (!readIndexFile()) {
+                mPresets.clear();
+                scan();
+                scheduleSave();
+                DownloadLog.d("[InstalledPresetIndex] Scanned " + mPresets.size() + " preset directories in " +
+                        (System.currentTimeMillis() - startTime) + " ms");
+            }
+            mLoaded = true;
+            for (Runnable listener : mOnLoadedListeners) {
+                listener.run();
+            }
+            mOnLoadedListeners.clear();
+        }
+    }
+
+    public boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /*
+     * Runs listener on executor once index is loaded, right away if it is loaded already. Doesn't start loading
+     */
+    public void addOnLoadedListener(final Runnable listener, final Executor executor) {
+        Runnable post = new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(listener);
+            }
+        };
+        synchronized (this) {
+            if (!mLoaded) {
+                mOnLoadedListeners.add(post);
+                return;
+            }
+        }
+        post.run();
+    }
+
+    /*
+     * Never waits: InstalledPreset.STATE_UNKNOWN while index is loading
+     */
+    public int peekState(int presetId) {
+        if (!mLoaded) {
+            return InstalledPreset.STATE_UNKNOWN;
+        }
+        InstalledPreset preset = mPresets.get(presetId);
+        return preset == null ? InstalledPreset.STATE_NOT_INSTALLED : preset.getState();
+    }
+
+    /*
+     * Never waits: null while index is loading, see isLoaded, or if preset directory doesn't exist
+     */
+    public InstalledPreset peek(int presetId) {
+        return mLoaded ? mPresets.get(presetId) : null;
+    }
+
+    /*
+     * Never waits: same as getInstalledStates, all InstalledPreset.STATE_UNKNOWN while index is loading
+     */
+    public int[] peekInstalledStates(int[] presetIds) {
+        if (!mLoaded) {
+            int[] states = new int[presetIds.length];
+            Arrays.fill(states, InstalledPreset.STATE_UNKNOWN);
+            return states;
+        }
+        return getInstalledStates(presetIds);
+    }
+
+    // returns null if preset directory doesn't exist. Waits for index to load
+    public InstalledPreset get(int presetId) {
+        ensureLoaded();
+        return mPresets.get(presetId);
+    }
+
+    public int getState(int presetId) {
+        InstalledPreset preset = get(presetId);
+        return preset == null ? InstalledPreset.STATE_NOT_INSTALLED : preset.getState();
+    }
+
+    /*
+     * States of all given presets at once, in the same order
+     */
+    public int[] getInstalledStates(int[] presetIds) {
+        ensureLoaded();
+        int[] states = new int[presetIds.length];
+        for (int i = 0; i < presetIds.length; i++) {
+            InstalledPreset preset = mPresets.get(presetIds[i]);
+            states[i] = preset == null ? InstalledPreset.STATE_NOT_INSTALLED : preset.getState();
+        }
+        return states;
+    }
+
+    // preset files are being written to staging directory. Installed version stays playable until commit
+    public void onInstallStarted(int presetId) {
+        ensureLoaded();
+        InstalledPreset current = mPresets.get(presetId);
+        if (current != null && current.getState() == InstalledPreset.STATE_INSTALLED) {
+            return;
+        }
+        mPresets.put(presetId, new InstalledPreset(presetId, InstalledPreset.STATE_INCOMPLETE, null, 0,
+                System.currentTimeMillis(), null));
+        scheduleSave();
+    }
+
+    // archiveSha256 is null if hash of the archive was not computed, e.g. for incremental update
+    public void onInstalled(int presetId, String version, long sizeBytes, String archiveSha256) {
+        ensureLoaded();
+        mPresets.put(presetId, new InstalledPreset(presetId, InstalledPreset.STATE_INSTALLED, version, sizeBytes,
+                System.currentTimeMillis(), archiveSha256));
+        scheduleSave();
+    }
+
+    public void onDeleted(int presetId) {
+        ensureLoaded();
+        mPresets.remove(presetId);
+        scheduleSave();
+    }
+
+    /*
+     * Probes preset directory again, e.g. after its files were changed by other code
+     */
+    public void refresh(int presetId) {
+        ensureLoaded();
+        InstalledPreset preset = probe(new File(mDownloadDirectory, Integer.toString(presetId)), presetId);
+        if (preset == null) {
+            mPresets.remove(presetId);
+        } else {
+            mPresets.put(presetId, preset);
+        }
+        scheduleSave();
+    }
+
+    private void scan() {
+        File[] directories = mDownloadDirectory.listFiles();
+        if (directories == null) {
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(SCAN_THREAD_COUNT, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "PresetIndexScan-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            ArrayList<Future<?>> tasks = new ArrayList<>(directories.length);
+            for (final File directory : directories) {
+                final int presetId = parsePresetId(directory.getName());
+                if (presetId < 0) {
+                    continue; // not a preset directory
+                }
+                tasks.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        InstalledPreset preset = probe(directory, presetId);
+                        if (preset != null) {
+                            mPresets.put(presetId, preset);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    DownloadLog.e("[InstalledPresetIndex] Error while scanning preset directory: " + e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // returns null if directory doesn't exist. Manifest header is the only file read for installed preset
+    private static InstalledPreset probe(File directory, int presetId) {
+        PresetManifest.Header header = PresetManifest.readHeader(directory);
+        if (header == null) {
+            if (!directory.isDirectory()) {
+                return null;
+            }
+            header = LegacyMarkerFiles.migrate(directory);
+            if (header == null) {
+                return new InstalledPreset(presetId, InstalledPreset.STATE_INCOMPLETE, null, 0,
+                        directory.lastModified(), null);
+            }
+        }
+        return new InstalledPreset(presetId, InstalledPreset.STATE_INSTALLED, header.version, header.sizeBytes,
+                directory.lastModified(), header.archiveSha256);
+    }
+
+    public static long getDirectorySize(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        long size = 0;
+        for (File file : files) {
+            size += file.isDirectory() ? getDirectorySize(file) : file.length();
+        }
+        return size;
+    }
+
+    private static int parsePresetId(String name) {
+        try {
+            return Integer.parseInt(name);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void scheduleSave() {
+        if (!mSaveScheduled.compareAndSet(false, true)) {
+            return; // pending save will write this change too
+        }
+        SAVE_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                mSaveScheduled.set(false);
+                try {
+                    save();
+                } catch (IOException e) {
+                    // index is rebuilt by scan next time, nothing is lost
+                    DownloadLog.e("[InstalledPresetIndex] Can't save preset index: " + e.toString());
+                    mIndexFile.delete();
+                }
+            }
+        });
+    }
+
+    /*
+     * Writes index to temp file and renames it, so index file is either old or new but never partial
+     */
+    public synchronized void save() throws IOException {
+        File tempFile = new File(mIndexFile.getPath() + ".tmp");
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            output.writeInt(FILE_MAGIC);
+            output.writeInt(FILE_VERSION);
+            output.writeUTF(mDownloadDirectory.getAbsolutePath());
+            output.writeLong(mDownloadDirectory.lastModified());
+            ArrayList<InstalledPreset> presets = new ArrayList<>(mPresets.values());
+            output.writeInt(presets.size());
+            for (InstalledPreset preset : presets) {
+                output.writeInt(preset.getId());
+                output.writeByte(preset.getState());
+                output.writeBoolean(preset.getVersion() != null);
+                if (preset.getVersion() != null) {
+                    output.writeUTF(preset.getVersion());
+                }
+                output.writeLong(preset.getSizeBytes());
+                output.writeLong(preset.getInstallTime());
+                output.writeBoolean(preset.getArchiveSha256() != null);
+                if (preset.getArchiveSha256() != null) {
+                    output.writeUTF(preset.getArchiveSha256());
+                }
+            }
+        } finally {
+            output.close();
+        }
+        if (!tempFile.renameTo(mIndexFile)) {
+            throw new IOException("Can't rename " + tempFile + " to " + mIndexFile);
+        }
+    }
+
+    // returns false if there is no usable index file
+    private boolean readIndexFile() {
+        if (!mIndexFile.isFile()) {
+            return false;
+        }
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(mIndexFile)));
+            if (input.readInt() != FILE_MAGIC || input.readInt() != FILE_VERSION) {
+                return false;
+            }
+            if (!input.readUTF().equals(mDownloadDirectory.getAbsolutePath()) ||
+                    input.readLong() != mDownloadDirectory.lastModified()) {
+                // presets were added or removed by someone else, e.g. storage was changed
+                return false;
+            }
+            int count = input.readInt();
+            ArrayList<Integer> incomplete = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                int id = input.readInt();
+                int state = input.readByte();
+                String version = input.readBoolean() ? input.readUTF() : null;
+                long size = input.readLong();
+                long installTime = input.readLong();
+                String archiveSha256 = input.readBoolean() ? input.readUTF() : null;
+                mPresets.put(id, new InstalledPreset(id, state, version, size, installTime, archiveSha256));
+                if (state == InstalledPreset.STATE_INCOMPLETE) {
+                    incomplete.add(id);
+                }
+            }
+            // install could have finished after the last save, only these directories are probed again
+            for (Integer id : incomplete) {
+                InstalledPreset preset = probe(new File(mDownloadDirectory, Integer.toString(id)), id);
+                if (preset == null) {
+                    mPresets.remove(id);
+                } else {
+                    mPresets.put(id, preset);
+                }
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            DownloadLog.e("[InstalledPresetIndex] Preset index is corrupt and will be rebuilt: " + e.toString());
+            return false;
+        } finally {
+            if (input != null) {
+                FileUtils.tryCloseStream(input);
+            }
+        }
+    }
+}
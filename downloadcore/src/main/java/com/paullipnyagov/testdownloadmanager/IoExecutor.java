@@ -0,0 +1,194 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background threads for file system work which must not run on main thread: preparing download
+ * paths, temp cleanup, free space and marker reads, deletion of preset trees. Tasks run one at a time
+ * in submission order and their results go to a callback on the executor caller gives, usually
+ * the main thread. Deleted files are renamed into a trash directory at once, which is cheap
+ * even on slow SD cards, and the trash is emptied later in one batch on its own thread, so a big
+ * deletion never delays tasks.
+ */
+public class IoExecutor {
+
+    // in parent of deleted file, a rename can't cross file systems
+    public static final String TRASH_DIRECTORY_NAME = ".trash";
+    public static final long DEFAULT_TRASH_DELAY_MS = 3000;
+
+    public interface Task<T> {
+        T run();
+    }
+
+    public interface Callback<T> {
+        void onComplete(T result);
+    }
+
+    private static volatile IoExecutor sDefault;
+
+    private final ExecutorService mTaskExecutor;
+    private final ScheduledExecutorService mTrashExecutor;
+    private final long mTrashDelayMs;
+    private final AtomicLong mTrashCounter = new AtomicLong(System.currentTimeMillis());
+
+    // files waiting for the next batch and what runs after it, guarded by this
+    private ArrayList<File> mPendingTrash = new ArrayList<>();
+    private ArrayList<Runnable> mAfterTrashEmptied = new ArrayList<>();
+    private boolean mTrashScheduled = false;
+
+    /*
+     * trashDelayMs lets more deletions join one batch and keeps storage free for downloads which
+     * usually start right after a delete
+     */
+    public IoExecutor(long trashDelayMs) {
+        mTrashDelayMs = trashDelayMs;
+        mTaskExecutor = Executors.newSingleThreadExecutor(newThreadFactory("PresetIo"));
+        mTrashExecutor = Executors.newSingleThreadScheduledExecutor(newThreadFactory("PresetIoTrash"));
+    }
+
+    public static IoExecutor getDefault() {
+        IoExecutor instance = sDefault;
+        if (instance == null) {
+            synchronized (IoExecutor.class) {
+                instance = sDefault;
+                if (instance == null) {
+                    sDefault = instance = new IoExecutor(DEFAULT_TRASH_DELAY_MS);
+                }
+            }
+        }
+        return instance;
+    }
+
+    private static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    public void execute(Runnable task) {
+        mTaskExecutor.execute(task);
+    }
+
+    /*
+     * Runs task in background and hands its result to callback on callbackExecutor. Task which
+     * throws gives null result
+     */
+    public <T> void submit(final Task<T> task, final Callback<T> callback, final Executor callbackExecutor) {
+        mTaskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                T result = null;
+                try {
+                    result = task.run();
+                } catch (RuntimeException e) {
+                    DownloadLog.e("[IoExecutor] Task failed: " + e.toString());
+                }
+                final T finalResult = result;
+                callbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onComplete(finalResult);
+                    }
+                });
+            }
+        });
+    }
+
+    /*
+     * Moves file or directory out of its place at once and deletes it in background. If it can't be
+     * moved it is deleted in place, false is returned then
+     */
+    public boolean deleteLater(File file) {
+        File target = file;
+        boolean moved = !file.exists();
+        if (!moved) {
+            File trashDirectory = new File(file.getAbsoluteFile().getParentFile(), TRASH_DIRECTORY_NAME);
+            File trashed = new File(trashDirectory, file.getName() + "-" + mTrashCounter.incrementAndGet());
+            if ((trashDirectory.isDirectory() || trashDirectory.mkdir()) && file.renameTo(trashed)) {
+                target = trashed;
+                moved = true;
+            } else {
+                DownloadLog.e("[IoExecutor] Can't move " + file + " to trash, deleting in place");
+            }
+        }
+        enqueueTrash(target, null);
+        return moved;
+    }
+
+    /*
+     * Runs on trash thread once everything passed to deleteLater so far is deleted
+     */
+    public void runAfterTrashEmptied(Runnable runnable) {
+        enqueueTrash(null, runnable);
+    }
+
+    /*
+     * Deletes leftovers of trash in given directory, e.g. when process died before the batch ran
+     */
+    public void emptyTrash(File directory) {
+        File trashDirectory = new File(directory, TRASH_DIRECTORY_NAME);
+        if (trashDirectory.exists()) {
+            enqueueTrash(trashDirectory, null);
+        }
+    }
+
+    private synchronized void enqueueTrash(File file, Runnable afterDeleted) {
+        if (file != null) {
+            mPendingTrash.add(file);
+        }
+        if (afterDeleted != null) {
+            mAfterTrashEmptied.add(afterDeleted);
+        }
+        if (mTrashScheduled) {
+            return; // joins the batch which is already scheduled
+        }
+        mTrashScheduled = true;
+        mTrashExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                emptyPendingTrash();
+            }
+        }, mTrashDelayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void emptyPendingTrash() {
+        ArrayList<File> files;
+        ArrayList<Runnable> afterDeleted;
+        synchronized (this) {
+            // taken before deleting, so files trashed meanwhile schedule another batch
+            files = mPendingTrash;
+            afterDeleted = mAfterTrashEmptied;
+            mPendingTrash = new ArrayList<>();
+            mAfterTrashEmptied = new ArrayList<>();
+            mTrashScheduled = false;
+        }
+        long startTime = System.currentTimeMillis();
+        for (File file : files) {
+            if (!FileUtils.deleteRecursive(file)) {
+                DownloadLog.e("[IoExecutor] Can't delete " + file);
+            }
+        }
+        DownloadLog.d("[IoExecutor] Emptied trash of " + files.size() + " files in " +
+                (System.currentTimeMillis() - startTime) + " ms");
+        for (Runnable runnable : afterDeleted) {
+            try {
+                runnable.run();
+            } catch (RuntimeException e) {
+                DownloadLog.e("[IoExecutor] Error after trash was emptied: " + e.toString());
+            }
+        }
+    }
+}
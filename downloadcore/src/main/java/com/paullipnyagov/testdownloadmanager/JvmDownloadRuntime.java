@@ -0,0 +1,196 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs {@link PresetDownloadEngine} on a plain JVM, e.g. a desktop tool or a server warming a CDN.
+ * Engine lives on one event loop thread of this runtime, so it must be called through {@link #execute}.
+ * Every transfer gets a virtual thread on a JVM which has them (21+), blocking reads then cost no
+ * platform thread and thousands of presets can download at once. Older JVMs get a pool of daemon threads.
+ */
+public class JvmDownloadRuntime implements PresetDownloadEngine.EventLoop {
+
+    private static final String TEMP_DIRECTORY_NAME = "temp";
+    private static final String DOWNLOAD_DIRECTORY_NAME = "presets";
+    private static final String INSTALLED_PRESET_INDEX_FILE_NAME = "installed_presets.idx";
+    private static final String BLOB_STORE_DIRECTORY_NAME = ".blobs";
+
+    private final ScheduledExecutorService mEventLoop =
+            Executors.newSingleThreadScheduledExecutor(newThreadFactory("PresetEngine"));
+    private final ExecutorService mTransferExecutor;
+    // runnables of executeDelayed which have not run yet, guarded by itself
+    private final HashMap<Runnable, ArrayList<ScheduledFuture<?>>> mDelayed = new HashMap<>();
+
+    public JvmDownloadRuntime() {
+        ExecutorService virtualThreads = newVirtualThreadExecutor();
+        if (virtualThreads != null) {
+            mTransferExecutor = virtualThreads;
+            // segments of big presets block on reads too, another virtual thread each
+            SegmentedFileDownloader.setSegmentExecutor(newVirtualThreadExecutor());
+        } else {
+            mTransferExecutor = Executors.newCachedThreadPool(newThreadFactory("PresetTransfer"));
+        }
+        DownloadLog.d("[JvmDownloadRuntime] Transfers run on " + (virtualThreads != null ? "virtual" : "pooled") +
+                " threads");
+    }
+
+    /*
+     * Returns executor which starts a virtual thread per task or null if JVM has none. Looked up by
+     * reflection, the module is compiled for Java 7 so that the Android app can use it
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Engine which keeps partial downloads, installed presets and their index under root directory
+     */
+    public PresetDownloadEngine newEngine(File root) {
+        return new PresetDownloadEngine(newStorage(root), this, mTransferExecutor);
+    }
+
+    public static PresetDownloadEngine.Storage newStorage(final File root) {
+        return new PresetDownloadEngine.Storage() {
+            private InstalledPresetIndex mInstalledPresetIndex;
+            private BlobStore mBlobStore;
+
+            @Override
+            public File getTempDirectory() {
+                return getDirectory(TEMP_DIRECTORY_NAME);
+            }
+
+            @Override
+            public File getDownloadDirectory() {
+                return getDirectory(DOWNLOAD_DIRECTORY_NAME);
+            }
+
+            @Override
+            public synchronized InstalledPresetIndex getInstalledPresetIndex() {
+                File downloadDirectory = getDownloadDirectory();
+                if (downloadDirectory == null) {
+                    return null;
+                }
+                if (mInstalledPresetIndex == null) {
+                    mInstalledPresetIndex = new InstalledPresetIndex(downloadDirectory,
+                            new File(root, INSTALLED_PRESET_INDEX_FILE_NAME));
+                }
+                return mInstalledPresetIndex;
+            }
+
+            @Override
+            public synchronized BlobStore getBlobStore() {
+                File downloadDirectory = getDownloadDirectory();
+                if (downloadDirectory == null || !NioLinkSupport.isAvailable()) {
+                    return null;
+                }
+                if (mBlobStore == null) {
+                    mBlobStore = new BlobStore(new File(downloadDirectory, BLOB_STORE_DIRECTORY_NAME),
+                            new NioLinkSupport(), BlobStore.DEFAULT_MIN_BLOB_SIZE);
+                }
+                return mBlobStore;
+            }
+
+            @Override
+            public BlobStore.LinkSupport getLinkSupport() {
+                return NioLinkSupport.isAvailable() ? new NioLinkSupport() : null;
+            }
+
+            private File getDirectory(String name) {
+                File directory = new File(root, name);
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    DownloadLog.e("[JvmDownloadRuntime] Can't create directory " + directory);
+                    return null;
+                }
+                return directory;
+            }
+        };
+    }
+
+    @Override
+    public void execute(Runnable runnable) {
+        mEventLoop.execute(runnable);
+    }
+
+    @Override
+    public void executeDelayed(final Runnable runnable, long delayMs) {
+        synchronized (mDelayed) {
+            final ArrayList<ScheduledFuture<?>> futures = getDelayedFutures(runnable);
+            final ScheduledFuture<?>[] future = new ScheduledFuture<?>[1];
+            future[0] = mEventLoop.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mDelayed) {
+                        futures.remove(future[0]);
+                        if (futures.isEmpty()) {
+                            mDelayed.remove(runnable);
+                        }
+                    }
+                    runnable.run();
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+            futures.add(future[0]);
+        }
+    }
+
+    // like Handler, a runnable posted several times has several pending runs
+    private ArrayList<ScheduledFuture<?>> getDelayedFutures(Runnable runnable) {
+        ArrayList<ScheduledFuture<?>> futures = mDelayed.get(runnable);
+        if (futures == null) {
+            futures = new ArrayList<>();
+            mDelayed.put(runnable, futures);
+        }
+        return futures;
+    }
+
+    @Override
+    public void cancel(Runnable runnable) {
+        synchronized (mDelayed) {
+            ArrayList<ScheduledFuture<?>> futures = mDelayed.remove(runnable);
+            if (futures != null) {
+                for (ScheduledFuture<?> future : futures) {
+                    future.cancel(false);
+                }
+            }
+        }
+    }
+
+    @Override
+    public long elapsedRealtime() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /*
+     * Stops event loop and interrupts running transfers. Engines should be recycled before
+     */
+    public void shutdown() {
+        mEventLoop.shutdownNow();
+        mTransferExecutor.shutdownNow();
+    }
+
+    private static ThreadFactory newThreadFactory(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,175 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Marker files of presets installed by older builds: insurance file written to ensure preset was
+ * downloaded successfully and version file. Presets are installed with {@link PresetManifest} as the
+ * only marker now, these files are read for presets of older builds and replaced by manifest on
+ * first look, see {@link #migrate}.
+ */
+public class LegacyMarkerFiles {
+
+    /*
+    * EXT versions are used in newer app builds because writing file without
+    * extensions may have called problems with some users downloading presets.
+    */
+    private static final String LDP_INSURANCE_FILE_NAME = "preset_downloaded";
+    private static final String LDP_INSURANCE_FILE_NAME_EXT = "preset_downloaded.dp";
+    private static final String LDP_VERSION_FILE_NAME = "version";
+    private static final String LDP_VERSION_FILE_NAME_EXT = "version.dp";
+
+    public static boolean writeInsuranceFile(File dir) throws IOException {
+        File insurance = new File(dir, LDP_INSURANCE_FILE_NAME_EXT);
+        return insurance.createNewFile();
+    }
+
+    public static boolean deleteInsuranceFile(File dir) {
+        boolean hasDeletedOld;
+        boolean hasDeletedExt;
+        File insurance = new File(dir, LDP_INSURANCE_FILE_NAME);
+        if (insurance.exists()) {
+            hasDeletedOld = insurance.delete();
+        } else {
+            hasDeletedOld = true;
+        }
+        File insuranceExt = new File(dir, LDP_INSURANCE_FILE_NAME_EXT);
+        if (insuranceExt.exists()) {
+            hasDeletedExt = insuranceExt.delete();
+        } else {
+            hasDeletedExt = true;
+        }
+        return hasDeletedExt && hasDeletedOld;
+    }
+
+    public static boolean checkInsuranceExists(File dir) {
+        if (PresetManifest.readHeader(dir) != null) {
+            return true;
+        }
+        File insurance = new File(dir, LDP_INSURANCE_FILE_NAME);
+        if (insurance.exists()) {
+            // found old, no-extension version of insurance file
+            return true;
+        }
+        File insuranceExt = new File(dir, LDP_INSURANCE_FILE_NAME_EXT);
+        if (insuranceExt.exists()) {
+            // found new version of file with extension
+            return true;
+        }
+        return false;
+    }
+
+    // returns error message to be shown in toast on null if no error
+    public static String writeVersionFile(File dir, String presetVersion) throws IOException {
+        BufferedWriter writer = null;
+        try {
+            File versionFile = new File(dir, LDP_VERSION_FILE_NAME_EXT);
+            if (versionFile.exists()) {
+                return "Error creating version file: file already exists!!!";
+            }
+            if (!versionFile.createNewFile()) {
+                return "Error creating version file: createNewFile returned false! Free space: " +
+                        versionFile.getFreeSpace();
+            }
+            writer = new BufferedWriter(new FileWriter(versionFile));
+            // additional checks for analytics
+            if (!versionFile.exists()) {
+                return "Error while writing version file: file was not created. Free space: " +
+                        versionFile.getFreeSpace();
+            }
+            if (versionFile.isDirectory()) {
+                return "Error while writing version file: directory was created instead of file!";
+            }
+            writer.write(presetVersion);
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+        return null;
+    }
+
+    public static String readVersionFile(File dir) throws IOException {
+        PresetManifest.Header header = PresetManifest.readHeader(dir);
+        if (header != null) {
+            return header.version;
+        }
+        BufferedReader reader = null;
+        File versionFile = new File(dir, LDP_VERSION_FILE_NAME);
+        File versionFileExt = new File(dir, LDP_VERSION_FILE_NAME_EXT);
+
+        File workingFile = null;
+
+        if (versionFile.exists()) {
+            workingFile = versionFile;
+        }
+        if (versionFileExt.exists()) {
+            // should read newer ext version if it exists
+            workingFile = versionFileExt;
+        }
+
+        if (workingFile == null) {
+            // version file is absent
+            return null;
+        }
+
+        try {
+            reader = new BufferedReader(new FileReader(workingFile));
+            return reader.readLine();
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+
+    /*
+     * Turns insurance and version files of preset installed by older build into manifest and deletes them.
+     * Returns header of the new manifest, null if there is no insurance file and preset is incomplete
+     */
+    public static PresetManifest.Header migrate(File dir) {
+        if (!checkInsuranceExists(dir)) {
+            return null;
+        }
+        // manifest of older format keeps crcs, so preset can still be updated incrementally
+        PresetManifest manifest = PresetManifest.load(dir);
+        if (manifest == null) {
+            manifest = new PresetManifest();
+        }
+        try {
+            manifest.setVersion(readVersionFile(dir));
+            manifest.setSizeBytes(InstalledPresetIndex.getDirectorySize(dir));
+            manifest.save(dir);
+        } catch (IOException e) {
+            DownloadLog.e("[LegacyMarkerFiles] Can't migrate marker files of " + dir + ": " + e.toString());
+            return null;
+        }
+        deleteVersionFile(dir);
+        deleteInsuranceFile(dir);
+        return PresetManifest.readHeader(dir);
+    }
+
+    public static boolean deleteVersionFile(File dir) {
+        boolean hasDeletedOld;
+        boolean hasDeletedExt;
+        File presetVersionFile = new File(dir, LDP_VERSION_FILE_NAME);
+        File presetVersionFileExt = new File(dir, LDP_VERSION_FILE_NAME_EXT);
+        if (presetVersionFile.exists()) {
+            hasDeletedOld = presetVersionFile.delete();
+        } else {
+            hasDeletedOld = true;
+        }
+        if (presetVersionFileExt.exists()) {
+            hasDeletedExt = presetVersionFileExt.delete();
+        } else {
+            hasDeletedExt = true;
+        }
+
+        return hasDeletedExt && hasDeletedOld;
+    }
+}
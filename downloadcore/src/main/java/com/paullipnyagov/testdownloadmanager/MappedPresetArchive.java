@@ -0,0 +1,298 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Preset zip read in place through a memory mapping, so samples are served without extracting them.
+ * Entries come from the central directory, read once on open. STORED entries, which is most samples,
+ * are returned as read-only slices of the mapping and cost no copy, pages are loaded by the OS on
+ * first access. DEFLATED entries are inflated on demand. Safe for concurrent readers.
+ */
+public class MappedPresetArchive implements Closeable {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int VERIFY_BUFFER_SIZE = 64 * 1024;
+
+    private final File mFile;
+    // read-only, never repositioned, readers work on duplicates
+    private volatile MappedByteBuffer mBuffer;
+    // entry name -> entry in central directory order, directories are skipped
+    private final LinkedHashMap<String, ZipEntryInfo> mEntries = new LinkedHashMap<>();
+
+    private MappedPresetArchive(File file, MappedByteBuffer buffer, ZipArchiveInfo archiveInfo) {
+        mFile = file;
+        mBuffer = buffer;
+        for (ZipEntryInfo entry : archiveInfo.getEntries()) {
+            if (!entry.isDirectory()) {
+                mEntries.put(entry.getName(), entry);
+            }
+        }
+    }
+
+    /*
+     * Reads central directory and maps the whole zip. A mapping is limited to 2 GB, bigger archives
+     * must be extracted
+     */
+    public static MappedPresetArchive open(File zipFile) throws IOException {
+        ZipArchiveInfo archiveInfo = ZipMetadataReader.read(zipFile);
+        RandomAccessFile file = new RandomAccessFile(zipFile, "r");
+        try {
+            long length = file.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new ZipException("Archive is too big to be mapped: " + length + " bytes");
+            }
+            // mapping stays valid after the file is closed
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            MappedPresetArchive archive = new MappedPresetArchive(zipFile, buffer, archiveInfo);
+            for (ZipEntryInfo entry : archive.mEntries.values()) {
+                // checks local headers and bounds now instead of on first playback
+                archive.getDataOffset(buffer, entry);
+            }
+            return archive;
+        } finally {
+            FileUtils.tryCloseStream(file);
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    // names of samples with paths inside preset, in archive order
+    public List<String> getNames() {
+        return Collections.unmodifiableList(new ArrayList<>(mEntries.keySet()));
+    }
+
+    public ZipEntryInfo getEntry(String name) {
+        return mEntries.get(name);
+    }
+
+    /*
+     * Whole sample. STORED one is a zero-copy read-only slice of the mapping, DEFLATED one is inflated
+     * into a new heap buffer and checked against its crc
+     */
+    public ByteBuffer read(String name) throws IOException {
+        ZipEntryInfo entry = getExistingEntry(name);
+        ByteBuffer data = getCompressedData(entry);
+        if (entry.getMethod() == ZipEntryInfo.METHOD_STORED) {
+            return data;
+        }
+        if (entry.getUncompressedSize() > Integer.MAX_VALUE) {
+            throw new ZipException("Entry is too big to be read at once: " + name);
+        }
+        byte[] compressed = new byte[data.remaining()];
+        data.get(compressed);
+        byte[] uncompressed = new byte[(int) entry.getUncompressedSize()];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            int length = 0;
+            while (length < uncompressed.length) {
+                int count = inflater.inflate(uncompressed, length, uncompressed.length - length);
+                if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += count;
+            }
+            if (length != uncompressed.length) {
+                throw new ZipException("Entry " + name + " is truncated");
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Entry " + name + " is corrupt: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(uncompressed);
+        if (crc.getValue() != entry.getCrc()) {
+            throw new ZipException("Crc mismatch of entry " + name);
+        }
+        return ByteBuffer.wrap(uncompressed).asReadOnlyBuffer();
+    }
+
+    /*
+     * Sample as a stream, DEFLATED one is inflated while it is read instead of at once
+     */
+    public InputStream open(String name) throws IOException {
+        ZipEntryInfo entry = getExistingEntry(name);
+        InputStream data = new ByteBufferInputStream(getCompressedData(entry));
+        if (entry.getMethod() == ZipEntryInfo.METHOD_DEFLATED) {
+            final Inflater inflater = new Inflater(true);
+            return new InflaterInputStream(data, inflater) {
+                @Override
+                public void close() throws IOException {
+                    // stream doesn't end inflaters it was given
+                    super.close();
+                    inflater.end();
+                }
+            };
+        }
+        return data;
+    }
+
+    /*
+     * Checks crc of every entry, which reads of STORED entries skip. Entries go in file order, so it is one
+     * sequential pass over the archive. Done once at install, before archive replaces installed version.
+     * Progress is in uncompressed bytes. Returns false if cancelled
+     */
+    public boolean verify(CancelSignal cancelSignal, ByteProgressListener progressListener) throws IOException {
+        List<ZipEntryInfo> entries = new ArrayList<>(mEntries.values());
+        Collections.sort(entries, new Comparator<ZipEntryInfo>() {
+            @Override
+            public int compare(ZipEntryInfo first, ZipEntryInfo second) {
+                long firstOffset = first.getLocalHeaderOffset();
+                long secondOffset = second.getLocalHeaderOffset();
+                return firstOffset < secondOffset ? -1 : (firstOffset == secondOffset ? 0 : 1);
+            }
+        });
+        byte[] buffer = new byte[VERIFY_BUFFER_SIZE];
+        CRC32 crc = new CRC32();
+        for (ZipEntryInfo entry : entries) {
+            InputStream input = open(entry.getName());
+            long size = 0;
+            crc.reset();
+            try {
+                int count;
+                while ((count = input.read(buffer)) != -1) {
+                    if (cancelSignal.isCancelled()) {
+                        return false;
+                    }
+                    crc.update(buffer, 0, count);
+                    size += count;
+                    progressListener.onBytesProcessed(count);
+                }
+            } catch (ZipException e) {
+                throw e;
+            } catch (IOException e) {
+                // e.g. deflated data which ends early, it is the archive and not the disk
+                throw new ZipException("Entry " + entry.getName() + " is corrupt: " + e.toString());
+            } finally {
+                FileUtils.tryCloseStream(input);
+            }
+            if (size != entry.getUncompressedSize() || crc.getValue() != entry.getCrc()) {
+                throw new ZipException("Crc mismatch of entry " + entry.getName());
+            }
+        }
+        return true;
+    }
+
+    // sum of sizes of all entries as they are read, total of verify progress
+    public long getTotalUncompressedSize() {
+        long size = 0;
+        for (ZipEntryInfo entry : mEntries.values()) {
+            size += entry.getUncompressedSize();
+        }
+        return size;
+    }
+
+    /*
+     * Mapping can't be released explicitly before Java 9, it goes away when the last slice handed out
+     * is garbage collected. Reads after close fail
+     */
+    @Override
+    public void close() {
+        mBuffer = null;
+    }
+
+    private ZipEntryInfo getExistingEntry(String name) throws IOException {
+        ZipEntryInfo entry = mEntries.get(name);
+        if (entry == null) {
+            throw new FileNotFoundException("No entry " + name + " in " + mFile);
+        }
+        if (entry.getMethod() != ZipEntryInfo.METHOD_STORED && entry.getMethod() != ZipEntryInfo.METHOD_DEFLATED) {
+            throw new ZipException("Unsupported compression method " + entry.getMethod() + " of " + name);
+        }
+        return entry;
+    }
+
+    // read-only slice with compressed bytes of entry
+    private ByteBuffer getCompressedData(ZipEntryInfo entry) throws IOException {
+        MappedByteBuffer buffer = mBuffer;
+        if (buffer == null) {
+            throw new IOException("Archive is closed: " + mFile);
+        }
+        int offset = getDataOffset(buffer, entry);
+        ByteBuffer data = buffer.asReadOnlyBuffer();
+        data.position(offset);
+        data.limit(offset + (int) entry.getCompressedSize());
+        return data.slice();
+    }
+
+    // local extra field may differ from the one in central directory, so data offset is read from local header
+    private int getDataOffset(MappedByteBuffer buffer, ZipEntryInfo entry) throws ZipException {
+        long headerOffset = entry.getLocalHeaderOffset();
+        if (headerOffset < 0 || headerOffset + LOCAL_HEADER_SIZE > buffer.capacity()) {
+            throw new ZipException("Bad local header offset of entry " + entry.getName());
+        }
+        byte[] header = new byte[LOCAL_HEADER_SIZE];
+        ByteBuffer headerBuffer = buffer.duplicate();
+        headerBuffer.position((int) headerOffset);
+        headerBuffer.get(header);
+        if (ZipMetadataReader.readInt(header, 0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Bad local header of entry " + entry.getName());
+        }
+        long dataOffset = headerOffset + LOCAL_HEADER_SIZE + ZipMetadataReader.readUShort(header, 26) +
+                ZipMetadataReader.readUShort(header, 28);
+        if (dataOffset + entry.getCompressedSize() > buffer.capacity()) {
+            throw new ZipException("Entry " + entry.getName() + " is outside of archive");
+        }
+        return (int) dataOffset;
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, mBuffer.remaining());
+            mBuffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long count) {
+            int skipped = (int) Math.max(0, Math.min(count, mBuffer.remaining()));
+            mBuffer.position(mBuffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of non-negative values in power of two buckets: bucket 0 holds 0, bucket i holds
+ * values from 2^(i-1) to 2^i - 1. Recording is a few atomic increments with no locks and no
+ * allocations, so it may be called from download threads. Percentiles are upper bounds of buckets,
+ * precise within a factor of two, which is enough to tell a slow stage from a normal one.
+ */
+public class MetricHistogram {
+
+    public static final int BUCKET_COUNT = 64;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    // negative values are ignored, they mean "not measured"
+    public void record(long value) {
+        if (value < 0) {
+            return;
+        }
+        mBuckets.incrementAndGet(getBucket(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    public static int getBucket(long value) {
+        return 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    // largest value which falls into bucket
+    public static long getBucketUpperBound(int bucket) {
+        return bucket == 0 ? 0 : bucket == 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getSum() {
+        return mSum.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public long getMean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSum.get() / count;
+    }
+
+    /*
+     * Value which given fraction (0 - 1) of recorded values doesn't exceed, 0 if nothing is recorded
+     */
+    public long getPercentile(double fraction) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank) {
+                return Math.min(getBucketUpperBound(i), mMax.get());
+            }
+        }
+        return mMax.get(); // values recorded while buckets were read
+    }
+
+    // copy of bucket counts, for export
+    public long[] getBucketCounts() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mBuckets.get(i);
+        }
+        return counts;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+}
@@ -0,0 +1,27 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+
+/**
+ * Hard links through java.nio.file, for the JVM. Link count needs the unix attribute view,
+ * so the store is not used on other file systems.
+ */
+public class NioLinkSupport implements BlobStore.LinkSupport {
+
+    public static boolean isAvailable() {
+        return FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+    }
+
+    @Override
+    public void link(File existing, File link) throws IOException {
+        Files.createLink(link.toPath(), existing.toPath());
+    }
+
+    @Override
+    public long getLinkCount(File file) throws IOException {
+        return ((Number) Files.getAttribute(file.toPath(), "unix:nlink")).longValue();
+    }
+}
@@ -0,0 +1,223 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Extracts a downloaded zip using random access to its entries, inflating independent entries on
+ * all cores. Directories are created once up front, so workers only open and write files.
+ * CRC32 of every entry is computed while it is written and checked against central directory.
+ */
+public class ParallelZipExtractor {
+
+    // shared by all presets being unzipped at the same time, so total inflating threads stay bounded
+    private static final ExecutorService EXTRACT_EXECUTOR = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "PresetUnzip-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private volatile boolean mFailed = false;
+    private BlobStore mBlobStore = null;
+    private final AtomicLong mLinkedEntries = new AtomicLong();
+    private final AtomicLong mLinkedBytes = new AtomicLong();
+
+    /*
+     * Entries which are already in store are linked instead of extracted, extracted ones are added to it
+     */
+    public void setBlobStore(BlobStore blobStore) {
+        mBlobStore = blobStore;
+    }
+
+    /*
+     * Extracts all entries listed in archiveInfo from zipFile to targetDirectory.
+     * Returns false if cancelled, throws on first failed entry. Progress is in uncompressed bytes
+     */
+    public boolean extract(File zipFile, ZipArchiveInfo archiveInfo, File targetDirectory,
+                           final CancelSignal cancelSignal, final ByteProgressListener progressListener)
+            throws IOException {
+        // validate all names and create every directory once before any data is written
+        List<ZipEntryInfo> files = new ArrayList<>();
+        HashSet<File> directories = new HashSet<>();
+        directories.add(targetDirectory);
+        for (ZipEntryInfo entry : archiveInfo.getEntries()) {
+            File file = ZipUtils.resolveEntryFile(targetDirectory, entry.getName());
+            if (entry.isDirectory()) {
+                directories.add(file);
+            } else {
+                directories.add(file.getParentFile());
+                files.add(entry);
+            }
+        }
+        for (File directory : directories) {
+            // mkdirs fails for existing directory too, stat only in that case
+            if (!directory.mkdirs() && !directory.isDirectory()) {
+                throw new IOException("Can't create directory " + directory);
+            }
+        }
+
+        // biggest entries first, so one large sample doesn't end up alone on the last worker
+        Collections.sort(files, new Comparator<ZipEntryInfo>() {
+            @Override
+            public int compare(ZipEntryInfo left, ZipEntryInfo right) {
+                long difference = right.getUncompressedSize() - left.getUncompressedSize();
+                return difference > 0 ? 1 : (difference < 0 ? -1 : 0);
+            }
+        });
+
+        final ZipFile zip = new ZipFile(zipFile);
+        final File target = targetDirectory;
+        final BlobStore blobStore = mBlobStore;
+        try {
+            ArrayList<Future<Void>> tasks = new ArrayList<>(files.size());
+            for (final ZipEntryInfo entry : files) {
+                tasks.add(EXTRACT_EXECUTOR.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        if (cancelSignal.isCancelled() || mFailed) {
+                            return null;
+                        }
+                        File file = new File(target, entry.getName());
+                        boolean shareable = blobStore != null && blobStore.isShareable(entry);
+                        if (shareable) {
+                            // existing file may be a link to a blob, it must not be truncated
+                            file.delete();
+                            if (linkExisting(zip, blobStore, entry, file)) {
+                                mLinkedEntries.incrementAndGet();
+                                mLinkedBytes.addAndGet(entry.getUncompressedSize());
+                                progressListener.onBytesProcessed(entry.getUncompressedSize());
+                                return null;
+                            }
+                        }
+                        try {
+                            extractEntry(zip, entry, file, cancelSignal, progressListener);
+                            // only verified files get into store, linked ones were verified when added
+                            if (shareable && !cancelSignal.isCancelled() && !mFailed) {
+                                blobStore.add(entry, file);
+                            }
+                        } catch (IOException e) {
+                            mFailed = true;
+                            throw e;
+                        }
+                        return null;
+                    }
+                }));
+            }
+            IOException error = null;
+            for (Future<Void> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    if (error == null) {
+                        error = e.getCause() instanceof IOException ? (IOException) e.getCause()
+                                : new IOException("Unzip of entry failed", e.getCause());
+                    }
+                } catch (InterruptedException e) {
+                    mFailed = true;
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for unzip workers");
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        } finally {
+            zip.close();
+        }
+        return !cancelSignal.isCancelled();
+    }
+
+    // entries which were linked to blob store instead of extracted
+    public long getLinkedEntries() {
+        return mLinkedEntries.get();
+    }
+
+    public long getLinkedBytes() {
+        return mLinkedBytes.get();
+    }
+
+    // entry data is inflated to be compared with the blob, only the write is saved
+    private static boolean linkExisting(ZipFile zip, BlobStore blobStore, ZipEntryInfo entry, File file)
+            throws IOException {
+        ZipEntry zipEntry = zip.getEntry(entry.getName());
+        if (zipEntry == null) {
+            return false; // extractEntry reports it
+        }
+        InputStream entryData = zip.getInputStream(zipEntry);
+        try {
+            return blobStore.linkExisting(entry, entryData, file);
+        } finally {
+            FileUtils.tryCloseStream(entryData);
+        }
+    }
+
+    private void extractEntry(ZipFile zip, ZipEntryInfo entry, File file, final CancelSignal cancelSignal,
+                              final ByteProgressListener progressListener) throws IOException {
+        ZipEntry zipEntry = zip.getEntry(entry.getName());
+        if (zipEntry == null) {
+            throw new IOException("Entry " + entry.getName() + " is missing in archive");
+        }
+        // ZipFile doesn't check crc of entries, unlike ZipInputStream
+        CheckedInputStream input = new CheckedInputStream(zip.getInputStream(zipEntry), new CRC32());
+        RandomAccessFile output = null;
+        try {
+            output = new RandomAccessFile(file, "rw");
+            output.setLength(0);
+            // size is known from central directory, so file can be allocated at once
+            ChannelIo.preallocate(output, entry.getUncompressedSize());
+            long copied = ChannelIo.copy(input, output.getChannel(), 0, -1, new AdaptiveBufferSize(),
+                    new CancelSignal() {
+                        @Override
+                        public boolean isCancelled() {
+                            return cancelSignal.isCancelled() || mFailed;
+                        }
+                    }, new ChannelIo.WriteListener() {
+                        @Override
+                        public void onBytesWritten(int count) {
+                            progressListener.onBytesProcessed(count);
+                        }
+                    });
+            if (copied != entry.getUncompressedSize() && !cancelSignal.isCancelled() && !mFailed) {
+                throw new IOException("Entry " + entry.getName() + " has " + copied + " bytes, expected " +
+                        entry.getUncompressedSize());
+            }
+            if (entry.getCrc() >= 0 && input.getChecksum().getValue() != entry.getCrc() &&
+                    !cancelSignal.isCancelled() && !mFailed) {
+                throw new ZipException("Entry " + entry.getName() + " is corrupt, crc mismatch");
+            }
+            output.close();
+            output = null;
+        } finally {
+            FileUtils.tryCloseStream(input);
+            if (output != null) {
+                FileUtils.tryCloseStream(output);
+            }
+        }
+    }
+}
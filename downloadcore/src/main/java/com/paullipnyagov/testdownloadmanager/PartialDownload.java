@@ -0,0 +1,199 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * State of a partially downloaded preset zip: the validator of the remote file and how many bytes
+ * of every segment already reached the disk. Saved next to the zip as "<zip>.state" so download
+ * can be resumed after cancel, network failure or process death.
+ */
+public class PartialDownload {
+
+    private static final String STATE_FILE_SUFFIX = ".state";
+
+    private static final String KEY_URL = "url";
+    private static final String KEY_VALIDATOR = "validator";
+    private static final String KEY_CONTENT_LENGTH = "contentLength";
+    private static final String KEY_SEGMENT_COUNT = "segments";
+    private static final String KEY_SEGMENT_PREFIX = "segment.";
+
+    private final String mUrl;
+    private final String mValidator;
+    private final long mContentLength;
+    private final long[] mSegmentStarts;
+    private final long[] mSegmentEnds;
+    // bytes of every segment which were written to the file
+    private final AtomicLongArray mSegmentWritten;
+
+    private PartialDownload(String url, String validator, long contentLength,
+                            long[] segmentStarts, long[] segmentEnds, long[] segmentWritten) {
+        mUrl = url;
+        mValidator = validator;
+        mContentLength = contentLength;
+        mSegmentStarts = segmentStarts;
+        mSegmentEnds = segmentEnds;
+        mSegmentWritten = new AtomicLongArray(segmentWritten);
+    }
+
+    /*
+     * Splits contentLength bytes into segmentCount nearly equal segments, nothing is written yet
+     */
+    public static PartialDownload create(String url, String validator, long contentLength, int segmentCount) {
+        long[] starts = new long[segmentCount];
+        long[] ends = new long[segmentCount];
+        long segmentSize = contentLength / segmentCount;
+        for (int i = 0; i < segmentCount; i++) {
+            starts[i] = i * segmentSize;
+            ends[i] = (i == segmentCount - 1) ? contentLength - 1 : starts[i] + segmentSize - 1;
+        }
+        return new PartialDownload(url, validator, contentLength, starts, ends, new long[segmentCount]);
+    }
+
+    public static File getStateFile(File dataFile) {
+        return new File(dataFile.getPath() + STATE_FILE_SUFFIX);
+    }
+
+    // returns null if there is no saved state or it can't be parsed
+    public static PartialDownload load(File dataFile) {
+        File stateFile = getStateFile(dataFile);
+        if (!stateFile.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        FileInputStream input = null;
+        try {
+            input = new FileInputStream(stateFile);
+            properties.load(input);
+            int segmentCount = Integer.parseInt(properties.getProperty(KEY_SEGMENT_COUNT));
+            long[] starts = new long[segmentCount];
+            long[] ends = new long[segmentCount];
+            long[] written = new long[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                // start-end:written
+                String[] segment = properties.getProperty(KEY_SEGMENT_PREFIX + i).split("[-:]");
+                starts[i] = Long.parseLong(segment[0]);
+                ends[i] = Long.parseLong(segment[1]);
+                written[i] = Long.parseLong(segment[2]);
+            }
+            return new PartialDownload(properties.getProperty(KEY_URL), properties.getProperty(KEY_VALIDATOR),
+                    Long.parseLong(properties.getProperty(KEY_CONTENT_LENGTH)), starts, ends, written);
+        } catch (IOException | RuntimeException e) {
+            // corrupt state is the same as no state, download will start over
+            return null;
+        } finally {
+            if (input != null) {
+                FileUtils.tryCloseStream(input);
+            }
+        }
+    }
+
+    /*
+     * Removes both zip and its state
+     */
+    public static boolean delete(File dataFile) {
+        File stateFile = getStateFile(dataFile);
+        boolean stateDeleted = !stateFile.exists() || stateFile.delete();
+        boolean dataDeleted = !dataFile.exists() || dataFile.delete();
+        return stateDeleted && dataDeleted;
+    }
+
+    /*
+     * Removes files of temp directory (partial downloads and their state) which were not modified
+     * for maxAgeMs. Lists the directory, so it is called in background
+     */
+    public static void deleteStale(File tempDirectory, long maxAgeMs) {
+        File[] tempFiles = tempDirectory.listFiles();
+        if (tempFiles == null) {
+            return;
+        }
+        long oldestAllowed = System.currentTimeMillis() - maxAgeMs;
+        for (File tempFile : tempFiles) {
+            if (tempFile.getName().equals(IoExecutor.TRASH_DIRECTORY_NAME)) {
+                continue;
+            }
+            if (tempFile.lastModified() < oldestAllowed && !tempFile.delete()) {
+                DownloadLog.e("[PartialDownload] Error removing stale file " + tempFile.getName());
+            }
+        }
+    }
+
+    /*
+     * Saved state can only be resumed for the same url and the same remote file.
+     * Without a validator there is no way to tell that remote file wasn't replaced
+     */
+    public boolean canResume(String url, String validator, long contentLength, File dataFile) {
+        return mValidator != null && mValidator.equals(validator) && mUrl != null && mUrl.equals(url) &&
+                mContentLength == contentLength && dataFile.length() == contentLength;
+    }
+
+    // written to temp file and renamed so state is never half-written if process dies
+    public synchronized void save(File dataFile) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(KEY_URL, mUrl);
+        if (mValidator != null) {
+            properties.setProperty(KEY_VALIDATOR, mValidator);
+        }
+        properties.setProperty(KEY_CONTENT_LENGTH, Long.toString(mContentLength));
+        properties.setProperty(KEY_SEGMENT_COUNT, Integer.toString(getSegmentCount()));
+        for (int i = 0; i < getSegmentCount(); i++) {
+            properties.setProperty(KEY_SEGMENT_PREFIX + i,
+                    mSegmentStarts[i] + "-" + mSegmentEnds[i] + ":" + mSegmentWritten.get(i));
+        }
+        File stateFile = getStateFile(dataFile);
+        File tempStateFile = new File(stateFile.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(tempStateFile);
+        try {
+            properties.store(output, null);
+        } finally {
+            output.close();
+        }
+        if (!tempStateFile.renameTo(stateFile)) {
+            throw new IOException("Can't rename " + tempStateFile + " to " + stateFile);
+        }
+    }
+
+    public String getValidator() {
+        return mValidator;
+    }
+
+    public long getContentLength() {
+        return mContentLength;
+    }
+
+    public int getSegmentCount() {
+        return mSegmentStarts.length;
+    }
+
+    public long getSegmentStart(int segment) {
+        return mSegmentStarts[segment];
+    }
+
+    public long getSegmentEnd(int segment) {
+        return mSegmentEnds[segment];
+    }
+
+    public long getSegmentWritten(int segment) {
+        return mSegmentWritten.get(segment);
+    }
+
+    public void addSegmentWritten(int segment, long bytes) {
+        mSegmentWritten.addAndGet(segment, bytes);
+    }
+
+    public long getBytesWritten() {
+        long written = 0;
+        for (int i = 0; i < getSegmentCount(); i++) {
+            written += mSegmentWritten.get(i);
+        }
+        return written;
+    }
+
+    public boolean isComplete() {
+        return getBytesWritten() == mContentLength;
+    }
+}
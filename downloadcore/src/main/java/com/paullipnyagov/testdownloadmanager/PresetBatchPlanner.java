@@ -0,0 +1,173 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Plans a batch of presets before any of them starts: drops installed ones, finds sizes of the rest and
+ * reserves space for them in {@link SpaceLedger}. Sizes come from HEAD requests, several in flight at once
+ * over the shared keep-alive transport, and extracted sizes from central directories of servers which
+ * accept ranges. Runs on a background thread, it blocks on network.
+ */
+public class PresetBatchPlanner {
+
+    public static final int DEFAULT_MAX_REQUESTS_IN_FLIGHT = 6;
+    // extracted size of archive whose central directory can't be read, packs are mostly STORED WAVs
+    private static final int UNKNOWN_EXPANSION_FACTOR = 2;
+
+    /*
+     * What happens to presets of a batch. Lists keep the order presets were given in
+     */
+    public static class Plan {
+        // queued, space is reserved for them unless their size is not known
+        public final List<PresetRequest> accepted = new ArrayList<>();
+        public final List<PresetRequest> alreadyQueued = new ArrayList<>();
+        // installed in the same version
+        public final List<PresetRequest> alreadyInstalled = new ArrayList<>();
+        // don't fit into free space
+        public final List<PresetRequest> rejected = new ArrayList<>();
+        // zip and extracted bytes reserved for accepted presets
+        public long reservedBytes = 0;
+        // bytes which could be reserved before this batch, -1 if free space is not known
+        public long availableBytes = -1;
+    }
+
+    // sizes of one archive, -1 if not known
+    private static class ArchiveSize {
+        long archiveBytes = -1;
+        long extractedBytes = -1;
+    }
+
+    private final HttpTransport mTransport;
+    private final Executor mExecutor;
+    private final int mMaxRequestsInFlight;
+
+    /*
+     * Requests run on executor. Calling thread takes part too, so a busy executor only makes planning slower
+     */
+    public PresetBatchPlanner(HttpTransport transport, Executor executor, int maxRequestsInFlight) {
+        mTransport = transport;
+        mExecutor = executor;
+        mMaxRequestsInFlight = Math.max(1, maxRequestsInFlight);
+    }
+
+    /*
+     * presets must not repeat and must not be queued already, those go to plan.alreadyQueued beforehand.
+     * withArchive adds zip size to reservation, streaming extract doesn't store it. withExtractedFiles adds
+     * extracted size, no-extract install keeps only the zip
+     */
+    public Plan plan(List<PresetRequest> presets, InstalledPresetIndex installedPresetIndex, SpaceLedger ledger,
+                     File directory, boolean withArchive, boolean withExtractedFiles, boolean allOrNothing) {
+        Plan plan = new Plan();
+        List<PresetRequest> toFetch = new ArrayList<>();
+        for (PresetRequest preset : presets) {
+            InstalledPreset installed = installedPresetIndex != null ? installedPresetIndex.get(preset.getId()) : null;
+            if (installed != null && installed.isUpToDate(preset.getVersion())) {
+                plan.alreadyInstalled.add(preset);
+            } else {
+                toFetch.add(preset);
+            }
+        }
+
+        List<ArchiveSize> sizes = fetchSizes(toFetch);
+        int[] presetIds = new int[toFetch.size()];
+        long[] bytes = new long[toFetch.size()];
+        for (int i = 0; i < toFetch.size(); i++) {
+            presetIds[i] = toFetch.get(i).getId();
+            bytes[i] = getRequiredBytes(sizes.get(i), withArchive, withExtractedFiles);
+        }
+        plan.availableBytes = ledger.getAvailableBytes(directory);
+        boolean[] reserved = ledger.reserve(directory, presetIds, bytes, allOrNothing);
+        for (int i = 0; i < toFetch.size(); i++) {
+            if (reserved[i]) {
+                plan.accepted.add(toFetch.get(i));
+                plan.reservedBytes += bytes[i];
+            } else {
+                plan.rejected.add(toFetch.get(i));
+            }
+        }
+        DownloadLog.d("[PresetBatchPlanner] " + plan.accepted.size() + " presets accepted with " + plan.reservedBytes +
+                " bytes reserved of " + plan.availableBytes + ", rejected: " + plan.rejected.size() +
+                ", installed: " + plan.alreadyInstalled.size());
+        return plan;
+    }
+
+    // presets of unknown size are not held back, their download reports the real problem if there is one
+    private static long getRequiredBytes(ArchiveSize size, boolean withArchive, boolean withExtractedFiles) {
+        if (size.archiveBytes < 0) {
+            return 0;
+        }
+        if (!withExtractedFiles) {
+            return withArchive ? size.archiveBytes : 0;
+        }
+        long extractedBytes = size.extractedBytes >= 0 ? size.extractedBytes
+                : size.archiveBytes * UNKNOWN_EXPANSION_FACTOR;
+        return extractedBytes + (withArchive ? size.archiveBytes : 0);
+    }
+
+    /*
+     * Up to mMaxRequestsInFlight presets are looked up at once, results are in order of presets
+     */
+    private List<ArchiveSize> fetchSizes(final List<PresetRequest> presets) {
+        final List<ArchiveSize> sizes = new ArrayList<>(Collections.nCopies(presets.size(), (ArchiveSize) null));
+        final AtomicInteger nextIndex = new AtomicInteger();
+        final CountDownLatch remaining = new CountDownLatch(presets.size());
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int index;
+                while ((index = nextIndex.getAndIncrement()) < presets.size()) {
+                    ArchiveSize size = fetchSize(presets.get(index).getPath());
+                    synchronized (sizes) {
+                        sizes.set(index, size);
+                    }
+                    remaining.countDown();
+                }
+            }
+        };
+        for (int i = 1; i < Math.min(mMaxRequestsInFlight, presets.size()); i++) {
+            try {
+                mExecutor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                break; // calling thread does the rest
+            }
+        }
+        worker.run();
+        try {
+            remaining.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (sizes) {
+            for (int i = 0; i < sizes.size(); i++) {
+                if (sizes.get(i) == null) {
+                    sizes.set(i, new ArchiveSize()); // interrupted
+                }
+            }
+            return new ArrayList<>(sizes);
+        }
+    }
+
+    private ArchiveSize fetchSize(String url) {
+        ArchiveSize size = new ArchiveSize();
+        try {
+            SegmentedFileDownloader.RangeSupport rangeSupport =
+                    new SegmentedFileDownloader(mTransport, 1, 1).probe(url);
+            size.archiveBytes = rangeSupport.contentLength;
+            if (rangeSupport.acceptsRanges && rangeSupport.contentLength > 0) {
+                // tail and central directory, a few KB even for big archives
+                size.extractedBytes = new RemoteZipReader(mTransport, url).readArchiveInfo().getTotalUncompressedSize();
+            }
+        } catch (IOException e) {
+            DownloadLog.e("[PresetBatchPlanner] Can't get size of " + url + ": " + e.toString());
+        }
+        return size;
+    }
+}
@@ -0,0 +1,231 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Presets of filesConfig.json in catalogue order, indexed by id. Fields are kept in parallel arrays
+ * instead of an object per preset, so thousands of entries cost little memory and load fast from
+ * the binary snapshot. Immutable, a refresh builds a new catalogue and {@link #diff} tells what changed.
+ */
+public class PresetCatalogue {
+
+    private static final int SNAPSHOT_MAGIC = 0x50434154; // "PCAT"
+    private static final int SNAPSHOT_VERSION = 1;
+
+    /*
+     * Difference between two catalogues, ids in order of the newer one
+     */
+    public static class Diff {
+        public final List<Integer> addedIds = new ArrayList<>();
+        public final List<Integer> removedIds = new ArrayList<>();
+        public final List<Integer> versionChangedIds = new ArrayList<>();
+
+        public boolean isEmpty() {
+            return addedIds.isEmpty() && removedIds.isEmpty() && versionChangedIds.isEmpty();
+        }
+    }
+
+    /*
+     * Collects presets while config is parsed
+     */
+    public static class Builder {
+        private final ArrayList<Integer> mIds = new ArrayList<>();
+        private final ArrayList<String> mNames = new ArrayList<>();
+        private final ArrayList<String> mPaths = new ArrayList<>();
+        private final ArrayList<String> mVersions = new ArrayList<>();
+
+        public void add(int id, String name, String path, String version) {
+            mIds.add(id);
+            mNames.add(name);
+            mPaths.add(path);
+            mVersions.add(version);
+        }
+
+        public PresetCatalogue build(String eTag, String lastModified) {
+            int[] ids = new int[mIds.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = mIds.get(i);
+            }
+            return new PresetCatalogue(ids, mNames.toArray(new String[ids.length]),
+                    mPaths.toArray(new String[ids.length]), mVersions.toArray(new String[ids.length]),
+                    eTag, lastModified);
+        }
+    }
+
+    private final int[] mIds;
+    private final String[] mNames;
+    private final String[] mPaths;
+    private final String[] mVersions; // null where config has no version
+    // id -> position in arrays; the last one wins if config repeats an id
+    private final HashMap<Integer, Integer> mPositions;
+    // validators of the response catalogue was parsed from, for conditional refresh. Null if unknown
+    private final String mETag;
+    private final String mLastModified;
+
+    private PresetCatalogue(int[] ids, String[] names, String[] paths, String[] versions, String eTag,
+                            String lastModified) {
+        mIds = ids;
+        mNames = names;
+        mPaths = paths;
+        mVersions = versions;
+        mETag = eTag;
+        mLastModified = lastModified;
+        mPositions = new HashMap<>(ids.length * 2);
+        for (int i = 0; i < ids.length; i++) {
+            mPositions.put(ids[i], i);
+        }
+    }
+
+    public static PresetCatalogue empty() {
+        return new Builder().build(null, null);
+    }
+
+    public int size() {
+        return mIds.length;
+    }
+
+    public boolean contains(int presetId) {
+        return mPositions.containsKey(presetId);
+    }
+
+    // position in catalogue order, -1 if there is no such preset
+    public int indexOf(int presetId) {
+        Integer position = mPositions.get(presetId);
+        return position == null ? -1 : position;
+    }
+
+    public int getId(int index) {
+        return mIds[index];
+    }
+
+    public String getName(int index) {
+        return mNames[index];
+    }
+
+    public String getPath(int index) {
+        return mPaths[index];
+    }
+
+    public String getVersion(int index) {
+        return mVersions[index];
+    }
+
+    // copy of ids in catalogue order
+    public int[] getIds() {
+        return mIds.clone();
+    }
+
+    public String getETag() {
+        return mETag;
+    }
+
+    public String getLastModified() {
+        return mLastModified;
+    }
+
+    /*
+     * What has to be done to turn this catalogue into the newer one. Linear in size of both
+     */
+    public Diff diff(PresetCatalogue newer) {
+        Diff diff = new Diff();
+        for (int i = 0; i < newer.mIds.length; i++) {
+            Integer position = mPositions.get(newer.mIds[i]);
+            if (position == null) {
+                diff.addedIds.add(newer.mIds[i]);
+            } else if (!equal(mVersions[position], newer.mVersions[i])) {
+                diff.versionChangedIds.add(newer.mIds[i]);
+            }
+        }
+        for (int id : mIds) {
+            if (!newer.mPositions.containsKey(id)) {
+                diff.removedIds.add(id);
+            }
+        }
+        return diff;
+    }
+
+    private static boolean equal(String left, String right) {
+        return left == null ? right == null : left.equals(right);
+    }
+
+    /*
+     * Written to temp file and renamed, so snapshot is either old or new but never partial
+     */
+    public void writeSnapshot(File file) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            output.writeInt(SNAPSHOT_MAGIC);
+            output.writeInt(SNAPSHOT_VERSION);
+            writeNullableString(output, mETag);
+            writeNullableString(output, mLastModified);
+            output.writeInt(mIds.length);
+            for (int i = 0; i < mIds.length; i++) {
+                output.writeInt(mIds[i]);
+                writeNullableString(output, mNames[i]);
+                writeNullableString(output, mPaths[i]);
+                writeNullableString(output, mVersions[i]);
+            }
+        } finally {
+            output.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Can't rename " + tempFile + " to " + file);
+        }
+    }
+
+    // returns null if there is no snapshot or it is unreadable
+    public static PresetCatalogue readSnapshot(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (input.readInt() != SNAPSHOT_MAGIC || input.readInt() != SNAPSHOT_VERSION) {
+                return null;
+            }
+            String eTag = readNullableString(input);
+            String lastModified = readNullableString(input);
+            int count = input.readInt();
+            int[] ids = new int[count];
+            String[] names = new String[count];
+            String[] paths = new String[count];
+            String[] versions = new String[count];
+            for (int i = 0; i < count; i++) {
+                ids[i] = input.readInt();
+                names[i] = readNullableString(input);
+                paths[i] = readNullableString(input);
+                versions[i] = readNullableString(input);
+            }
+            return new PresetCatalogue(ids, names, paths, versions, eTag, lastModified);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        } finally {
+            if (input != null) {
+                FileUtils.tryCloseStream(input);
+            }
+        }
+    }
+
+    private static void writeNullableString(DataOutputStream output, String value) throws IOException {
+        output.writeBoolean(value != null);
+        if (value != null) {
+            output.writeUTF(value);
+        }
+    }
+
+    private static String readNullableString(DataInputStream input) throws IOException {
+        return input.readBoolean() ? input.readUTF() : null;
+    }
+}
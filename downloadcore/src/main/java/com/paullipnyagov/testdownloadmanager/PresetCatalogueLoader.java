@@ -0,0 +1,95 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * Keeps the preset catalogue: cold start reads the binary snapshot of the last catalogue, refresh
+ * asks server with conditional GET and parses response only if config changed. Callers get a diff
+ * of added, removed and version-changed presets instead of reloading everything.
+ * Refresh does network and disk IO, so it must be called in background. Thread safe.
+ */
+public class PresetCatalogueLoader {
+
+    private final HttpTransport mTransport;
+    private final String mUrl;
+    private final File mSnapshotFile;
+
+    private volatile PresetCatalogue mCatalogue = null;
+
+    public PresetCatalogueLoader(HttpTransport transport, String url, File snapshotFile) {
+        mTransport = transport;
+        mUrl = url;
+        mSnapshotFile = snapshotFile;
+    }
+
+    /*
+     * Catalogue from memory or snapshot, empty one if there was never a successful refresh
+     */
+    public PresetCatalogue getCatalogue() {
+        PresetCatalogue catalogue = mCatalogue;
+        if (catalogue == null) {
+            synchronized (this) {
+                catalogue = mCatalogue;
+                if (catalogue == null) {
+                    long startTime = System.currentTimeMillis();
+                    catalogue = PresetCatalogue.readSnapshot(mSnapshotFile);
+                    if (catalogue == null) {
+                        catalogue = PresetCatalogue.empty();
+                    } else {
+                        DownloadLog.d("[PresetCatalogueLoader] Read " + catalogue.size() +
+                                " presets from snapshot in " + (System.currentTimeMillis() - startTime) + " ms");
+                    }
+                    mCatalogue = catalogue;
+                }
+            }
+        }
+        return catalogue;
+    }
+
+    /*
+     * Downloads config if it changed since the catalogue we have. Returns what changed, empty diff
+     * if server answered 304 Not Modified
+     */
+    public synchronized PresetCatalogue.Diff refresh() throws IOException {
+        PresetCatalogue current = getCatalogue();
+        HttpRequest request = new HttpRequest(mUrl);
+        // validators are only sent with a catalogue that has data, empty one must be downloaded anyway
+        if (current.size() > 0) {
+            if (current.getETag() != null) {
+                request.setHeader("If-None-Match", current.getETag());
+            }
+            if (current.getLastModified() != null) {
+                request.setHeader("If-Modified-Since", current.getLastModified());
+            }
+        }
+        HttpResponse response = mTransport.execute(request);
+        PresetCatalogue newer;
+        try {
+            if (response.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return new PresetCatalogue.Diff();
+            }
+            if (response.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected response code " + response.getResponseCode());
+            }
+            newer = CatalogueJsonReader.read(response.getBody(), response.getHeader("ETag"),
+                    response.getHeader("Last-Modified"));
+        } finally {
+            response.close();
+        }
+        PresetCatalogue.Diff diff = current.diff(newer);
+        mCatalogue = newer;
+        try {
+            newer.writeSnapshot(mSnapshotFile);
+        } catch (IOException e) {
+            // next cold start downloads the whole config, nothing else is lost
+            DownloadLog.e("[PresetCatalogueLoader] Can't write catalogue snapshot: " + e.toString());
+            mSnapshotFile.delete();
+        }
+        DownloadLog.d("[PresetCatalogueLoader] Catalogue has " + newer.size() + " presets, added " +
+                diff.addedIds.size() + ", removed " + diff.removedIds.size() + ", new versions " +
+                diff.versionChangedIds.size());
+        return diff;
+    }
+}
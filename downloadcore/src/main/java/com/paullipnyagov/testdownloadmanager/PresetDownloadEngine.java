@@ -0,0 +1,700 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+/**
+ * Download queue of presets: priorities, worker slots and per-host limits, preemption, retries and install
+ * bookkeeping. Knows nothing of the platform, which gives it storage roots, an event loop and threads for
+ * transfers. Must be used on the event loop thread, listeners are called there too.
+ */
+public class PresetDownloadEngine {
+    public static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = 3;
+    public static final int DEFAULT_MAX_DOWNLOADS_PER_HOST = 2;
+
+    // progress states besides 0 - 100 %
+    public static final int PROGRESS_IN_QUEUE = -1;
+    public static final int PROGRESS_COMPLETED = -2;
+
+    // partial downloads which were not touched for this long are not going to be resumed
+    private static final long STALE_PARTIAL_DOWNLOAD_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+    /*
+     * Where presets are kept. Called on IO thread, every method returns null if storage is not available
+     */
+    public interface Storage {
+        // partial zips of running and paused downloads
+        File getTempDirectory();
+
+        // installed presets, one directory per preset id
+        File getDownloadDirectory();
+
+        InstalledPresetIndex getInstalledPresetIndex();
+
+        // null also if hard links are not supported
+        BlobStore getBlobStore();
+
+        BlobStore.LinkSupport getLinkSupport();
+    }
+
+    /*
+     * Thread the engine lives on. Executes runnables in order, one at a time
+     */
+    public interface EventLoop extends Executor {
+        void executeDelayed(Runnable runnable, long delayMs);
+
+        // removes runnable posted with executeDelayed which has not run yet
+        void cancel(Runnable runnable);
+
+        // monotonic clock in ms which retry times are based on
+        long elapsedRealtime();
+    }
+
+    public interface Listener {
+        void onDownloadStarted(PresetRequest preset);
+
+        void onDownloadCompleted(PresetRequest preset);
+
+        // preset stays in queue if willRetry, otherwise it is dropped
+        void onDownloadFailed(PresetRequest preset, String errorMessage, boolean willRetry);
+
+        // storage is not available, queuedPresets were dropped
+        void onQueueCleared(int failedPresetId, List<PresetRequest> queuedPresets);
+    }
+
+    /*
+     * Gives expected SHA-256 of preset zip, see setArchiveHashProvider
+     */
+    public interface ArchiveHashProvider {
+        // hex hash or null if it is not known
+        String getArchiveSha256(PresetRequest preset);
+    }
+
+    public interface BatchListener {
+        // called on event loop once accepted presets are queued
+        void onBatchPlanned(PresetBatchPlanner.Plan plan);
+    }
+
+    /*
+     * Where preset goes, found in background because it touches storage
+     */
+    private static class DownloadTarget {
+        String outputFile;
+        String unzippedDirectoryPath;
+        boolean deltaUpdate;
+        BlobStore blobStore;
+        BlobStore.LinkSupport linkSupport;
+    }
+
+    private final Storage mStorage;
+    private final EventLoop mEventLoop;
+    private final Executor mTransferExecutor;
+
+    // every preset which is not completed yet, by priority and then in the order it was queued.
+    // In-flight presets stay here too
+    private final DownloadPriorityQueue<PresetRequest> mDownloadQueue = new DownloadPriorityQueue<>();
+    // preset id -> running download, at most mMaxConcurrentDownloads entries
+    private HashMap<Integer, PresetsFileDownloader> mActiveDownloads = new HashMap<>();
+    // preset id -> recycled download whose worker still runs. Preset is not started again until it exits,
+    // as both workers would write the same partial file and staging directory
+    private HashMap<Integer, PresetsFileDownloader> mExitingDownloads = new HashMap<>();
+    // preset id -> host of running download, used to apply per-host limit
+    private HashMap<Integer, String> mActiveDownloadHosts = new HashMap<>();
+    // preset id -> System.nanoTime() when it started to wait for a slot, for queue wait metric
+    private HashMap<Integer, Long> mQueuedAtNanos = new HashMap<>();
+    // failed presets wait in queue for their retry time, the rest of queue goes on meanwhile
+    private final RetryScheduler mRetryScheduler = new RetryScheduler(new Random());
+    // space of planned batches, so a batch which doesn't fit is refused before it starts
+    private final SpaceLedger mSpaceLedger = new SpaceLedger(SpaceLedger.DEFAULT_SAFETY_MARGIN_BYTES);
+    // file system work of starting downloads runs there, results come back to event loop
+    private final IoExecutor mIoExecutor = IoExecutor.getDefault();
+    private final Runnable mRetryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            startNextDownloads();
+        }
+    };
+
+    private int mMaxConcurrentDownloads = DEFAULT_MAX_CONCURRENT_DOWNLOADS;
+    private int mMaxDownloadsPerHost = DEFAULT_MAX_DOWNLOADS_PER_HOST;
+    private boolean mStreamingExtract = false;
+    private boolean mDeltaUpdates = true;
+    private boolean mKeepArchive = false;
+    private boolean mPreemption = false;
+    private HttpTransport mTransport = UrlConnectionTransport.getDefault();
+
+    private ArrayList<Listener> mListeners = new ArrayList<>();
+    private ArchiveHashProvider mArchiveHashProvider = null;
+
+    // progress is pushed from download threads, so UI doesn't have to poll getDownloadProgress
+    private final ProgressEventBus mProgressEventBus = new ProgressEventBus();
+
+    /*
+     * Every download runs on a thread of transferExecutor from start to install, so it needs a thread
+     * per concurrent download
+     */
+    public PresetDownloadEngine(Storage storage, EventLoop eventLoop, Executor transferExecutor) {
+        mStorage = storage;
+        mEventLoop = eventLoop;
+        mTransferExecutor = transferExecutor;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /*
+     * Listener gets the latest progress of each preset on given executor, intermediate values may be skipped.
+     * Progress is 0 - 100 % or one of PROGRESS_* states
+     */
+    public void addProgressListener(ProgressEventBus.Listener listener, Executor executor) {
+        mProgressEventBus.subscribe(listener, executor);
+    }
+
+    public void removeProgressListener(ProgressEventBus.Listener listener) {
+        mProgressEventBus.unsubscribe(listener);
+    }
+
+    /*
+     * Stops running downloads and pending retries. Partial files are kept for the next engine
+     */
+    public void recycle() {
+        mEventLoop.cancel(mRetryRunnable);
+        recycleAllDownloads();
+    }
+
+    /*
+     * Number of presets which are downloaded and unzipped at the same time. Must be 1 or more
+     */
+    public void setMaxConcurrentDownloads(int maxConcurrentDownloads) {
+        mMaxConcurrentDownloads = Math.max(1, maxConcurrentDownloads);
+        startNextDownloads();
+    }
+
+    /*
+     * Number of simultaneous downloads allowed from the same host. Must be 1 or more
+     */
+    public void setMaxDownloadsPerHost(int maxDownloadsPerHost) {
+        mMaxDownloadsPerHost = Math.max(1, maxDownloadsPerHost);
+        startNextDownloads();
+    }
+
+    /*
+     * Unzip presets while they are downloading instead of saving zip first. Saves a full write and two
+     * full reads of every archive, but interrupted downloads start over. Applies to downloads started later
+     */
+    public void setStreamingExtractEnabled(boolean streamingExtract) {
+        mStreamingExtract = streamingExtract;
+    }
+
+    /*
+     * Update installed presets by fetching only changed zip entries. Needs Range support on server,
+     * otherwise full download is made anyway. Applies to downloads started later
+     */
+    public void setDeltaUpdatesEnabled(boolean deltaUpdates) {
+        mDeltaUpdates = deltaUpdates;
+    }
+
+    /*
+     * Install zips as they are and serve samples from memory-mapped archives, see PresetHandle. Saves
+     * extraction time and keeps presets at compressed size, takes precedence over streaming extract and
+     * delta updates. Applies to downloads started later, installed presets keep their layout until updated
+     */
+    public void setKeepArchiveEnabled(boolean keepArchive) {
+        mKeepArchive = keepArchive;
+    }
+
+    /*
+     * Transport used by downloads started later. Shared by all of them, so it can reuse connections
+     */
+    public void setHttpTransport(HttpTransport transport) {
+        mTransport = transport;
+    }
+
+    /*
+     * Downloads started later are checked against hashes given by provider. Null disables the check,
+     * hash of every full download is still recorded in installed preset index
+     */
+    public void setArchiveHashProvider(ArchiveHashProvider archiveHashProvider) {
+        mArchiveHashProvider = archiveHashProvider;
+    }
+
+    /*
+     * Lets urgent download pause a running one of lower priority when there is no free slot for it.
+     * Paused download goes back to queue and resumes from its partial file later. Downloads which
+     * can't be resumed (streaming extract, server without Range support) start over, so it is off by default
+     */
+    public void setPreemptionEnabled(boolean preemption) {
+        mPreemption = preemption;
+        startNextDownloads();
+    }
+
+    /*
+     * priority is one of DownloadPriorityQueue.PRIORITY_*. Preset which is already queued keeps its
+     * place unless the new priority is higher
+     */
+    public void download(PresetRequest preset, int priority) {
+        DownloadLog.d("[PresetDownloadEngine] Adding preset " + preset.getName() +
+                " id: " + preset.getId() + " to download queue with priority " + priority);
+        if (!mDownloadQueue.add(preset.getId(), preset, priority)) {
+            DownloadLog.d("[PresetDownloadEngine] Preset is already in queue.");
+            updateBandwidthPriority(preset.getId());
+            startNextDownloads(); // raised priority may let it start or preempt
+            return;
+        }
+        mQueuedAtNanos.put(preset.getId(), System.nanoTime());
+        mProgressEventBus.publish(preset.getId(), PROGRESS_IN_QUEUE);
+        DownloadLog.d("[PresetDownloadEngine] Preset added to download queue successfully");
+        startNextDownloads();
+    }
+
+    /*
+     * Queues presets which are neither installed in the same version nor queued, if their zips and
+     * extracted files fit into free space together with batches planned earlier. allOrNothing refuses
+     * the whole batch then, otherwise presets which don't fit are left out. Sizes are fetched first,
+     * so nothing starts until listener gets the plan
+     */
+    public void downloadAll(Collection<PresetRequest> presets, final int priority, final boolean allOrNothing,
+                            final BatchListener listener) {
+        final List<PresetRequest> alreadyQueued = new ArrayList<>();
+        final List<PresetRequest> toPlan = new ArrayList<>();
+        HashSet<Integer> seenIds = new HashSet<>();
+        for (PresetRequest preset : presets) {
+            if (!seenIds.add(preset.getId())) {
+                continue;
+            }
+            if (mDownloadQueue.contains(preset.getId())) {
+                alreadyQueued.add(preset);
+            } else {
+                toPlan.add(preset);
+            }
+        }
+        final boolean withArchive = mKeepArchive || !mStreamingExtract;
+        final boolean withExtractedFiles = !mKeepArchive;
+        final PresetBatchPlanner planner = new PresetBatchPlanner(mTransport, mTransferExecutor,
+                PresetBatchPlanner.DEFAULT_MAX_REQUESTS_IN_FLIGHT);
+        // planning waits for network, so it runs where transfers do and not on IO thread
+        mTransferExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File downloadDirectory = mStorage.getDownloadDirectory();
+                final PresetBatchPlanner.Plan plan;
+                if (downloadDirectory == null) {
+                    plan = new PresetBatchPlanner.Plan();
+                    plan.rejected.addAll(toPlan);
+                } else {
+                    plan = planner.plan(toPlan, mStorage.getInstalledPresetIndex(), mSpaceLedger,
+                            downloadDirectory, withArchive, withExtractedFiles, allOrNothing);
+                }
+                plan.alreadyQueued.addAll(alreadyQueued);
+                mEventLoop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (PresetRequest preset : plan.accepted) {
+                            download(preset, priority);
+                        }
+                        listener.onBatchPlanned(plan);
+                    }
+                });
+            }
+        });
+    }
+
+    /*
+     * Changes priority of queued preset, e.g. when it scrolls into view. Does nothing if it is not queued
+     */
+    public void setDownloadPriority(int presetId, int priority) {
+        if (mDownloadQueue.setPriority(presetId, priority)) {
+            updateBandwidthPriority(presetId);
+            startNextDownloads();
+        }
+    }
+
+    // running download gets bandwidth share of its new priority at once
+    private void updateBandwidthPriority(int presetId) {
+        PresetsFileDownloader download = mActiveDownloads.get(presetId);
+        if (download != null) {
+            download.setBandwidthPriority(mDownloadQueue.getPriority(presetId));
+        }
+    }
+
+    private void startNextDownloads() {
+        logCurrentQueue();
+
+        if (mDownloadQueue.size() < 1) {
+            DownloadLog.d("[PresetDownloadEngine] All downloads have completed");
+            return; //done
+        }
+
+        // walk queue in priority order and fill free worker slots, skipping presets whose host is busy
+        long nowMs = mEventLoop.elapsedRealtime();
+        for (PresetRequest preset : mDownloadQueue.toList()) {
+            if (mActiveDownloads.containsKey(preset.getId()) || mExitingDownloads.containsKey(preset.getId()) ||
+                    mRetryScheduler.isBackingOff(preset.getId(), nowMs)) {
+                continue;
+            }
+            String host = getHost(preset.getPath());
+            boolean hostIsBusy = getActiveDownloadCountForHost(host) >= mMaxDownloadsPerHost;
+            if (mActiveDownloads.size() >= mMaxConcurrentDownloads || hostIsBusy) {
+                if (!mPreemption || !pauseDownloadWithLowerPriority(mDownloadQueue.getPriority(preset.getId()),
+                        hostIsBusy ? host : null)) {
+                    continue;
+                }
+            }
+            startDownload(preset, host);
+        }
+    }
+
+    /*
+     * Stops the least urgent running download with priority below given one, on given host if it is not
+     * null. Its partial file is kept and it waits in queue again. Returns false if there is none
+     */
+    private boolean pauseDownloadWithLowerPriority(int priority, String host) {
+        int victimId = 0;
+        int victimPriority = priority;
+        for (Integer presetId : mActiveDownloads.keySet()) {
+            int activePriority = mDownloadQueue.getPriority(presetId);
+            if (activePriority < victimPriority && (host == null || host.equals(mActiveDownloadHosts.get(presetId)))) {
+                victimId = presetId;
+                victimPriority = activePriority;
+            }
+        }
+        if (victimPriority == priority) {
+            return false;
+        }
+        removeActiveDownload(victimId);
+        mQueuedAtNanos.put(victimId, System.nanoTime());
+        mProgressEventBus.publish(victimId, PROGRESS_IN_QUEUE);
+        DownloadLog.d("[PresetDownloadEngine] Download of preset " + victimId + " is paused for more urgent one");
+        return true;
+    }
+
+    /*
+     * Takes a worker slot at once, download itself starts when its paths are prepared in background.
+     * Storage which is not available clears the queue then
+     */
+    private void startDownload(final PresetRequest preset, String host) {
+        final PresetsFileDownloader downloader = new PresetsFileDownloader(preset.getId(), mProgressEventBus);
+        downloader.setExecutors(mTransferExecutor, mEventLoop);
+        downloader.setOnExitRunnable(new Runnable() {
+            @Override
+            public void run() {
+                onWorkerExited(preset.getId(), downloader);
+            }
+        });
+        downloader.setStreamingExtract(mStreamingExtract);
+        downloader.setKeepArchive(mKeepArchive);
+        downloader.setHttpTransport(mTransport);
+        downloader.setBandwidthPriority(mDownloadQueue.getPriority(preset.getId()));
+        if (mArchiveHashProvider != null) {
+            downloader.setExpectedArchiveSha256(mArchiveHashProvider.getArchiveSha256(preset));
+        }
+        Long queuedAtNanos = mQueuedAtNanos.remove(preset.getId());
+        if (queuedAtNanos != null) {
+            downloader.getInstallMetrics().setElapsed(InstallMetrics.QUEUE_WAIT_MS, queuedAtNanos);
+        }
+        // partial zips are kept between downloads so they can be resumed, only abandoned ones are removed
+        final boolean cleanStaleTempFiles = mActiveDownloads.isEmpty();
+        final boolean deltaUpdates = mDeltaUpdates;
+        mRetryScheduler.onDownloadStarted();
+        mActiveDownloads.put(preset.getId(), downloader);
+        mActiveDownloadHosts.put(preset.getId(), host);
+        DownloadLog.d("[PresetDownloadEngine] Starting download of preset " + preset.getId() + " from " + host +
+                ", active downloads: " + mActiveDownloads.size());
+        mIoExecutor.submit(new IoExecutor.Task<DownloadTarget>() {
+            @Override
+            public DownloadTarget run() {
+                return prepareDownloadTarget(preset.getId(), cleanStaleTempFiles, deltaUpdates);
+            }
+        }, new IoExecutor.Callback<DownloadTarget>() {
+            @Override
+            public void onComplete(DownloadTarget target) {
+                if (mActiveDownloads.get(preset.getId()) != downloader) {
+                    // download was cancelled or queue was cleared meanwhile, its worker was never started
+                    onWorkerExited(preset.getId(), downloader);
+                    return;
+                }
+                if (target == null) {
+                    DownloadLog.e("[PresetDownloadEngine] Error while trying to get special directory path");
+                    clearQueue(preset.getId());
+                    return; //error. interrupt download
+                }
+                downloader.setDeltaUpdate(target.deltaUpdate);
+                downloader.setBlobStore(target.blobStore);
+                downloader.setLinkSupport(target.linkSupport);
+                runDownload(preset, downloader, target);
+            }
+        }, mEventLoop);
+    }
+
+    // runs on IO thread, returns null if storage is not available
+    private DownloadTarget prepareDownloadTarget(int presetId, boolean cleanStaleTempFiles, boolean deltaUpdates) {
+        File tempDirectory = mStorage.getTempDirectory();
+        File downloadDirectory = mStorage.getDownloadDirectory();
+        if (tempDirectory == null || downloadDirectory == null) {
+            return null;
+        }
+        if (cleanStaleTempFiles) {
+            PartialDownload.deleteStale(tempDirectory, STALE_PARTIAL_DOWNLOAD_AGE_MS);
+        }
+        DownloadTarget target = new DownloadTarget();
+        target.outputFile = new File(tempDirectory, "preset_" + presetId + ".zip").getAbsolutePath();
+        target.unzippedDirectoryPath = downloadDirectory.getAbsolutePath() + "/" + presetId + "/";
+        // only changed files of older version with manifest are downloaded, otherwise the whole preset.
+        // Installed version is not touched either way until new one is committed
+        target.deltaUpdate = deltaUpdates &&
+                PresetManifest.canUpdateIncrementally(new File(target.unzippedDirectoryPath));
+        target.blobStore = mStorage.getBlobStore();
+        target.linkSupport = mStorage.getLinkSupport();
+        // may wait for the index to load, which is why it is here
+        InstalledPresetIndex installedPresetIndex = mStorage.getInstalledPresetIndex();
+        if (installedPresetIndex != null) {
+            installedPresetIndex.onInstallStarted(presetId);
+        }
+        return target;
+    }
+
+    private void runDownload(final PresetRequest preset, final PresetsFileDownloader downloader,
+                             DownloadTarget target) {
+        downloader.downloadFile(new Runnable() {
+            @Override
+            public void run() {
+                if (mActiveDownloads.get(preset.getId()) != downloader) {
+                    // download was cancelled or queue was cleared meanwhile
+                    return;
+                }
+                if (!downloader.isDownloadCompletedSuccessfully()) {
+                    DownloadLog.e("[PresetDownloadEngine] Error during preset download: " +
+                            downloader.getErrorMessage());
+                    onDownloadFailed(preset, downloader.getFailureKind(), downloader.getErrorMessage());
+                    return;
+                }
+
+                InstalledPresetIndex installedPresetIndex = mStorage.getInstalledPresetIndex();
+                if (installedPresetIndex != null) {
+                    installedPresetIndex.onInstalled(preset.getId(), preset.getVersion(),
+                            downloader.getInstalledSizeBytes(), downloader.getArchiveSha256());
+                }
+
+                removeActiveDownload(preset.getId());
+                removeFromQueue(preset.getId());
+                mSpaceLedger.release(preset.getId());
+                mProgressEventBus.publish(preset.getId(), PROGRESS_COMPLETED);
+
+                for (Listener listener : new ArrayList<>(mListeners)) {
+                    listener.onDownloadCompleted(preset);
+                }
+
+                DownloadLog.d("[PresetDownloadEngine] preset downloaded: " + preset.getName());
+                startNextDownloads();
+            }
+        }, preset.getPath(), target.outputFile, target.unzippedDirectoryPath, preset.getVersion());
+        for (Listener listener : new ArrayList<>(mListeners)) {
+            listener.onDownloadStarted(preset);
+        }
+    }
+
+    /*
+     * Failed preset waits in queue for a retry if its failure is worth one and budget allows,
+     * otherwise only this preset is dropped. Either way other presets keep downloading
+     */
+    private void onDownloadFailed(PresetRequest preset, int failureKind, String errorMessage) {
+        removeActiveDownload(preset.getId());
+        long nowMs = mEventLoop.elapsedRealtime();
+        long retryAtMs = mRetryScheduler.onDownloadFailed(preset.getId(), failureKind, nowMs);
+        boolean willRetry = retryAtMs >= 0;
+        if (willRetry) {
+            DownloadLog.d("[PresetDownloadEngine] Preset " + preset.getId() + " failed (" +
+                    DownloadFailure.getName(failureKind) + "), retry " + mRetryScheduler.getAttempts(preset.getId()) +
+                    " in " + (retryAtMs - nowMs) + " ms");
+            mQueuedAtNanos.put(preset.getId(), System.nanoTime());
+            mProgressEventBus.publish(preset.getId(), PROGRESS_IN_QUEUE);
+            mEventLoop.executeDelayed(mRetryRunnable, retryAtMs - nowMs);
+        } else {
+            DownloadLog.e("[PresetDownloadEngine] Preset " + preset.getId() + " failed (" +
+                    DownloadFailure.getName(failureKind) + "), giving up");
+            removeFromQueue(preset.getId());
+            mSpaceLedger.release(preset.getId());
+            mProgressEventBus.publish(preset.getId(), PROGRESS_COMPLETED);
+        }
+        for (Listener listener : new ArrayList<>(mListeners)) {
+            listener.onDownloadFailed(preset, errorMessage, willRetry);
+        }
+        startNextDownloads();
+    }
+
+    private void onWorkerExited(int presetId, PresetsFileDownloader downloader) {
+        if (mExitingDownloads.get(presetId) == downloader) {
+            mExitingDownloads.remove(presetId);
+            DownloadLog.d("[PresetDownloadEngine] Recycled download of preset " + presetId + " has exited");
+            startNextDownloads();
+        }
+    }
+
+    private int getActiveDownloadCountForHost(String host) {
+        int count = 0;
+        for (String activeHost : mActiveDownloadHosts.values()) {
+            if (activeHost.equals(host)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String getHost(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            // download will fail later with proper error, just don't count it against any host
+            return "";
+        }
+    }
+
+    private void removeFromQueue(int presetId) {
+        mDownloadQueue.remove(presetId);
+        mQueuedAtNanos.remove(presetId);
+        mRetryScheduler.forget(presetId);
+    }
+
+    private void logCurrentQueue() {
+        StringBuilder queue = new StringBuilder("[PresetDownloadEngine] Presets download queue: ");
+        for (PresetRequest preset : mDownloadQueue.toList()) {
+            queue.append(preset.getId()).append(", ");
+        }
+        DownloadLog.d(queue.toString());
+    }
+
+    // storage is not available, so no preset in queue can be downloaded
+    private void clearQueue(int failedPresetId) {
+        List<PresetRequest> queuedPresets = mDownloadQueue.toList();
+        for (PresetRequest preset : queuedPresets) {
+            // same as getDownloadProgress for presets which are no longer in queue
+            mProgressEventBus.publish(preset.getId(), PROGRESS_COMPLETED);
+        }
+        mDownloadQueue.clear();
+        mQueuedAtNanos.clear();
+        mRetryScheduler.clear();
+        mSpaceLedger.releaseAll();
+        DownloadLog.d("[PresetDownloadEngine] Download queue is cleared");
+        recycleAllDownloads();
+        for (Listener listener : new ArrayList<>(mListeners)) {
+            listener.onQueueCleared(failedPresetId, queuedPresets);
+        }
+    }
+
+    /*
+     * Returns id of the first in-flight download in queue order or 0 if nothing is downloading
+     */
+    public int getCurrentDownloadPresetId() {
+        int[] activeIds = getActiveDownloadPresetIds();
+        return activeIds.length > 0 ? activeIds[0] : 0;
+    }
+
+    /*
+     * Returns ids of all in-flight downloads in queue order
+     */
+    public int[] getActiveDownloadPresetIds() {
+        int[] ids = new int[mActiveDownloads.size()];
+        int count = 0;
+        for (PresetRequest preset : mDownloadQueue.toList()) {
+            if (count < ids.length && mActiveDownloads.containsKey(preset.getId())) {
+                ids[count++] = preset.getId();
+            }
+        }
+        return ids;
+    }
+
+    // int - 0 to 100 in %
+    public int getCurrentDownloadProgress() {
+        PresetsFileDownloader download = mActiveDownloads.get(getCurrentDownloadPresetId());
+        if (download == null) {
+            return 0;
+        }
+        return download.getTaskProgress();
+    }
+
+    // true if preset is waiting or downloading
+    public boolean isInQueue(int presetId) {
+        return mDownloadQueue.contains(presetId);
+    }
+
+    /*
+     * Returns progress in % for in-flight download, PROGRESS_IN_QUEUE if download waits in queue
+     * and PROGRESS_COMPLETED if preset is not in queue
+     */
+    public int getDownloadProgress(int presetId) {
+        PresetsFileDownloader download = mActiveDownloads.get(presetId);
+        if (download != null) {
+            // operation is currently ongoing
+            return download.getTaskProgress();
+        }
+
+        if (mDownloadQueue.contains(presetId)) {
+            // waiting for free download slot
+            return PROGRESS_IN_QUEUE;
+        }
+
+        // given ID is not in queue, so download has completed earlier
+        return PROGRESS_COMPLETED;
+    }
+
+    public void cancelDownload(int presetId) {
+        if (mDownloadQueue.size() < 1) {
+            DownloadLog.d("[PresetDownloadEngine] Can't cancel preset " + presetId + " download: queue empty");
+            return;
+        }
+        removeFromQueue(presetId);
+        mSpaceLedger.release(presetId);
+        mProgressEventBus.publish(presetId, PROGRESS_COMPLETED);
+        DownloadLog.d("[PresetDownloadEngine] Download of preset " + presetId + " removed from queue");
+        if (removeActiveDownload(presetId)) {
+            // worker slot is free now
+            startNextDownloads();
+        } else {
+            logCurrentQueue();
+        }
+    }
+
+    // returns true if there was an in-flight download for given preset
+    private boolean removeActiveDownload(int presetId) {
+        PresetsFileDownloader download = mActiveDownloads.remove(presetId);
+        mActiveDownloadHosts.remove(presetId);
+        if (download == null) {
+            return false;
+        }
+        recycleDownload(presetId, download);
+        DownloadLog.d("[PresetDownloadEngine] Download of preset " + presetId + " is recycled");
+        return true;
+    }
+
+    private void recycleAllDownloads() {
+        for (Map.Entry<Integer, PresetsFileDownloader> download : mActiveDownloads.entrySet()) {
+            recycleDownload(download.getKey(), download.getValue());
+        }
+        if (!mActiveDownloads.isEmpty()) {
+            DownloadLog.d("[PresetDownloadEngine] " + mActiveDownloads.size() + " active downloads are recycled");
+        }
+        mActiveDownloads.clear();
+        mActiveDownloadHosts.clear();
+    }
+
+    private void recycleDownload(int presetId, PresetsFileDownloader download) {
+        download.recycle();
+        if (!download.hasExited()) {
+            mExitingDownloads.put(presetId, download);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Samples of one installed preset, wherever they are: files of an extracted preset directory or
+ * entries of the archive kept by no-extract install. Sample names are paths inside preset with '/'.
+ * Players read samples through a handle instead of building file paths from the preset directory.
+ */
+public abstract class PresetHandle implements Closeable {
+
+    // zip kept in preset directory by no-extract install, next to manifest
+    public static final String ARCHIVE_FILE_NAME = "preset.zip";
+
+    private final int mPresetId;
+
+    PresetHandle(int presetId) {
+        mPresetId = presetId;
+    }
+
+    /*
+     * Handle of installed preset directory. Opening an archive reads its central directory, so it is
+     * called in background
+     */
+    public static PresetHandle open(int presetId, File presetDirectory) throws IOException {
+        File archiveFile = new File(presetDirectory, ARCHIVE_FILE_NAME);
+        if (archiveFile.isFile()) {
+            return new Archive(presetId, MappedPresetArchive.open(archiveFile));
+        }
+        if (!presetDirectory.isDirectory()) {
+            throw new FileNotFoundException("Preset is not installed: " + presetDirectory);
+        }
+        return new Directory(presetId, presetDirectory);
+    }
+
+    public int getPresetId() {
+        return mPresetId;
+    }
+
+    // extracted preset directory, null if samples are served from archive
+    public abstract File getDirectory();
+
+    public abstract List<String> getSampleNames();
+
+    /*
+     * Whole sample in a read-only buffer, mapped where possible. Throws FileNotFoundException for
+     * unknown name
+     */
+    public abstract ByteBuffer readSample(String name) throws IOException;
+
+    public abstract InputStream openSample(String name) throws IOException;
+
+    @Override
+    public void close() {
+    }
+
+    private static class Directory extends PresetHandle {
+        private final File mDirectory;
+
+        Directory(int presetId, File directory) {
+            super(presetId);
+            mDirectory = directory;
+        }
+
+        @Override
+        public File getDirectory() {
+            return mDirectory;
+        }
+
+        @Override
+        public List<String> getSampleNames() {
+            List<String> names = new ArrayList<>();
+            listFiles(mDirectory, "", names);
+            return Collections.unmodifiableList(names);
+        }
+
+        private static void listFiles(File directory, String prefix, List<String> names) {
+            File[] files = directory.listFiles();
+            if (files == null) {
+                return;
+            }
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    listFiles(file, prefix + file.getName() + "/", names);
+                } else if (!prefix.isEmpty() || !file.getName().equals(PresetManifest.FILE_NAME)) {
+                    names.add(prefix + file.getName());
+                }
+            }
+        }
+
+        @Override
+        public ByteBuffer readSample(String name) throws IOException {
+            RandomAccessFile file = new RandomAccessFile(getSampleFile(name), "r");
+            try {
+                return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            } finally {
+                FileUtils.tryCloseStream(file);
+            }
+        }
+
+        @Override
+        public InputStream openSample(String name) throws IOException {
+            return new FileInputStream(getSampleFile(name));
+        }
+
+        // names come from callers, so they are not allowed out of preset directory
+        private File getSampleFile(String name) throws IOException {
+            File file = ZipUtils.resolveEntryFile(mDirectory, name);
+            if (!file.isFile()) {
+                throw new FileNotFoundException("No sample " + name + " in " + mDirectory);
+            }
+            return file;
+        }
+    }
+
+    private static class Archive extends PresetHandle {
+        private final MappedPresetArchive mArchive;
+
+        Archive(int presetId, MappedPresetArchive archive) {
+            super(presetId);
+            mArchive = archive;
+        }
+
+        @Override
+        public File getDirectory() {
+            return null;
+        }
+
+        @Override
+        public List<String> getSampleNames() {
+            return mArchive.getNames();
+        }
+
+        @Override
+        public ByteBuffer readSample(String name) throws IOException {
+            return mArchive.read(name);
+        }
+
+        @Override
+        public InputStream openSample(String name) throws IOException {
+            return mArchive.open(name);
+        }
+
+        @Override
+        public void close() {
+            mArchive.close();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Metadata of installed preset, the only marker file in its directory: it is written last into the
+ * staging directory, so a preset directory with a committed manifest is complete (see {@link StagedInstall}).
+ * Header lines come first, key and value separated by tab: "format", "version", "size" of all files,
+ * "files" count and "sha256" of the archive if known. Then one line per file: crc (hex), size and name
+ * separated by tabs. Compared with central directory of a newer zip it tells which entries must be
+ * downloaded again on update. State checks read only the header.
+ */
+public class PresetManifest {
+
+    public static final String FILE_NAME = "manifest.dp";
+
+    // manifests without it were written before the manifest became the commit marker
+    private static final int FORMAT = 2;
+    private static final String FORMAT_KEY = "format";
+    private static final String VERSION_KEY = "version";
+    private static final String SIZE_KEY = "size";
+    private static final String FILES_KEY = "files";
+    private static final String SHA256_KEY = "sha256";
+
+    /*
+     * Header of committed manifest, enough to tell state of preset without listing its directory
+     */
+    public static class Header {
+        public String version = null; // null if config had no version
+        public long sizeBytes = 0;
+        public int fileCount = 0; // 0 if manifest was migrated from legacy marker files and has no crcs
+        public String archiveSha256 = null;
+    }
+
+    /*
+     * What has to be done to turn installed preset into the remote one
+     */
+    public static class Delta {
+        public final List<ZipEntryInfo> changedEntries = new ArrayList<>();
+        public final List<String> removedNames = new ArrayList<>();
+
+        public boolean isEmpty() {
+            return changedEntries.isEmpty() && removedNames.isEmpty();
+        }
+
+        public long getChangedCompressedSize() {
+            long size = 0;
+            for (ZipEntryInfo entry : changedEntries) {
+                size += entry.getCompressedSize();
+            }
+            return size;
+        }
+
+        public long getChangedUncompressedSize() {
+            long size = 0;
+            for (ZipEntryInfo entry : changedEntries) {
+                size += entry.getUncompressedSize();
+            }
+            return size;
+        }
+    }
+
+    // name -> {crc, size}
+    private final LinkedHashMap<String, long[]> mFiles = new LinkedHashMap<>();
+    // hash of the zip files were unpacked from, null if it was not computed
+    private String mArchiveSha256 = null;
+    private String mVersion = null;
+    private long mSizeBytes = 0;
+
+    public PresetManifest(Collection<ZipEntryInfo> entries) {
+        for (ZipEntryInfo entry : entries) {
+            if (!entry.isDirectory()) {
+                mFiles.put(entry.getName(), new long[]{entry.getCrc(), entry.getUncompressedSize()});
+            }
+        }
+    }
+
+    // manifest of preset installed by older build, files are unknown so it can't be updated incrementally
+    public PresetManifest() {
+    }
+
+    public int getFileCount() {
+        return mFiles.size();
+    }
+
+    public String getArchiveSha256() {
+        return mArchiveSha256;
+    }
+
+    public void setArchiveSha256(String archiveSha256) {
+        mArchiveSha256 = archiveSha256;
+    }
+
+    public String getVersion() {
+        return mVersion;
+    }
+
+    public void setVersion(String version) {
+        mVersion = version;
+    }
+
+    public long getSizeBytes() {
+        return mSizeBytes;
+    }
+
+    // size of all files in preset directory
+    public void setSizeBytes(long sizeBytes) {
+        mSizeBytes = sizeBytes;
+    }
+
+    public Delta diff(ZipArchiveInfo remote) {
+        Delta delta = new Delta();
+        LinkedHashMap<String, long[]> remaining = new LinkedHashMap<>(mFiles);
+        for (ZipEntryInfo entry : remote.getEntries()) {
+            if (entry.isDirectory()) {
+                continue;
+            }
+            long[] local = remaining.remove(entry.getName());
+            if (local == null || local[0] != entry.getCrc() || local[1] != entry.getUncompressedSize()) {
+                delta.changedEntries.add(entry);
+            }
+        }
+        delta.removedNames.addAll(remaining.keySet());
+        return delta;
+    }
+
+    public static boolean exists(File presetDirectory) {
+        return new File(presetDirectory, FILE_NAME).isFile();
+    }
+
+    // installed files are known, so only changed entries have to be downloaded on update
+    public static boolean canUpdateIncrementally(File presetDirectory) {
+        Header header = readHeader(presetDirectory);
+        // manifest of an older build lists files too, it just isn't a commit marker
+        return header != null ? header.fileCount > 0 : exists(presetDirectory);
+    }
+
+    // returns null if there is no manifest or it can't be parsed
+    public static PresetManifest load(File presetDirectory) {
+        File file = new File(presetDirectory, FILE_NAME);
+        if (!file.isFile()) {
+            return null;
+        }
+        PresetManifest manifest = new PresetManifest();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 3);
+                if (fields.length == 2) {
+                    if (fields[0].equals(SHA256_KEY)) {
+                        manifest.mArchiveSha256 = fields[1];
+                    } else if (fields[0].equals(VERSION_KEY)) {
+                        manifest.mVersion = fields[1];
+                    } else if (fields[0].equals(SIZE_KEY)) {
+                        manifest.mSizeBytes = Long.parseLong(fields[1]);
+                    }
+                    continue;
+                }
+                manifest.mFiles.put(fields[2], new long[]{Long.parseLong(fields[0], 16), Long.parseLong(fields[1])});
+            }
+            return manifest;
+        } catch (IOException | RuntimeException e) {
+            // without manifest preset is updated by full download
+            return null;
+        } finally {
+            if (reader != null) {
+                FileUtils.tryCloseStream(reader);
+            }
+        }
+    }
+
+    /*
+     * Reads header lines only, one small read for the state of preset. Null if there is no committed
+     * manifest: preset is not installed, or it was installed by an older build with legacy marker files
+     */
+    public static Header readHeader(File presetDirectory) {
+        File file = new File(presetDirectory, FILE_NAME);
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"), 512);
+            String line = reader.readLine();
+            if (line == null || !line.equals(FORMAT_KEY + "\t" + FORMAT)) {
+                return null;
+            }
+            Header header = new Header();
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 3);
+                if (fields.length != 2) {
+                    break; // first file line
+                }
+                if (fields[0].equals(VERSION_KEY)) {
+                    header.version = fields[1];
+                } else if (fields[0].equals(SIZE_KEY)) {
+                    header.sizeBytes = Long.parseLong(fields[1]);
+                } else if (fields[0].equals(FILES_KEY)) {
+                    header.fileCount = Integer.parseInt(fields[1]);
+                } else if (fields[0].equals(SHA256_KEY)) {
+                    header.archiveSha256 = fields[1];
+                }
+            }
+            return header;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        } finally {
+            if (reader != null) {
+                FileUtils.tryCloseStream(reader);
+            }
+        }
+    }
+
+    // written to temp file and renamed, so a manifest on disk is always complete
+    public void save(File presetDirectory) throws IOException {
+        File file = new File(presetDirectory, FILE_NAME);
+        File tempFile = new File(presetDirectory, FILE_NAME + ".tmp");
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+        try {
+            writer.write(FORMAT_KEY + "\t" + FORMAT + "\n");
+            if (mVersion != null) {
+                writer.write(VERSION_KEY + "\t" + mVersion + "\n");
+            }
+            writer.write(SIZE_KEY + "\t" + mSizeBytes + "\n");
+            writer.write(FILES_KEY + "\t" + mFiles.size() + "\n");
+            if (mArchiveSha256 != null) {
+                writer.write(SHA256_KEY + "\t" + mArchiveSha256 + "\n");
+            }
+            for (String name : mFiles.keySet()) {
+                long[] values = mFiles.get(name);
+                writer.write(Long.toHexString(values[0]) + "\t" + values[1] + "\t" + name + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Can't rename " + tempFile + " to " + file);
+        }
+    }
+
+    public static boolean delete(File presetDirectory) {
+        File file = new File(presetDirectory, FILE_NAME);
+        return !file.exists() || file.delete();
+    }
+}
@@ -0,0 +1,39 @@
+package com.paullipnyagov.testdownloadmanager;
+
+/**
+ * Preset as download engine sees it: what to fetch and how to name it in logs.
+ * Platforms may extend it to carry their own preset description along.
+ */
+public class PresetRequest {
+
+    private final int mId;
+    private final String mName;
+    private final String mPath;
+    private final String mVersion;
+
+    /*
+     * path is URL of preset zip, version is written to manifest of installed preset
+     */
+    public PresetRequest(int id, String name, String path, String version) {
+        mId = id;
+        mName = name;
+        mPath = path;
+        mVersion = version;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public String getVersion() {
+        return mVersion;
+    }
+}
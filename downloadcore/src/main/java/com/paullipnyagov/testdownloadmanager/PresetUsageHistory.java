@@ -0,0 +1,172 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Which presets user taps and which preset usually follows which, used to guess what to prefetch.
+ * Only ids and counts are kept, so it stays small enough to be saved as a whole.
+ */
+public class PresetUsageHistory {
+
+    // followers of one preset kept in history, the rarest one is forgotten when it overflows
+    private static final int MAX_FOLLOWERS_PER_PRESET = 16;
+
+    // weights of the three hints in the score, each hint is scaled to 0..1 first
+    private static final double FOLLOWER_WEIGHT = 3;
+    private static final double CATALOGUE_WEIGHT = 1;
+    private static final double POPULARITY_WEIGHT = 1;
+
+    // preset id -> number of taps
+    private final HashMap<Integer, Integer> mTapCounts = new HashMap<>();
+    // preset id -> (id of preset tapped right after it -> count)
+    private final HashMap<Integer, HashMap<Integer, Integer>> mFollowers = new HashMap<>();
+    private int mLastTappedId = 0;
+
+    public void onPresetTapped(int presetId) {
+        Integer count = mTapCounts.get(presetId);
+        mTapCounts.put(presetId, count == null ? 1 : count + 1);
+        if (mLastTappedId != 0 && mLastTappedId != presetId) {
+            HashMap<Integer, Integer> followers = mFollowers.get(mLastTappedId);
+            if (followers == null) {
+                followers = new HashMap<>();
+                mFollowers.put(mLastTappedId, followers);
+            }
+            Integer followerCount = followers.get(presetId);
+            if (followerCount == null && followers.size() >= MAX_FOLLOWERS_PER_PRESET) {
+                followers.remove(findRarest(followers));
+            }
+            followers.put(presetId, followerCount == null ? 1 : followerCount + 1);
+        }
+        mLastTappedId = presetId;
+    }
+
+    public int getLastTappedId() {
+        return mLastTappedId;
+    }
+
+    public int getTapCount(int presetId) {
+        Integer count = mTapCounts.get(presetId);
+        return count == null ? 0 : count;
+    }
+
+    /*
+     * Candidates ordered from the most likely next tap. Score combines how often a candidate followed the
+     * last tapped preset, how close it is to that preset in catalogue and its popularity (may be empty).
+     * Candidates with equal score keep catalogue order
+     */
+    public int[] rankNextPresets(int[] catalogueIds, int[] candidateIds, Map<Integer, Integer> popularity) {
+        final HashMap<Integer, Integer> cataloguePositions = new HashMap<>();
+        for (int i = 0; i < catalogueIds.length; i++) {
+            cataloguePositions.put(catalogueIds[i], i);
+        }
+        Integer lastPosition = cataloguePositions.get(mLastTappedId);
+        HashMap<Integer, Integer> followers = mFollowers.get(mLastTappedId);
+        int followerTotal = 0;
+        if (followers != null) {
+            for (int count : followers.values()) {
+                followerTotal += count;
+            }
+        }
+        int maxPopularity = 0;
+        for (int count : popularity.values()) {
+            maxPopularity = Math.max(maxPopularity, count);
+        }
+
+        final HashMap<Integer, Double> scores = new HashMap<>();
+        ArrayList<Integer> ranked = new ArrayList<>(candidateIds.length);
+        for (int candidateId : candidateIds) {
+            double score = 0;
+            Integer followerCount = followers == null ? null : followers.get(candidateId);
+            if (followerCount != null) {
+                score += FOLLOWER_WEIGHT * followerCount / followerTotal;
+            }
+            Integer position = cataloguePositions.get(candidateId);
+            if (lastPosition != null && position != null && !position.equals(lastPosition)) {
+                // users tend to go down the list, presets above count half
+                int distance = position - lastPosition;
+                score += CATALOGUE_WEIGHT * (distance > 0 ? 1.0 / distance : 0.5 / -distance);
+            }
+            Integer popularityCount = popularity.get(candidateId);
+            if (popularityCount != null && maxPopularity > 0) {
+                score += POPULARITY_WEIGHT * popularityCount / maxPopularity;
+            }
+            scores.put(candidateId, score);
+            ranked.add(candidateId);
+        }
+        Collections.sort(ranked, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer left, Integer right) {
+                int byScore = Double.compare(scores.get(right), scores.get(left));
+                if (byScore != 0) {
+                    return byScore;
+                }
+                return getPosition(left) - getPosition(right);
+            }
+
+            private int getPosition(Integer presetId) {
+                Integer position = cataloguePositions.get(presetId);
+                return position == null ? Integer.MAX_VALUE : position;
+            }
+        });
+        int[] result = new int[ranked.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ranked.get(i);
+        }
+        return result;
+    }
+
+    private static int findRarest(HashMap<Integer, Integer> followers) {
+        int rarestId = 0;
+        int rarestCount = Integer.MAX_VALUE;
+        for (Map.Entry<Integer, Integer> follower : followers.entrySet()) {
+            if (follower.getValue() < rarestCount) {
+                rarestId = follower.getKey();
+                rarestCount = follower.getValue();
+            }
+        }
+        return rarestId;
+    }
+
+    void write(DataOutputStream output) throws IOException {
+        output.writeInt(mLastTappedId);
+        output.writeInt(mTapCounts.size());
+        for (Map.Entry<Integer, Integer> tapCount : mTapCounts.entrySet()) {
+            output.writeInt(tapCount.getKey());
+            output.writeInt(tapCount.getValue());
+        }
+        output.writeInt(mFollowers.size());
+        for (Map.Entry<Integer, HashMap<Integer, Integer>> preset : mFollowers.entrySet()) {
+            output.writeInt(preset.getKey());
+            output.writeInt(preset.getValue().size());
+            for (Map.Entry<Integer, Integer> follower : preset.getValue().entrySet()) {
+                output.writeInt(follower.getKey());
+                output.writeInt(follower.getValue());
+            }
+        }
+    }
+
+    void read(DataInputStream input) throws IOException {
+        mLastTappedId = input.readInt();
+        int tapCountSize = input.readInt();
+        for (int i = 0; i < tapCountSize; i++) {
+            mTapCounts.put(input.readInt(), input.readInt());
+        }
+        int presetCount = input.readInt();
+        for (int i = 0; i < presetCount; i++) {
+            int presetId = input.readInt();
+            int followerCount = input.readInt();
+            HashMap<Integer, Integer> followers = new HashMap<>();
+            for (int j = 0; j < followerCount; j++) {
+                followers.put(input.readInt(), input.readInt());
+            }
+            mFollowers.put(presetId, followers);
+        }
+    }
+}
@@ -0,0 +1,688 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+public class PresetsFileDownloader {
+
+    // progress goes from 0 to 75% while downloading and from 75 to 100% while unzipping
+    private static final int DOWNLOAD_PERCENT_IN_OVERALL_PROGRESS = 75;
+
+    private final ProgressTracker mProgress;
+    private final InstallMetrics mMetrics;
+    private final CancellationToken mCancellationToken = new CancellationToken();
+
+    // blocking work of the download runs on transfer executor, completion goes to callback executor
+    private Executor mTransferExecutor = null;
+    private Executor mCallbackExecutor = null;
+    private boolean mStarted = false;
+    // thread which runs the download, interrupted on recycle. Guarded by this
+    private Thread mWorkerThread = null;
+    // set when worker is done with partial file and staging directory, recycled or not
+    private volatile boolean mExited = false;
+    private Runnable mOnExitRunnable = null;
+    private HttpTransport mTransport = UrlConnectionTransport.getDefault();
+    private BandwidthGovernor mBandwidthGovernor = BandwidthGovernor.getDefault();
+    private volatile int mBandwidthPriority = DownloadPriorityQueue.PRIORITY_USER;
+    // share of bandwidth, open while the task runs
+    private volatile BandwidthGovernor.Transfer mBandwidthTransfer = null;
+    private InstallTelemetry mInstallTelemetry = InstallTelemetry.getDefault();
+
+    private long mInstalledSizeBytes = 0;
+
+    private boolean mIsError = false;
+    private String mError = "unknown";
+    private int mFailureKind = DownloadFailure.KIND_PERMANENT;
+
+    // unzip while downloading instead of storing zip in temp directory first
+    private boolean mStreamingExtract = false;
+    // fetch only entries which differ from installed version of preset
+    private boolean mDeltaUpdate = false;
+    // install zip itself instead of extracted files, see MappedPresetArchive
+    private boolean mKeepArchive = false;
+    // crc and size of installed files, set when files are in place
+    private PresetManifest mManifest = null;
+    private BlobStore.LinkSupport mLinkSupport = null;
+    // samples shared with other presets, null if hard links are not available
+    private BlobStore mBlobStore = null;
+    // hash the archive must have, null if config doesn't provide one
+    private String mExpectedSha256 = null;
+    // hash of downloaded archive, computed while it is written
+    private String mArchiveSha256 = null;
+
+    public PresetsFileDownloader() {
+        this(0, null);
+    }
+
+    /*
+     * Progress of download is published to eventBus under given presetId
+     */
+    public PresetsFileDownloader(int presetId, ProgressEventBus eventBus) {
+        mProgress = new ProgressTracker(presetId, eventBus);
+        mMetrics = new InstallMetrics(presetId);
+    }
+
+    /*
+     * Must be set before downloadFile. Transfer executor runs the whole download on one of its threads,
+     * a JVM can use a virtual thread per download. Completion runnable is posted to callback executor
+     */
+    public void setExecutors(Executor transferExecutor, Executor callbackExecutor) {
+        mTransferExecutor = transferExecutor;
+        mCallbackExecutor = callbackExecutor;
+    }
+
+    /*
+     * In streaming mode the HTTP body is fed directly to the zip decoder, so download and extraction
+     * overlap and no temp zip is written. Such download can't be resumed or split into ranges
+     */
+    public void setStreamingExtract(boolean streamingExtract) {
+        mStreamingExtract = streamingExtract;
+    }
+
+    /*
+     * No-extract install: verified zip is moved into preset directory as PresetHandle.ARCHIVE_FILE_NAME
+     * and samples are served from its mapping. Takes the place of streaming extract and delta update,
+     * manifest lists no files, so such preset is always downloaded in full
+     */
+    public void setKeepArchive(boolean keepArchive) {
+        mKeepArchive = keepArchive;
+    }
+
+    /*
+     * Preset directory holds an older version with manifest: only changed entries are fetched with
+     * Range requests and removed ones are deleted. Falls back to full download if that fails
+     */
+    public void setDeltaUpdate(boolean deltaUpdate) {
+        mDeltaUpdate = deltaUpdate;
+    }
+
+    /*
+     * Hex SHA-256 of preset zip. Download fails if archive doesn't match it. Not checked by delta update,
+     * which never has the whole archive, entries are verified by their crc there
+     */
+    public void setExpectedArchiveSha256(String expectedSha256) {
+        mExpectedSha256 = expectedSha256;
+    }
+
+    public void setBlobStore(BlobStore blobStore) {
+        mBlobStore = blobStore;
+    }
+
+    // null if hard links are not available, delta update copies unchanged files to staging then
+    public void setLinkSupport(BlobStore.LinkSupport linkSupport) {
+        mLinkSupport = linkSupport;
+    }
+
+    // transport is shared between downloads, so connections to the same host are reused
+    public void setHttpTransport(HttpTransport transport) {
+        mTransport = transport;
+    }
+
+    public void setBandwidthGovernor(BandwidthGovernor bandwidthGovernor) {
+        mBandwidthGovernor = bandwidthGovernor;
+    }
+
+    /*
+     * Run on callback executor once worker has exited, after onDownloadCompletedRunnable if that one runs.
+     * Recycled download runs it too, so the same preset may be started again without two workers
+     * writing its partial file and staging directory. Not run if downloadFile was never called
+     */
+    public void setOnExitRunnable(Runnable onExitRunnable) {
+        mOnExitRunnable = onExitRunnable;
+    }
+
+    // true if downloadFile was called and its worker has exited
+    public boolean hasExited() {
+        return mExited;
+    }
+
+    // finished install is recorded there unless it was cancelled
+    public void setInstallTelemetry(InstallTelemetry installTelemetry) {
+        mInstallTelemetry = installTelemetry;
+    }
+
+    /*
+     * DownloadPriorityQueue.PRIORITY_* which decides share of bandwidth. May be changed while downloading
+     */
+    public void setBandwidthPriority(int priority) {
+        mBandwidthPriority = priority;
+        BandwidthGovernor.Transfer transfer = mBandwidthTransfer;
+        if (transfer != null) {
+            transfer.setPriority(priority);
+        }
+    }
+
+    private void downloadAndUnzipStreaming(String _url, File targetDirectory) {
+        final String streamingError = "[PresetsFileDownloader] Error while downloading and unzipping preset. ";
+        HttpResponse response = null;
+        long startNanos = System.nanoTime();
+        try {
+            response = mTransport.execute(new HttpRequest(_url));
+            checkResponseCode(response);
+            // download and unzip go together, so downloaded bytes are the whole progress
+            mProgress.startPhase(response.getContentLength(), 0, 0, 99);
+            ArrayList<ZipEntryInfo> extractedEntries = new ArrayList<>();
+            // zip decoder checks crc of entries, archive hash is taken from the same bytes on the way
+            MessageDigest digest = HashUtils.newSha256();
+            if (StreamingZipExtractor.extract(new DigestInputStream(response.getBody(), digest), targetDirectory,
+                    mCancellationToken, mProgress, extractedEntries)) {
+                mArchiveSha256 = HashUtils.toHex(digest.digest());
+                if (verifyArchiveHash(null)) {
+                    mManifest = new PresetManifest(extractedEntries);
+                }
+                // extraction overlaps download here, so it has no duration of its own
+                long extractedBytes = 0;
+                for (ZipEntryInfo entry : extractedEntries) {
+                    extractedBytes += entry.getUncompressedSize();
+                }
+                mMetrics.set(InstallMetrics.EXTRACTED_BYTES, extractedBytes);
+            }
+        } catch (Exception e) {
+            riseError(streamingError, e);
+        } finally {
+            if (response != null) {
+                response.close();
+            }
+            measureDownload(startNanos);
+        }
+    }
+
+    private void measureDownload(long startNanos) {
+        mMetrics.setElapsed(InstallMetrics.DOWNLOAD_MS, startNanos);
+        long bytes = mMetrics.get(InstallMetrics.DOWNLOADED_BYTES);
+        if (bytes > 0) {
+            mMetrics.set(InstallMetrics.DOWNLOAD_BYTES_PER_SECOND,
+                    bytes * 1000 / Math.max(1, mMetrics.get(InstallMetrics.DOWNLOAD_MS)));
+        }
+    }
+
+    private void downloadPresetZip(String _url, String outputPath) {
+        long partitionFreeSpace = FileUtils.getPartitionFreeSpace(outputPath);
+        if (partitionFreeSpace <= 0) { // 0 or -1 is returned in case of error
+            riseError("[PresetsFileDownloader] Failed to determine free space. Preset will not be downloaded", null);
+            return;
+        }
+
+        final String downloadError = "[PresetsFileDownloader] Error while downloading preset. Free space: ";
+        SegmentedFileDownloader segmentedDownloader = new SegmentedFileDownloader(mTransport,
+                SegmentedFileDownloader.DEFAULT_SEGMENT_COUNT, SegmentedFileDownloader.DEFAULT_MIN_SEGMENT_SIZE);
+        SegmentedFileDownloader.RangeSupport rangeSupport;
+        try {
+            rangeSupport = segmentedDownloader.probe(_url);
+        } catch (IOException e) {
+            // some servers reject HEAD, plain GET below will report real problem if there is one
+            rangeSupport = new SegmentedFileDownloader.RangeSupport(-1, false, null);
+        }
+        if (!rangeSupport.isResumable()) {
+            // no way to resume or split, previous partial download is useless
+            PartialDownload.delete(new File(outputPath));
+            downloadPresetZipSingleStream(_url, outputPath, downloadError + partitionFreeSpace);
+            return;
+        }
+        try {
+            if (!downloadPresetZipInRanges(segmentedDownloader, _url, new File(outputPath), rangeSupport)) {
+                DownloadLog.d("[PresetsFileDownloader] Remote file changed during download, starting over: " + _url);
+                PartialDownload.delete(new File(outputPath));
+                // validator of the old version would turn every If-Range into a full body again
+                rangeSupport = segmentedDownloader.probe(_url);
+                if (!rangeSupport.isResumable()) {
+                    downloadPresetZipSingleStream(_url, outputPath, downloadError + partitionFreeSpace);
+                } else if (!downloadPresetZipInRanges(segmentedDownloader, _url, new File(outputPath), rangeSupport)) {
+                    // being uploaded right now, worth another try a bit later
+                    PartialDownload.delete(new File(outputPath));
+                    riseError(downloadError + partitionFreeSpace,
+                            new IOException("Remote file changed again during download"), DownloadFailure.KIND_SERVER);
+                }
+            }
+        } catch (IOException e) {
+            riseError(downloadError + partitionFreeSpace, e);
+        }
+    }
+
+    // returns false if remote file changed since partial download was started and download must start over
+    private boolean downloadPresetZipInRanges(SegmentedFileDownloader segmentedDownloader, String url,
+                                              File outputFile, SegmentedFileDownloader.RangeSupport rangeSupport)
+            throws IOException {
+        PartialDownload partialDownload = PartialDownload.load(outputFile);
+        if (partialDownload != null && partialDownload.canResume(url, rangeSupport.validator,
+                rangeSupport.contentLength, outputFile)) {
+            DownloadLog.d("[PresetsFileDownloader] Resuming download of " + url + " from byte " +
+                    partialDownload.getBytesWritten() + " of " + partialDownload.getContentLength());
+        } else {
+            PartialDownload.delete(outputFile);
+            partialDownload = PartialDownload.create(url, rangeSupport.validator, rangeSupport.contentLength,
+                    segmentedDownloader.getSegmentCount(rangeSupport));
+        }
+        try {
+            mProgress.startPhase(partialDownload.getContentLength(), partialDownload.getBytesWritten(),
+                    0, DOWNLOAD_PERCENT_IN_OVERALL_PROGRESS);
+            segmentedDownloader.download(url, outputFile, partialDownload, mCancellationToken, mProgress);
+            return true;
+        } catch (SegmentedFileDownloader.RemoteFileChangedException e) {
+            return false;
+        }
+    }
+
+    private void downloadPresetZipSingleStream(String _url, String outputPath, String downloadError) {
+        HttpResponse response = null;
+        RandomAccessFile outputFile = null;
+        try {
+            response = mTransport.execute(new HttpRequest(_url));
+            checkResponseCode(response);
+            long fileSize = response.getContentLength();
+            // archive is written sequentially here, so it is hashed on the way with no extra read
+            MessageDigest digest = HashUtils.newSha256();
+            InputStream inputStream = new DigestInputStream(response.getBody(), digest);
+
+            // opens a channel to save into file, space for whole zip is reserved up front when size is known
+            outputFile = new RandomAccessFile(outputPath, "rw");
+            outputFile.setLength(0);
+            ChannelIo.preallocate(outputFile, fileSize);
+
+            mProgress.startPhase(fileSize, 0, 0, DOWNLOAD_PERCENT_IN_OVERALL_PROGRESS);
+            long totalSizeRead = ChannelIo.copy(inputStream, outputFile.getChannel(), 0, -1,
+                    new AdaptiveBufferSize(), mCancellationToken, new ChannelIo.WriteListener() {
+                        @Override
+                        public void onBytesWritten(int count) {
+                            mProgress.onBytesProcessed(count);
+                        }
+                    });
+            if (!mCancellationToken.isCancelled() && fileSize > 0 && totalSizeRead != fileSize) {
+                throw new EOFException("Download ended early: " + totalSizeRead + " of " + fileSize + " bytes");
+            }
+            if (!mCancellationToken.isCancelled()) {
+                mArchiveSha256 = HashUtils.toHex(digest.digest());
+            }
+
+            outputFile.close();
+        } catch (Exception e) {
+            riseError(downloadError, e);
+        } finally {
+            if (response != null) {
+                response.close();
+            }
+            try {
+                if (outputFile != null) {
+                    outputFile.close();
+                }
+            } catch (Exception e) {
+                riseError(downloadError, e);
+            }
+        }
+    }
+
+    private static void checkResponseCode(HttpResponse response) throws IOException {
+        if (response.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            throw new HttpStatusException(response.getResponseCode(), "Unexpected response");
+        }
+    }
+
+    /*
+     * Compares hash of downloaded archive with expected one, if there is one. Ranges are written out of
+     * order, so their archive is hashed only in that case, with one sequential read of archiveFile
+     */
+    private boolean verifyArchiveHash(File archiveFile) {
+        if (mExpectedSha256 == null) {
+            return true;
+        }
+        final String hashError = "[PresetsFileDownloader] Downloaded preset archive is corrupt";
+        if (mArchiveSha256 == null && archiveFile != null) {
+            try {
+                mArchiveSha256 = HashUtils.sha256(archiveFile, mCancellationToken);
+            } catch (IOException e) {
+                riseError(hashError, e);
+                return false;
+            }
+            if (mArchiveSha256 == null) {
+                return false; // cancelled
+            }
+        }
+        if (!HashUtils.hashEquals(mExpectedSha256, mArchiveSha256)) {
+            riseError(hashError, new IOException("SHA-256 is " + mArchiveSha256 + ", expected " + mExpectedSha256),
+                    DownloadFailure.KIND_CORRUPT_ARCHIVE);
+            return false;
+        }
+        return true;
+    }
+
+    private void downloadAndUnzip(String url, String downloadPath, String unzipDirectoryPath) {
+        long startNanos = System.nanoTime();
+        downloadPresetZip(url, downloadPath);
+        endNetworkPhase();
+        measureDownload(startNanos);
+        if (!mIsError && !mCancellationToken.isCancelled() && !verifyArchiveHash(new File(downloadPath))) {
+            if (!mCancellationToken.isCancelled()) {
+                // resuming a broken archive gives the same broken archive
+                PartialDownload.delete(new File(downloadPath));
+            }
+            return;
+        }
+        if (!mIsError && !mCancellationToken.isCancelled()) {
+            // don't continue if error
+            unzipDownloadedFile(new File(downloadPath), new File(unzipDirectoryPath));
+            if (!mCancellationToken.isCancelled()) {
+                // zip is either unpacked or broken, in both cases it must not be resumed later
+                PartialDownload.delete(new File(downloadPath));
+            }
+        }
+    }
+
+    private void downloadAndKeepArchive(String url, String downloadPath, File targetDirectory) {
+        long startNanos = System.nanoTime();
+        downloadPresetZip(url, downloadPath);
+        endNetworkPhase();
+        measureDownload(startNanos);
+        File zipFile = new File(downloadPath);
+        if (mIsError || mCancellationToken.isCancelled()) {
+            return;
+        }
+        if (!verifyArchiveHash(zipFile)) {
+            if (!mCancellationToken.isCancelled()) {
+                PartialDownload.delete(zipFile);
+            }
+            return;
+        }
+        final String keepArchiveError = "[PresetsFileDownloader] Can't keep downloaded preset archive";
+        startNanos = System.nanoTime();
+        File archiveFile = new File(targetDirectory, PresetHandle.ARCHIVE_FILE_NAME);
+        try {
+            // central directory and every local header must be readable before it replaces installed version
+            MappedPresetArchive archive = MappedPresetArchive.open(zipFile);
+            mMetrics.setElapsed(InstallMetrics.CENTRAL_DIRECTORY_MS, startNanos);
+            try {
+                // samples are served later with no crc check, so every entry is checked here once
+                mProgress.startPhase(archive.getTotalUncompressedSize(), 0, DOWNLOAD_PERCENT_IN_OVERALL_PROGRESS, 100);
+                startNanos = System.nanoTime();
+                if (!archive.verify(mCancellationToken, mProgress)) {
+                    return; // cancelled, complete zip is kept for the next attempt
+                }
+                mMetrics.setElapsed(InstallMetrics.EXTRACT_MS, startNanos);
+            } finally {
+                archive.close();
+            }
+            // temp and download directories share a partition, so it is a rename and not a copy
+            if (!zipFile.renameTo(archiveFile)) {
+                throw new IOException("Can't move " + zipFile + " to " + archiveFile);
+            }
+            mManifest = new PresetManifest();
+            mMetrics.set(InstallMetrics.EXTRACTED_BYTES, 0);
+        } catch (IOException e) {
+            riseError(keepArchiveError, e);
+        }
+        // zip is either installed or broken, in both cases it must not be resumed later
+        PartialDownload.delete(zipFile);
+    }
+
+    private void unzipDownloadedFile(File zipFile, File targetDirectory) {
+        // first read sizes from central directory to update progress bar
+        final String unzipPresetError = "[PresetsFileDownloader] Error while unzipping downloaded preset. ";
+        ZipArchiveInfo archiveInfo;
+        long startNanos = System.nanoTime();
+        try {
+            archiveInfo = ZipMetadataReader.read(zipFile);
+        } catch (IOException e) {
+            riseError(unzipPresetError, e);
+            return;
+        }
+        mMetrics.setElapsed(InstallMetrics.CENTRAL_DIRECTORY_MS, startNanos);
+
+        if (mCancellationToken.isCancelled() || mIsError) {
+            return;
+        }
+
+        // extract independent entries in parallel and create directory structure once
+        try {
+            mProgress.startPhase(archiveInfo.getTotalUncompressedSize(), 0, DOWNLOAD_PERCENT_IN_OVERALL_PROGRESS, 100);
+            long startTime = System.currentTimeMillis();
+            ParallelZipExtractor extractor = new ParallelZipExtractor();
+            extractor.setBlobStore(mBlobStore);
+            if (extractor.extract(zipFile, archiveInfo, targetDirectory, mCancellationToken, mProgress)) {
+                mManifest = new PresetManifest(archiveInfo.getEntries());
+                mMetrics.set(InstallMetrics.EXTRACT_MS, System.currentTimeMillis() - startTime);
+                mMetrics.set(InstallMetrics.EXTRACTED_BYTES, archiveInfo.getTotalUncompressedSize());
+            }
+            if (mBlobStore != null) {
+                mMetrics.set(InstallMetrics.LINKED_FILES, extractor.getLinkedEntries());
+                mMetrics.set(InstallMetrics.LINKED_BYTES, extractor.getLinkedBytes());
+            }
+            DownloadLog.d("[PresetsFileDownloader] Unzipped " + archiveInfo.getTotalUncompressedSize() + " bytes in " +
+                    (System.currentTimeMillis() - startTime) + " ms, linked from blob store: " +
+                    extractor.getLinkedBytes() + " bytes");
+        } catch (IOException e) {
+            riseError(unzipPresetError, e);
+        }
+    }
+
+    // returns false if preset can't be updated incrementally and must be downloaded in full
+    private boolean updateChangedEntries(String url, StagedInstall install) {
+        PresetManifest installed = PresetManifest.load(install.getPresetDirectory());
+        if (installed == null) {
+            return false;
+        }
+        try {
+            long startNanos = System.nanoTime();
+            RemoteZipReader remoteZip = new RemoteZipReader(mTransport, url);
+            ZipArchiveInfo remoteInfo = remoteZip.readArchiveInfo();
+            PresetManifest.Delta delta = installed.diff(remoteInfo);
+            DownloadLog.d("[PresetsFileDownloader] Updating " + delta.changedEntries.size() + " of " +
+                    remoteInfo.getEntryCount() + " entries (" + delta.getChangedCompressedSize() + " of " +
+                    remoteZip.getArchiveLength() + " bytes), removing " + delta.removedNames.size());
+
+            // changes go to a copy of installed version, which stays playable meanwhile
+            File stagingDirectory = install.beginFromInstalled(mLinkSupport);
+            mProgress.startPhase(delta.getChangedCompressedSize(), 0, 0, 100);
+            if (!remoteZip.extractEntries(delta.changedEntries, stagingDirectory, mCancellationToken, mProgress)) {
+                return true; // cancelled
+            }
+            for (String name : delta.removedNames) {
+                File file = ZipUtils.resolveEntryFile(stagingDirectory, name);
+                if (file.exists() && !file.delete()) {
+                    throw new IOException("Can't delete " + file);
+                }
+            }
+            mManifest = new PresetManifest(remoteInfo.getEntries());
+            // changed entries are unzipped as they arrive, so it is all download time
+            measureDownload(startNanos);
+            mMetrics.set(InstallMetrics.EXTRACTED_BYTES, delta.getChangedUncompressedSize());
+            return true;
+        } catch (IOException e) {
+            DownloadLog.e("[PresetsFileDownloader] Incremental update failed, downloading whole preset: " +
+                    e.toString());
+            return false;
+        }
+    }
+
+    /*
+     * Manifest goes last and makes staged files the installed preset in one step
+     */
+    private void commitInstall(StagedInstall install, String presetVersion) {
+        final String commitError = "[PresetsFileDownloader] Can't commit installed preset";
+        if (mManifest == null) { // additional check for analytics
+            riseError(commitError + ", no manifest", null);
+            return;
+        }
+        long startNanos = System.nanoTime();
+        // measured here in background, so installed preset index gets it for free
+        mInstalledSizeBytes = InstalledPresetIndex.getDirectorySize(install.getStagingDirectory());
+        mManifest.setVersion(presetVersion);
+        mManifest.setSizeBytes(mInstalledSizeBytes);
+        mManifest.setArchiveSha256(mArchiveSha256);
+        try {
+            install.commit(mManifest);
+        } catch (IOException e) {
+            riseError(commitError, e);
+        }
+        mMetrics.setElapsed(InstallMetrics.MARKER_FILES_MS, startNanos);
+    }
+
+    /*
+     * Gives bandwidth share of this download back to others, unzip and commit don't need it
+     */
+    private void endNetworkPhase() {
+        BandwidthGovernor.Transfer transfer = mBandwidthTransfer;
+        if (transfer != null) {
+            transfer.close();
+        }
+    }
+
+    private void riseError(String message, Exception e) {
+        riseError(message, e, DownloadFailure.classify(e));
+    }
+
+    private void riseError(String message, Exception e, int failureKind) {
+        if (e == null) {
+            e = new Exception("assertion failed, no exception");
+        }
+        DownloadLog.e(message + ": " + e.toString());
+        if (!mIsError) {
+            // later errors are consequences of the first one
+            mFailureKind = failureKind;
+        }
+        mError = message + ", " + e.toString() + " ";
+        mIsError = true;
+    }
+
+    /*
+     * Starts download once, onDownloadCompletedRunnable is not run if download is recycled
+     */
+    public void downloadFile(final Runnable onDownloadCompletedRunnable,
+                             final String url, final String downloadPath,
+                             final String unzipDirectoryPath, final String presetVersion) {
+        if (mStarted) {
+            return;
+        }
+        if (mTransferExecutor == null || mCallbackExecutor == null) {
+            throw new IllegalStateException("Executors are not set");
+        }
+        mStarted = true;
+
+        mTransferExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (PresetsFileDownloader.this) {
+                    mWorkerThread = Thread.currentThread();
+                }
+                try {
+                    if (!mCancellationToken.isCancelled()) {
+                        downloadAndMeasure();
+                    }
+                } finally {
+                    synchronized (PresetsFileDownloader.this) {
+                        mWorkerThread = null;
+                        // pooled thread must not keep interruption of this download
+                        Thread.interrupted();
+                    }
+                    mExited = true;
+                }
+                mCallbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mCancellationToken.isCancelled()) {
+                            onDownloadCompletedRunnable.run();
+                        }
+                        if (mOnExitRunnable != null) {
+                            mOnExitRunnable.run();
+                        }
+                    }
+                });
+            }
+
+            private void downloadAndMeasure() {
+                // every body read below goes through bandwidth share of this download
+                long startNanos = System.nanoTime();
+                mBandwidthTransfer = mBandwidthGovernor.openTransfer(mBandwidthPriority);
+                // measured below throttling, so timings are of the network and not of the bandwidth share
+                mTransport = new ThrottledTransport(new TimingTransport(mTransport, mMetrics), mBandwidthTransfer);
+                try {
+                    downloadAndInstall();
+                } finally {
+                    mBandwidthTransfer.close();
+                }
+                if (!mCancellationToken.isCancelled()) {
+                    // engine has published its own state for a cancelled or preempted preset already
+                    mProgress.finish(100);
+                    mMetrics.setElapsed(InstallMetrics.TOTAL_MS, startNanos);
+                    mMetrics.setSucceeded(!mIsError);
+                    mInstallTelemetry.record(mMetrics);
+                }
+            }
+
+            private void downloadAndInstall() {
+                StagedInstall install = new StagedInstall(new File(unzipDirectoryPath));
+                try {
+                    if (mKeepArchive || !mDeltaUpdate || !updateChangedEntries(url, install)) {
+                        File stagingDirectory = install.begin();
+                        if (mKeepArchive) {
+                            downloadAndKeepArchive(url, downloadPath, stagingDirectory);
+                        } else if (mStreamingExtract) {
+                            downloadAndUnzipStreaming(url, stagingDirectory);
+                        } else {
+                            downloadAndUnzip(url, downloadPath, stagingDirectory.getPath());
+                        }
+                    }
+                } catch (IOException e) {
+                    riseError("[PresetsFileDownloader] Can't prepare staging directory", e);
+                }
+                // streaming and incremental installs unzip while downloading, so network is done only here
+                endNetworkPhase();
+                if (!mIsError && !mCancellationToken.isCancelled()) {
+                    commitInstall(install, presetVersion);
+                }
+                if (mIsError || mCancellationToken.isCancelled()) {
+                    // installed version, if any, is left as it was
+                    install.abort();
+                }
+            }
+        });
+    }
+
+    public void recycle() {
+        // token first, so loops stop even if the task has not noticed interruption
+        mCancellationToken.cancel();
+        synchronized (this) {
+            if (mWorkerThread != null) {
+                mWorkerThread.interrupt();
+            }
+        }
+    }
+
+    public boolean isDownloadCompletedSuccessfully() {
+        return !mIsError;
+    }
+
+    public String getErrorMessage() {
+        return mError;
+    }
+
+    // DownloadFailure.KIND_* of the first error, meaningful only if download failed
+    public int getFailureKind() {
+        return mFailureKind;
+    }
+
+    // size of unzipped preset, known after successful download
+    public long getInstalledSizeBytes() {
+        return mInstalledSizeBytes;
+    }
+
+    // hex SHA-256 of installed archive, null if it was not computed (incremental update)
+    public String getArchiveSha256() {
+        return mArchiveSha256;
+    }
+
+    // stage timings, complete when download is finished
+    public InstallMetrics getInstallMetrics() {
+        return mMetrics;
+    }
+
+    public int getTaskProgress() {
+        return mProgress.getPercent();
+    }
+}
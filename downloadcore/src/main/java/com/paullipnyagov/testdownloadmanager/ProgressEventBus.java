@@ -0,0 +1,70 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pushes per-preset progress to subscribers on their own executors. Publishing never blocks:
+ * every subscriber has at most one delivery queued, which hands over only the latest value of each preset.
+ */
+public class ProgressEventBus {
+
+    public interface Listener {
+        // progress in % (0 - 100) or one of PresetDownloadEngine.PROGRESS_* states
+        void onPresetProgress(int presetId, int progress);
+    }
+
+    private static class Subscription implements Runnable {
+        final Listener mListener;
+        final Executor mExecutor;
+        final ConcurrentHashMap<Integer, Integer> mPending = new ConcurrentHashMap<>();
+        final AtomicBoolean mScheduled = new AtomicBoolean(false);
+
+        Subscription(Listener listener, Executor executor) {
+            mListener = listener;
+            mExecutor = executor;
+        }
+
+        void offer(int presetId, int progress) {
+            // newer value replaces one which was not delivered yet
+            mPending.put(presetId, progress);
+            if (mScheduled.compareAndSet(false, true)) {
+                mExecutor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            // cleared before draining, so a value offered meanwhile schedules another run
+            mScheduled.set(false);
+            for (Integer presetId : mPending.keySet()) {
+                Integer progress = mPending.remove(presetId);
+                if (progress != null) {
+                    mListener.onPresetProgress(presetId, progress);
+                }
+            }
+        }
+    }
+
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+
+    public void subscribe(Listener listener, Executor executor) {
+        mSubscriptions.add(new Subscription(listener, executor));
+    }
+
+    public void unsubscribe(Listener listener) {
+        for (Subscription subscription : mSubscriptions) {
+            if (subscription.mListener == listener) {
+                mSubscriptions.remove(subscription);
+            }
+        }
+    }
+
+    public void publish(int presetId, int progress) {
+        for (Subscription subscription : mSubscriptions) {
+            subscription.offer(presetId, progress);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte counter for one preset install which turns processed bytes into overall % and publishes it to
+ * ProgressEventBus at most once per percent and once per MIN_PUBLISH_INTERVAL_NANOS. Hot loops only do
+ * an atomic add and a compare, the division happens when a publish is due.
+ * Install is split into phases (download, unzip), each mapped to its own range of overall %.
+ */
+public class ProgressTracker implements ByteProgressListener {
+
+    public static final long MIN_PUBLISH_INTERVAL_NANOS = 100L * 1000 * 1000; // 100 ms
+
+    private final int mPresetId;
+    private final ProgressEventBus mEventBus; // null if nobody listens
+
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicInteger mLastPublished = new AtomicInteger(-1);
+    private volatile long mPhaseTotalBytes = 0;
+    private volatile int mPhaseFromPercent = 0;
+    private volatile int mPhaseToPercent = 0;
+    private volatile long mNextPublishBytes = Long.MAX_VALUE;
+    private volatile long mLastPublishNanos = 0;
+
+    public ProgressTracker(int presetId, ProgressEventBus eventBus) {
+        mPresetId = presetId;
+        mEventBus = eventBus;
+    }
+
+    /*
+     * Starts new phase of totalBytes (<= 0 if unknown) which moves overall progress from fromPercent
+     * to toPercent. doneBytes is for work done before, e.g. resumed download
+     */
+    public void startPhase(long totalBytes, long doneBytes, int fromPercent, int toPercent) {
+        mPhaseTotalBytes = totalBytes;
+        mPhaseFromPercent = fromPercent;
+        mPhaseToPercent = toPercent;
+        mBytes.set(doneBytes);
+        publish(System.nanoTime());
+    }
+
+    @Override
+    public void onBytesProcessed(long count) {
+        long bytes = mBytes.addAndGet(count);
+        if (bytes >= mNextPublishBytes) {
+            long now = System.nanoTime();
+            if (now - mLastPublishNanos >= MIN_PUBLISH_INTERVAL_NANOS) {
+                publish(now);
+            }
+        }
+    }
+
+    /*
+     * Moves progress to given value right away, e.g. 100 when install is done
+     */
+    public void finish(int percent) {
+        mPhaseTotalBytes = 0;
+        mPhaseFromPercent = percent;
+        mPhaseToPercent = percent;
+        publish(System.nanoTime());
+    }
+
+    public int getPercent() {
+        long total = mPhaseTotalBytes;
+        if (total <= 0) {
+            return mPhaseFromPercent;
+        }
+        long bytes = Math.min(mBytes.get(), total);
+        return mPhaseFromPercent + (int) (bytes * (mPhaseToPercent - mPhaseFromPercent) / total);
+    }
+
+    private void publish(long now) {
+        int percent = getPercent();
+        mLastPublishNanos = now;
+        long total = mPhaseTotalBytes;
+        int range = mPhaseToPercent - mPhaseFromPercent;
+        if (total > 0 && range > 0 && percent < mPhaseToPercent) {
+            // first byte count which gives the next whole percent
+            int step = percent + 1 - mPhaseFromPercent;
+            mNextPublishBytes = (total * step + range - 1) / range;
+        } else {
+            mNextPublishBytes = Long.MAX_VALUE;
+        }
+        // several threads may publish at once, never let an older value win
+        int last;
+        do {
+            last = mLastPublished.get();
+            if (percent <= last) {
+                return;
+            }
+        } while (!mLastPublished.compareAndSet(last, percent));
+        if (mEventBus != null) {
+            mEventBus.publish(mPresetId, percent);
+        }
+    }
+}
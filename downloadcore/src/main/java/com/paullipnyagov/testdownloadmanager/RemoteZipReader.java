@@ -0,0 +1,376 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Reads a zip on HTTP server through Range requests without downloading it: first its central directory,
+ * then only the selected entries. All requests after the first carry If-Range with the validator of the
+ * first response, so entries are never mixed from two versions of the archive.
+ * One instance serves one archive.
+ */
+public class RemoteZipReader {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    // entries closer than this are fetched in one request, reading the gap is cheaper than a new request
+    private static final long MAX_MERGED_GAP_BYTES = 64 * 1024;
+    private static final String PART_FILE_SUFFIX = ".part";
+
+    private final HttpTransport mTransport;
+    private final String mUrl;
+
+    private String mValidator;
+    private long mArchiveLength = -1;
+    private long mCentralDirectoryOffset;
+    // local header offsets of all entries and of central directory, sorted, to find where entry data ends
+    private long[] mEntryBoundaries;
+
+    public RemoteZipReader(HttpTransport transport, String url) {
+        mTransport = transport;
+        mUrl = url;
+    }
+
+    public long getArchiveLength() {
+        return mArchiveLength;
+    }
+
+    /*
+     * Fetches archive tail and central directory, two or three small requests for any archive size
+     */
+    public ZipArchiveInfo readArchiveInfo() throws IOException {
+        // suffix range: last bytes of the file, whatever its length is
+        byte[] tail = fetch("bytes=-" + ZipMetadataReader.getTailSize(Long.MAX_VALUE));
+        long tailStart = mArchiveLength - tail.length;
+        ZipMetadataReader.CentralDirectoryLocation location =
+                ZipMetadataReader.findCentralDirectory(tail, mArchiveLength);
+        if (location == null) {
+            long zip64End = ZipMetadataReader.getZip64EndOffset(tail,
+                    ZipMetadataReader.findEndOfCentralDirectory(tail));
+            byte[] record = fetch("bytes=" + zip64End + "-" + (zip64End + ZipMetadataReader.ZIP64_EOCD_SIZE - 1));
+            location = ZipMetadataReader.parseZip64End(record, 0);
+        }
+        if (location.size > Integer.MAX_VALUE) {
+            throw new ZipException("Central directory is too big: " + location.size);
+        }
+        byte[] centralDirectory;
+        if (location.offset >= tailStart) {
+            // small archives: central directory came with the tail
+            int start = (int) (location.offset - tailStart);
+            centralDirectory = Arrays.copyOfRange(tail, start, start + (int) location.size);
+        } else {
+            centralDirectory = fetch("bytes=" + location.offset + "-" + (location.offset + location.size - 1));
+        }
+        ZipArchiveInfo archiveInfo = ZipMetadataReader.parseCentralDirectory(centralDirectory, location.entryCount);
+
+        mCentralDirectoryOffset = location.offset;
+        List<ZipEntryInfo> entries = archiveInfo.getEntries();
+        mEntryBoundaries = new long[entries.size() + 1];
+        for (int i = 0; i < entries.size(); i++) {
+            mEntryBoundaries[i] = entries.get(i).getLocalHeaderOffset();
+        }
+        mEntryBoundaries[entries.size()] = location.offset;
+        Arrays.sort(mEntryBoundaries);
+        return archiveInfo;
+    }
+
+    /*
+     * Downloads and unpacks given file entries of archive read by readArchiveInfo into targetDirectory.
+     * Every file is written next to the target and renamed over it only after its CRC was checked.
+     * Returns false if cancelled. Progress is in compressed bytes of the entries
+     */
+    public boolean extractEntries(List<ZipEntryInfo> entries, File targetDirectory, CancelSignal cancelSignal,
+                                  ByteProgressListener progressListener) throws IOException {
+        ArrayList<ZipEntryInfo> sorted = new ArrayList<>(entries);
+        Collections.sort(sorted, new Comparator<ZipEntryInfo>() {
+            @Override
+            public int compare(ZipEntryInfo left, ZipEntryInfo right) {
+                long difference = left.getLocalHeaderOffset() - right.getLocalHeaderOffset();
+                return difference > 0 ? 1 : (difference < 0 ? -1 : 0);
+            }
+        });
+        int runStart = 0;
+        while (runStart < sorted.size()) {
+            // neighbouring entries are fetched with one request
+            int runEnd = runStart + 1;
+            while (runEnd < sorted.size() && sorted.get(runEnd).getLocalHeaderOffset() -
+                    getEntryEnd(sorted.get(runEnd - 1)) <= MAX_MERGED_GAP_BYTES) {
+                runEnd++;
+            }
+            if (!extractRun(sorted.subList(runStart, runEnd), targetDirectory, cancelSignal, progressListener)) {
+                return false;
+            }
+            runStart = runEnd;
+        }
+        return true;
+    }
+
+    private boolean extractRun(List<ZipEntryInfo> run, File targetDirectory, CancelSignal cancelSignal,
+                               ByteProgressListener progressListener) throws IOException {
+        long start = run.get(0).getLocalHeaderOffset();
+        long end = getEntryEnd(run.get(run.size() - 1));
+        HttpResponse response = request("bytes=" + start + "-" + (end - 1));
+        try {
+            InputStream body = response.getBody();
+            long position = start;
+            for (ZipEntryInfo entry : run) {
+                if (cancelSignal.isCancelled()) {
+                    return false;
+                }
+                skipFully(body, entry.getLocalHeaderOffset() - position);
+                long entryEnd = getEntryEnd(entry);
+                extractEntry(new BoundedInputStream(body, entryEnd - entry.getLocalHeaderOffset()), entry,
+                        targetDirectory, cancelSignal, progressListener);
+                position = entryEnd;
+            }
+            return !cancelSignal.isCancelled();
+        } finally {
+            response.close();
+        }
+    }
+
+    // input starts at local header of entry and ends where the next entry begins
+    private void extractEntry(BoundedInputStream input, ZipEntryInfo entry, File targetDirectory,
+                              CancelSignal cancelSignal, ByteProgressListener progressListener)
+            throws IOException {
+        byte[] header = new byte[LOCAL_HEADER_SIZE];
+        new DataInputStream(input).readFully(header);
+        if (ZipMetadataReader.readInt(header, 0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Bad local header of entry " + entry.getName());
+        }
+        // local extra field may differ from the one in central directory
+        skipFully(input, ZipMetadataReader.readUShort(header, 26) + ZipMetadataReader.readUShort(header, 28));
+
+        BoundedInputStream compressed = new BoundedInputStream(input, entry.getCompressedSize());
+        Inflater inflater = null;
+        InputStream data;
+        if (entry.getMethod() == ZipEntryInfo.METHOD_DEFLATED) {
+            inflater = new Inflater(true);
+            data = new InflaterInputStream(compressed, inflater);
+        } else if (entry.getMethod() == ZipEntryInfo.METHOD_STORED) {
+            data = compressed;
+        } else {
+            throw new ZipException("Unsupported compression method " + entry.getMethod() + " of " + entry.getName());
+        }
+        CheckedInputStream checkedData = new CheckedInputStream(data, new CRC32());
+
+        File file = ZipUtils.resolveEntryFile(targetDirectory, entry.getName());
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Can't create directory " + parent);
+        }
+        File partFile = new File(file.getPath() + PART_FILE_SUFFIX);
+        RandomAccessFile output = new RandomAccessFile(partFile, "rw");
+        try {
+            output.setLength(0);
+            ChannelIo.preallocate(output, entry.getUncompressedSize());
+            final BoundedInputStream counted = compressed;
+            final ByteProgressListener listener = progressListener;
+            // exactly uncompressed size is read, so inflater never asks for input past the entry
+            long copied = ChannelIo.copy(checkedData, output.getChannel(), 0, entry.getUncompressedSize(),
+                    new AdaptiveBufferSize(), cancelSignal, new ChannelIo.WriteListener() {
+                        private long mReported = 0;
+
+                        @Override
+                        public void onBytesWritten(int count) {
+                            long consumed = counted.getConsumed();
+                            listener.onBytesProcessed(consumed - mReported);
+                            mReported = consumed;
+                        }
+                    });
+            output.close();
+            output = null;
+            if (cancelSignal.isCancelled()) {
+                partFile.delete();
+                return;
+            }
+            if (copied != entry.getUncompressedSize() || checkedData.getChecksum().getValue() != entry.getCrc()) {
+                partFile.delete();
+                throw new ZipException("Entry " + entry.getName() + " is corrupt, crc or size mismatch");
+            }
+        } finally {
+            if (output != null) {
+                FileUtils.tryCloseStream(output);
+            }
+            if (inflater != null) {
+                inflater.end(); // frees native memory now instead of on finalization
+            }
+        }
+        if (!partFile.renameTo(file)) {
+            partFile.delete();
+            throw new IOException("Can't replace " + file);
+        }
+        // the rest is unread deflate tail or data descriptor
+        skipFully(input, input.getRemaining());
+    }
+
+    // offset where entry data (with data descriptor if any) ends: start of the next entry or central directory
+    private long getEntryEnd(ZipEntryInfo entry) throws ZipException {
+        int index = Arrays.binarySearch(mEntryBoundaries, entry.getLocalHeaderOffset());
+        if (index < 0) {
+            throw new ZipException("Entry " + entry.getName() + " is not in central directory");
+        }
+        while (index < mEntryBoundaries.length && mEntryBoundaries[index] <= entry.getLocalHeaderOffset()) {
+            index++;
+        }
+        return index < mEntryBoundaries.length ? mEntryBoundaries[index] : mCentralDirectoryOffset;
+    }
+
+    private byte[] fetch(String range) throws IOException {
+        HttpResponse response = request(range);
+        try {
+            long length = response.getContentLength();
+            if (length < 0 || length > Integer.MAX_VALUE) {
+                throw new IOException("Bad length of range " + range + ": " + length);
+            }
+            byte[] data = new byte[(int) length];
+            new DataInputStream(response.getBody()).readFully(data);
+            return data;
+        } finally {
+            response.close();
+        }
+    }
+
+    private HttpResponse request(String range) throws IOException {
+        HttpRequest request = new HttpRequest(mUrl);
+        request.setHeader("Range", range);
+        if (mValidator != null) {
+            request.setHeader("If-Range", mValidator);
+        }
+        HttpResponse response = mTransport.execute(request);
+        boolean ok = false;
+        try {
+            if (response.getResponseCode() == HttpURLConnection.HTTP_OK && mValidator != null) {
+                throw new SegmentedFileDownloader.RemoteFileChangedException("Remote zip changed while reading it");
+            }
+            if (response.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("Server doesn't support ranges, response code " + response.getResponseCode());
+            }
+            if (mArchiveLength < 0) {
+                mArchiveLength = parseTotalLength(response.getHeader("Content-Range"));
+                String validator = response.getHeader("ETag");
+                if (validator == null || validator.startsWith("W/")) {
+                    validator = response.getHeader("Last-Modified");
+                }
+                if (validator == null) {
+                    // nothing would protect us from combining parts of two archive versions
+                    throw new IOException("Server sent no validator, incremental update is unsafe");
+                }
+                mValidator = validator;
+            }
+            ok = true;
+            return response;
+        } finally {
+            if (!ok) {
+                response.close();
+            }
+        }
+    }
+
+    // "bytes 0-99/1234" -> 1234
+    private static long parseTotalLength(String contentRange) throws IOException {
+        int slash = contentRange == null ? -1 : contentRange.lastIndexOf('/');
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (RuntimeException e) {
+            throw new IOException("Bad Content-Range: " + contentRange);
+        }
+    }
+
+    private static void skipFully(InputStream input, long count) throws IOException {
+        while (count > 0) {
+            long skipped = input.skip(count);
+            if (skipped <= 0) {
+                // skip may refuse to move, read is the reliable way to detect end of stream
+                if (input.read() < 0) {
+                    throw new EOFException("Unexpected end of zip data");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    /*
+     * Gives at most limit bytes of underlying stream and never closes it
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+        private final long mLimit;
+        private long mConsumed = 0;
+
+        BoundedInputStream(InputStream input, long limit) {
+            super(input);
+            mLimit = limit;
+        }
+
+        long getConsumed() {
+            return mConsumed;
+        }
+
+        long getRemaining() {
+            return mLimit - mConsumed;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mConsumed >= mLimit) {
+                return -1;
+            }
+            int result = super.read();
+            if (result >= 0) {
+                mConsumed++;
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mConsumed >= mLimit) {
+                return -1;
+            }
+            int count = super.read(buffer, offset, (int) Math.min(length, mLimit - mConsumed));
+            if (count > 0) {
+                mConsumed += count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(Math.min(count, mLimit - mConsumed));
+            mConsumed += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), mLimit - mConsumed);
+        }
+
+        @Override
+        public void close() {
+            // underlying stream belongs to the response
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
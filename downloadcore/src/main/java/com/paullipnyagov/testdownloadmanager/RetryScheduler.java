@@ -0,0 +1,117 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Decides when a failed preset download is tried again. Delay grows exponentially with attempts of
+ * the preset and is jittered, so presets failed by the same outage don't come back all at once.
+ * Every kind of {@link DownloadFailure} has its own attempt limit, permanent ones are not retried.
+ * All presets share a retry budget which is refilled by started downloads, so a dead CDN costs a
+ * bounded number of extra requests instead of retries of every preset. Not thread safe, used on main thread.
+ */
+public class RetryScheduler {
+
+    public static final long DEFAULT_BASE_DELAY_MS = 2000;
+    public static final long DEFAULT_MAX_DELAY_MS = 5 * 60 * 1000;
+    // retries allowed without any download started
+    public static final double DEFAULT_BUDGET = 10;
+    // every started download adds this much budget, so retries stay below a fifth of all downloads
+    public static final double DEFAULT_BUDGET_PER_DOWNLOAD = 0.2;
+
+    // retries per preset, indexed by DownloadFailure.KIND_*
+    private static final int[] MAX_RETRIES = {5, 4, 1, 1, 0};
+    // disk full gets free only when user acts, no point to try soon
+    private static final long DISK_FULL_DELAY_MS = 60 * 1000;
+
+    private static class Item {
+        int attempts = 0;
+        long retryAtMs = 0;
+    }
+
+    private final Random mRandom;
+    private long mBaseDelayMs = DEFAULT_BASE_DELAY_MS;
+    private long mMaxDelayMs = DEFAULT_MAX_DELAY_MS;
+    private double mBudget = DEFAULT_BUDGET;
+    private double mMaxBudget = DEFAULT_BUDGET;
+    private double mBudgetPerDownload = DEFAULT_BUDGET_PER_DOWNLOAD;
+    // preset id -> retry state, only presets which failed at least once
+    private final HashMap<Integer, Item> mItems = new HashMap<>();
+
+    public RetryScheduler(Random random) {
+        mRandom = random;
+    }
+
+    public void setDelays(long baseDelayMs, long maxDelayMs) {
+        mBaseDelayMs = baseDelayMs;
+        mMaxDelayMs = maxDelayMs;
+    }
+
+    /*
+     * Retries available now and at most, refilled by budgetPerDownload of every started download
+     */
+    public void setBudget(double budget, double budgetPerDownload) {
+        mBudget = budget;
+        mMaxBudget = budget;
+        mBudgetPerDownload = budgetPerDownload;
+    }
+
+    public double getBudget() {
+        return mBudget;
+    }
+
+    public void onDownloadStarted() {
+        mBudget = Math.min(mMaxBudget, mBudget + mBudgetPerDownload);
+    }
+
+    /*
+     * Returns time in ms when preset should be tried again, or -1 if it must fail now
+     */
+    public long onDownloadFailed(int presetId, int failureKind, long nowMs) {
+        Item item = mItems.get(presetId);
+        if (item == null) {
+            item = new Item();
+            mItems.put(presetId, item);
+        }
+        if (item.attempts >= MAX_RETRIES[failureKind] || mBudget < 1) {
+            mItems.remove(presetId);
+            return -1;
+        }
+        mBudget -= 1;
+        long delayMs = failureKind == DownloadFailure.KIND_DISK_FULL ? DISK_FULL_DELAY_MS
+                : getBackoffMs(item.attempts);
+        item.attempts++;
+        item.retryAtMs = nowMs + delayMs;
+        return item.retryAtMs;
+    }
+
+    // "equal jitter": at least half of exponential delay, so retries are spread but never immediate
+    private long getBackoffMs(int attempts) {
+        long delayMs = mBaseDelayMs << Math.min(attempts, 30);
+        if (delayMs <= 0 || delayMs > mMaxDelayMs) {
+            delayMs = mMaxDelayMs;
+        }
+        long half = delayMs / 2;
+        return half + (long) (mRandom.nextDouble() * (delayMs - half));
+    }
+
+    // true while preset waits for its retry time and must not be started
+    public boolean isBackingOff(int presetId, long nowMs) {
+        Item item = mItems.get(presetId);
+        return item != null && item.retryAtMs > nowMs;
+    }
+
+    public int getAttempts(int presetId) {
+        Item item = mItems.get(presetId);
+        return item == null ? 0 : item.attempts;
+    }
+
+    // preset downloaded or removed from queue, its next failure starts from the first attempt
+    public void forget(int presetId) {
+        mItems.remove(presetId);
+    }
+
+    public void clear() {
+        mItems.clear();
+    }
+}
@@ -0,0 +1,312 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads one file over several parallel HTTP Range requests into a preallocated output file.
+ * Progress of every segment is kept in {@link PartialDownload}, so an interrupted download
+ * continues from where it stopped. Has no Android dependencies so it can be tested on the JVM.
+ * One instance serves one download.
+ */
+public class SegmentedFileDownloader {
+
+    public static final int DEFAULT_SEGMENT_COUNT = 4;
+    // files smaller than two segments of this size are not worth splitting
+    public static final long DEFAULT_MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    // segment progress is saved after this many bytes, so process death loses at most that much per segment
+    private static final long STATE_SAVE_INTERVAL_BYTES = 1024 * 1024;
+
+    private static volatile ExecutorService sSegmentExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "PresetSegment-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /*
+     * Threads segments are fetched on, e.g. virtual threads on a JVM which has them
+     */
+    public static void setSegmentExecutor(ExecutorService segmentExecutor) {
+        sSegmentExecutor = segmentExecutor;
+    }
+
+    /*
+     * Thrown when server answered If-Range with a full body, i.e. the file changed since partial download began
+     */
+    public static class RemoteFileChangedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public RemoteFileChangedException(String message) {
+            super(message);
+        }
+    }
+
+    /*
+     * Result of HEAD request made before download to decide if file can be fetched in segments
+     */
+    public static class RangeSupport {
+        public final long contentLength; // -1 if unknown
+        public final boolean acceptsRanges;
+        // strong ETag or Last-Modified of remote file, null if server sent neither
+        public final String validator;
+
+        public RangeSupport(long contentLength, boolean acceptsRanges, String validator) {
+            this.contentLength = contentLength;
+            this.acceptsRanges = acceptsRanges;
+            this.validator = validator;
+        }
+
+        public boolean isResumable() {
+            return acceptsRanges && contentLength > 0;
+        }
+    }
+
+    private final HttpTransport mTransport;
+    private final int mSegmentCount;
+    private final long mMinSegmentSize;
+
+    private volatile boolean mFailed = false;
+
+    public SegmentedFileDownloader() {
+        this(UrlConnectionTransport.getDefault(), DEFAULT_SEGMENT_COUNT, DEFAULT_MIN_SEGMENT_SIZE);
+    }
+
+    public SegmentedFileDownloader(int segmentCount, long minSegmentSize) {
+        this(UrlConnectionTransport.getDefault(), segmentCount, minSegmentSize);
+    }
+
+    public SegmentedFileDownloader(HttpTransport transport, int segmentCount, long minSegmentSize) {
+        mTransport = transport;
+        mSegmentCount = Math.max(1, segmentCount);
+        mMinSegmentSize = Math.max(1, minSegmentSize);
+    }
+
+    public RangeSupport probe(String url) throws IOException {
+        HttpRequest request = new HttpRequest(url);
+        request.setMethod(HttpRequest.METHOD_HEAD);
+        HttpResponse response = mTransport.execute(request);
+        try {
+            if (response.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                return new RangeSupport(-1, false, null);
+            }
+            boolean acceptsRanges = "bytes".equalsIgnoreCase(response.getHeader("Accept-Ranges"));
+            String validator = response.getHeader("ETag");
+            if (validator == null || validator.startsWith("W/")) {
+                // weak ETags are not allowed in If-Range
+                validator = response.getHeader("Last-Modified");
+            }
+            return new RangeSupport(response.getContentLength(), acceptsRanges, validator);
+        } finally {
+            response.close();
+        }
+    }
+
+    /*
+     * Returns number of segments the file should be split to, 1 means it should be fetched in one stream
+     */
+    public int getSegmentCount(RangeSupport rangeSupport) {
+        if (!rangeSupport.isResumable()) {
+            return 1;
+        }
+        long segments = rangeSupport.contentLength / mMinSegmentSize;
+        return (int) Math.max(1, Math.min(mSegmentCount, segments));
+    }
+
+    /*
+     * Fetches bytes of url which are still missing in partialDownload into outputFile, one Range request
+     * per unfinished segment. Returns false if download was cancelled, throws if any segment failed.
+     * Segment progress is saved to disk in both cases. progressListener gets only newly downloaded bytes
+     */
+    public boolean download(final String url, final File outputFile, final PartialDownload partialDownload,
+                            final CancelSignal cancelSignal, final ByteProgressListener progressListener)
+            throws IOException {
+        mFailed = false; // instance may be reused to start over after RemoteFileChangedException
+        final long contentLength = partialDownload.getContentLength();
+        // preallocate whole file so segments can be written at their offsets independently
+        RandomAccessFile preallocated = new RandomAccessFile(outputFile, "rw");
+        try {
+            ChannelIo.preallocate(preallocated, contentLength);
+        } finally {
+            preallocated.close();
+        }
+
+        ArrayList<Integer> unfinished = new ArrayList<>();
+        for (int i = 0; i < partialDownload.getSegmentCount(); i++) {
+            if (partialDownload.getSegmentStart(i) + partialDownload.getSegmentWritten(i) <=
+                    partialDownload.getSegmentEnd(i)) {
+                unfinished.add(i);
+            }
+        }
+        // counted down when a segment task is over or was claimed here before it started
+        final CountDownLatch exited = new CountDownLatch(unfinished.size());
+        ArrayList<AtomicBoolean> started = new ArrayList<>();
+        ArrayList<Future<Void>> segments = new ArrayList<>();
+        for (final int segment : unfinished) {
+            final AtomicBoolean segmentStarted = new AtomicBoolean();
+            started.add(segmentStarted);
+            segments.add(sSegmentExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    if (!segmentStarted.compareAndSet(false, true)) {
+                        return null; // download was over before this segment started
+                    }
+                    try {
+                        downloadSegment(url, outputFile, partialDownload, segment, cancelSignal,
+                                progressListener);
+                    } catch (IOException e) {
+                        // stop other segments early, there is no use in finishing them
+                        mFailed = true;
+                        throw e;
+                    } finally {
+                        exited.countDown();
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        IOException error = null;
+        try {
+            for (Future<Void> segment : segments) {
+                try {
+                    segment.get();
+                } catch (ExecutionException e) {
+                    if (error == null) {
+                        error = e.getCause() instanceof IOException ? (IOException) e.getCause()
+                                : new IOException("Segment download failed", e.getCause());
+                    }
+                } catch (InterruptedException e) {
+                    mFailed = true;
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for segments");
+                }
+            }
+        } finally {
+            for (Future<Void> segment : segments) {
+                if (!segment.isDone()) {
+                    segment.cancel(true);
+                }
+            }
+            for (AtomicBoolean segmentStarted : started) {
+                if (segmentStarted.compareAndSet(false, true)) {
+                    exited.countDown();
+                }
+            }
+            // a cancelled future is done at once, but its worker may still be writing the file
+            awaitUninterruptibly(exited);
+            // remember how far every segment got, this is what makes the next attempt a resume
+            partialDownload.save(outputFile);
+        }
+        if (error != null) {
+            throw error;
+        }
+        if (cancelSignal.isCancelled()) {
+            return false;
+        }
+        if (!partialDownload.isComplete()) {
+            throw new IOException("Segmented download incomplete: " + partialDownload.getBytesWritten() +
+                    " of " + contentLength);
+        }
+        return true;
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void downloadSegment(String url, File outputFile, final PartialDownload partialDownload,
+                                 final int segment, final CancelSignal cancelSignal,
+                                 final ByteProgressListener progressListener) throws IOException {
+        long start = partialDownload.getSegmentStart(segment) + partialDownload.getSegmentWritten(segment);
+        long end = partialDownload.getSegmentEnd(segment);
+        HttpRequest request = new HttpRequest(url);
+        request.setHeader("Range", "bytes=" + start + "-" + end);
+        if (partialDownload.getValidator() != null) {
+            // server sends whole file instead of range if it no longer matches bytes we already have
+            request.setHeader("If-Range", partialDownload.getValidator());
+        }
+        HttpResponse response = mTransport.execute(request);
+        RandomAccessFile output = null;
+        try {
+            int responseCode = response.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_OK && partialDownload.getValidator() != null) {
+                throw new RemoteFileChangedException("Remote file changed, validator was " +
+                        partialDownload.getValidator() + " now " + response.getHeader("ETag"));
+            }
+            if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                throw new HttpStatusException(responseCode, "Server ignored Range request for bytes " + start +
+                        "-" + end);
+            }
+            InputStream inputStream = response.getBody();
+            output = new RandomAccessFile(outputFile, "rw");
+
+            final long segmentLength = end - start + 1;
+            final File stateFile = outputFile;
+            long copied = ChannelIo.copy(inputStream, output.getChannel(), start, segmentLength,
+                    new AdaptiveBufferSize(), new CancelSignal() {
+                        @Override
+                        public boolean isCancelled() {
+                            return cancelSignal.isCancelled() || mFailed;
+                        }
+                    }, new ChannelIo.WriteListener() {
+                        private long mUnsavedBytes = 0;
+
+                        @Override
+                        public void onBytesWritten(int count) throws IOException {
+                            // only count bytes after they were written, saved state must never claim more than file has
+                            partialDownload.addSegmentWritten(segment, count);
+                            mUnsavedBytes += count;
+                            if (mUnsavedBytes >= STATE_SAVE_INTERVAL_BYTES) {
+                                partialDownload.save(stateFile);
+                                mUnsavedBytes = 0;
+                            }
+                            progressListener.onBytesProcessed(count);
+                        }
+                    });
+            if (copied < segmentLength && !cancelSignal.isCancelled() && !mFailed) {
+                throw new EOFException("Segment " + start + "-" + end + " ended early, " +
+                        (segmentLength - copied) + " bytes missing");
+            }
+            output.close();
+            output = null;
+        } finally {
+            // close errors here would hide the original exception, output is already closed on success
+            if (output != null) {
+                FileUtils.tryCloseStream(output);
+            }
+            // fully read segment leaves its connection for the next request to the same host
+            response.close();
+        }
+    }
+}
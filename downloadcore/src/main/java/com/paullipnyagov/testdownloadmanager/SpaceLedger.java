@@ -0,0 +1,91 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.File;
+import java.util.HashMap;
+
+/**
+ * Space promised to planned installs on preset storage. Batches reserve zip and extracted size of all their
+ * presets before the first one starts, so a batch which doesn't fit is refused up front instead of failing
+ * on the preset which hits the full disk. Temp and download directories are assumed to share a partition,
+ * which is true for app directories on Android and for JvmDownloadRuntime.
+ * Free space already shrinks while reserved presets download, so the ledger errs on the safe side.
+ */
+public class SpaceLedger {
+
+    // kept free for index, manifests and whatever else the device writes meanwhile
+    public static final long DEFAULT_SAFETY_MARGIN_BYTES = 50L * 1024 * 1024;
+
+    private final long mSafetyMarginBytes;
+    // preset id -> reserved bytes, guarded by this
+    private final HashMap<Integer, Long> mReservations = new HashMap<>();
+    private long mReservedBytes = 0;
+
+    public SpaceLedger(long safetyMarginBytes) {
+        mSafetyMarginBytes = safetyMarginBytes;
+    }
+
+    /*
+     * Bytes which can still be reserved on partition of directory, -1 if its free space is not known
+     */
+    public synchronized long getAvailableBytes(File directory) {
+        long freeSpace = FileUtils.getPartitionFreeSpace(directory);
+        if (freeSpace <= 0) { // 0 or -1 is returned in case of error
+            return -1;
+        }
+        return Math.max(0, freeSpace - mSafetyMarginBytes - mReservedBytes);
+    }
+
+    /*
+     * Reserves bytes[i] for presetIds[i] in given order and returns which of them got a reservation.
+     * allOrNothing refuses all presets if they don't fit together, otherwise those which don't fit are
+     * skipped and the following smaller ones may still fit. Preset which has a reservation already gets
+     * the new one instead
+     */
+    public synchronized boolean[] reserve(File directory, int[] presetIds, long[] bytes, boolean allOrNothing) {
+        boolean[] reserved = new boolean[presetIds.length];
+        long available = getAvailableBytes(directory);
+        if (available < 0) {
+            DownloadLog.e("[SpaceLedger] Free space of " + directory + " is not known, nothing is reserved");
+            return reserved;
+        }
+        long total = 0;
+        for (int i = 0; i < presetIds.length; i++) {
+            long required = bytes[i] - getReservation(presetIds[i]);
+            if (total + required <= available) {
+                reserved[i] = true;
+                total += required;
+            } else if (allOrNothing) {
+                return new boolean[presetIds.length];
+            }
+        }
+        for (int i = 0; i < presetIds.length; i++) {
+            if (reserved[i]) {
+                mReservedBytes += bytes[i] - getReservation(presetIds[i]);
+                mReservations.put(presetIds[i], bytes[i]);
+            }
+        }
+        return reserved;
+    }
+
+    private long getReservation(int presetId) {
+        Long bytes = mReservations.get(presetId);
+        return bytes != null ? bytes : 0;
+    }
+
+    // called when preset is installed, failed for good or was removed from queue
+    public synchronized void release(int presetId) {
+        Long bytes = mReservations.remove(presetId);
+        if (bytes != null) {
+            mReservedBytes -= bytes;
+        }
+    }
+
+    public synchronized void releaseAll() {
+        mReservations.clear();
+        mReservedBytes = 0;
+    }
+
+    public synchronized long getReservedBytes() {
+        return mReservedBytes;
+    }
+}
@@ -0,0 +1,171 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Install of one preset into a staging directory next to the preset directory. Installed version
+ * stays in place and playable while the new one is written, {@link #commit} writes manifest into staging
+ * and swaps directories with renames, so a preset directory is always either old or new version and
+ * complete. Crash between the two renames of commit is repaired by {@link #recover}.
+ * Staging names are not numbers, so they are never taken for preset directories. Staging name is the
+ * same for every attempt, so only one install of a preset may run at a time.
+ */
+public class StagedInstall {
+
+    private static final String STAGING_PREFIX = ".staging-";
+    private static final String OLD_PREFIX = ".old-";
+
+    private final File mPresetDirectory;
+    private final File mStagingDirectory;
+    private final File mOldDirectory;
+
+    public StagedInstall(File presetDirectory) {
+        mPresetDirectory = presetDirectory.getAbsoluteFile();
+        File parent = mPresetDirectory.getParentFile();
+        mStagingDirectory = new File(parent, STAGING_PREFIX + mPresetDirectory.getName());
+        mOldDirectory = new File(parent, OLD_PREFIX + mPresetDirectory.getName());
+    }
+
+    public File getPresetDirectory() {
+        return mPresetDirectory;
+    }
+
+    public File getStagingDirectory() {
+        return mStagingDirectory;
+    }
+
+    /*
+     * Empty staging directory, leftovers of an interrupted install are removed
+     */
+    public File begin() throws IOException {
+        FileUtils.deleteRecursive(mStagingDirectory);
+        if (!mStagingDirectory.mkdirs()) {
+            throw new IOException("Can't create staging directory " + mStagingDirectory);
+        }
+        return mStagingDirectory;
+    }
+
+    /*
+     * Staging directory with files of installed version except manifest, for incremental update.
+     * Files are hard links where linkSupport allows (null if it doesn't), copies otherwise. Changed
+     * entries are replaced by rename, so installed version is never modified through its links
+     */
+    public File beginFromInstalled(BlobStore.LinkSupport linkSupport) throws IOException {
+        begin();
+        long[] copiedBytes = new long[1];
+        populate(mPresetDirectory, mStagingDirectory, linkSupport, copiedBytes);
+        if (copiedBytes[0] > 0) {
+            DownloadLog.d("[StagedInstall] Hard links are not available, copied " + copiedBytes[0] +
+                    " bytes to staging");
+        }
+        return mStagingDirectory;
+    }
+
+    private static void populate(File source, File target, BlobStore.LinkSupport linkSupport, long[] copiedBytes)
+            throws IOException {
+        File[] files = source.listFiles();
+        if (files == null) {
+            throw new IOException("Can't list " + source);
+        }
+        for (File file : files) {
+            File targetFile = new File(target, file.getName());
+            if (file.isDirectory()) {
+                if (!targetFile.mkdir()) {
+                    throw new IOException("Can't create directory " + targetFile);
+                }
+                populate(file, targetFile, linkSupport, copiedBytes);
+            } else if (!file.getName().equals(PresetManifest.FILE_NAME)) {
+                if (linkSupport != null) {
+                    try {
+                        linkSupport.link(file, targetFile);
+                        continue;
+                    } catch (IOException e) {
+                        // storage without hard links, copy below
+                    }
+                }
+                copiedBytes[0] += copy(file, targetFile);
+            }
+        }
+    }
+
+    private static long copy(File source, File target) throws IOException {
+        FileInputStream input = new FileInputStream(source);
+        try {
+            FileOutputStream output = new FileOutputStream(target);
+            try {
+                long length = input.getChannel().size();
+                if (ChannelIo.transfer(input.getChannel(), 0, length, output.getChannel(), 0) != length) {
+                    throw new IOException("Can't copy " + source);
+                }
+                return length;
+            } finally {
+                FileUtils.tryCloseStream(output);
+            }
+        } finally {
+            FileUtils.tryCloseStream(input);
+        }
+    }
+
+    /*
+     * Makes staged files the installed preset. Manifest is the last file written, old version is
+     * deleted after the swap
+     */
+    public void commit(PresetManifest manifest) throws IOException {
+        manifest.save(mStagingDirectory);
+        FileUtils.deleteRecursive(mOldDirectory);
+        boolean hadInstalled = mPresetDirectory.exists();
+        if (hadInstalled && !mPresetDirectory.renameTo(mOldDirectory)) {
+            throw new IOException("Can't move installed preset " + mPresetDirectory + " aside");
+        }
+        if (!mStagingDirectory.renameTo(mPresetDirectory)) {
+            // installed version goes back, staging is aborted or retried by the caller
+            if (hadInstalled && !mOldDirectory.renameTo(mPresetDirectory)) {
+                DownloadLog.e("[StagedInstall] Can't restore " + mPresetDirectory + ", it is repaired on next start");
+            }
+            throw new IOException("Can't rename " + mStagingDirectory + " to " + mPresetDirectory);
+        }
+        FileUtils.deleteRecursive(mOldDirectory);
+    }
+
+    // drops staged files, installed version is not touched
+    public void abort() {
+        FileUtils.deleteRecursive(mStagingDirectory);
+    }
+
+    /*
+     * Finishes or rolls back installs interrupted by process death. Must run before the download
+     * directory is scanned and while nothing is installed
+     */
+    public static void recover(File downloadDirectory) {
+        File[] files = downloadDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(STAGING_PREFIX)) {
+                File presetDirectory = new File(downloadDirectory, name.substring(STAGING_PREFIX.length()));
+                // staging with manifest was committed, only the rename to preset directory is missing
+                if (!presetDirectory.exists() && PresetManifest.readHeader(file) != null &&
+                        file.renameTo(presetDirectory)) {
+                    DownloadLog.d("[StagedInstall] Finished interrupted commit of " + presetDirectory.getName());
+                } else {
+                    FileUtils.deleteRecursive(file);
+                }
+            }
+        }
+        // second pass, so a staging directory had its chance to become the preset first
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(OLD_PREFIX)) {
+                File presetDirectory = new File(downloadDirectory, name.substring(OLD_PREFIX.length()));
+                if (presetDirectory.exists() || !file.renameTo(presetDirectory)) {
+                    FileUtils.deleteRecursive(file);
+                }
+            }
+        }
+    }
+}
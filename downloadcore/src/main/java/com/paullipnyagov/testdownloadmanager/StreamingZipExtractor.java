@@ -0,0 +1,131 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Unpacks a zip while it is still being downloaded: HTTP body goes straight into the zip decoder
+ * and entries are written as soon as they arrive. No temp zip is stored and archive is read once.
+ */
+public class StreamingZipExtractor {
+
+    private static final int FILE_BUFFER_SIZE = 8192;
+
+    /*
+     * Counts bytes read from the network so progress can be shown against Content-Length
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount = 0;
+        private long mReportedCount = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result != -1) {
+                mCount++;
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int result = super.read(buffer, offset, length);
+            if (result > 0) {
+                mCount += result;
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
+
+    /*
+     * Reads zip from input until the end and extracts it to targetDirectory.
+     * Returns false if cancelled. Input stream is not closed.
+     * Progress counts bytes taken from input, i.e. the download progress.
+     * Crc and size of every extracted file are added to extractedEntries unless it is null
+     */
+    public static boolean extract(InputStream input, File targetDirectory, CancelSignal cancelSignal,
+                                  final ByteProgressListener progressListener, List<ZipEntryInfo> extractedEntries)
+            throws IOException {
+        final CountingInputStream countingInput = new CountingInputStream(input);
+        ZipInputStream zis = new ZipInputStream(new BufferedInputStream(countingInput, FILE_BUFFER_SIZE));
+        byte[] buffer = new byte[FILE_BUFFER_SIZE];
+        AdaptiveBufferSize bufferSize = new AdaptiveBufferSize();
+        ZipEntry ze;
+        while ((ze = zis.getNextEntry()) != null) {
+            if (cancelSignal.isCancelled()) {
+                return false;
+            }
+            File file = ZipUtils.resolveEntryFile(targetDirectory, ze.getName());
+            File dir = ze.isDirectory() ? file : file.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Can't create directory " + dir);
+            }
+            if (ze.isDirectory()) {
+                continue;
+            }
+            RandomAccessFile output = new RandomAccessFile(file, "rw");
+            try {
+                output.setLength(0);
+                // local header has sizes unless archive was written with data descriptors
+                ChannelIo.preallocate(output, ze.getSize());
+                long copied = ChannelIo.copy(zis, output.getChannel(), 0, -1, bufferSize, cancelSignal,
+                        new ChannelIo.WriteListener() {
+                            @Override
+                            public void onBytesWritten(int count) {
+                                reportConsumedBytes(countingInput, progressListener);
+                            }
+                        });
+                if (cancelSignal.isCancelled()) {
+                    return false;
+                }
+                if (ze.getSize() >= 0 && copied != ze.getSize()) {
+                    // preallocated tail would stay in file otherwise
+                    output.setLength(copied);
+                }
+                if (extractedEntries != null) {
+                    // crc is known once entry was read to the end, local header may not have it
+                    extractedEntries.add(new ZipEntryInfo(ze.getName(), ze.getMethod(), ze.getCrc(),
+                            ze.getCompressedSize(), copied, -1));
+                }
+            } finally {
+                output.close();
+            }
+        }
+        // drain central directory, so the whole body is consumed and connection can be reused
+        while (countingInput.read(buffer) != -1) {
+            if (cancelSignal.isCancelled()) {
+                return false;
+            }
+        }
+        reportConsumedBytes(countingInput, progressListener);
+        return true;
+    }
+
+    private static void reportConsumedBytes(CountingInputStream input, ByteProgressListener progressListener) {
+        long count = input.getCount();
+        progressListener.onBytesProcessed(count - input.mReportedCount);
+        input.mReportedCount = count;
+    }
+}
@@ -0,0 +1,87 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * {@link HttpTransport} whose response bodies are read within the bandwidth share of one transfer.
+ * All requests of one preset download go through the same instance, so parallel segments share it.
+ */
+public class ThrottledTransport implements HttpTransport {
+
+    private final HttpTransport mTransport;
+    private final BandwidthGovernor.Transfer mTransfer;
+
+    public ThrottledTransport(HttpTransport transport, BandwidthGovernor.Transfer transfer) {
+        mTransport = transport;
+        mTransfer = transfer;
+    }
+
+    @Override
+    public HttpResponse execute(HttpRequest request) throws IOException {
+        final HttpResponse response = mTransport.execute(request);
+        return new HttpResponse() {
+            @Override
+            public int getResponseCode() {
+                return response.getResponseCode();
+            }
+
+            @Override
+            public String getHeader(String name) {
+                return response.getHeader(name);
+            }
+
+            @Override
+            public long getContentLength() {
+                return response.getContentLength();
+            }
+
+            @Override
+            public InputStream getBody() throws IOException {
+                return new ThrottledInputStream(response.getBody(), mTransfer);
+            }
+
+            @Override
+            public void close() {
+                response.close();
+            }
+        };
+    }
+
+    private static class ThrottledInputStream extends FilterInputStream {
+        private final BandwidthGovernor.Transfer mTransfer;
+
+        ThrottledInputStream(InputStream in, BandwidthGovernor.Transfer transfer) {
+            super(in);
+            mTransfer = transfer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result != -1) {
+                mTransfer.onBytesRead(1);
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int result = super.read(buffer, offset, length);
+            if (result > 0) {
+                mTransfer.onBytesRead(result);
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            if (skipped > 0) {
+                mTransfer.onBytesRead((int) Math.min(skipped, Integer.MAX_VALUE));
+            }
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * {@link HttpTransport} which measures requests of one install into its {@link InstallMetrics}:
+ * connect time and time to first byte of the first request, body bytes of all of them.
+ */
+public class TimingTransport implements HttpTransport {
+
+    private final HttpTransport mTransport;
+    private final InstallMetrics mMetrics;
+
+    public TimingTransport(HttpTransport transport, InstallMetrics metrics) {
+        mTransport = transport;
+        mMetrics = metrics;
+    }
+
+    @Override
+    public HttpResponse execute(HttpRequest request) throws IOException {
+        final long startNanos = System.nanoTime();
+        final HttpResponse response = mTransport.execute(request);
+        mMetrics.setIfAbsent(InstallMetrics.CONNECT_MS, (System.nanoTime() - startNanos) / 1000000);
+        return new HttpResponse() {
+            @Override
+            public int getResponseCode() {
+                return response.getResponseCode();
+            }
+
+            @Override
+            public String getHeader(String name) {
+                return response.getHeader(name);
+            }
+
+            @Override
+            public long getContentLength() {
+                return response.getContentLength();
+            }
+
+            @Override
+            public InputStream getBody() throws IOException {
+                return new TimingInputStream(response.getBody(), startNanos);
+            }
+
+            @Override
+            public void close() {
+                response.close();
+            }
+        };
+    }
+
+    private class TimingInputStream extends FilterInputStream {
+        private final long mStartNanos;
+        private boolean mFirstByteSeen = false;
+
+        TimingInputStream(InputStream in, long startNanos) {
+            super(in);
+            mStartNanos = startNanos;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result != -1) {
+                onBytesRead(1);
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int result = super.read(buffer, offset, length);
+            if (result > 0) {
+                onBytesRead(result);
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            if (skipped > 0) {
+                onBytesRead(skipped);
+            }
+            return skipped;
+        }
+
+        private void onBytesRead(long count) {
+            if (!mFirstByteSeen) {
+                mFirstByteSeen = true;
+                mMetrics.setIfAbsent(InstallMetrics.FIRST_BYTE_MS, (System.nanoTime() - mStartNanos) / 1000000);
+            }
+            mMetrics.add(InstallMetrics.DOWNLOADED_BYTES, count);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * {@link HttpTransport} on top of HttpURLConnection. Connections are kept alive in the platform pool,
+ * which hands an idle connection to the next request for the same host, so repeated downloads from
+ * one CDN skip DNS lookup, TCP and TLS handshakes. A connection goes back to the pool only when its
+ * body was read to the end, so responses are never disconnected after a complete read.
+ */
+public class UrlConnectionTransport implements HttpTransport {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 15 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 30 * 1000;
+    // 2 presets per host with 4 segments each
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 8;
+
+    private static volatile UrlConnectionTransport sDefault;
+
+    private final int mConnectTimeoutMs;
+    private final int mReadTimeoutMs;
+
+    public UrlConnectionTransport(int connectTimeoutMs, int readTimeoutMs) {
+        mConnectTimeoutMs = connectTimeoutMs;
+        mReadTimeoutMs = readTimeoutMs;
+    }
+
+    public static UrlConnectionTransport getDefault() {
+        UrlConnectionTransport transport = sDefault;
+        if (transport == null) {
+            synchronized (UrlConnectionTransport.class) {
+                transport = sDefault;
+                if (transport == null) {
+                    sDefault = transport = new UrlConnectionTransport(DEFAULT_CONNECT_TIMEOUT_MS,
+                            DEFAULT_READ_TIMEOUT_MS);
+                }
+            }
+        }
+        return transport;
+    }
+
+    /*
+     * Size of idle connection pool per host. Platform reads it once, so it must be called before first
+     * request of the process. App settings made elsewhere win
+     */
+    public static void configureConnectionPool(int maxIdleConnections) {
+        if (System.getProperty("http.keepAlive") == null) {
+            System.setProperty("http.keepAlive", "true");
+        }
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", Integer.toString(maxIdleConnections));
+        }
+    }
+
+    @Override
+    public HttpResponse execute(HttpRequest request) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(request.getUrl()).openConnection();
+        try {
+            connection.setConnectTimeout(mConnectTimeoutMs);
+            connection.setReadTimeout(mReadTimeoutMs);
+            connection.setRequestMethod(request.getMethod());
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+            connection.connect();
+            return new Response(connection, connection.getResponseCode());
+        } catch (IOException | RuntimeException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    private static class Response implements HttpResponse {
+        private final HttpURLConnection mConnection;
+        private final int mResponseCode;
+        private EndTrackingInputStream mBody;
+
+        Response(HttpURLConnection connection, int responseCode) {
+            mConnection = connection;
+            mResponseCode = responseCode;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return mResponseCode;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        @Override
+        public long getContentLength() {
+            String value = mConnection.getHeaderField("Content-Length");
+            if (value == null) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (mBody == null) {
+                mBody = new EndTrackingInputStream(mConnection.getInputStream(), getContentLength());
+            }
+            return mBody;
+        }
+
+        @Override
+        public void close() {
+            if (mBody == null) {
+                // HEAD and error responses: closing their (empty or small) body is what frees the connection
+                InputStream body = mResponseCode >= 400 ? mConnection.getErrorStream() : null;
+                if (body == null) {
+                    try {
+                        body = mConnection.getInputStream();
+                    } catch (IOException e) {
+                        mConnection.disconnect();
+                        return;
+                    }
+                }
+                FileUtils.tryCloseStream(body);
+                return;
+            }
+            FileUtils.tryCloseStream(mBody);
+            if (!mBody.isAtEnd()) {
+                // rest of body would have to be read to reuse connection, cheaper to drop it
+                mConnection.disconnect();
+            }
+        }
+    }
+
+    private static class EndTrackingInputStream extends FilterInputStream {
+        private final long mLength;
+        private long mRead = 0;
+        private boolean mAtEnd = false;
+
+        EndTrackingInputStream(InputStream input, long length) {
+            super(input);
+            mLength = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            count(result < 0 ? -1 : 1);
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            count(count);
+            return count;
+        }
+
+        private void count(int count) {
+            if (count < 0) {
+                mAtEnd = true;
+                return;
+            }
+            mRead += count;
+            if (mLength >= 0 && mRead >= mLength) {
+                mAtEnd = true;
+            }
+        }
+
+        boolean isAtEnd() {
+            return mAtEnd;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Contents of zip central directory: entries with their sizes, without reading any entry data.
+ */
+public class ZipArchiveInfo {
+
+    private final List<ZipEntryInfo> mEntries;
+    private final long mTotalUncompressedSize;
+    private final long mTotalCompressedSize;
+
+    public ZipArchiveInfo(List<ZipEntryInfo> entries) {
+        mEntries = Collections.unmodifiableList(entries);
+        long uncompressed = 0;
+        long compressed = 0;
+        for (ZipEntryInfo entry : entries) {
+            uncompressed += entry.getUncompressedSize();
+            compressed += entry.getCompressedSize();
+        }
+        mTotalUncompressedSize = uncompressed;
+        mTotalCompressedSize = compressed;
+    }
+
+    public List<ZipEntryInfo> getEntries() {
+        return mEntries;
+    }
+
+    public int getEntryCount() {
+        return mEntries.size();
+    }
+
+    public long getTotalUncompressedSize() {
+        return mTotalUncompressedSize;
+    }
+
+    public long getTotalCompressedSize() {
+        return mTotalCompressedSize;
+    }
+}
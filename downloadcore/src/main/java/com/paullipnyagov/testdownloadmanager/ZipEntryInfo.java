@@ -0,0 +1,55 @@
+package com.paullipnyagov.testdownloadmanager;
+
+/**
+ * One record of zip central directory.
+ */
+public class ZipEntryInfo {
+
+    public static final int METHOD_STORED = 0;
+    public static final int METHOD_DEFLATED = 8;
+
+    private final String mName;
+    private final int mMethod;
+    private final long mCrc;
+    private final long mCompressedSize;
+    private final long mUncompressedSize;
+    private final long mLocalHeaderOffset;
+
+    public ZipEntryInfo(String name, int method, long crc, long compressedSize, long uncompressedSize,
+                        long localHeaderOffset) {
+        mName = name;
+        mMethod = method;
+        mCrc = crc;
+        mCompressedSize = compressedSize;
+        mUncompressedSize = uncompressedSize;
+        mLocalHeaderOffset = localHeaderOffset;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getMethod() {
+        return mMethod;
+    }
+
+    public long getCrc() {
+        return mCrc;
+    }
+
+    public long getCompressedSize() {
+        return mCompressedSize;
+    }
+
+    public long getUncompressedSize() {
+        return mUncompressedSize;
+    }
+
+    public long getLocalHeaderOffset() {
+        return mLocalHeaderOffset;
+    }
+
+    public boolean isDirectory() {
+        return mName.endsWith("/");
+    }
+}
@@ -0,0 +1,215 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.zip.ZipException;
+
+/**
+ * Reads zip end of central directory record and central directory, which is all that is needed to
+ * know entry count and sizes. Cost is O(central directory) instead of inflating the whole archive.
+ * Parsing works on byte arrays, so the same code serves local files and ranges fetched over HTTP.
+ */
+public class ZipMetadataReader {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    static final int ZIP64_EOCD_SIZE = 56;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    // same as java.util.zip on Android: names are decoded as UTF-8 whether or not the flag is set
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /*
+     * Location of central directory found in archive tail
+     */
+    public static class CentralDirectoryLocation {
+        public final long offset;
+        public final long size;
+        public final long entryCount;
+
+        CentralDirectoryLocation(long offset, long size, long entryCount) {
+            this.offset = offset;
+            this.size = size;
+            this.entryCount = entryCount;
+        }
+    }
+
+    /*
+     * Number of trailing bytes which always contain end of central directory record (and zip64 locator)
+     */
+    public static int getTailSize(long archiveLength) {
+        return (int) Math.min(archiveLength, EOCD_SIZE + MAX_COMMENT_SIZE + ZIP64_EOCD_LOCATOR_SIZE);
+    }
+
+    public static ZipArchiveInfo read(File zipFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(zipFile, "r");
+        try {
+            long length = file.length();
+            byte[] tail = new byte[getTailSize(length)];
+            file.seek(length - tail.length);
+            file.readFully(tail);
+            CentralDirectoryLocation location = findCentralDirectory(tail, length);
+            if (location == null) {
+                // zip64 end record lies before the tail we have
+                location = readZip64CentralDirectoryLocation(file, tail, length);
+            }
+            byte[] centralDirectory = new byte[toIntSize(location.size)];
+            file.seek(location.offset);
+            file.readFully(centralDirectory);
+            return parseCentralDirectory(centralDirectory, location.entryCount);
+        } finally {
+            file.close();
+        }
+    }
+
+    /*
+     * Finds central directory using last bytes of archive (see getTailSize) and total archive length.
+     * Returns null if archive is zip64 and its end record must be read separately, see getZip64EndOffset
+     */
+    public static CentralDirectoryLocation findCentralDirectory(byte[] tail, long archiveLength)
+            throws ZipException {
+        int eocd = findEndOfCentralDirectory(tail);
+        long entryCount = readUShort(tail, eocd + 10);
+        long size = readUInt(tail, eocd + 12);
+        long offset = readUInt(tail, eocd + 16);
+        if (entryCount == 0xFFFF || size == 0xFFFFFFFFL || offset == 0xFFFFFFFFL) {
+            long zip64End = getZip64EndOffset(tail, eocd);
+            long tailStart = archiveLength - tail.length;
+            if (zip64End < tailStart || zip64End + ZIP64_EOCD_SIZE > archiveLength) {
+                return null;
+            }
+            return parseZip64End(tail, (int) (zip64End - tailStart));
+        }
+        if (offset + size > archiveLength) {
+            throw new ZipException("Central directory is outside of archive");
+        }
+        return new CentralDirectoryLocation(offset, size, entryCount);
+    }
+
+    /*
+     * Absolute offset of zip64 end of central directory record, taken from the locator in tail
+     */
+    public static long getZip64EndOffset(byte[] tail, int eocd) throws ZipException {
+        int locator = eocd - ZIP64_EOCD_LOCATOR_SIZE;
+        if (locator < 0 || readInt(tail, locator) != ZIP64_EOCD_LOCATOR_SIGNATURE) {
+            throw new ZipException("Zip64 end of central directory locator not found");
+        }
+        return readLong(tail, locator + 8);
+    }
+
+    public static CentralDirectoryLocation parseZip64End(byte[] buffer, int position) throws ZipException {
+        if (readInt(buffer, position) != ZIP64_EOCD_SIGNATURE) {
+            throw new ZipException("Zip64 end of central directory not found");
+        }
+        return new CentralDirectoryLocation(readLong(buffer, position + 48), readLong(buffer, position + 40),
+                readLong(buffer, position + 32));
+    }
+
+    public static ZipArchiveInfo parseCentralDirectory(byte[] centralDirectory, long entryCount)
+            throws ZipException {
+        ArrayList<ZipEntryInfo> entries = new ArrayList<>((int) Math.min(entryCount, 0xFFFF));
+        int position = 0;
+        for (long i = 0; i < entryCount; i++) {
+            if (position + CENTRAL_HEADER_SIZE > centralDirectory.length ||
+                    readInt(centralDirectory, position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Bad central directory header of entry " + i);
+            }
+            int method = readUShort(centralDirectory, position + 10);
+            long crc = readUInt(centralDirectory, position + 16);
+            long compressedSize = readUInt(centralDirectory, position + 20);
+            long uncompressedSize = readUInt(centralDirectory, position + 24);
+            int nameLength = readUShort(centralDirectory, position + 28);
+            int extraLength = readUShort(centralDirectory, position + 30);
+            int commentLength = readUShort(centralDirectory, position + 32);
+            long localHeaderOffset = readUInt(centralDirectory, position + 42);
+            int namePosition = position + CENTRAL_HEADER_SIZE;
+            int extraPosition = namePosition + nameLength;
+            if (extraPosition + extraLength + commentLength > centralDirectory.length) {
+                throw new ZipException("Central directory is truncated at entry " + i);
+            }
+            String name = new String(centralDirectory, namePosition, nameLength, UTF8);
+
+            // zip64 extra field contains only those values which are saturated in the header, in this order
+            int extra = extraPosition;
+            while (extra + 4 <= extraPosition + extraLength) {
+                int id = readUShort(centralDirectory, extra);
+                int size = readUShort(centralDirectory, extra + 2);
+                if (id == ZIP64_EXTRA_ID) {
+                    int value = extra + 4;
+                    if (uncompressedSize == 0xFFFFFFFFL) {
+                        uncompressedSize = readLong(centralDirectory, value);
+                        value += 8;
+                    }
+                    if (compressedSize == 0xFFFFFFFFL) {
+                        compressedSize = readLong(centralDirectory, value);
+                        value += 8;
+                    }
+                    if (localHeaderOffset == 0xFFFFFFFFL) {
+                        localHeaderOffset = readLong(centralDirectory, value);
+                    }
+                    break;
+                }
+                extra += 4 + size;
+            }
+
+            entries.add(new ZipEntryInfo(name, method, crc, compressedSize, uncompressedSize, localHeaderOffset));
+            position = extraPosition + extraLength + commentLength;
+        }
+        return new ZipArchiveInfo(entries);
+    }
+
+    private static CentralDirectoryLocation readZip64CentralDirectoryLocation(RandomAccessFile file, byte[] tail,
+                                                                             long length) throws IOException {
+        long zip64End = getZip64EndOffset(tail, findEndOfCentralDirectory(tail));
+        if (zip64End < 0 || zip64End + ZIP64_EOCD_SIZE > length) {
+            throw new ZipException("Bad zip64 end of central directory offset " + zip64End);
+        }
+        byte[] record = new byte[ZIP64_EOCD_SIZE];
+        file.seek(zip64End);
+        file.readFully(record);
+        return parseZip64End(record, 0);
+    }
+
+    static int findEndOfCentralDirectory(byte[] tail) throws ZipException {
+        // record is followed only by a comment, so scan backwards from the last possible position
+        for (int i = tail.length - EOCD_SIZE; i >= 0; i--) {
+            if (readInt(tail, i) == EOCD_SIGNATURE &&
+                    i + EOCD_SIZE + readUShort(tail, i + 20) == tail.length) {
+                return i;
+            }
+        }
+        throw new ZipException("End of central directory not found");
+    }
+
+    private static int toIntSize(long size) throws ZipException {
+        if (size > Integer.MAX_VALUE) {
+            throw new ZipException("Central directory is too big: " + size);
+        }
+        return (int) size;
+    }
+
+    static int readUShort(byte[] buffer, int position) {
+        return (buffer[position] & 0xFF) | ((buffer[position + 1] & 0xFF) << 8);
+    }
+
+    static int readInt(byte[] buffer, int position) {
+        return readUShort(buffer, position) | (readUShort(buffer, position + 2) << 16);
+    }
+
+    static long readUInt(byte[] buffer, int position) {
+        return readInt(buffer, position) & 0xFFFFFFFFL;
+    }
+
+    static long readLong(byte[] buffer, int position) {
+        return readUInt(buffer, position) | (readUInt(buffer, position + 4) << 32);
+    }
+}
@@ -0,0 +1,26 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.File;
+import java.io.IOException;
+
+public class ZipUtils {
+
+    /*
+     * Returns file for zip entry inside targetDirectory. Throws if entry name points outside of it
+     * ("../" or absolute names, so called zip slip)
+     */
+    public static File resolveEntryFile(File targetDirectory, String entryName) throws IOException {
+        File file = new File(targetDirectory, entryName);
+        String directoryPath = targetDirectory.getCanonicalPath() + File.separator;
+        String filePath = file.getCanonicalPath();
+        if (!filePath.startsWith(directoryPath) && !(filePath + File.separator).equals(directoryPath)) {
+            throw new IOException("Zip entry is outside of target directory: " + entryName);
+        }
+        return file;
+    }
+
+    // reads only central directory, see ZipMetadataReader
+    public static int getZipEntryCount(File zipFile) throws IOException {
+        return ZipMetadataReader.read(zipFile).getEntryCount();
+    }
+}
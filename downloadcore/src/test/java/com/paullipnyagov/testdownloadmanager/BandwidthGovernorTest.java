@@ -0,0 +1,81 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BandwidthGovernorTest {
+
+    // time moves only when governor sleeps, so results don't depend on machine speed
+    static class FakeClock implements BandwidthGovernor.Clock {
+        final AtomicLong mNanos = new AtomicLong();
+
+        @Override
+        public long nanoTime() {
+            return mNanos.get();
+        }
+
+        @Override
+        public void sleepNanos(long nanos) {
+            mNanos.addAndGet(nanos);
+        }
+    }
+
+    @Test
+    public void rateIsSharedByPriorityWeightAndFollowsReconfiguration() {
+        BandwidthGovernor governor = new BandwidthGovernor(new FakeClock());
+        BandwidthGovernor.Transfer user = governor.openTransfer(DownloadPriorityQueue.PRIORITY_USER);
+        BandwidthGovernor.Transfer prefetch = governor.openTransfer(DownloadPriorityQueue.PRIORITY_BACKGROUND);
+        assertEquals(0, user.getBytesPerSecond()); // no limit by default
+
+        governor.setBytesPerSecond(500000);
+        assertEquals(400000, user.getBytesPerSecond());
+        assertEquals(100000, prefetch.getBytesPerSecond());
+
+        governor.setPriorityWeight(DownloadPriorityQueue.PRIORITY_BACKGROUND, 4);
+        assertEquals(250000, prefetch.getBytesPerSecond());
+        prefetch.setPriority(DownloadPriorityQueue.PRIORITY_VISIBLE);
+        assertEquals(166666, prefetch.getBytesPerSecond());
+
+        prefetch.close();
+        assertEquals(500000, user.getBytesPerSecond());
+        user.close();
+    }
+
+    @Test
+    public void throttledDownloadTakesTimeOfConfiguredRate() throws IOException {
+        byte[] content = new byte[256 * 1024];
+        RangeHttpServer server = new RangeHttpServer(content, true);
+        FakeClock clock = new FakeClock();
+        BandwidthGovernor governor = new BandwidthGovernor(clock);
+        governor.setBytesPerSecond(64 * 1024);
+        BandwidthGovernor.Transfer transfer = governor.openTransfer(DownloadPriorityQueue.PRIORITY_USER);
+        HttpTransport transport = new ThrottledTransport(new UrlConnectionTransport(5000, 5000), transfer);
+        try {
+            HttpResponse response = transport.execute(new HttpRequest(server.getUrl()));
+            long total = 0;
+            try {
+                InputStream body = response.getBody();
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = body.read(buffer)) != -1) {
+                    total += count;
+                }
+            } finally {
+                response.close();
+            }
+            assertEquals(content.length, total);
+            // bucket starts empty, so no burst: 4 seconds at 64 KB/s
+            long elapsedMs = clock.nanoTime() / 1000000;
+            assertTrue("elapsed " + elapsedMs, elapsedMs >= 3990 && elapsedMs <= 4010);
+        } finally {
+            transfer.close();
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.zip.ZipException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BlobStoreTest {
+
+    // JVM stand-in for android.system.Os
+    static final BlobStore.LinkSupport NIO_LINKS = new NioLinkSupport();
+
+    private static final CancelSignal NOT_CANCELLED = new CancelSignal() {
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    private static final ByteProgressListener NO_PROGRESS = new ByteProgressListener() {
+        @Override
+        public void onBytesProcessed(long count) {
+        }
+    };
+
+    private File mRoot;
+    private BlobStore mBlobStore;
+
+    @Before
+    public void setUp() throws IOException {
+        mRoot = File.createTempFile("blobStore", "");
+        assertTrue(mRoot.delete() && mRoot.mkdirs());
+        mBlobStore = new BlobStore(new File(mRoot, ".blobs"), NIO_LINKS, 1024);
+    }
+
+    @After
+    public void tearDown() {
+        InstalledPresetIndexTest.deleteRecursive(mRoot);
+    }
+
+    @Test
+    public void sharedSamplesAreStoredOnceAndFreedWithLastPreset() throws IOException {
+        Random random = new Random(3);
+        byte[] kick = randomBytes(random, 40 * 1024);
+        byte[] snare = randomBytes(random, 30 * 1024);
+
+        LinkedHashMap<String, byte[]> firstPreset = new LinkedHashMap<>();
+        firstPreset.put("kick.wav", kick);
+        firstPreset.put("snare.wav", snare);
+        firstPreset.put("lead.wav", randomBytes(random, 50 * 1024));
+        firstPreset.put("preset.json", new byte[100]); // too small to share
+        LinkedHashMap<String, byte[]> secondPreset = new LinkedHashMap<>();
+        secondPreset.put("drums/kick.wav", kick);
+        secondPreset.put("drums/snare.wav", snare);
+        secondPreset.put("bass.wav", randomBytes(random, 20 * 1024));
+
+        File firstDirectory = extract(firstPreset, "1", 0);
+        assertEquals(0, mBlobStore.getDeduplicatedEntries());
+        File secondDirectory = extract(secondPreset, "2", kick.length + snare.length);
+        assertEquals(2, mBlobStore.getDeduplicatedEntries());
+        assertEquals(kick.length + snare.length, mBlobStore.getDeduplicatedBytes());
+
+        assertArrayEquals(kick, SegmentedFileDownloaderTest.readFile(new File(secondDirectory, "drums/kick.wav")));
+        // preset files of both presets and the blob are one file on disk
+        assertEquals(3, NIO_LINKS.getLinkCount(new File(secondDirectory, "drums/kick.wav")));
+        assertEquals(0, mBlobStore.collectGarbage());
+
+        InstalledPresetIndexTest.deleteRecursive(firstDirectory);
+        // lead.wav was used only by the first preset
+        assertEquals(50 * 1024, mBlobStore.collectGarbage());
+        InstalledPresetIndexTest.deleteRecursive(secondDirectory);
+        assertEquals(kick.length + snare.length + 20 * 1024, mBlobStore.collectGarbage());
+    }
+
+    @Test
+    public void corruptEntryIsNotShared() throws IOException {
+        byte[] sample = randomBytes(new Random(5), 8 * 1024);
+        LinkedHashMap<String, byte[]> files = new LinkedHashMap<>();
+        files.put("sample.json", sample); // stored, so its bytes can be found in the zip
+        File zip = RemoteZipReaderTest.writeZip(files);
+        byte[] zipBytes = SegmentedFileDownloaderTest.readFile(zip);
+        int dataOffset = indexOf(zipBytes, sample);
+        RandomAccessFile corrupted = new RandomAccessFile(zip, "rw");
+        try {
+            corrupted.seek(dataOffset + 100);
+            corrupted.write(sample[100] ^ 1);
+        } finally {
+            corrupted.close();
+        }
+
+        ParallelZipExtractor extractor = new ParallelZipExtractor();
+        extractor.setBlobStore(mBlobStore);
+        try {
+            extractor.extract(zip, ZipMetadataReader.read(zip), new File(mRoot, "1"), NOT_CANCELLED, NO_PROGRESS);
+            throw new AssertionError("Corrupt entry must not be extracted");
+        } catch (ZipException e) {
+            // expected
+        } finally {
+            zip.delete();
+        }
+        File[] shards = mBlobStore.getDirectory().listFiles();
+        assertTrue(shards == null || shards.length == 0);
+    }
+
+    @Test
+    public void collidingEntryIsNotLinked() throws IOException {
+        Random random = new Random(7);
+        byte[] stored = randomBytes(random, 4096);
+        byte[] other = randomBytes(random, 4096);
+        // same crc and size as stored blob, different bytes
+        ZipEntryInfo entry = new ZipEntryInfo("kick.wav", ZipEntryInfo.METHOD_STORED, 0x1234abcdL, 4096, 4096, 0);
+        File presetFile = new File(mRoot, "kick.wav");
+        writeFile(presetFile, stored);
+        mBlobStore.add(entry, presetFile);
+
+        File target = new File(mRoot, "other.wav");
+        assertFalse(mBlobStore.linkExisting(entry, new ByteArrayInputStream(other), target));
+        assertFalse(target.exists());
+        assertTrue(mBlobStore.linkExisting(entry, new ByteArrayInputStream(stored), target));
+        assertArrayEquals(stored, SegmentedFileDownloaderTest.readFile(target));
+        assertEquals(1, mBlobStore.getDeduplicatedEntries());
+    }
+
+    private static void writeFile(File file, byte[] content) throws IOException {
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            output.write(content);
+        } finally {
+            output.close();
+        }
+    }
+
+    private static int indexOf(byte[] data, byte[] part) {
+        for (int i = 0; i + part.length <= data.length; i++) {
+            int j = 0;
+            while (j < part.length && data[i + j] == part[j]) {
+                j++;
+            }
+            if (j == part.length) {
+                return i;
+            }
+        }
+        throw new AssertionError("Data not found");
+    }
+
+    private File extract(LinkedHashMap<String, byte[]> files, String presetId, long expectedLinkedBytes)
+            throws IOException {
+        File zip = RemoteZipReaderTest.writeZip(files);
+        File presetDirectory = new File(mRoot, presetId);
+        try {
+            ParallelZipExtractor extractor = new ParallelZipExtractor();
+            extractor.setBlobStore(mBlobStore);
+            assertTrue(extractor.extract(zip, ZipMetadataReader.read(zip), presetDirectory, NOT_CANCELLED,
+                    NO_PROGRESS));
+            assertEquals(expectedLinkedBytes, extractor.getLinkedBytes());
+        } finally {
+            zip.delete();
+        }
+        return presetDirectory;
+    }
+
+    private static byte[] randomBytes(Random random, int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,124 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChannelIoTest {
+
+    private static final CancelSignal NOT_CANCELLED = new CancelSignal() {
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    private static final ChannelIo.WriteListener NO_LISTENER = new ChannelIo.WriteListener() {
+        @Override
+        public void onBytesWritten(int count) {
+        }
+    };
+
+    private File mFile;
+    private RandomAccessFile mOutput;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("channelIo", ".wav");
+        mOutput = new RandomAccessFile(mFile, "rw");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mOutput.close();
+        mFile.delete();
+    }
+
+    @Test
+    public void copiesInLargeWritesAtPosition() throws IOException {
+        byte[] data = ParallelZipExtractorTest.sample(1, 1024 * 1024 + 5);
+        long writesBefore = ChannelIo.getWriteCallCount();
+        long bytesBefore = ChannelIo.getBytesWritten();
+
+        long copied = ChannelIo.copy(new ByteArrayInputStream(data), mOutput.getChannel(), 10, -1,
+                new AdaptiveBufferSize(AdaptiveBufferSize.MAX_SIZE), NOT_CANCELLED, NO_LISTENER);
+
+        assertEquals(data.length, copied);
+        assertEquals(data.length + 10, mOutput.length());
+        byte[] written = new byte[data.length];
+        mOutput.seek(10);
+        mOutput.readFully(written);
+        assertArrayEquals(data, written);
+        // 8 KB stream writes would need 129 calls, other tests may add to shared counters meanwhile
+        long writes = ChannelIo.getWriteCallCount() - writesBefore;
+        assertTrue("writes: " + writes, writes >= 2 && writes < 10);
+        assertTrue(ChannelIo.getBytesWritten() - bytesBefore >= data.length);
+    }
+
+    @Test
+    public void stopsAtMaxBytes() throws IOException {
+        byte[] data = ParallelZipExtractorTest.sample(2, 100 * 1024);
+        ByteArrayInputStream input = new ByteArrayInputStream(data);
+
+        assertEquals(40000, ChannelIo.copy(input, mOutput.getChannel(), 0, 40000, new AdaptiveBufferSize(),
+                NOT_CANCELLED, NO_LISTENER));
+        assertEquals(40000, mOutput.length());
+        // the rest of input is left for whoever reads next, e.g. next zip entry
+        assertEquals(data.length - 40000, input.available());
+    }
+
+    @Test
+    public void cancelStopsAfterCurrentRead() throws IOException {
+        byte[] data = ParallelZipExtractorTest.sample(3, 1024 * 1024);
+        final AtomicInteger writes = new AtomicInteger();
+
+        long copied = ChannelIo.copy(new ByteArrayInputStream(data), mOutput.getChannel(), 0, -1,
+                new AdaptiveBufferSize(AdaptiveBufferSize.MIN_SIZE), new CancelSignal() {
+                    @Override
+                    public boolean isCancelled() {
+                        return writes.get() > 0;
+                    }
+                }, new ChannelIo.WriteListener() {
+                    @Override
+                    public void onBytesWritten(int count) {
+                        writes.incrementAndGet();
+                    }
+                });
+
+        assertEquals(1, writes.get());
+        assertTrue(copied < data.length);
+    }
+
+    @Test
+    public void preallocatesAndTransfersBetweenFiles() throws IOException {
+        byte[] data = ParallelZipExtractorTest.sample(4, 200 * 1024);
+        File source = File.createTempFile("channelIoSource", ".wav");
+        RandomAccessFile input = new RandomAccessFile(source, "rw");
+        try {
+            input.write(data);
+            ChannelIo.preallocate(mOutput, data.length);
+            assertEquals(data.length, mOutput.length());
+
+            assertEquals(data.length - 100, ChannelIo.transfer(input.getChannel(), 100, data.length - 100,
+                    mOutput.getChannel(), 0));
+            byte[] written = new byte[data.length - 100];
+            mOutput.seek(0);
+            mOutput.readFully(written);
+            assertArrayEquals(Arrays.copyOfRange(data, 100, data.length), written);
+        } finally {
+            input.close();
+            source.delete();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadPriorityQueueTest {
+
+    @Test
+    public void higherPriorityGoesFirstAndSamePriorityKeepsOrder() {
+        DownloadPriorityQueue<String> queue = new DownloadPriorityQueue<>();
+        queue.add(1, "a", DownloadPriorityQueue.PRIORITY_BACKGROUND);
+        queue.add(2, "b", DownloadPriorityQueue.PRIORITY_BACKGROUND);
+        queue.add(3, "c", DownloadPriorityQueue.PRIORITY_VISIBLE);
+        queue.add(4, "d", DownloadPriorityQueue.PRIORITY_USER);
+        queue.add(5, "e", DownloadPriorityQueue.PRIORITY_BACKGROUND);
+        assertEquals(Arrays.asList("d", "c", "a", "b", "e"), queue.toList());
+    }
+
+    @Test
+    public void reprioritiseAndRemoveKeepOrderConsistent() {
+        DownloadPriorityQueue<String> queue = new DownloadPriorityQueue<>();
+        queue.add(1, "a", DownloadPriorityQueue.PRIORITY_BACKGROUND);
+        queue.add(2, "b", DownloadPriorityQueue.PRIORITY_BACKGROUND);
+        queue.add(3, "c", DownloadPriorityQueue.PRIORITY_BACKGROUND);
+
+        assertTrue(queue.setPriority(3, DownloadPriorityQueue.PRIORITY_VISIBLE));
+        assertEquals(Arrays.asList("c", "a", "b"), queue.toList());
+
+        // adding queued id again only raises priority
+        assertFalse(queue.add(2, "b", DownloadPriorityQueue.PRIORITY_USER));
+        assertFalse(queue.add(3, "c", DownloadPriorityQueue.PRIORITY_BACKGROUND));
+        assertEquals(Arrays.asList("b", "c", "a"), queue.toList());
+        assertEquals(DownloadPriorityQueue.PRIORITY_VISIBLE, queue.getPriority(3));
+
+        assertEquals("c", queue.remove(3));
+        assertNull(queue.remove(3));
+        assertFalse(queue.contains(3));
+        assertFalse(queue.setPriority(3, DownloadPriorityQueue.PRIORITY_USER));
+        assertEquals(-1, queue.getPriority(3));
+        assertEquals("a", queue.get(1));
+        assertEquals(Arrays.asList("b", "a"), queue.toList());
+        assertEquals(2, queue.size());
+    }
+}
@@ -0,0 +1,79 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class InstallTelemetryTest {
+
+    @Test
+    public void histogramGivesPercentilesWithinBucket() {
+        MetricHistogram histogram = new MetricHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        histogram.record(-1); // not measured
+        assertEquals(100, histogram.getCount());
+        assertEquals(50, histogram.getMean());
+        assertEquals(100, histogram.getMax());
+        // 50 is in bucket 32..63, 90 and 99 in 64..127 which is capped by max
+        assertEquals(63, histogram.getPercentile(0.5));
+        assertEquals(100, histogram.getPercentile(0.99));
+        assertEquals(1, histogram.getPercentile(0.01));
+    }
+
+    @Test
+    public void transportMeasuresRequestsIntoInstallRecord() throws IOException {
+        byte[] content = new byte[100 * 1024];
+        RangeHttpServer server = new RangeHttpServer(content, true);
+        server.setResponseDelayMs(50);
+        InstallMetrics metrics = new InstallMetrics(7);
+        HttpTransport transport = new TimingTransport(new UrlConnectionTransport(5000, 5000), metrics);
+        try {
+            for (int i = 0; i < 2; i++) {
+                HttpResponse response = transport.execute(new HttpRequest(server.getUrl()));
+                try {
+                    InputStream body = response.getBody();
+                    byte[] buffer = new byte[8192];
+                    while (body.read(buffer) != -1) {
+                        // drain
+                    }
+                } finally {
+                    response.close();
+                }
+            }
+        } finally {
+            server.stop();
+        }
+        // first request only, server delay is before response headers
+        assertTrue(metrics.get(InstallMetrics.CONNECT_MS) >= 50);
+        assertTrue(metrics.get(InstallMetrics.FIRST_BYTE_MS) >= metrics.get(InstallMetrics.CONNECT_MS));
+        assertEquals(2 * content.length, metrics.get(InstallMetrics.DOWNLOADED_BYTES));
+        assertEquals(-1, metrics.get(InstallMetrics.EXTRACT_MS));
+
+        InstallTelemetry telemetry = new InstallTelemetry();
+        final List<InstallMetrics> received = new ArrayList<>();
+        telemetry.addSink(new InstallTelemetry.Sink() {
+            @Override
+            public void onInstallMeasured(InstallMetrics installMetrics) {
+                received.add(installMetrics);
+            }
+        });
+        metrics.setSucceeded(true);
+        telemetry.record(metrics);
+        assertSame(metrics, received.get(0));
+        assertEquals(1, telemetry.getSucceededCount());
+        assertEquals(1, telemetry.getHistogram(InstallMetrics.DOWNLOADED_BYTES).getCount());
+        assertEquals(0, telemetry.getHistogram(InstallMetrics.EXTRACT_MS).getCount());
+        String export = telemetry.export();
+        assertTrue(export, export.contains("downloaded_bytes\t1\t" + 2 * content.length + "\t"));
+        assertTrue(export, !export.contains("extract_ms"));
+    }
+}
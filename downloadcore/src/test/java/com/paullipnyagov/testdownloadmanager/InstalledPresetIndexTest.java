@@ -0,0 +1,169 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class InstalledPresetIndexTest {
+
+    private File mRoot;
+    private File mDownloadDirectory;
+    private File mIndexFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mRoot = File.createTempFile("presetIndex", "");
+        assertTrue(mRoot.delete() && mRoot.mkdirs());
+        mDownloadDirectory = new File(mRoot, "presets");
+        assertTrue(mDownloadDirectory.mkdirs());
+        mIndexFile = new File(mRoot, "installed_presets.idx");
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursive(mRoot);
+    }
+
+    @Test
+    public void scanFindsInstalledAndIncompletePresets() throws IOException {
+        installPreset(1, "3", 1000);
+        installPreset(2, null, 10);
+        assertTrue(new File(mDownloadDirectory, "5").mkdirs()); // no insurance file
+        assertTrue(new File(mDownloadDirectory, "not_a_preset").mkdirs());
+
+        InstalledPresetIndex index = new InstalledPresetIndex(mDownloadDirectory, mIndexFile);
+        assertArrayEquals(new int[]{InstalledPreset.STATE_INSTALLED, InstalledPreset.STATE_INSTALLED,
+                        InstalledPreset.STATE_NOT_INSTALLED, InstalledPreset.STATE_INCOMPLETE},
+                index.getInstalledStates(new int[]{1, 2, 3, 5}));
+        assertEquals("3", index.get(1).getVersion());
+        assertNull(index.get(2).getVersion());
+        assertTrue(index.get(1).getSizeBytes() >= 1000);
+
+        // marker files of older builds were replaced by manifest while probing
+        File presetDirectory = new File(mDownloadDirectory, "1");
+        assertEquals("3", PresetManifest.readHeader(presetDirectory).version);
+        assertFalse(new File(presetDirectory, "preset_downloaded.dp").exists());
+        assertEquals(InstalledPreset.STATE_INSTALLED,
+                new InstalledPresetIndex(mDownloadDirectory, new File(mRoot, "other.idx")).getState(1));
+    }
+
+    @Test
+    public void peekDoesNotLoadAndListenerRunsOnceLoaded() throws IOException {
+        installPreset(1, "3", 100);
+        InstalledPresetIndex index = new InstalledPresetIndex(mDownloadDirectory, mIndexFile);
+        final AtomicInteger calls = new AtomicInteger();
+        Runnable listener = new Runnable() {
+            @Override
+            public void run() {
+                calls.incrementAndGet();
+            }
+        };
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        index.addOnLoadedListener(listener, direct);
+
+        assertEquals(InstalledPreset.STATE_UNKNOWN, index.peekState(1));
+        assertNull(index.peek(1));
+        assertArrayEquals(new int[]{InstalledPreset.STATE_UNKNOWN}, index.peekInstalledStates(new int[]{1}));
+        assertFalse(index.isLoaded());
+        assertEquals(0, calls.get());
+
+        index.ensureLoaded();
+        assertEquals(1, calls.get());
+        assertEquals(InstalledPreset.STATE_INSTALLED, index.peekState(1));
+        assertEquals("3", index.peek(1).getVersion());
+        assertEquals(InstalledPreset.STATE_NOT_INSTALLED, index.peekState(2));
+
+        // added after load, runs right away
+        index.addOnLoadedListener(listener, direct);
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void savedIndexIsUsedWhileDownloadDirectoryIsUnchanged() throws IOException, InterruptedException {
+        installPreset(1, "3", 100);
+        long directoryTime = mDownloadDirectory.lastModified();
+        InstalledPresetIndex index = new InstalledPresetIndex(mDownloadDirectory, mIndexFile);
+        index.ensureLoaded();
+        // scan saves the index in background, it must not record the directory time changed below
+        awaitIndexFile();
+
+        // removing manifest inside preset is not visible without a scan, which proves files are not probed
+        assertTrue(PresetManifest.delete(new File(mDownloadDirectory, "1")));
+        assertTrue(mDownloadDirectory.setLastModified(directoryTime));
+        assertEquals(InstalledPreset.STATE_INSTALLED,
+                new InstalledPresetIndex(mDownloadDirectory, mIndexFile).getState(1));
+
+        // new preset directory changes modification time of download directory, so index is rebuilt
+        installPreset(2, "1", 100);
+        assertTrue(mDownloadDirectory.setLastModified(directoryTime + 10000));
+        InstalledPresetIndex rebuilt = new InstalledPresetIndex(mDownloadDirectory, mIndexFile);
+        assertArrayEquals(new int[]{InstalledPreset.STATE_INCOMPLETE, InstalledPreset.STATE_INSTALLED},
+                rebuilt.getInstalledStates(new int[]{1, 2}));
+    }
+
+    private void awaitIndexFile() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!mIndexFile.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(mIndexFile.exists());
+    }
+
+    @Test
+    public void incompleteInstallIsProbedAgainOnLoad() throws IOException {
+        InstalledPresetIndex index = new InstalledPresetIndex(mDownloadDirectory, mIndexFile);
+        File presetDirectory = new File(mDownloadDirectory, "7");
+        assertTrue(presetDirectory.mkdirs());
+        index.onInstallStarted(7);
+        index.save();
+        long directoryTime = mDownloadDirectory.lastModified();
+
+        // process died after install finished but before index was updated
+        LegacyMarkerFiles.writeInsuranceFile(presetDirectory);
+        assertTrue(mDownloadDirectory.setLastModified(directoryTime));
+        assertEquals(InstalledPreset.STATE_INSTALLED,
+                new InstalledPresetIndex(mDownloadDirectory, mIndexFile).getState(7));
+    }
+
+    private void installPreset(int presetId, String version, int sampleSize) throws IOException {
+        File presetDirectory = new File(mDownloadDirectory, Integer.toString(presetId));
+        assertTrue(presetDirectory.mkdirs());
+        FileOutputStream output = new FileOutputStream(new File(presetDirectory, "sample.wav"));
+        try {
+            output.write(new byte[sampleSize]);
+        } finally {
+            output.close();
+        }
+        if (version != null) {
+            LegacyMarkerFiles.writeVersionFile(presetDirectory, version);
+        }
+        LegacyMarkerFiles.writeInsuranceFile(presetDirectory);
+    }
+
+    static void deleteRecursive(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursive(child);
+            }
+        }
+        file.delete();
+    }
+}
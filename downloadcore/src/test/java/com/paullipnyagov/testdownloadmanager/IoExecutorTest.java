@@ -0,0 +1,125 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IoExecutorTest {
+
+    private File mRoot;
+
+    @Before
+    public void setUp() throws IOException {
+        mRoot = File.createTempFile("ioExecutor", "");
+        assertTrue(mRoot.delete() && mRoot.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        InstalledPresetIndexTest.deleteRecursive(mRoot);
+    }
+
+    @Test
+    public void deletedTreeLeavesAtOnceAndIsRemovedInOneBatch() throws Exception {
+        File first = createTree("1");
+        File second = createTree("2");
+        IoExecutor ioExecutor = new IoExecutor(200);
+
+        assertTrue(ioExecutor.deleteLater(first));
+        assertTrue(ioExecutor.deleteLater(second));
+        assertTrue(ioExecutor.deleteLater(new File(mRoot, "missing")));
+        assertFalse(first.exists() || second.exists());
+        File trashDirectory = new File(mRoot, IoExecutor.TRASH_DIRECTORY_NAME);
+        assertEquals(2, trashDirectory.list().length); // nothing is deleted before the delay
+
+        final CountDownLatch emptied = new CountDownLatch(1);
+        ioExecutor.runAfterTrashEmptied(new Runnable() {
+            @Override
+            public void run() {
+                emptied.countDown();
+            }
+        });
+        assertTrue(emptied.await(5, TimeUnit.SECONDS));
+        assertEquals(0, trashDirectory.list().length);
+    }
+
+    @Test
+    public void trashLeftByPreviousProcessIsEmptied() throws Exception {
+        File trashDirectory = new File(mRoot, IoExecutor.TRASH_DIRECTORY_NAME);
+        assertTrue(trashDirectory.mkdirs());
+        assertTrue(createTree("1").renameTo(new File(trashDirectory, "1-100")));
+        IoExecutor ioExecutor = new IoExecutor(0);
+
+        ioExecutor.emptyTrash(mRoot);
+        final CountDownLatch emptied = new CountDownLatch(1);
+        ioExecutor.runAfterTrashEmptied(new Runnable() {
+            @Override
+            public void run() {
+                emptied.countDown();
+            }
+        });
+        assertTrue(emptied.await(5, TimeUnit.SECONDS));
+        assertFalse(trashDirectory.exists());
+    }
+
+    @Test
+    public void tasksRunInOrderAndCallbacksGoToCallerExecutor() throws Exception {
+        // stands for main thread: callbacks are queued and run by the test thread
+        final LinkedBlockingQueue<Runnable> callbackQueue = new LinkedBlockingQueue<>();
+        Executor callbackExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                callbackQueue.add(command);
+            }
+        };
+        final ArrayList<String> results = new ArrayList<>();
+        IoExecutor ioExecutor = new IoExecutor(0);
+        for (int i = 0; i < 3; i++) {
+            final int number = i;
+            ioExecutor.submit(new IoExecutor.Task<String>() {
+                @Override
+                public String run() {
+                    return number + " on " + Thread.currentThread().getName();
+                }
+            }, new IoExecutor.Callback<String>() {
+                @Override
+                public void onComplete(String result) {
+                    results.add(result + ", delivered on " + Thread.currentThread().getName());
+                }
+            }, callbackExecutor);
+        }
+        for (int i = 0; i < 3; i++) {
+            callbackQueue.poll(5, TimeUnit.SECONDS).run();
+        }
+        String testThread = Thread.currentThread().getName();
+        assertEquals("0 on PresetIo, delivered on " + testThread, results.get(0));
+        assertEquals("2 on PresetIo, delivered on " + testThread, results.get(2));
+    }
+
+    private File createTree(String name) throws IOException {
+        File directory = new File(mRoot, name + "/kit");
+        assertTrue(directory.mkdirs());
+        for (int i = 0; i < 10; i++) {
+            FileOutputStream output = new FileOutputStream(new File(directory, i + ".wav"));
+            try {
+                output.write(new byte[100]);
+            } finally {
+                output.close();
+            }
+        }
+        return directory.getParentFile();
+    }
+}
@@ -0,0 +1,213 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MappedPresetArchiveTest {
+
+    private File mRoot;
+    private byte[] mKick;
+    private byte[] mLoop;
+
+    @Before
+    public void setUp() throws IOException {
+        mRoot = File.createTempFile("mappedArchive", "");
+        assertTrue(mRoot.delete() && mRoot.mkdirs());
+        Random random = new Random(3);
+        mKick = new byte[64 * 1024];
+        random.nextBytes(mKick);
+        // compressible, like silence at the end of a loop
+        mLoop = new byte[256 * 1024];
+        random.nextBytes(mLoop);
+        Arrays.fill(mLoop, 1024, mLoop.length, (byte) 0);
+    }
+
+    @After
+    public void tearDown() {
+        InstalledPresetIndexTest.deleteRecursive(mRoot);
+    }
+
+    @Test
+    public void servesStoredAndDeflatedEntries() throws IOException {
+        File zipFile = new File(mRoot, PresetHandle.ARCHIVE_FILE_NAME);
+        writeZip(zipFile);
+        MappedPresetArchive archive = MappedPresetArchive.open(zipFile);
+
+        assertEquals(Arrays.asList("kit/kick.wav", "loops/loop1.wav"), archive.getNames());
+        // stored sample is a slice of the mapping, not a copy
+        ByteBuffer kick = archive.read("kit/kick.wav");
+        assertTrue(kick.isDirect() && kick.isReadOnly());
+        assertArrayEquals(mKick, toArray(kick));
+        assertArrayEquals(mLoop, toArray(archive.read("loops/loop1.wav")));
+        assertArrayEquals(mLoop, readFully(archive.open("loops/loop1.wav")));
+        assertArrayEquals(mKick, readFully(archive.open("kit/kick.wav")));
+        try {
+            archive.read("kit/hat.wav");
+            fail("Unknown sample must not be found");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+
+        archive.close();
+        try {
+            archive.read("kit/kick.wav");
+            fail("Closed archive must not be read");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void verifyChecksCrcOfEveryEntry() throws IOException {
+        File zipFile = new File(mRoot, PresetHandle.ARCHIVE_FILE_NAME);
+        writeZip(zipFile);
+        final AtomicLong verifiedBytes = new AtomicLong();
+        ByteProgressListener progressListener = new ByteProgressListener() {
+            @Override
+            public void onBytesProcessed(long count) {
+                verifiedBytes.addAndGet(count);
+            }
+        };
+        CancelSignal notCancelled = new CancelSignal() {
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+        };
+        MappedPresetArchive archive = MappedPresetArchive.open(zipFile);
+        assertTrue(archive.verify(notCancelled, progressListener));
+        assertEquals(mKick.length + mLoop.length, verifiedBytes.get());
+        assertEquals(mKick.length + mLoop.length, archive.getTotalUncompressedSize());
+        assertFalse(archive.verify(new CancelSignal() {
+            @Override
+            public boolean isCancelled() {
+                return true;
+            }
+        }, progressListener));
+        archive.close();
+
+        byte[] zip = PresetsFileDownloaderTest.readFile(zipFile);
+        ParallelZipExtractorTest.corruptStoredData(zip, "kit/kick.wav");
+        ParallelZipExtractorTest.writeFile(zipFile, zip);
+        archive = MappedPresetArchive.open(zipFile);
+        // slice of a stored sample is served as it is
+        assertEquals(mKick.length, archive.read("kit/kick.wav").remaining());
+        try {
+            archive.verify(notCancelled, progressListener);
+            fail("Corrupt stored entry must be found");
+        } catch (ZipException e) {
+            // expected
+        } finally {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void handleReadsArchiveAndDirectoryPresetsAlike() throws IOException {
+        File archivePreset = new File(mRoot, "1");
+        assertTrue(archivePreset.mkdirs());
+        writeZip(new File(archivePreset, PresetHandle.ARCHIVE_FILE_NAME));
+        new PresetManifest().save(archivePreset);
+
+        File directoryPreset = new File(mRoot, "2");
+        assertTrue(new File(directoryPreset, "kit").mkdirs() && new File(directoryPreset, "loops").mkdirs());
+        writeFile(new File(directoryPreset, "kit/kick.wav"), mKick);
+        writeFile(new File(directoryPreset, "loops/loop1.wav"), mLoop);
+        new PresetManifest().save(directoryPreset);
+
+        for (File presetDirectory : new File[]{archivePreset, directoryPreset}) {
+            PresetHandle handle = PresetHandle.open(Integer.parseInt(presetDirectory.getName()), presetDirectory);
+            try {
+                assertEquals(2, handle.getSampleNames().size());
+                assertTrue(handle.getSampleNames().contains("loops/loop1.wav"));
+                assertArrayEquals(mKick, toArray(handle.readSample("kit/kick.wav")));
+                assertArrayEquals(mLoop, readFully(handle.openSample("loops/loop1.wav")));
+            } finally {
+                handle.close();
+            }
+        }
+        PresetHandle handle = PresetHandle.open(1, archivePreset);
+        assertNull(handle.getDirectory());
+        handle.close();
+        try {
+            PresetHandle.open(2, directoryPreset).openSample("../1/" + PresetHandle.ARCHIVE_FILE_NAME);
+            fail("Sample outside of preset must not be opened");
+        } catch (IOException e) {
+            // expected, names can't leave preset directory
+        }
+    }
+
+    private void writeZip(File file) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            ZipEntry kick = new ZipEntry("kit/kick.wav");
+            kick.setMethod(ZipEntry.STORED);
+            kick.setSize(mKick.length);
+            CRC32 crc = new CRC32();
+            crc.update(mKick);
+            kick.setCrc(crc.getValue());
+            zip.putNextEntry(kick);
+            zip.write(mKick);
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("loops/"));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("loops/loop1.wav"));
+            zip.write(mLoop);
+            zip.closeEntry();
+        } finally {
+            zip.close();
+        }
+    }
+
+    private static void writeFile(File file, byte[] content) throws IOException {
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(content);
+        } finally {
+            output.close();
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                bytes.write(buffer, 0, count);
+            }
+        } finally {
+            input.close();
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,162 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParallelZipExtractorTest {
+
+    private static final CancelSignal NOT_CANCELLED = new CancelSignal() {
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    private static final ByteProgressListener NO_PROGRESS = new ByteProgressListener() {
+        @Override
+        public void onBytesProcessed(long count) {
+        }
+    };
+
+    private File mRoot;
+    private File mZipFile;
+    private File mTargetDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mRoot = File.createTempFile("parallelUnzip", "");
+        assertTrue(mRoot.delete() && mRoot.mkdirs());
+        mZipFile = new File(mRoot, "preset.zip");
+        mTargetDirectory = new File(mRoot, "preset");
+    }
+
+    @After
+    public void tearDown() {
+        InstalledPresetIndexTest.deleteRecursive(mRoot);
+    }
+
+    @Test
+    public void extractsAllEntries() throws IOException {
+        byte[] kick = sample(1, 16 * 1024);
+        writeFile(mZipFile, storedZip("kit/kick.wav", kick));
+
+        assertTrue(extract(NOT_CANCELLED, NO_PROGRESS));
+        assertArrayEquals(kick, PresetsFileDownloaderTest.readFile(new File(mTargetDirectory, "kit/kick.wav")));
+    }
+
+    @Test
+    public void entryOutsideOfTargetIsRejectedBeforeWriting() throws IOException {
+        writeFile(mZipFile, storedZip("../evil.wav", sample(1, 1024)));
+
+        try {
+            extract(NOT_CANCELLED, NO_PROGRESS);
+            fail("Zip slip entry must be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(new File(mRoot, "evil.wav").exists());
+        assertFalse(mTargetDirectory.exists());
+    }
+
+    @Test
+    public void corruptEntryFailsWithCrcMismatch() throws IOException {
+        byte[] zip = storedZip("kit/kick.wav", sample(1, 16 * 1024));
+        corruptStoredData(zip, "kit/kick.wav");
+        writeFile(mZipFile, zip);
+
+        try {
+            extract(NOT_CANCELLED, NO_PROGRESS);
+            fail("Corrupt entry must not be extracted silently");
+        } catch (ZipException e) {
+            // expected, classified as KIND_CORRUPT_ARCHIVE
+        }
+    }
+
+    @Test
+    public void cancelStopsExtraction() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        for (int i = 0; i < 64; i++) {
+            zip.putNextEntry(new ZipEntry("kit/sample" + i + ".wav"));
+            zip.write(sample(i, 64 * 1024));
+            zip.closeEntry();
+        }
+        zip.close();
+        writeFile(mZipFile, bytes.toByteArray());
+
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        boolean completed = extract(new CancelSignal() {
+            @Override
+            public boolean isCancelled() {
+                return cancelled.get();
+            }
+        }, new ByteProgressListener() {
+            @Override
+            public void onBytesProcessed(long count) {
+                cancelled.set(true);
+            }
+        });
+
+        // cancelled install is aborted by caller, no matter how many entries got written
+        assertFalse(completed);
+    }
+
+    private boolean extract(CancelSignal cancelSignal, ByteProgressListener progressListener) throws IOException {
+        return new ParallelZipExtractor().extract(mZipFile, ZipMetadataReader.read(mZipFile), mTargetDirectory,
+                cancelSignal, progressListener);
+    }
+
+    static byte[] sample(int seed, int size) {
+        byte[] sample = new byte[size];
+        new Random(seed).nextBytes(sample);
+        return sample;
+    }
+
+    // single STORED entry, its data starts right after local header and name
+    static byte[] storedZip(String name, byte[] content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(content.length);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        entry.setCrc(crc.getValue());
+        zip.putNextEntry(entry);
+        zip.write(content);
+        zip.closeEntry();
+        zip.close();
+        return bytes.toByteArray();
+    }
+
+    // flips a byte in the middle of data of the first entry written by storedZip
+    static void corruptStoredData(byte[] zip, String name) {
+        zip[30 + name.length() + 100]++;
+    }
+
+    static void writeFile(File file, byte[] content) throws IOException {
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(content);
+        } finally {
+            output.close();
+        }
+    }
+}
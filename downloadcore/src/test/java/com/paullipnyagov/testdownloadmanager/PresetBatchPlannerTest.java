@@ -0,0 +1,142 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PresetBatchPlannerTest {
+
+    private static final int FILE_SIZE = 1024 * 1024;
+
+    private File mRoot;
+    private byte[] mZip;
+    private RangeHttpServer mServer;
+    private ExecutorService mExecutor;
+    private InstalledPresetIndex mIndex;
+
+    @Before
+    public void setUp() throws IOException {
+        mRoot = File.createTempFile("batchPlanner", "");
+        assertTrue(mRoot.delete() && mRoot.mkdirs());
+        mZip = presetZip();
+        mServer = new RangeHttpServer(mZip, true);
+        mExecutor = Executors.newCachedThreadPool();
+        mIndex = new InstalledPresetIndex(mRoot, new File(mRoot, "index.idx"));
+        mIndex.onInstalled(1, "2", 100, null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mExecutor.shutdownNow();
+        mServer.stop();
+        InstalledPresetIndexTest.deleteRecursive(mRoot);
+    }
+
+    @Test
+    public void batchIsTrimmedToReservableSpace() {
+        // room for two presets and a half, whatever is free on the test machine
+        long required = mZip.length + 2L * FILE_SIZE;
+        SpaceLedger ledger = ledgerWithRoomFor(required * 5 / 2);
+        PresetBatchPlanner planner = new PresetBatchPlanner(UrlConnectionTransport.getDefault(), mExecutor, 3);
+
+        PresetBatchPlanner.Plan plan = planner.plan(presets(1, 2, 3, 4), mIndex, ledger, mRoot, true, true, false);
+
+        assertEquals("[1]", ids(plan.alreadyInstalled));
+        assertEquals("[2, 3]", ids(plan.accepted));
+        assertEquals("[4]", ids(plan.rejected));
+        assertEquals(2 * required, plan.reservedBytes);
+        assertEquals(2 * required, ledger.getReservedBytes());
+
+        // finished preset gives its space back to the next batch
+        ledger.release(2);
+        plan = planner.plan(presets(4), mIndex, ledger, mRoot, true, true, false);
+        assertEquals("[4]", ids(plan.accepted));
+    }
+
+    @Test
+    public void allOrNothingBatchIsRefusedWhole() {
+        long required = mZip.length + 2L * FILE_SIZE;
+        SpaceLedger ledger = ledgerWithRoomFor(required * 5 / 2);
+        PresetBatchPlanner planner = new PresetBatchPlanner(UrlConnectionTransport.getDefault(), mExecutor, 3);
+
+        PresetBatchPlanner.Plan plan = planner.plan(presets(2, 3, 4), mIndex, ledger, mRoot, true, true, true);
+        assertEquals("[]", ids(plan.accepted));
+        assertEquals("[2, 3, 4]", ids(plan.rejected));
+        assertEquals(0, ledger.getReservedBytes());
+
+        // streaming extract stores no zip, only extracted files are reserved
+        plan = planner.plan(presets(2), mIndex, ledger, mRoot, false, true, true);
+        assertEquals("[2]", ids(plan.accepted));
+        assertEquals(2L * FILE_SIZE, ledger.getReservedBytes());
+    }
+
+    @Test
+    public void presetWithoutVersionFollowsVersionFileRule() {
+        mIndex.onInstalled(2, null, 100, null);
+        mIndex.onInstalled(3, null, 100, null);
+        mIndex.onInstalled(4, null, 100, null);
+        PresetBatchPlanner planner = new PresetBatchPlanner(UrlConnectionTransport.getDefault(), mExecutor, 3);
+        List<PresetRequest> presets = new ArrayList<>();
+        presets.add(new PresetRequest(2, "preset2", mServer.getUrl() + "?id=2", null));
+        presets.add(new PresetRequest(3, "preset3", mServer.getUrl() + "?id=3", "0"));
+        presets.add(new PresetRequest(4, "preset4", mServer.getUrl() + "?id=4", "2"));
+        SpaceLedger ledger = ledgerWithRoomFor(2 * (mZip.length + 2L * FILE_SIZE));
+
+        PresetBatchPlanner.Plan plan = planner.plan(presets, mIndex, ledger, mRoot, true, true, false);
+
+        // config without version doesn't ask for a download of preset without version
+        assertEquals("[2, 3]", ids(plan.alreadyInstalled));
+        assertEquals("[4]", ids(plan.accepted));
+    }
+
+    private SpaceLedger ledgerWithRoomFor(long bytes) {
+        return new SpaceLedger(FileUtils.getPartitionFreeSpace(mRoot) - bytes);
+    }
+
+    private List<PresetRequest> presets(int... ids) {
+        List<PresetRequest> presets = new ArrayList<>();
+        for (int id : ids) {
+            presets.add(new PresetRequest(id, "preset" + id, mServer.getUrl() + "?id=" + id, "2"));
+        }
+        return presets;
+    }
+
+    private static String ids(List<PresetRequest> presets) {
+        List<Integer> ids = new ArrayList<>();
+        for (PresetRequest preset : presets) {
+            ids.add(preset.getId());
+        }
+        return ids.toString();
+    }
+
+    // two STORED samples, like most packs
+    private static byte[] presetZip() throws IOException {
+        Random random = new Random(11);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        zip.setLevel(0);
+        for (String name : new String[]{"kit/kick.wav", "kit/snare.wav"}) {
+            byte[] content = new byte[FILE_SIZE];
+            random.nextBytes(content);
+            zip.putNextEntry(new ZipEntry(name));
+            zip.write(content);
+            zip.closeEntry();
+        }
+        zip.close();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,90 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PresetCatalogueTest {
+
+    private static final String CONFIG_V1 = "[{\n" +
+            "\t\"id\": 103,\n" +
+            "\t\"name\": \"Christmas \\\"Cake\\\"\",\n" +
+            "\t\"path\": \"http://example.com/106_samples44.zip\"\n" +
+            "}, {\"id\": 104, \"name\": \"Blades\", \"tags\": [\"dnb\", {\"x\": [1, 2]}], \"free\": true,\n" +
+            "\t\"path\": \"http://example.com/107.zip\", \"version\": 2},\n" +
+            " {\"name\": \"No id\", \"path\": \"http://example.com/none.zip\"},\n" +
+            " {\"id\": 105, \"name\": \"Metal DnB\", \"path\": \"http://example.com/108.zip\", \"version\": null}]";
+    private static final String CONFIG_V2 = "[{\"id\": 104, \"name\": \"Blades\"," +
+            " \"path\": \"http://example.com/107.zip\", \"version\": 3}," +
+            " {\"id\": 105, \"name\": \"Metal DnB\", \"path\": \"http://example.com/108.zip\"}," +
+            " {\"id\": 106, \"name\": \"Mestery\", \"path\": \"http://example.com/109.zip\"}]";
+
+    private File mSnapshotFile;
+    private RangeHttpServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mSnapshotFile = File.createTempFile("catalogue", ".snap");
+        assertTrue(mSnapshotFile.delete());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mServer != null) {
+            mServer.stop();
+        }
+        mSnapshotFile.delete();
+    }
+
+    @Test
+    public void configIsParsedIntoIndexedCatalogue() throws IOException {
+        PresetCatalogue catalogue = CatalogueJsonReader.read(new ByteArrayInputStream(CONFIG_V1.getBytes("UTF-8")),
+                "\"v1\"", null);
+        assertArrayEquals(new int[]{103, 104, 105}, catalogue.getIds());
+        assertEquals("Christmas \"Cake\"", catalogue.getName(0));
+        assertEquals(1, catalogue.indexOf(104));
+        assertEquals("2", catalogue.getVersion(1));
+        assertNull(catalogue.getVersion(2));
+        assertEquals(-1, catalogue.indexOf(1));
+
+        catalogue.writeSnapshot(mSnapshotFile);
+        PresetCatalogue snapshot = PresetCatalogue.readSnapshot(mSnapshotFile);
+        assertArrayEquals(catalogue.getIds(), snapshot.getIds());
+        assertEquals("http://example.com/107.zip", snapshot.getPath(snapshot.indexOf(104)));
+        assertEquals("\"v1\"", snapshot.getETag());
+    }
+
+    @Test
+    public void refreshDownloadsOnlyChangedConfigAndReportsDiff() throws IOException {
+        mServer = new RangeHttpServer(CONFIG_V1.getBytes("UTF-8"), false);
+        PresetCatalogueLoader loader = new PresetCatalogueLoader(new UrlConnectionTransport(5000, 5000),
+                mServer.getUrl(), mSnapshotFile);
+        PresetCatalogue.Diff diff = loader.refresh();
+        assertEquals(Arrays.asList(103, 104, 105), diff.addedIds);
+
+        // cold start: snapshot gives the catalogue, and the same ETag means nothing changed
+        PresetCatalogueLoader restarted = new PresetCatalogueLoader(new UrlConnectionTransport(5000, 5000),
+                mServer.getUrl(), mSnapshotFile);
+        assertEquals(3, restarted.getCatalogue().size());
+        long bytesSent = mServer.getBodyBytesSent();
+        assertTrue(restarted.refresh().isEmpty());
+        assertEquals(bytesSent, mServer.getBodyBytesSent());
+
+        mServer.replaceContent(CONFIG_V2.getBytes("UTF-8"), "\"v2\"");
+        diff = restarted.refresh();
+        assertEquals(Arrays.asList(106), diff.addedIds);
+        assertEquals(Arrays.asList(103), diff.removedIds);
+        assertEquals(Arrays.asList(104), diff.versionChangedIds);
+        assertEquals(3, restarted.getCatalogue().size());
+    }
+}
@@ -0,0 +1,308 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PresetDownloadEngineTest {
+
+    private static final int PRESET_COUNT = 24;
+
+    private File mRoot;
+    private RangeHttpServer mServer;
+    private JvmDownloadRuntime mRuntime;
+    private PresetDownloadEngine mEngine;
+
+    // engine events, guarded by itself
+    private final List<String> mEvents = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        mRoot = File.createTempFile("downloadEngine", "");
+        assertTrue(mRoot.delete() && mRoot.mkdirs());
+        mServer = new RangeHttpServer(presetZip(), true);
+        mRuntime = new JvmDownloadRuntime();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mEngine != null) {
+            callOnEventLoop(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    mEngine.recycle();
+                    return null;
+                }
+            });
+        }
+        mRuntime.shutdown();
+        mServer.stop();
+        InstalledPresetIndexTest.deleteRecursive(mRoot);
+    }
+
+    @Test
+    public void installsWholeQueueWithoutAndroid() throws Exception {
+        mEngine = mRuntime.newEngine(mRoot);
+        final CountDownLatch completed = new CountDownLatch(PRESET_COUNT);
+        callOnEventLoop(new Callable<Void>() {
+            @Override
+            public Void call() {
+                mEngine.addListener(new RecordingListener(completed));
+                mEngine.setMaxConcurrentDownloads(8);
+                mEngine.setMaxDownloadsPerHost(8);
+                for (int id = 1; id <= PRESET_COUNT; id++) {
+                    mEngine.download(new PresetRequest(id, "preset" + id, mServer.getUrl() + "?id=" + id, "1"),
+                            DownloadPriorityQueue.PRIORITY_USER);
+                }
+                return null;
+            }
+        });
+
+        assertTrue(completed.await(60, TimeUnit.SECONDS));
+        synchronized (mEvents) {
+            assertFalse(mEvents.toString(), mEvents.toString().contains("failed"));
+        }
+        assertTrue(callOnEventLoop(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                for (int id = 1; id <= PRESET_COUNT; id++) {
+                    if (mEngine.getDownloadProgress(id) != PresetDownloadEngine.PROGRESS_COMPLETED) {
+                        return false;
+                    }
+                }
+                return mEngine.getActiveDownloadPresetIds().length == 0;
+            }
+        }));
+        InstalledPresetIndex index = JvmDownloadRuntime.newStorage(mRoot).getInstalledPresetIndex();
+        for (int id = 1; id <= PRESET_COUNT; id++) {
+            assertEquals(InstalledPreset.STATE_INSTALLED, index.getState(id));
+        }
+        File presetDirectory = new File(new File(mRoot, "presets"), "7");
+        assertEquals(4096, new File(presetDirectory, "kit/kick.wav").length());
+        assertEquals("1", PresetManifest.readHeader(presetDirectory).version);
+    }
+
+    @Test
+    public void keepArchiveInstallsZipWithoutExtracting() throws Exception {
+        mEngine = mRuntime.newEngine(mRoot);
+        final CountDownLatch completed = new CountDownLatch(1);
+        callOnEventLoop(new Callable<Void>() {
+            @Override
+            public Void call() {
+                mEngine.addListener(new RecordingListener(completed));
+                mEngine.setKeepArchiveEnabled(true);
+                mEngine.download(new PresetRequest(3, "preset3", mServer.getUrl(), "1"),
+                        DownloadPriorityQueue.PRIORITY_USER);
+                return null;
+            }
+        });
+
+        assertTrue(completed.await(30, TimeUnit.SECONDS));
+        File presetDirectory = new File(new File(mRoot, "presets"), "3");
+        assertFalse(new File(presetDirectory, "kit").exists());
+        assertFalse(PresetManifest.canUpdateIncrementally(presetDirectory));
+        PresetHandle handle = PresetHandle.open(3, presetDirectory);
+        try {
+            assertEquals(null, handle.getDirectory());
+            assertEquals(3, handle.getSampleNames().size());
+            assertEquals(4096, handle.readSample("loops/loop1.wav").remaining());
+        } finally {
+            handle.close();
+        }
+        assertEquals(InstalledPreset.STATE_INSTALLED,
+                JvmDownloadRuntime.newStorage(mRoot).getInstalledPresetIndex().getState(3));
+    }
+
+    @Test
+    public void presetIsNotRestartedUntilRecycledWorkerExits() throws Exception {
+        mEngine = mRuntime.newEngine(mRoot);
+        final CountDownLatch firstRequestStarted = new CountDownLatch(1);
+        final CountDownLatch firstRequestReleased = new CountDownLatch(1);
+        final AtomicInteger requestCount = new AtomicInteger();
+        final CountDownLatch completed = new CountDownLatch(1);
+        final PresetRequest preset = new PresetRequest(5, "preset5", mServer.getUrl(), "1");
+        callOnEventLoop(new Callable<Void>() {
+            @Override
+            public Void call() {
+                mEngine.addListener(new RecordingListener(completed));
+                mEngine.setHttpTransport(new HttpTransport() {
+                    @Override
+                    public HttpResponse execute(HttpRequest request) throws IOException {
+                        if (requestCount.incrementAndGet() == 1) {
+                            // worker stuck in a call which ignores interruption, e.g. a slow connect
+                            firstRequestStarted.countDown();
+                            boolean interrupted = false;
+                            while (firstRequestReleased.getCount() > 0) {
+                                try {
+                                    firstRequestReleased.await();
+                                } catch (InterruptedException e) {
+                                    interrupted = true;
+                                }
+                            }
+                            if (interrupted) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                        return UrlConnectionTransport.getDefault().execute(request);
+                    }
+                });
+                mEngine.download(preset, DownloadPriorityQueue.PRIORITY_USER);
+                return null;
+            }
+        });
+        assertTrue(firstRequestStarted.await(10, TimeUnit.SECONDS));
+
+        boolean restartedAtOnce = callOnEventLoop(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                mEngine.cancelDownload(5);
+                mEngine.download(preset, DownloadPriorityQueue.PRIORITY_USER);
+                return mEngine.getActiveDownloadPresetIds().length > 0;
+            }
+        });
+        firstRequestReleased.countDown();
+
+        assertFalse("second worker must wait for the first one", restartedAtOnce);
+        assertTrue(completed.await(30, TimeUnit.SECONDS));
+        File presetDirectory = new File(new File(mRoot, "presets"), "5");
+        assertEquals(4096, new File(presetDirectory, "kit/kick.wav").length());
+        assertFalse(new StagedInstall(presetDirectory).getStagingDirectory().exists());
+    }
+
+    @Test
+    public void unavailableStorageClearsQueue() throws Exception {
+        mEngine = new PresetDownloadEngine(new PresetDownloadEngine.Storage() {
+            @Override
+            public File getTempDirectory() {
+                return null;
+            }
+
+            @Override
+            public File getDownloadDirectory() {
+                return null;
+            }
+
+            @Override
+            public InstalledPresetIndex getInstalledPresetIndex() {
+                return null;
+            }
+
+            @Override
+            public BlobStore getBlobStore() {
+                return null;
+            }
+
+            @Override
+            public BlobStore.LinkSupport getLinkSupport() {
+                return null;
+            }
+        }, mRuntime, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new AssertionError("Nothing must be transferred");
+            }
+        });
+        final CountDownLatch cleared = new CountDownLatch(1);
+        callOnEventLoop(new Callable<Void>() {
+            @Override
+            public Void call() {
+                mEngine.addListener(new RecordingListener(cleared));
+                mEngine.download(new PresetRequest(1, "first", mServer.getUrl(), "1"),
+                        DownloadPriorityQueue.PRIORITY_USER);
+                mEngine.download(new PresetRequest(2, "second", mServer.getUrl(), "1"),
+                        DownloadPriorityQueue.PRIORITY_BACKGROUND);
+                return null;
+            }
+        });
+
+        assertTrue(cleared.await(10, TimeUnit.SECONDS));
+        synchronized (mEvents) {
+            assertEquals("[cleared 1: 1, 2]", mEvents.toString());
+        }
+        assertFalse(callOnEventLoop(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mEngine.isInQueue(1) || mEngine.isInQueue(2);
+            }
+        }));
+        assertEquals(0, mServer.getRequestCount());
+    }
+
+    // counts down on completion and on cleared queue
+    private class RecordingListener implements PresetDownloadEngine.Listener {
+        private final CountDownLatch mLatch;
+
+        RecordingListener(CountDownLatch latch) {
+            mLatch = latch;
+        }
+
+        @Override
+        public void onDownloadStarted(PresetRequest preset) {
+        }
+
+        @Override
+        public void onDownloadCompleted(PresetRequest preset) {
+            mLatch.countDown();
+        }
+
+        @Override
+        public void onDownloadFailed(PresetRequest preset, String errorMessage, boolean willRetry) {
+            synchronized (mEvents) {
+                mEvents.add("failed " + preset.getId() + ": " + errorMessage);
+            }
+        }
+
+        @Override
+        public void onQueueCleared(int failedPresetId, List<PresetRequest> queuedPresets) {
+            StringBuilder event = new StringBuilder("cleared " + failedPresetId + ":");
+            for (int i = 0; i < queuedPresets.size(); i++) {
+                event.append(i == 0 ? " " : ", ").append(queuedPresets.get(i).getId());
+            }
+            synchronized (mEvents) {
+                mEvents.add(event.toString());
+            }
+            mLatch.countDown();
+        }
+    }
+
+    private <T> T callOnEventLoop(Callable<T> callable) throws Exception {
+        FutureTask<T> task = new FutureTask<>(callable);
+        mRuntime.execute(task);
+        return task.get(10, TimeUnit.SECONDS);
+    }
+
+    private static byte[] presetZip() throws IOException {
+        Random random = new Random(5);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        String[] names = {"kit/kick.wav", "kit/snare.wav", "loops/loop1.wav"};
+        for (String name : names) {
+            byte[] content = new byte[4096];
+            random.nextBytes(content);
+            zip.putNextEntry(new ZipEntry(name));
+            zip.write(content);
+            zip.closeEntry();
+        }
+        zip.close();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,53 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PresetUsageHistoryTest {
+
+    private static final int[] CATALOGUE = {10, 20, 30, 40, 50};
+
+    @Test
+    public void withoutHistoryCatalogueOrderAndPopularityDecide() {
+        PresetUsageHistory history = new PresetUsageHistory();
+        assertArrayEquals(new int[]{20, 40, 50}, history.rankNextPresets(CATALOGUE, new int[]{50, 40, 20},
+                Collections.<Integer, Integer>emptyMap()));
+
+        HashMap<Integer, Integer> popularity = new HashMap<>();
+        popularity.put(50, 1000);
+        popularity.put(40, 10);
+        assertArrayEquals(new int[]{50, 40, 20}, history.rankNextPresets(CATALOGUE, new int[]{20, 40, 50},
+                popularity));
+    }
+
+    @Test
+    public void presetWhichUsuallyFollowsLastTapGoesFirst() throws IOException {
+        PresetUsageHistory history = new PresetUsageHistory();
+        history.onPresetTapped(20);
+        history.onPresetTapped(50);
+        history.onPresetTapped(20);
+
+        // 30 is the next one in catalogue, but after 20 user went to 50 before
+        assertArrayEquals(new int[]{50, 30, 10, 40}, history.rankNextPresets(CATALOGUE, new int[]{10, 30, 40, 50},
+                Collections.<Integer, Integer>emptyMap()));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        history.write(new DataOutputStream(bytes));
+        PresetUsageHistory restored = new PresetUsageHistory();
+        restored.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(20, restored.getLastTappedId());
+        assertEquals(2, restored.getTapCount(20));
+        assertArrayEquals(new int[]{50, 30, 10, 40}, restored.rankNextPresets(CATALOGUE, new int[]{10, 30, 40, 50},
+                Collections.<Integer, Integer>emptyMap()));
+    }
+}
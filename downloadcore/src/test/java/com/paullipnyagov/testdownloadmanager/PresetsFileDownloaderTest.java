@@ -0,0 +1,278 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PresetsFileDownloaderTest {
+
+    // downloads run on the calling thread, so results are there when downloadFile returns
+    static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private File mRoot;
+    private File mZipFile;
+    private File mPresetDirectory;
+    private RangeHttpServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mRoot = File.createTempFile("fileDownloader", "");
+        assertTrue(mRoot.delete() && mRoot.mkdirs());
+        mZipFile = new File(mRoot, "preset_1.zip");
+        mPresetDirectory = new File(new File(mRoot, "presets"), "1");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mServer != null) {
+            mServer.stop();
+        }
+        InstalledPresetIndexTest.deleteRecursive(mRoot);
+    }
+
+    @Test
+    public void fileChangedMidDownloadIsFetchedAgainInNewVersion() throws IOException {
+        byte[] oldSample = sample(1);
+        final byte[] newSample = sample(2);
+        mServer = new RangeHttpServer(presetZip(oldSample), true);
+        final byte[] newZip = presetZip(newSample);
+        // new version is uploaded right after the old one was probed
+        final AtomicInteger rangeRequests = new AtomicInteger();
+        PresetsFileDownloader downloader = newDownloader(new HttpTransport() {
+            @Override
+            public HttpResponse execute(HttpRequest request) throws IOException {
+                if (request.getHeaders().containsKey("Range") && rangeRequests.incrementAndGet() == 1) {
+                    mServer.replaceContent(newZip, "\"v2\"");
+                }
+                return UrlConnectionTransport.getDefault().execute(request);
+            }
+        });
+
+        download(downloader);
+
+        assertTrue(downloader.getErrorMessage(), downloader.isDownloadCompletedSuccessfully());
+        assertArrayEquals(newSample, readFile(new File(mPresetDirectory, "kit/kick.wav")));
+        assertFalse(mZipFile.exists() || PartialDownload.getStateFile(mZipFile).exists());
+    }
+
+    @Test
+    public void fileChangingOnEveryAttemptFailsWithoutInstall() throws IOException {
+        mServer = new RangeHttpServer(presetZip(sample(1)), true);
+        final AtomicInteger version = new AtomicInteger(1);
+        PresetsFileDownloader downloader = newDownloader(new HttpTransport() {
+            @Override
+            public HttpResponse execute(HttpRequest request) throws IOException {
+                if (request.getHeaders().containsKey("Range")) {
+                    int next = version.incrementAndGet();
+                    mServer.replaceContent(presetZip(sample(next)), "\"v" + next + "\"");
+                }
+                return UrlConnectionTransport.getDefault().execute(request);
+            }
+        });
+
+        download(downloader);
+
+        assertFalse(downloader.isDownloadCompletedSuccessfully());
+        assertEquals(DownloadFailure.KIND_SERVER, downloader.getFailureKind());
+        // zero-filled preallocated archive is neither unzipped nor kept for resume
+        assertFalse(mPresetDirectory.exists());
+        assertFalse(mZipFile.exists() || PartialDownload.getStateFile(mZipFile).exists());
+    }
+
+    @Test
+    public void cancelledDownloadDoesNotReportCompletion() throws IOException {
+        mServer = new RangeHttpServer(presetZip(sample(1)), true);
+        final PresetsFileDownloader[] downloader = new PresetsFileDownloader[1];
+        ProgressEventBus eventBus = new ProgressEventBus();
+        final List<Integer> progress = new ArrayList<>();
+        eventBus.subscribe(new ProgressEventBus.Listener() {
+            @Override
+            public void onPresetProgress(int presetId, int value) {
+                progress.add(value);
+            }
+        }, DIRECT);
+        downloader[0] = new PresetsFileDownloader(1, eventBus);
+        downloader[0].setExecutors(DIRECT, DIRECT);
+        downloader[0].setInstallTelemetry(new InstallTelemetry());
+        downloader[0].setHttpTransport(new HttpTransport() {
+            @Override
+            public HttpResponse execute(HttpRequest request) throws IOException {
+                if (request.getHeaders().containsKey("Range")) {
+                    // engine cancels or preempts the preset and publishes its own state
+                    downloader[0].recycle();
+                }
+                return UrlConnectionTransport.getDefault().execute(request);
+            }
+        });
+
+        download(downloader[0]);
+
+        assertFalse(progress.toString(), progress.contains(100));
+        assertFalse(mPresetDirectory.exists());
+    }
+
+    @Test
+    public void bandwidthShareIsReturnedBeforeUnzip() throws IOException {
+        mServer = new RangeHttpServer(presetZip(sample(1)), true);
+        BandwidthGovernor governor = new BandwidthGovernor(new BandwidthGovernorTest.FakeClock());
+        governor.setBytesPerSecond(1000000);
+        final BandwidthGovernor.Transfer other = governor.openTransfer(DownloadPriorityQueue.PRIORITY_USER);
+        final List<Long> sharesWhileInstalling = new ArrayList<>();
+        ProgressEventBus eventBus = new ProgressEventBus();
+        eventBus.subscribe(new ProgressEventBus.Listener() {
+            @Override
+            public void onPresetProgress(int presetId, int value) {
+                // download ends at 75%, unzip phase publishes its start right away
+                if (value >= 75 && value < 100) {
+                    sharesWhileInstalling.add(other.getBytesPerSecond());
+                }
+            }
+        }, DIRECT);
+        PresetsFileDownloader downloader = new PresetsFileDownloader(1, eventBus);
+        downloader.setExecutors(DIRECT, DIRECT);
+        downloader.setInstallTelemetry(new InstallTelemetry());
+        downloader.setBandwidthGovernor(governor);
+
+        download(downloader);
+
+        assertTrue(downloader.getErrorMessage(), downloader.isDownloadCompletedSuccessfully());
+        assertFalse("unzip phase was not published", sharesWhileInstalling.isEmpty());
+        for (long share : sharesWhileInstalling) {
+            assertEquals(1000000, share);
+        }
+        other.close();
+    }
+
+    @Test
+    public void archiveWithWrongHashIsNotCommitted() throws IOException {
+        mServer = new RangeHttpServer(presetZip(sample(1)), true);
+        byte[] installedSample = installOldVersion();
+        PresetsFileDownloader downloader = newDownloader(UrlConnectionTransport.getDefault());
+        downloader.setExpectedArchiveSha256("0000000000000000000000000000000000000000000000000000000000000000");
+
+        download(downloader);
+
+        assertRejectedAsCorrupt(downloader, installedSample);
+        // broken archive must not be resumed either
+        assertFalse(mZipFile.exists() || PartialDownload.getStateFile(mZipFile).exists());
+    }
+
+    @Test
+    public void corruptEntryIsNotCommittedByParallelExtract() throws IOException {
+        corruptEntryIsNotCommitted(false, false);
+    }
+
+    @Test
+    public void corruptEntryIsNotCommittedByStreamingExtract() throws IOException {
+        corruptEntryIsNotCommitted(true, false);
+    }
+
+    @Test
+    public void corruptEntryIsNotCommittedWithArchiveKept() throws IOException {
+        corruptEntryIsNotCommitted(false, true);
+        assertFalse(new File(mPresetDirectory, PresetHandle.ARCHIVE_FILE_NAME).exists());
+    }
+
+    private void corruptEntryIsNotCommitted(boolean streamingExtract, boolean keepArchive) throws IOException {
+        byte[] zip = ParallelZipExtractorTest.storedZip("kit/kick.wav", sample(1));
+        ParallelZipExtractorTest.corruptStoredData(zip, "kit/kick.wav");
+        mServer = new RangeHttpServer(zip, true);
+        byte[] installedSample = installOldVersion();
+        PresetsFileDownloader downloader = newDownloader(UrlConnectionTransport.getDefault());
+        downloader.setStreamingExtract(streamingExtract);
+        downloader.setKeepArchive(keepArchive);
+
+        download(downloader);
+
+        assertRejectedAsCorrupt(downloader, installedSample);
+    }
+
+    // version 0 of preset 1, which a failed update must leave as it is
+    private byte[] installOldVersion() throws IOException {
+        byte[] sample = sample(100);
+        assertTrue(new File(mPresetDirectory, "kit").mkdirs());
+        ParallelZipExtractorTest.writeFile(new File(mPresetDirectory, "kit/kick.wav"), sample);
+        PresetManifest manifest = new PresetManifest();
+        manifest.setVersion("0");
+        manifest.save(mPresetDirectory);
+        return sample;
+    }
+
+    private void assertRejectedAsCorrupt(PresetsFileDownloader downloader, byte[] installedSample)
+            throws IOException {
+        assertFalse(downloader.isDownloadCompletedSuccessfully());
+        assertEquals(downloader.getErrorMessage(), DownloadFailure.KIND_CORRUPT_ARCHIVE, downloader.getFailureKind());
+        assertEquals("0", PresetManifest.readHeader(mPresetDirectory).version);
+        assertArrayEquals(installedSample, readFile(new File(mPresetDirectory, "kit/kick.wav")));
+        assertFalse(new StagedInstall(mPresetDirectory).getStagingDirectory().exists());
+    }
+
+    private PresetsFileDownloader newDownloader(HttpTransport transport) {
+        PresetsFileDownloader downloader = new PresetsFileDownloader();
+        downloader.setExecutors(DIRECT, DIRECT);
+        downloader.setHttpTransport(transport);
+        downloader.setInstallTelemetry(new InstallTelemetry());
+        return downloader;
+    }
+
+    private void download(PresetsFileDownloader downloader) {
+        downloader.downloadFile(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, mServer.getUrl(), mZipFile.getPath(), mPresetDirectory.getPath(), "1");
+    }
+
+    private static byte[] sample(int seed) {
+        byte[] sample = new byte[8192];
+        new Random(seed).nextBytes(sample);
+        return sample;
+    }
+
+    static byte[] presetZip(byte[] kick) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        zip.putNextEntry(new ZipEntry("kit/kick.wav"));
+        zip.write(kick);
+        zip.closeEntry();
+        zip.close();
+        return bytes.toByteArray();
+    }
+
+    static byte[] readFile(File file) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                bytes.write(buffer, 0, count);
+            }
+            return bytes.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+}
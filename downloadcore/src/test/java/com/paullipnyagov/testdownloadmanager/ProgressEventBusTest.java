@@ -0,0 +1,121 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ProgressEventBusTest {
+
+    // runs deliveries when the test says so, like a busy main thread
+    private static class QueuedExecutor implements Executor {
+        final List<Runnable> mQueue = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            mQueue.add(command);
+        }
+
+        void runAll() {
+            while (!mQueue.isEmpty()) {
+                mQueue.remove(0).run();
+            }
+        }
+    }
+
+    private static class RecordingListener implements ProgressEventBus.Listener {
+        final List<String> mEvents = new ArrayList<>();
+
+        @Override
+        public void onPresetProgress(int presetId, int progress) {
+            mEvents.add(presetId + ":" + progress);
+        }
+    }
+
+    @Test
+    public void undeliveredValuesAreCoalescedPerPreset() {
+        ProgressEventBus bus = new ProgressEventBus();
+        QueuedExecutor executor = new QueuedExecutor();
+        RecordingListener listener = new RecordingListener();
+        bus.subscribe(listener, executor);
+
+        bus.publish(1, 10);
+        bus.publish(2, 5);
+        bus.publish(1, 20);
+        // one delivery queued for all of them, with the latest value of each preset
+        assertEquals(1, executor.mQueue.size());
+        executor.runAll();
+        assertEquals(2, listener.mEvents.size());
+        assertTrue(listener.mEvents.contains("1:20") && listener.mEvents.contains("2:5"));
+
+        bus.publish(1, PresetDownloadEngine.PROGRESS_COMPLETED);
+        executor.runAll();
+        assertEquals("1:" + PresetDownloadEngine.PROGRESS_COMPLETED, listener.mEvents.get(2));
+
+        bus.unsubscribe(listener);
+        bus.publish(1, 30);
+        assertEquals(0, executor.mQueue.size());
+    }
+
+    @Test
+    public void valuePublishedDuringDeliveryIsNotLost() {
+        final ProgressEventBus bus = new ProgressEventBus();
+        final QueuedExecutor executor = new QueuedExecutor();
+        final List<String> events = new ArrayList<>();
+        bus.subscribe(new ProgressEventBus.Listener() {
+            @Override
+            public void onPresetProgress(int presetId, int progress) {
+                events.add(presetId + ":" + progress);
+                if (progress == 50) {
+                    // e.g. engine publishes a state while UI handles progress
+                    bus.publish(presetId, PresetDownloadEngine.PROGRESS_IN_QUEUE);
+                }
+            }
+        }, executor);
+
+        bus.publish(1, 50);
+        executor.runAll();
+
+        assertEquals("[1:50, 1:" + PresetDownloadEngine.PROGRESS_IN_QUEUE + "]", events.toString());
+    }
+
+    @Test
+    public void trackerPublishesRisingPercentsOfPhases() {
+        ProgressEventBus bus = new ProgressEventBus();
+        final List<Integer> values = new ArrayList<>();
+        bus.subscribe(new ProgressEventBus.Listener() {
+            @Override
+            public void onPresetProgress(int presetId, int progress) {
+                values.add(progress);
+            }
+        }, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        ProgressTracker tracker = new ProgressTracker(1, bus);
+
+        tracker.startPhase(1000, 0, 0, 75);
+        for (int i = 0; i < 1000; i++) {
+            tracker.onBytesProcessed(1);
+        }
+        assertEquals(75, tracker.getPercent());
+        // unzip phase maps its bytes to the rest of the range
+        tracker.startPhase(400, 100, 75, 100);
+        tracker.onBytesProcessed(300);
+        tracker.finish(100);
+
+        assertEquals(0, (int) values.get(0));
+        assertEquals(100, (int) values.get(values.size() - 1));
+        // at most one publish per 100 ms, so a fast loop publishes far less than once per percent
+        assertTrue(values.toString(), values.size() < 20);
+        for (int i = 1; i < values.size(); i++) {
+            assertTrue(values.toString(), values.get(i) > values.get(i - 1));
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal in-process HTTP/1.1 server serving one in-memory file, optionally with Range/If-Range support.
+ * Connections are kept alive between requests like on a real CDN, unless disabled.
+ * Local stand-in for preset CDN in unit tests and benchmarks.
+ */
+public class RangeHttpServer {
+
+    private volatile byte[] mContent;
+    private volatile String mETag = "\"v1\"";
+    private final boolean mSupportsRanges;
+    private final ServerSocket mServerSocket;
+    private final AtomicInteger mRangeRequestCount = new AtomicInteger();
+    private final AtomicLong mBodyBytesSent = new AtomicLong();
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private volatile boolean mKeepAlive = true;
+    private volatile int mResponseDelayMs = 0;
+    private volatile double mFaultRate = 0;
+    private final Object mFaultLock = new Object();
+    private Random mFaultRandom = new Random(0); // guarded by mFaultLock
+    private final AtomicInteger mFaultCount = new AtomicInteger();
+    private volatile boolean mStopped = false;
+
+    public RangeHttpServer(byte[] content, boolean supportsRanges) throws IOException {
+        mContent = content;
+        mSupportsRanges = supportsRanges;
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "RangeHttpServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/preset.zip";
+    }
+
+    public int getRangeRequestCount() {
+        return mRangeRequestCount.get();
+    }
+
+    // number of accepted TCP connections, less than getRequestCount() when connections are reused
+    public int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+        mKeepAlive = keepAlive;
+    }
+
+    // simulated round trip of a remote CDN, waited before every response
+    public void setResponseDelayMs(int responseDelayMs) {
+        mResponseDelayMs = responseDelayMs;
+    }
+
+    /*
+     * Given share of GET requests fails like a flaky CDN: half of them get 503, the other half are cut
+     * in the middle of body. HEAD requests are always answered
+     */
+    public void setFaultRate(double faultRate, long seed) {
+        synchronized (mFaultLock) {
+            mFaultRandom = new Random(seed);
+        }
+        mFaultRate = faultRate;
+    }
+
+    public int getFaultCount() {
+        return mFaultCount.get();
+    }
+
+    public long getBodyBytesSent() {
+        return mBodyBytesSent.get();
+    }
+
+    // simulates new version of file uploaded to the same url
+    public void replaceContent(byte[] content, String eTag) {
+        mContent = content;
+        mETag = eTag;
+    }
+
+    public void stop() throws IOException {
+        mStopped = true;
+        mServerSocket.close();
+    }
+
+    private void acceptLoop() {
+        while (!mStopped) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mConnectionCount.incrementAndGet();
+                Thread handler = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(socket);
+                    }
+                });
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                return; // server socket closed
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            OutputStream out = socket.getOutputStream();
+            while (!mStopped && handleRequest(reader, out)) {
+                // next request on the same connection
+            }
+        } catch (IOException e) {
+            // client went away, nothing to do in test server
+        } finally {
+            FileUtils.tryCloseStream(socket);
+        }
+    }
+
+    // 0 - no fault, 1 - error status, 2 - cut body
+    private int nextFault() {
+        if (mFaultRate <= 0) {
+            return 0;
+        }
+        synchronized (mFaultLock) {
+            if (mFaultRandom.nextDouble() >= mFaultRate) {
+                return 0;
+            }
+            mFaultCount.incrementAndGet();
+            return mFaultRandom.nextBoolean() ? 1 : 2;
+        }
+    }
+
+    // returns false if connection must be closed
+    private boolean handleRequest(BufferedReader reader, OutputStream out) throws IOException {
+        String requestLine = reader.readLine();
+        if (requestLine == null) {
+            return false;
+        }
+        mRequestCount.incrementAndGet();
+        String range = null;
+        String ifRange = null;
+        String ifNoneMatch = null;
+        String line;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+            if (line.toLowerCase().startsWith("range:")) {
+                range = line.substring("range:".length()).trim();
+            } else if (line.toLowerCase().startsWith("if-range:")) {
+                ifRange = line.substring("if-range:".length()).trim();
+            } else if (line.toLowerCase().startsWith("if-none-match:")) {
+                ifNoneMatch = line.substring("if-none-match:".length()).trim();
+            }
+        }
+        if (mResponseDelayMs > 0) {
+            try {
+                Thread.sleep(mResponseDelayMs);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        byte[] content = mContent;
+        String eTag = mETag;
+        if (ifNoneMatch != null && ifNoneMatch.equals(eTag)) {
+            // client has this version, 304 has no body
+            out.write(("HTTP/1.1 304 Not Modified\r\nETag: " + eTag + "\r\n" +
+                    (mKeepAlive ? "" : "Connection: close\r\n") + "\r\n").getBytes("US-ASCII"));
+            out.flush();
+            return mKeepAlive;
+        }
+        if (ifRange != null && !ifRange.equals(eTag)) {
+            // file changed, full body must be sent instead of range
+            range = null;
+        }
+        boolean head = requestLine.startsWith("HEAD");
+        int fault = head ? 0 : nextFault();
+        if (fault == 1) {
+            out.write(("HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\n" +
+                    (mKeepAlive ? "" : "Connection: close\r\n") + "\r\n").getBytes("US-ASCII"));
+            out.flush();
+            return mKeepAlive;
+        }
+        long start = 0;
+        long end = content.length - 1;
+        String status = "200 OK";
+        StringBuilder headers = new StringBuilder();
+        if (range != null && mSupportsRanges && range.startsWith("bytes=")) {
+            mRangeRequestCount.incrementAndGet();
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            if (bounds[0].isEmpty()) {
+                // suffix range: last N bytes
+                start = Math.max(0, content.length - Long.parseLong(bounds[1]));
+            } else {
+                start = Long.parseLong(bounds[0]);
+                if (!bounds[1].isEmpty()) {
+                    end = Math.min(end, Long.parseLong(bounds[1]));
+                }
+            }
+            status = "206 Partial Content";
+            headers.append("Content-Range: bytes ").append(start).append('-').append(end)
+                    .append('/').append(content.length).append("\r\n");
+        }
+        if (mSupportsRanges) {
+            headers.append("Accept-Ranges: bytes\r\n");
+        }
+        headers.append("ETag: ").append(eTag).append("\r\n");
+        long length = end - start + 1;
+        boolean keepAlive = mKeepAlive;
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: " + length + "\r\n" + headers +
+                (keepAlive ? "" : "Connection: close\r\n") + "\r\n").getBytes("US-ASCII"));
+        if (fault == 2) {
+            // client sees connection closed before Content-Length bytes
+            out.write(content, (int) start, (int) (length / 2));
+            out.flush();
+            return false;
+        }
+        if (!head) {
+            out.write(content, (int) start, (int) length);
+            mBodyBytesSent.addAndGet(length);
+        }
+        out.flush();
+        return keepAlive;
+    }
+}
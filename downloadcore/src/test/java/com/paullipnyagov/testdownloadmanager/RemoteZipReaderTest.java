@@ -0,0 +1,152 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RemoteZipReaderTest {
+
+    private static final CancelSignal NOT_CANCELLED = new CancelSignal() {
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    private static final ByteProgressListener NO_PROGRESS = new ByteProgressListener() {
+        @Override
+        public void onBytesProcessed(long count) {
+        }
+    };
+
+    private File mPresetDirectory;
+    private RangeHttpServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mPresetDirectory = File.createTempFile("deltaPreset", "");
+        assertTrue(mPresetDirectory.delete() && mPresetDirectory.mkdirs());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mServer != null) {
+            mServer.stop();
+        }
+        InstalledPresetIndexTest.deleteRecursive(mPresetDirectory);
+    }
+
+    @Test
+    public void onlyChangedEntriesAreDownloaded() throws IOException {
+        Random random = new Random(7);
+        LinkedHashMap<String, byte[]> oldFiles = new LinkedHashMap<>();
+        for (int i = 0; i < 10; i++) {
+            oldFiles.put("samples/pad" + i + ".wav", randomBytes(random, 100 * 1024));
+        }
+        oldFiles.put("preset.json", "{\"bpm\": 120}".getBytes("UTF-8"));
+        File oldZip = writeZip(oldFiles);
+        ZipArchiveInfo oldInfo = ZipMetadataReader.read(oldZip);
+        assertTrue(new ParallelZipExtractor().extract(oldZip, oldInfo, mPresetDirectory, NOT_CANCELLED, NO_PROGRESS));
+        new PresetManifest(oldInfo.getEntries()).save(mPresetDirectory);
+        assertTrue(oldZip.delete());
+
+        // one sample fixed, one added, one removed
+        LinkedHashMap<String, byte[]> newFiles = new LinkedHashMap<>(oldFiles);
+        newFiles.put("samples/pad3.wav", randomBytes(random, 100 * 1024));
+        newFiles.put("samples/pad10.wav", randomBytes(random, 50 * 1024));
+        newFiles.remove("samples/pad7.wav");
+        File newZip = writeZip(newFiles);
+        mServer = new RangeHttpServer(SegmentedFileDownloaderTest.readFile(newZip), true);
+        assertTrue(newZip.delete());
+
+        RemoteZipReader remoteZip = new RemoteZipReader(new UrlConnectionTransport(5000, 5000), mServer.getUrl());
+        ZipArchiveInfo remoteInfo = remoteZip.readArchiveInfo();
+        PresetManifest.Delta delta = PresetManifest.load(mPresetDirectory).diff(remoteInfo);
+        assertEquals(2, delta.changedEntries.size());
+        assertEquals(1, delta.removedNames.size());
+        assertEquals("samples/pad7.wav", delta.removedNames.get(0));
+
+        assertTrue(remoteZip.extractEntries(delta.changedEntries, mPresetDirectory, NOT_CANCELLED, NO_PROGRESS));
+        assertTrue(new File(mPresetDirectory, "samples/pad7.wav").delete());
+
+        for (Map.Entry<String, byte[]> file : newFiles.entrySet()) {
+            assertArrayEquals(file.getValue(),
+                    SegmentedFileDownloaderTest.readFile(new File(mPresetDirectory, file.getKey())));
+        }
+        assertFalse(new File(mPresetDirectory, "samples/pad7.wav").exists());
+        // tail with central directory and two entries instead of the whole archive
+        assertTrue(mServer.getBodyBytesSent() < remoteZip.getArchiveLength() / 3);
+    }
+
+    @Test
+    public void changedArchiveIsNotMixedWithPreviousOne() throws IOException {
+        LinkedHashMap<String, byte[]> files = new LinkedHashMap<>();
+        files.put("a.wav", randomBytes(new Random(1), 1000));
+        File zip = writeZip(files);
+        mServer = new RangeHttpServer(SegmentedFileDownloaderTest.readFile(zip), true);
+        RemoteZipReader remoteZip = new RemoteZipReader(new UrlConnectionTransport(5000, 5000), mServer.getUrl());
+        ZipArchiveInfo remoteInfo = remoteZip.readArchiveInfo();
+
+        mServer.replaceContent(SegmentedFileDownloaderTest.readFile(zip), "\"v2\"");
+        assertTrue(zip.delete());
+        try {
+            remoteZip.extractEntries(remoteInfo.getEntries(), mPresetDirectory, NOT_CANCELLED, NO_PROGRESS);
+            throw new AssertionError("Entries of replaced archive must not be extracted");
+        } catch (SegmentedFileDownloader.RemoteFileChangedException e) {
+            // expected
+        }
+    }
+
+    private static byte[] randomBytes(Random random, int size) {
+        byte[] data = new byte[size];
+        // half random, half zeros, so deflate has something to do
+        for (int i = 0; i < size / 2; i++) {
+            data[i] = (byte) random.nextInt();
+        }
+        return data;
+    }
+
+    // text entries are stored, samples are deflated with data descriptors like most zip tools do
+    static File writeZip(Map<String, byte[]> files) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            ZipEntry entry = new ZipEntry(file.getKey());
+            if (file.getKey().endsWith(".json")) {
+                CRC32 crc = new CRC32();
+                crc.update(file.getValue());
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(file.getValue().length);
+                entry.setCrc(crc.getValue());
+            }
+            zip.putNextEntry(entry);
+            zip.write(file.getValue());
+            zip.closeEntry();
+        }
+        zip.close();
+        File zipFile = File.createTempFile("delta", ".zip");
+        FileOutputStream output = new FileOutputStream(zipFile);
+        try {
+            output.write(bytes.toByteArray());
+        } finally {
+            output.close();
+        }
+        return zipFile;
+    }
+}
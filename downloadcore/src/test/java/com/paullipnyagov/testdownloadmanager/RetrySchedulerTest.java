@@ -0,0 +1,97 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import java.util.zip.ZipException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RetrySchedulerTest {
+
+    @Test
+    public void backoffGrowsWithJitterAndStopsAtLimitOrBudget() {
+        RetryScheduler scheduler = new RetryScheduler(new Random(3));
+        scheduler.setDelays(1000, 10000);
+        long previousMaxMs = 0;
+        for (int attempt = 0; attempt < 5; attempt++) {
+            long retryAtMs = scheduler.onDownloadFailed(1, DownloadFailure.KIND_TRANSIENT_NETWORK, 0);
+            long fullDelayMs = Math.min(10000, 1000L << attempt);
+            assertTrue("attempt " + attempt + ": " + retryAtMs,
+                    retryAtMs >= fullDelayMs / 2 && retryAtMs <= fullDelayMs);
+            assertTrue(fullDelayMs >= previousMaxMs);
+            previousMaxMs = fullDelayMs;
+            assertTrue(scheduler.isBackingOff(1, retryAtMs - 1));
+            assertFalse(scheduler.isBackingOff(1, retryAtMs));
+        }
+        assertEquals(-1, scheduler.onDownloadFailed(1, DownloadFailure.KIND_TRANSIENT_NETWORK, 0));
+        assertEquals(-1, scheduler.onDownloadFailed(2, DownloadFailure.KIND_PERMANENT, 0));
+        assertTrue(scheduler.onDownloadFailed(3, DownloadFailure.KIND_CORRUPT_ARCHIVE, 0) > 0);
+        assertEquals(-1, scheduler.onDownloadFailed(3, DownloadFailure.KIND_CORRUPT_ARCHIVE, 0));
+
+        // 6 of 10 retries spent above, budget stops a dead server from being retried by every preset
+        for (int presetId = 10; presetId < 14; presetId++) {
+            assertTrue(scheduler.onDownloadFailed(presetId, DownloadFailure.KIND_SERVER, 0) > 0);
+        }
+        assertEquals(-1, scheduler.onDownloadFailed(20, DownloadFailure.KIND_SERVER, 0));
+        for (int i = 0; i < 5; i++) {
+            scheduler.onDownloadStarted();
+        }
+        assertTrue(scheduler.onDownloadFailed(20, DownloadFailure.KIND_SERVER, 0) > 0);
+    }
+
+    @Test
+    public void failuresOfFaultyServerAreClassified() throws IOException {
+        assertEquals(DownloadFailure.KIND_TRANSIENT_NETWORK,
+                DownloadFailure.classify(new IOException("Segment failed", new SocketTimeoutException())));
+        assertEquals(DownloadFailure.KIND_DISK_FULL,
+                DownloadFailure.classify(new IOException("write failed: ENOSPC (No space left on device)")));
+        assertEquals(DownloadFailure.KIND_CORRUPT_ARCHIVE, DownloadFailure.classify(new ZipException("crc")));
+        assertEquals(DownloadFailure.KIND_PERMANENT, DownloadFailure.classify(new HttpStatusException(404, "x")));
+        assertEquals(DownloadFailure.KIND_PERMANENT, DownloadFailure.classify(null));
+
+        RangeHttpServer server = new RangeHttpServer(new byte[256 * 1024], true);
+        server.setFaultRate(1, 1);
+        File outputFile = File.createTempFile("faulty", ".zip");
+        SegmentedFileDownloader downloader = new SegmentedFileDownloader(new UrlConnectionTransport(5000, 5000),
+                1, 64 * 1024);
+        boolean sawServerError = false;
+        boolean sawCutBody = false;
+        try {
+            for (int i = 0; i < 6; i++) {
+                PartialDownload.delete(outputFile);
+                SegmentedFileDownloader.RangeSupport rangeSupport = downloader.probe(server.getUrl());
+                try {
+                    downloader.download(server.getUrl(), outputFile, PartialDownload.create(server.getUrl(),
+                            rangeSupport.validator, rangeSupport.contentLength, 1), new CancelSignal() {
+                        @Override
+                        public boolean isCancelled() {
+                            return false;
+                        }
+                    }, new ByteProgressListener() {
+                        @Override
+                        public void onBytesProcessed(long count) {
+                        }
+                    });
+                    fail("Every request fails");
+                } catch (IOException e) {
+                    int kind = DownloadFailure.classify(e);
+                    sawServerError |= kind == DownloadFailure.KIND_SERVER;
+                    sawCutBody |= kind == DownloadFailure.KIND_TRANSIENT_NETWORK;
+                    assertTrue(e.toString(), kind == DownloadFailure.KIND_SERVER ||
+                            kind == DownloadFailure.KIND_TRANSIENT_NETWORK);
+                }
+            }
+        } finally {
+            server.stop();
+            PartialDownload.delete(outputFile);
+        }
+        assertTrue(sawServerError && sawCutBody);
+    }
+}
@@ -0,0 +1,276 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SegmentedFileDownloaderTest {
+
+    private static final CancelSignal NOT_CANCELLED =
+            new CancelSignal() {
+                @Override
+                public boolean isCancelled() {
+                    return false;
+                }
+            };
+
+    private static final ByteProgressListener NO_PROGRESS = new ByteProgressListener() {
+        @Override
+        public void onBytesProcessed(long count) {
+        }
+    };
+
+    private byte[] mContent;
+    private File mOutputFile;
+    private RangeHttpServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mContent = new byte[300 * 1024 + 17];
+        new Random(42).nextBytes(mContent);
+        mOutputFile = File.createTempFile("segmented", ".zip");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mServer != null) {
+            mServer.stop();
+        }
+        PartialDownload.delete(mOutputFile);
+    }
+
+    @Test
+    public void downloadsAllSegmentsIntoPreallocatedFile() throws IOException {
+        mServer = new RangeHttpServer(mContent, true);
+        SegmentedFileDownloader downloader = new SegmentedFileDownloader(4, 64 * 1024);
+
+        SegmentedFileDownloader.RangeSupport rangeSupport = downloader.probe(mServer.getUrl());
+        assertTrue(rangeSupport.acceptsRanges);
+        assertEquals(mContent.length, rangeSupport.contentLength);
+        int segmentCount = downloader.getSegmentCount(rangeSupport);
+        assertEquals(4, segmentCount);
+
+        PartialDownload partialDownload = PartialDownload.create(mServer.getUrl(), rangeSupport.validator,
+                rangeSupport.contentLength, segmentCount);
+        assertTrue(downloader.download(mServer.getUrl(), mOutputFile, partialDownload, NOT_CANCELLED, NO_PROGRESS));
+        assertEquals(4, mServer.getRangeRequestCount());
+        assertArrayEquals(mContent, readFile(mOutputFile));
+    }
+
+    @Test
+    public void fallsBackToSingleStreamWithoutRangeSupport() throws IOException {
+        mServer = new RangeHttpServer(mContent, false);
+        SegmentedFileDownloader downloader = new SegmentedFileDownloader(4, 64 * 1024);
+
+        SegmentedFileDownloader.RangeSupport rangeSupport = downloader.probe(mServer.getUrl());
+        assertEquals(1, downloader.getSegmentCount(rangeSupport));
+    }
+
+    @Test
+    public void smallFilesAreNotSplit() throws IOException {
+        mServer = new RangeHttpServer(mContent, true);
+        SegmentedFileDownloader downloader = new SegmentedFileDownloader(4, 1024 * 1024);
+
+        assertEquals(1, downloader.getSegmentCount(downloader.probe(mServer.getUrl())));
+    }
+
+    @Test
+    public void resumesOnlyMissingBytesAfterCancel() throws IOException {
+        mServer = new RangeHttpServer(mContent, true);
+        SegmentedFileDownloader.RangeSupport rangeSupport = new SegmentedFileDownloader().probe(mServer.getUrl());
+        PartialDownload partialDownload = PartialDownload.create(mServer.getUrl(), rangeSupport.validator,
+                rangeSupport.contentLength, 2);
+
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        boolean completed = new SegmentedFileDownloader(2, 64 * 1024).download(mServer.getUrl(), mOutputFile,
+                partialDownload, new CancelSignal() {
+                    @Override
+                    public boolean isCancelled() {
+                        return cancelled.get();
+                    }
+                }, new ByteProgressListener() {
+                    // called from both segment threads
+                    private final AtomicLong mBytesDownloaded = new AtomicLong();
+
+                    @Override
+                    public void onBytesProcessed(long count) {
+                        if (mBytesDownloaded.addAndGet(count) > mContent.length / 3) {
+                            cancelled.set(true);
+                        }
+                    }
+                });
+        assertFalse(completed);
+
+        // state survives on disk as if app was restarted
+        PartialDownload restored = PartialDownload.load(mOutputFile);
+        assertNotNull(restored);
+        long alreadyWritten = restored.getBytesWritten();
+        assertTrue(alreadyWritten > 0 && alreadyWritten < mContent.length);
+        assertTrue(restored.canResume(mServer.getUrl(), rangeSupport.validator, mContent.length, mOutputFile));
+
+        long bytesSentBeforeResume = mServer.getBodyBytesSent();
+        assertTrue(new SegmentedFileDownloader(2, 64 * 1024).download(mServer.getUrl(), mOutputFile, restored,
+                NOT_CANCELLED, NO_PROGRESS));
+        assertEquals(mContent.length - alreadyWritten, mServer.getBodyBytesSent() - bytesSentBeforeResume);
+        assertArrayEquals(mContent, readFile(mOutputFile));
+    }
+
+    @Test
+    public void partialDownloadOfChangedFileIsNotResumed() throws IOException {
+        mServer = new RangeHttpServer(mContent, true);
+        SegmentedFileDownloader.RangeSupport oldVersion = new SegmentedFileDownloader().probe(mServer.getUrl());
+        PartialDownload partialDownload = PartialDownload.create(mServer.getUrl(), oldVersion.validator,
+                oldVersion.contentLength, 2);
+        partialDownload.save(mOutputFile);
+
+        byte[] newContent = mContent.clone();
+        newContent[0]++;
+        mServer.replaceContent(newContent, "\"v2\"");
+
+        // changed validator is noticed by probe
+        SegmentedFileDownloader.RangeSupport newVersion = new SegmentedFileDownloader().probe(mServer.getUrl());
+        assertFalse(PartialDownload.load(mOutputFile).canResume(mServer.getUrl(), newVersion.validator,
+                newVersion.contentLength, mOutputFile));
+
+        // and by If-Range if file changes between probe and range request
+        try {
+            new SegmentedFileDownloader(2, 64 * 1024).download(mServer.getUrl(), mOutputFile, partialDownload,
+                    NOT_CANCELLED, NO_PROGRESS);
+            fail("Download of changed file must not be resumed");
+        } catch (SegmentedFileDownloader.RemoteFileChangedException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void sequentialRequestsReuseKeepAliveConnection() throws IOException {
+        mServer = new RangeHttpServer(mContent, true);
+        SegmentedFileDownloader downloader = new SegmentedFileDownloader(
+                new UrlConnectionTransport(5000, 5000), 1, 64 * 1024);
+        for (int i = 0; i < 3; i++) {
+            SegmentedFileDownloader.RangeSupport rangeSupport = downloader.probe(mServer.getUrl());
+            PartialDownload.delete(mOutputFile);
+            PartialDownload partialDownload = PartialDownload.create(mServer.getUrl(), rangeSupport.validator,
+                    rangeSupport.contentLength, 1);
+            assertTrue(downloader.download(mServer.getUrl(), mOutputFile, partialDownload, NOT_CANCELLED,
+                    NO_PROGRESS));
+        }
+        assertEquals(6, mServer.getRequestCount());
+        // fully read responses leave connection open for next request
+        assertEquals(1, mServer.getConnectionCount());
+        assertArrayEquals(mContent, readFile(mOutputFile));
+    }
+
+    @Test
+    public void interruptedDownloadWaitsForSegmentWorkers() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        // body ignores interrupts, like a write already in progress
+        final InputStream stuckBody = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                reading.countDown();
+                while (true) {
+                    try {
+                        release.await();
+                        return -1;
+                    } catch (InterruptedException e) {
+                        // keep waiting
+                    }
+                }
+            }
+        };
+        final SegmentedFileDownloader downloader = new SegmentedFileDownloader(new HttpTransport() {
+            @Override
+            public HttpResponse execute(HttpRequest request) {
+                return new HttpResponse() {
+                    @Override
+                    public int getResponseCode() {
+                        return HttpURLConnection.HTTP_PARTIAL;
+                    }
+
+                    @Override
+                    public String getHeader(String name) {
+                        return null;
+                    }
+
+                    @Override
+                    public long getContentLength() {
+                        return -1;
+                    }
+
+                    @Override
+                    public InputStream getBody() {
+                        return stuckBody;
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                };
+            }
+        }, 1, 64 * 1024);
+        final PartialDownload partialDownload = PartialDownload.create("http://localhost/preset.zip", null, 1000, 1);
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        Thread downloadThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    downloader.download("http://localhost/preset.zip", mOutputFile, partialDownload, NOT_CANCELLED,
+                            NO_PROGRESS);
+                } catch (Exception e) {
+                    error.set(e);
+                }
+            }
+        });
+        downloadThread.start();
+        assertTrue(reading.await(5, TimeUnit.SECONDS));
+
+        downloadThread.interrupt();
+        downloadThread.join(300);
+        assertTrue(downloadThread.isAlive()); // segment worker still runs
+
+        release.countDown();
+        downloadThread.join(5000);
+        assertFalse(downloadThread.isAlive());
+        assertTrue(error.get() instanceof IOException);
+        assertNotNull(PartialDownload.load(mOutputFile));
+    }
+
+    static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream input = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = input.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+        } finally {
+            input.close();
+        }
+        return data;
+    }
+}
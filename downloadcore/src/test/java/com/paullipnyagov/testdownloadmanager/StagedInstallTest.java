@@ -0,0 +1,145 @@
+package com.paullipnyagov.testdownloadmanager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StagedInstallTest {
+
+    private File mDownloadDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDownloadDirectory = File.createTempFile("stagedInstall", "");
+        assertTrue(mDownloadDirectory.delete() && mDownloadDirectory.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        InstalledPresetIndexTest.deleteRecursive(mDownloadDirectory);
+    }
+
+    @Test
+    public void installedVersionStaysUntilCommit() throws IOException {
+        File presetDirectory = installVersion(1, "1", "old.wav");
+        StagedInstall install = new StagedInstall(presetDirectory);
+        writeFile(new File(install.begin(), "new.wav"), 10);
+
+        assertTrue(new File(presetDirectory, "old.wav").isFile());
+        assertEquals("1", PresetManifest.readHeader(presetDirectory).version);
+        assertNull(PresetManifest.readHeader(install.getStagingDirectory()));
+
+        install.commit(newManifest("2"));
+        assertEquals("2", PresetManifest.readHeader(presetDirectory).version);
+        assertTrue(new File(presetDirectory, "new.wav").isFile());
+        assertFalse(new File(presetDirectory, "old.wav").exists());
+        // nothing but the preset is left in download directory
+        assertArrayEquals(new String[]{"1"}, mDownloadDirectory.list());
+    }
+
+    @Test
+    public void abortLeavesInstalledVersion() throws IOException {
+        File presetDirectory = installVersion(1, "1", "old.wav");
+        StagedInstall install = new StagedInstall(presetDirectory);
+        writeFile(new File(install.begin(), "new.wav"), 10);
+        install.abort();
+
+        assertEquals("1", PresetManifest.readHeader(presetDirectory).version);
+        assertArrayEquals(new String[]{"1"}, mDownloadDirectory.list());
+    }
+
+    @Test
+    public void stagingFromInstalledLinksFilesOrCopiesThem() throws IOException {
+        File presetDirectory = installVersion(1, "1", "kit/kick.wav");
+
+        StagedInstall linked = new StagedInstall(presetDirectory);
+        File staged = new File(linked.beginFromInstalled(BlobStoreTest.NIO_LINKS), "kit/kick.wav");
+        assertEquals(2, BlobStoreTest.NIO_LINKS.getLinkCount(staged));
+        assertFalse(new File(linked.getStagingDirectory(), PresetManifest.FILE_NAME).exists());
+
+        StagedInstall copied = new StagedInstall(presetDirectory);
+        staged = new File(copied.beginFromInstalled(null), "kit/kick.wav");
+        assertEquals(1, BlobStoreTest.NIO_LINKS.getLinkCount(staged));
+        assertEquals(new File(presetDirectory, "kit/kick.wav").length(), staged.length());
+    }
+
+    @Test
+    public void recoverFinishesCommittedAndDropsUnfinishedInstalls() throws IOException {
+        // process died between the two renames of commit
+        File committed = installVersion(1, "2", "new.wav");
+        assertTrue(committed.renameTo(new File(mDownloadDirectory, ".staging-1")));
+        installVersion(1, "1", "old.wav");
+        assertTrue(new File(mDownloadDirectory, "1").renameTo(new File(mDownloadDirectory, ".old-1")));
+        // process died while files were written
+        installVersion(2, "1", "old.wav");
+        writeFile(new File(mDownloadDirectory, ".staging-2/new.wav"), 10);
+        // process died after installed version was moved aside, before staging was renamed
+        installVersion(3, "1", "old.wav");
+        writeFile(new File(mDownloadDirectory, ".staging-3/new.wav"), 10);
+        assertTrue(new File(mDownloadDirectory, "3").renameTo(new File(mDownloadDirectory, ".old-3")));
+
+        StagedInstall.recover(mDownloadDirectory);
+        assertEquals("2", PresetManifest.readHeader(new File(mDownloadDirectory, "1")).version);
+        assertEquals("1", PresetManifest.readHeader(new File(mDownloadDirectory, "2")).version);
+        assertEquals("1", PresetManifest.readHeader(new File(mDownloadDirectory, "3")).version);
+        assertTrue(new File(mDownloadDirectory, "3/old.wav").isFile());
+        assertEquals(3, mDownloadDirectory.list().length);
+    }
+
+    @Test
+    public void legacyMarkerFilesAreMigratedToManifest() throws IOException {
+        File presetDirectory = new File(mDownloadDirectory, "1");
+        writeFile(new File(presetDirectory, "sample.wav"), 100);
+        LegacyMarkerFiles.writeVersionFile(presetDirectory, "4");
+        assertNull(LegacyMarkerFiles.migrate(presetDirectory)); // no insurance, incomplete
+
+        LegacyMarkerFiles.writeInsuranceFile(presetDirectory);
+        PresetManifest.Header header = LegacyMarkerFiles.migrate(presetDirectory);
+        assertEquals("4", header.version);
+        assertTrue(header.sizeBytes >= 100);
+        assertArrayEquals(new String[]{PresetManifest.FILE_NAME, "sample.wav"}, sortedList(presetDirectory));
+        assertEquals("4", LegacyMarkerFiles.readVersionFile(presetDirectory));
+        // files are unknown, so the next update downloads everything
+        assertFalse(PresetManifest.canUpdateIncrementally(presetDirectory));
+    }
+
+    private File installVersion(int presetId, String version, String fileName) throws IOException {
+        File presetDirectory = new File(mDownloadDirectory, Integer.toString(presetId));
+        writeFile(new File(presetDirectory, fileName), 100);
+        newManifest(version).save(presetDirectory);
+        return presetDirectory;
+    }
+
+    private static PresetManifest newManifest(String version) {
+        PresetManifest manifest = new PresetManifest();
+        manifest.setVersion(version);
+        return manifest;
+    }
+
+    private static String[] sortedList(File directory) {
+        String[] names = directory.list();
+        Arrays.sort(names);
+        return names;
+    }
+
+    private static void writeFile(File file, int size) throws IOException {
+        assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(new byte[size]);
+        } finally {
+            output.close();
+        }
+    }
+}